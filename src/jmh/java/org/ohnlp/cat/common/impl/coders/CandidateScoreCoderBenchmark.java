@@ -0,0 +1,63 @@
+package org.ohnlp.cat.common.impl.coders;
+
+import org.apache.beam.sdk.coders.Coder;
+import org.apache.beam.sdk.coders.SerializableCoder;
+import org.apache.beam.sdk.util.CoderUtils;
+import org.ohnlp.cat.api.cohorts.CandidateScore;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link CandidateScoreCoder} against Java serialization (the previous default, via {@link SerializableCoder})
+ * for a score with 64 evidence IDs over 4 entity criteria. Encoded sizes are asserted by
+ * CandidateScoreCoderTest#testEncodedSize.
+ * <p>
+ * Run as for {@link DomainResourceCoderBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CandidateScoreCoderBenchmark {
+    @Param({"binary", "serializable"})
+    public String format;
+
+    private Coder<CandidateScore> coder;
+    private CandidateScore score;
+    private byte[] encoded;
+
+    @Setup
+    public void setup() throws IOException {
+        coder = "binary".equals(format) ? CandidateScoreCoder.of() : SerializableCoder.of(CandidateScore.class);
+        Random random = new Random(42);
+        Set<String> evidenceIDs = new HashSet<>();
+        Map<UUID, Set<String>> criterionEvidenceIDs = new HashMap<>();
+        for (int leaf = 0; leaf < 4; leaf++) {
+            Set<String> ids = new HashSet<>();
+            for (int i = 0; i < 16; i++) {
+                ids.add((i % 2 == 0 ? "ehr" : "nlp") + ":CONDITION:" + random.nextInt(100_000_000));
+            }
+            criterionEvidenceIDs.put(new UUID(random.nextLong(), random.nextLong()), ids);
+            evidenceIDs.addAll(ids);
+        }
+        score = new CandidateScore("12345678", 0.75, evidenceIDs);
+        score.setDataSourceCount(2);
+        score.setCriterionEvidenceIDs(criterionEvidenceIDs);
+        encoded = CoderUtils.encodeToByteArray(coder, score);
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return CoderUtils.encodeToByteArray(coder, score);
+    }
+
+    @Benchmark
+    public CandidateScore decode() throws IOException {
+        return CoderUtils.decodeFromByteArray(coder, encoded);
+    }
+}
@@ -0,0 +1,138 @@
+package org.ohnlp.cat.common.impl.coders;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import org.apache.beam.sdk.coders.Coder;
+import org.apache.beam.sdk.coders.CustomCoder;
+import org.apache.beam.sdk.coders.SerializableCoder;
+import org.apache.beam.sdk.coders.StringUtf8Coder;
+import org.apache.beam.sdk.util.CoderUtils;
+import org.hl7.fhir.r4.model.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link DomainResourceCoder} against Java serialization (the previous default, via {@link SerializableCoder})
+ * and HAPI JSON, over resources shaped as produced by the bundled providers. Encoded sizes are asserted by
+ * DomainResourceCoderTest#testEncodedSize.
+ * <p>
+ * Run via mvn -P benchmarks test-compile exec:exec, supplying JMH options via
+ * -Dexec.args="-classpath %classpath org.openjdk.jmh.Main [options]".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DomainResourceCoderBenchmark {
+    private static final int RESOURCE_COUNT = 256;
+
+    @Param({"binary", "serializable", "json"})
+    public String format;
+
+    private Coder<DomainResource> resourceCoder;
+    private List<DomainResource> resources;
+    private List<byte[]> encodedResources;
+
+    @Setup
+    public void setup() throws IOException {
+        switch (format) {
+            case "binary":
+                resourceCoder = DomainResourceCoder.of();
+                break;
+            case "serializable":
+                resourceCoder = SerializableCoder.of(DomainResource.class);
+                break;
+            case "json":
+                resourceCoder = new JsonResourceCoder();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown format " + format);
+        }
+        Random random = new Random(42);
+        resources = new ArrayList<>();
+        encodedResources = new ArrayList<>();
+        for (int i = 0; i < RESOURCE_COUNT; i++) {
+            DomainResource resource = i % 16 == 0 ? note(i, random) : condition(i, random);
+            resources.add(resource);
+            encodedResources.add(CoderUtils.encodeToByteArray(resourceCoder, resource));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RESOURCE_COUNT)
+    public void encodeResources(Blackhole bh) throws IOException {
+        for (DomainResource resource : resources) {
+            bh.consume(CoderUtils.encodeToByteArray(resourceCoder, resource));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RESOURCE_COUNT)
+    public void decodeResources(Blackhole bh) throws IOException {
+        for (byte[] encoded : encodedResources) {
+            bh.consume(CoderUtils.decodeFromByteArray(resourceCoder, encoded));
+        }
+    }
+
+    /**
+     * An NLP-derived condition, as produced by the OHDSI CDM NLP provider
+     */
+    private static Condition condition(int i, Random random) {
+        Condition c = new Condition();
+        c.setId("nlp:CONDITION:" + (10_000_000 + i));
+        c.setSubject(new Reference().setIdentifier(new Identifier().setValue(String.valueOf(random.nextInt(1_000_000)))));
+        c.setCode(new CodeableConcept().addCoding(new Coding("https://athena.ohdsi.org/",
+                String.valueOf(random.nextInt(50_000_000)), "Type 2 diabetes mellitus without complication")));
+        c.setRecordedDate(new Date(1_500_000_000_000L + random.nextInt(Integer.MAX_VALUE) * 100L));
+        c.addExtension("nlp:offset", new StringType(String.valueOf(random.nextInt(10_000))));
+        c.addExtension("nlp:text", new StringType("T2DM"));
+        return c;
+    }
+
+    /**
+     * A note with a contained NLP-derived condition and ~2KB of text
+     */
+    private static DocumentReference note(int i, Random random) {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 2048) {
+            text.append("Patient reports intermittent chest pain, denies shortness of breath. ");
+        }
+        DocumentReference ret = new DocumentReference();
+        ret.setId("nlp:NOTE:" + i);
+        ret.setMasterIdentifier(new Identifier().setValue(String.valueOf(i)));
+        ret.setDate(new Date(1_500_000_000_000L));
+        ret.addContent().setAttachment(new Attachment().setData(text.toString().getBytes(StandardCharsets.UTF_8)));
+        ret.addContained(condition(i, random));
+        return ret;
+    }
+
+    /**
+     * Encodes resources as HAPI JSON, as written by {@link DomainResourceCoder} for resources outside its layouts
+     */
+    private static class JsonResourceCoder extends CustomCoder<DomainResource> {
+        private static final FhirContext CONTEXT = FhirContext.forR4();
+
+        @Override
+        public void encode(DomainResource value, OutputStream outStream) throws IOException {
+            StringUtf8Coder.of().encode(parser().encodeResourceToString(value), outStream);
+        }
+
+        @Override
+        public DomainResource decode(InputStream inStream) throws IOException {
+            return (DomainResource) parser().parseResource(StringUtf8Coder.of().decode(inStream));
+        }
+
+        private static IParser parser() {
+            return CONTEXT.newJsonParser();
+        }
+    }
+}
@@ -1,7 +1,9 @@
 package org.ohnlp.cat.api.cohorts;
 
+import org.ohnlp.cat.api.criteria.Criterion;
+
 import java.io.Serializable;
-import java.util.Set;
+import java.util.*;
 
 public class CandidateScore implements Serializable {
     private String patientUID;
@@ -9,6 +11,7 @@ public class CandidateScore implements Serializable {
     private Double score;
 
     private int dataSourceCount = 1;
+    private Map<UUID, Set<String>> criterionEvidenceIDs;
 
     public CandidateScore() {}
 
@@ -18,6 +21,67 @@ public class CandidateScore implements Serializable {
         this.evidenceIDs = evidenceIDs;
     }
 
+    /**
+     * Scores a patient from their evidence per {@link org.ohnlp.cat.api.criteria.EntityCriterion}. The score of each
+     * entity criterion is the fraction of data sources with matching evidence, where the data source of each
+     * evidence ID is its source_system_name prefix (see {@link org.ohnlp.cat.api.ehr.ResourceProvider}).
+     *
+     * @param criterionEvidenceIDs Evidence IDs, keyed by the node UID of the entity criterion they satisfy
+     * @param dataSourceCount      The number of data sources evaluated
+     */
+    public static CandidateScore fromCriterionEvidence(Criterion criterion, String patientUID,
+                                                       Map<UUID, Set<String>> criterionEvidenceIDs, int dataSourceCount) {
+        Map<UUID, CandidateScore> scoreByCriterionUID = new HashMap<>();
+        Set<String> evidenceIDs = new HashSet<>();
+        criterionEvidenceIDs.forEach((criterionUID, ids) -> {
+            Set<String> sources = new HashSet<>();
+            for (String id : ids) {
+                int split = id.indexOf(':');
+                sources.add(split < 0 ? "" : id.substring(0, split));
+            }
+            CandidateScore leafScore = new CandidateScore(patientUID, (double) sources.size(), new HashSet<>(ids));
+            // Normalized by data source count in EntityCriterion#score
+            leafScore.setDataSourceCount(dataSourceCount);
+            scoreByCriterionUID.put(criterionUID, leafScore);
+            evidenceIDs.addAll(ids);
+        });
+        CandidateScore ret = new CandidateScore(patientUID, criterion.score(scoreByCriterionUID), evidenceIDs);
+        ret.setDataSourceCount(dataSourceCount);
+        ret.setCriterionEvidenceIDs(criterionEvidenceIDs);
+        return ret;
+    }
+
+    /**
+     * Merges the score of a patient computed over incrementally extracted data with the score computed for the same
+     * patient and criterion by a previous job. The evidence of each entity criterion is merged, and the patient
+     * rescored via {@link #fromCriterionEvidence(Criterion, String, Map, int)}, such that evidence from a newly
+     * matching data source raises the fraction of data sources matched, and newly matched exclusions lower the score.
+     * <p>
+     * As merging is idempotent, re-extracting rows already seen by the previous job does not alter the result.
+     *
+     * @param previous The score from the previous job, or null if there was none
+     * @param current  The score computed over newly extracted data, or null if there was none
+     * @throws IllegalArgumentException if either score does not retain {@link #getCriterionEvidenceIDs()}, in which
+     *                                  case a full re-extraction is required
+     */
+    public static CandidateScore mergeIncremental(Criterion criterion, CandidateScore previous, CandidateScore current) {
+        if (previous == null) {
+            return current;
+        }
+        if (current == null) {
+            return previous;
+        }
+        if (previous.criterionEvidenceIDs == null || current.criterionEvidenceIDs == null) {
+            throw new IllegalArgumentException("Scores without per-criterion evidence can not be merged");
+        }
+        Map<UUID, Set<String>> criterionEvidenceIDs = new HashMap<>();
+        for (CandidateScore score : Arrays.asList(previous, current)) {
+            score.criterionEvidenceIDs.forEach((criterionUID, ids) ->
+                    criterionEvidenceIDs.computeIfAbsent(criterionUID, k -> new HashSet<>()).addAll(ids));
+        }
+        return fromCriterionEvidence(criterion, current.patientUID, criterionEvidenceIDs, current.dataSourceCount);
+    }
+
     public String getPatientUID() {
         return patientUID;
     }
@@ -49,4 +113,16 @@ public class CandidateScore implements Serializable {
     public void setDataSourceCount(int dataSourceCount) {
         this.dataSourceCount = dataSourceCount;
     }
-}
\ No newline at end of file
+
+    /**
+     * @return The evidence IDs of this patient keyed by the node UID of the entity criterion they satisfy, as
+     * retained for {@link #mergeIncremental(Criterion, CandidateScore, CandidateScore)}, or null if not retained
+     */
+    public Map<UUID, Set<String>> getCriterionEvidenceIDs() {
+        return criterionEvidenceIDs;
+    }
+
+    public void setCriterionEvidenceIDs(Map<UUID, Set<String>> criterionEvidenceIDs) {
+        this.criterionEvidenceIDs = criterionEvidenceIDs;
+    }
+}
@@ -5,10 +5,14 @@ import com.fasterxml.jackson.annotation.JsonTypeInfo;
 import org.codehaus.jackson.map.annotate.JsonTypeResolver;
 import org.hl7.fhir.r4.model.DomainResource;
 import org.ohnlp.cat.api.cohorts.CandidateScore;
+import org.ohnlp.cat.api.criteria.prepared.PreparedCriterion;
+import org.ohnlp.cat.api.criteria.prepared.RowMatcher;
 import org.ohnlp.cat.api.ehr.ResourceProvider;
 
 import java.io.Serializable;
+import java.util.EnumSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 @JsonTypeInfo(
@@ -31,6 +35,22 @@ public abstract class Criterion implements Serializable {
 
     public abstract double score(Map<UUID, CandidateScore> scoreByCriterionUID);
 
+    /**
+     * Prepares this criterion tree for evaluation. Should be called once per worker, with the resulting
+     * {@link PreparedCriterion} shared between threads for the remainder of evaluation
+     *
+     * <p>
+     * The default implementation, for subclasses predating prepared evaluation, delegates to
+     * {@link #matches(DomainResource, ResourceProvider)}, such that nothing is prepared up front and rows are always
+     * mapped to resources before being evaluated. As the value paths read by such subclasses are unknown, all
+     * {@link FHIRValueLocationPath}s are reported as referenced
+     *
+     * @return An immutable, thread-safe representation of this criterion tree
+     */
+    public PreparedCriterion prepare() {
+        return new DelegatingPreparedCriterion(this);
+    }
+
     public UUID getNodeUID() {
         return nodeUID;
     }
@@ -62,4 +82,31 @@ public abstract class Criterion implements Serializable {
     public void setNodeType(String nodeType) {
         this.nodeType = nodeType;
     }
+
+    /**
+     * The default prepared form of a criterion, see {@link #prepare()}
+     */
+    private static class DelegatingPreparedCriterion extends PreparedCriterion {
+        private final Criterion criterion;
+
+        private DelegatingPreparedCriterion(Criterion criterion) {
+            super(criterion.getNodeUID());
+            this.criterion = criterion;
+        }
+
+        @Override
+        public boolean matches(DomainResource resource, ResourceProvider provider) {
+            return criterion.matches(resource, provider);
+        }
+
+        @Override
+        public RowMatcher bindRows(ClinicalEntityType type, ResourceProvider provider) {
+            return null;
+        }
+
+        @Override
+        public void collectValuePaths(Set<FHIRValueLocationPath> paths) {
+            paths.addAll(EnumSet.allOf(FHIRValueLocationPath.class));
+        }
+    }
 }
@@ -2,6 +2,9 @@ package org.ohnlp.cat.api.criteria;
 
 import org.hl7.fhir.r4.model.DomainResource;
 import org.ohnlp.cat.api.cohorts.CandidateScore;
+import org.ohnlp.cat.api.criteria.prepared.PreparedCriterion;
+import org.ohnlp.cat.api.criteria.prepared.PreparedEntityCriterion;
+import org.ohnlp.cat.api.criteria.prepared.PreparedEntityValue;
 import org.ohnlp.cat.api.ehr.ResourceProvider;
 
 import java.util.Map;
@@ -46,6 +49,15 @@ public class EntityCriterion extends Criterion {
         return true;
     }
 
+    @Override
+    public PreparedCriterion prepare() {
+        PreparedEntityValue[] preparedComponents = new PreparedEntityValue[components.length];
+        for (int i = 0; i < components.length; i++) {
+            preparedComponents[i] = components[i].prepare();
+        }
+        return new PreparedEntityCriterion(getNodeUID(), type, preparedComponents);
+    }
+
     @Override
     public double score(Map<UUID, CandidateScore> scoreByCriterionUID) {
         return scoreByCriterionUID.containsKey(getNodeUID()) ?
@@ -0,0 +1,22 @@
+package org.ohnlp.cat.api.criteria;
+
+import org.hl7.fhir.r4.model.DomainResource;
+import org.hl7.fhir.r4.model.PrimitiveType;
+
+import java.io.Serializable;
+import java.util.function.Predicate;
+
+/**
+ * Reads the values located at a given {@link FHIRValueLocationPath} out of a {@link DomainResource}.
+ * <p>
+ * Accessors are obtained via {@link FHIRValueAccessors#forPath(FHIRValueLocationPath, String)}, hold no
+ * per-call state and are therefore safe to share between threads.
+ */
+public interface FHIRValueAccessor extends Serializable {
+    /**
+     * @param resource  The resource to read values from
+     * @param predicate Test applied to each non-empty value found at this accessor's path
+     * @return true as soon as any located value satisfies predicate, false if none do (or none exist)
+     */
+    boolean anyMatch(DomainResource resource, Predicate<PrimitiveType<?>> predicate);
+}
@@ -0,0 +1,218 @@
+package org.ohnlp.cat.api.criteria;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.hl7.fhir.r4.model.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+import static org.ohnlp.cat.api.utils.FHIRUtils.findValuesFromJsonPath;
+
+/**
+ * Compiles {@link FHIRValueLocationPath}s into {@link FHIRValueAccessor}s.
+ * <p>
+ * Where the path a provider reports for a value reference is the canonical {@link FHIRValueLocationPath#getPath()},
+ * values are read directly from the HAPI model objects. Any other provider path (e.g. the contained. prefix used by
+ * NLP providers), as well as resource types not known to the typed accessors, fall back to encoding the resource to
+ * JSON and walking the provider path.
+ */
+public final class FHIRValueAccessors {
+
+    private static final Map<FHIRValueLocationPath, Map<String, FHIRValueAccessor>> CACHE = new ConcurrentHashMap<>();
+
+    private FHIRValueAccessors() {
+    }
+
+    /**
+     * @param valuePath    The value reference being evaluated
+     * @param providerPath The path for valuePath as reported by {@link org.ohnlp.cat.api.ehr.ResourceProvider#getPathForValueReference(FHIRValueLocationPath)}
+     * @return A (cached) accessor for the supplied path
+     */
+    public static FHIRValueAccessor forPath(FHIRValueLocationPath valuePath, String providerPath) {
+        return CACHE.computeIfAbsent(valuePath, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(providerPath, p -> compile(valuePath, p));
+    }
+
+    private static FHIRValueAccessor compile(FHIRValueLocationPath valuePath, String providerPath) {
+        JsonPathAccessor fallback = new JsonPathAccessor(providerPath);
+        if (!providerPath.equals(valuePath.getPath())) {
+            return fallback;
+        }
+        switch (valuePath) {
+            case PERSON_ID:
+                return new IDAccessor();
+            case PERSON_GENDER:
+                return new GenderAccessor(fallback);
+            case PERSON_DOB:
+                return new BirthDateAccessor(fallback);
+            case CONDITION_CODE:
+            case PROCEDURE_CODE:
+            case OBSERVATION_CODE:
+                return new CodeAccessor(fallback);
+            case MEDICATION_CODE:
+                return new MedicationCodeAccessor(fallback);
+            case OBSERVATION_VALUE:
+                return new ObservationValueAccessor(fallback);
+            default:
+                return fallback;
+        }
+    }
+
+    private static boolean test(PrimitiveType<?> value, Predicate<PrimitiveType<?>> predicate) {
+        return value != null && value.hasValue() && predicate.test(value);
+    }
+
+    private static boolean anyCodingMatches(CodeableConcept concept, Predicate<PrimitiveType<?>> predicate) {
+        if (concept == null || !concept.hasCoding()) {
+            return false;
+        }
+        for (Coding coding : concept.getCoding()) {
+            if (coding.hasCode() && test(coding.getCodeElement(), predicate)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // id
+    private static class IDAccessor implements FHIRValueAccessor {
+        @Override
+        public boolean anyMatch(DomainResource resource, Predicate<PrimitiveType<?>> predicate) {
+            // Matches JSON encoding, which only emits the ID part of the resource ID
+            return resource.hasIdElement() && test(new StringType(resource.getIdElement().getIdPart()), predicate);
+        }
+    }
+
+    // gender
+    private static class GenderAccessor implements FHIRValueAccessor {
+        private final FHIRValueAccessor fallback;
+
+        GenderAccessor(FHIRValueAccessor fallback) {
+            this.fallback = fallback;
+        }
+
+        @Override
+        public boolean anyMatch(DomainResource resource, Predicate<PrimitiveType<?>> predicate) {
+            if (resource instanceof Person) {
+                return ((Person) resource).hasGender() && test(((Person) resource).getGenderElement(), predicate);
+            } else if (resource instanceof Patient) {
+                return ((Patient) resource).hasGender() && test(((Patient) resource).getGenderElement(), predicate);
+            }
+            return fallback.anyMatch(resource, predicate);
+        }
+    }
+
+    // birthDate
+    private static class BirthDateAccessor implements FHIRValueAccessor {
+        private final FHIRValueAccessor fallback;
+
+        BirthDateAccessor(FHIRValueAccessor fallback) {
+            this.fallback = fallback;
+        }
+
+        @Override
+        public boolean anyMatch(DomainResource resource, Predicate<PrimitiveType<?>> predicate) {
+            if (resource instanceof Person) {
+                return ((Person) resource).hasBirthDate() && test(((Person) resource).getBirthDateElement(), predicate);
+            } else if (resource instanceof Patient) {
+                return ((Patient) resource).hasBirthDate() && test(((Patient) resource).getBirthDateElement(), predicate);
+            }
+            return fallback.anyMatch(resource, predicate);
+        }
+    }
+
+    // code.coding.code
+    private static class CodeAccessor implements FHIRValueAccessor {
+        private final FHIRValueAccessor fallback;
+
+        CodeAccessor(FHIRValueAccessor fallback) {
+            this.fallback = fallback;
+        }
+
+        @Override
+        public boolean anyMatch(DomainResource resource, Predicate<PrimitiveType<?>> predicate) {
+            if (resource instanceof Condition) {
+                return ((Condition) resource).hasCode() && anyCodingMatches(((Condition) resource).getCode(), predicate);
+            } else if (resource instanceof Procedure) {
+                return ((Procedure) resource).hasCode() && anyCodingMatches(((Procedure) resource).getCode(), predicate);
+            } else if (resource instanceof Observation) {
+                return ((Observation) resource).hasCode() && anyCodingMatches(((Observation) resource).getCode(), predicate);
+            }
+            return fallback.anyMatch(resource, predicate);
+        }
+    }
+
+    // medicationCodeableConcept.coding.code
+    private static class MedicationCodeAccessor implements FHIRValueAccessor {
+        private final FHIRValueAccessor fallback;
+
+        MedicationCodeAccessor(FHIRValueAccessor fallback) {
+            this.fallback = fallback;
+        }
+
+        @Override
+        public boolean anyMatch(DomainResource resource, Predicate<PrimitiveType<?>> predicate) {
+            if (resource instanceof MedicationStatement) {
+                MedicationStatement ms = (MedicationStatement) resource;
+                return ms.hasMedicationCodeableConcept() && anyCodingMatches(ms.getMedicationCodeableConcept(), predicate);
+            }
+            return fallback.anyMatch(resource, predicate);
+        }
+    }
+
+    // valueString
+    private static class ObservationValueAccessor implements FHIRValueAccessor {
+        private final FHIRValueAccessor fallback;
+
+        ObservationValueAccessor(FHIRValueAccessor fallback) {
+            this.fallback = fallback;
+        }
+
+        @Override
+        public boolean anyMatch(DomainResource resource, Predicate<PrimitiveType<?>> predicate) {
+            if (resource instanceof Observation) {
+                Type value = ((Observation) resource).getValue();
+                return value instanceof StringType && test((StringType) value, predicate);
+            }
+            return fallback.anyMatch(resource, predicate);
+        }
+    }
+
+    // Fallback: serialize to JSON and walk the provider-supplied path
+    private static class JsonPathAccessor implements FHIRValueAccessor {
+        private static volatile FhirContext internalContext;
+        private static final ObjectMapper om = new ObjectMapper();
+
+        private final String path;
+
+        JsonPathAccessor(String path) {
+            this.path = path;
+        }
+
+        @Override
+        public boolean anyMatch(DomainResource resource, Predicate<PrimitiveType<?>> predicate) {
+            if (internalContext == null) {
+                internalContext = FhirContext.forR4();
+            }
+            String resourceJSON = internalContext.newJsonParser().encodeResourceToString(resource);
+            List<String> valueList;
+            try {
+                JsonNode json = om.readTree(resourceJSON);
+                valueList = findValuesFromJsonPath(json, path);
+            } catch (JsonProcessingException e) {
+                return false;
+            }
+            for (String value : valueList) {
+                if (predicate.test(new StringType(value))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -2,6 +2,8 @@ package org.ohnlp.cat.api.criteria;
 
 import org.hl7.fhir.r4.model.DomainResource;
 import org.ohnlp.cat.api.cohorts.CandidateScore;
+import org.ohnlp.cat.api.criteria.prepared.PreparedCriterion;
+import org.ohnlp.cat.api.criteria.prepared.PreparedLogicalCriterion;
 import org.ohnlp.cat.api.ehr.ResourceProvider;
 
 import java.util.*;
@@ -41,6 +43,10 @@ public class LogicalCriterion extends Criterion {
         return children;
     }
 
+    public void setChildren(List<Criterion> children) {
+        this.children = children;
+    }
+
     @Override
     public boolean matches(DomainResource resource, ResourceProvider provider) {
         switch (type) {
@@ -89,6 +95,12 @@ public class LogicalCriterion extends Criterion {
         }
     }
 
+    @Override
+    public PreparedCriterion prepare() {
+        return new PreparedLogicalCriterion(getNodeUID(), type, numericModifier,
+                children.stream().map(Criterion::prepare).collect(Collectors.toList()));
+    }
+
     @Override
     public double score(Map<UUID, CandidateScore> scoreByCriterionUID) {
         switch (type) {
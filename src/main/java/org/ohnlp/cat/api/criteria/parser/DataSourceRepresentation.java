@@ -1,9 +1,10 @@
 package org.ohnlp.cat.api.criteria.parser;
 
+import java.io.Serializable;
 import java.util.Collection;
 import java.util.Objects;
 
-public class DataSourceRepresentation {
+public class DataSourceRepresentation implements Serializable {
     private Collection<String> dataSourceID;
     private String sourceUMLSCUI;
     private String representation;
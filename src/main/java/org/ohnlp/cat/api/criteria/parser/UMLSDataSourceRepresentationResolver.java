@@ -3,6 +3,7 @@ package org.ohnlp.cat.api.criteria.parser;
 import org.ohnlp.cat.api.criteria.ClinicalEntityType;
 
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 
@@ -10,4 +11,19 @@ public interface UMLSDataSourceRepresentationResolver {
     void init(Map<String, Object> config);
     Set<DataSourceRepresentation> resolveForUMLS(ClinicalEntityType type, Collection<String> requestingDataSourceIDs, String umlsCUI);
 
+    /**
+     * Batch form of {@link #resolveForUMLS(ClinicalEntityType, Collection, String)}, which implementations should
+     * override to resolve all CUIs in as few round trips as possible. The default implementation resolves each CUI
+     * individually.
+     *
+     * @return The representations of each CUI, keyed by CUI. CUIs without representations map to an empty set
+     */
+    default Map<String, Set<DataSourceRepresentation>> resolveForUMLS(ClinicalEntityType type, Collection<String> requestingDataSourceIDs, Collection<String> umlsCUIs) {
+        Map<String, Set<DataSourceRepresentation>> ret = new HashMap<>();
+        for (String cui : umlsCUIs) {
+            ret.put(cui, resolveForUMLS(type, requestingDataSourceIDs, cui));
+        }
+        return ret;
+    }
+
 }
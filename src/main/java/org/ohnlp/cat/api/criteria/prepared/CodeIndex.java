@@ -0,0 +1,132 @@
+package org.ohnlp.cat.api.criteria.prepared;
+
+import org.ohnlp.cat.api.criteria.parser.DataSourceRepresentation;
+import org.ohnlp.cat.api.utils.CaseInsensitiveStringSet;
+import org.ohnlp.cat.api.utils.LexicalUtils;
+import org.ohnlp.cat.api.utils.LongOpenHashSet;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * An index of expanded {@link DataSourceRepresentation} codes, keyed by {@link DataSourceRepresentation#getDataSourceID()}.
+ * <p>
+ * Codes in canonical integer form (e.g. OMOP concept IDs) are stored in a primitive {@link LongOpenHashSet}, with
+ * all other codes in a {@link CaseInsensitiveStringSet}, such that membership checks are O(1) and allocation-free.
+ * Representations that do not name any data source apply to all data sources.
+ */
+public class CodeIndex implements Serializable {
+    private final CodeSet allCodes;
+    private final CodeSet sourceAgnosticCodes;
+    private final Map<String, CodeSet> codesBySource;
+
+    private CodeIndex(CodeSet allCodes, CodeSet sourceAgnosticCodes, Map<String, CodeSet> codesBySource) {
+        this.allCodes = allCodes;
+        this.sourceAgnosticCodes = sourceAgnosticCodes;
+        this.codesBySource = codesBySource;
+    }
+
+    public static CodeIndex build(Collection<DataSourceRepresentation>[] expandedCodes) {
+        CodeSet allCodes = new CodeSet();
+        CodeSet sourceAgnosticCodes = new CodeSet();
+        Map<String, List<String>> codesBySourceID = new HashMap<>();
+        if (expandedCodes != null) {
+            for (Collection<DataSourceRepresentation> reprs : expandedCodes) {
+                if (reprs == null) {
+                    continue;
+                }
+                for (DataSourceRepresentation repr : reprs) {
+                    String code = repr.getRepresentation();
+                    if (code == null) {
+                        continue;
+                    }
+                    allCodes.add(code);
+                    Collection<String> sourceIDs = repr.getDataSourceID();
+                    if (sourceIDs == null || sourceIDs.isEmpty()) {
+                        sourceAgnosticCodes.add(code);
+                    } else {
+                        for (String sourceID : sourceIDs) {
+                            codesBySourceID.computeIfAbsent(sourceID, k -> new ArrayList<>()).add(code);
+                        }
+                    }
+                }
+            }
+        }
+        Map<String, CodeSet> codesBySource = new HashMap<>();
+        codesBySourceID.forEach((sourceID, codes) -> {
+            CodeSet set = new CodeSet();
+            for (String code : codes) {
+                set.add(code);
+            }
+            for (long code : sourceAgnosticCodes.numericCodes.toSortedArray()) {
+                set.numericCodes.add(code);
+            }
+            for (String code : sourceAgnosticCodes.otherCodes.toList()) {
+                set.otherCodes.add(code);
+            }
+            codesBySource.put(sourceID, set);
+        });
+        return new CodeIndex(allCodes, sourceAgnosticCodes, Collections.unmodifiableMap(codesBySource));
+    }
+
+    /**
+     * @param dataSourceID The ID of the data source being evaluated, or null if unknown
+     * @return The codes applicable to the given data source, or all indexed codes if dataSourceID is null
+     */
+    public CodeSet forSource(String dataSourceID) {
+        if (dataSourceID == null) {
+            return allCodes;
+        }
+        return codesBySource.getOrDefault(dataSourceID, sourceAgnosticCodes);
+    }
+
+    public static class CodeSet implements Serializable {
+        private final LongOpenHashSet numericCodes = new LongOpenHashSet();
+        private final CaseInsensitiveStringSet otherCodes = new CaseInsensitiveStringSet();
+
+        private void add(String code) {
+            long numeric = LexicalUtils.parseCanonicalLong(code);
+            if (numeric != LexicalUtils.NOT_A_LONG) {
+                numericCodes.add(numeric);
+            } else {
+                otherCodes.add(code);
+            }
+        }
+
+        /**
+         * @return Whether code is a member of this set, compared case-insensitively
+         */
+        public boolean contains(String code) {
+            long numeric = LexicalUtils.parseCanonicalLong(code);
+            if (numeric != LexicalUtils.NOT_A_LONG) {
+                return numericCodes.contains(numeric);
+            }
+            return otherCodes.contains(code);
+        }
+
+        /**
+         * @return Whether the canonical integer form of code is a member of this set
+         */
+        public boolean contains(long code) {
+            return numericCodes.contains(code);
+        }
+
+        public boolean isEmpty() {
+            return numericCodes.isEmpty() && otherCodes.isEmpty();
+        }
+
+        /**
+         * @return Codes in this set that are in canonical integer form, in ascending order
+         */
+        public long[] getNumericCodes() {
+            return numericCodes.toSortedArray();
+        }
+
+        /**
+         * @return Codes in this set that are not in canonical integer form
+         */
+        public List<String> getNonNumericCodes() {
+            return otherCodes.toList();
+        }
+    }
+}
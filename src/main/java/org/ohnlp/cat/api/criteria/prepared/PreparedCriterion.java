@@ -0,0 +1,60 @@
+package org.ohnlp.cat.api.criteria.prepared;
+
+import org.hl7.fhir.r4.model.DomainResource;
+import org.ohnlp.cat.api.criteria.ClinicalEntityType;
+import org.ohnlp.cat.api.criteria.FHIRValueLocationPath;
+import org.ohnlp.cat.api.ehr.ResourceProvider;
+
+import java.io.Serializable;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * An immutable, evaluation-ready form of a {@link org.ohnlp.cat.api.criteria.Criterion} tree, produced via
+ * {@link org.ohnlp.cat.api.criteria.Criterion#prepare()}.
+ * <p>
+ * All operand parsing and lookup set construction is done once at preparation time, so a single prepared tree
+ * can be built once per worker and shared between threads.
+ */
+public abstract class PreparedCriterion implements Serializable {
+    private final UUID nodeUID;
+
+    protected PreparedCriterion(UUID nodeUID) {
+        this.nodeUID = nodeUID;
+    }
+
+    public abstract boolean matches(DomainResource resource, ResourceProvider provider);
+
+    /**
+     * Binds this tree to rows of the given type as read via {@link ResourceProvider#getQuerySchema(ClinicalEntityType)},
+     * such that rows may be evaluated without first being mapped to resources, which then need only be constructed
+     * for matching rows required as evidence.
+     * <p>
+     * Entity criteria of another type never match such rows.
+     *
+     * @return The bound tree, or null if any value path referenced by an entity criterion of the given type is not
+     * declared via {@link ResourceProvider#getColumnForValueReference(ClinicalEntityType, FHIRValueLocationPath)}, in
+     * which case rows must be evaluated via {@link #matches(DomainResource, ResourceProvider)}
+     */
+    public abstract RowMatcher bindRows(ClinicalEntityType type, ResourceProvider provider);
+
+    /**
+     * Adds all value paths referenced within this tree to paths
+     */
+    public abstract void collectValuePaths(Set<FHIRValueLocationPath> paths);
+
+    /**
+     * @return The value paths referenced within this tree, suitable for use with
+     * {@link ResourceProvider#withProjection(Set)}
+     */
+    public Set<FHIRValueLocationPath> getValuePaths() {
+        Set<FHIRValueLocationPath> ret = EnumSet.noneOf(FHIRValueLocationPath.class);
+        collectValuePaths(ret);
+        return ret;
+    }
+
+    public UUID getNodeUID() {
+        return nodeUID;
+    }
+}
@@ -0,0 +1,80 @@
+package org.ohnlp.cat.api.criteria.prepared;
+
+import org.apache.beam.sdk.schemas.Schema;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.ohnlp.cat.api.criteria.ClinicalEntityType;
+import org.ohnlp.cat.api.criteria.FHIRValueLocationPath;
+import org.ohnlp.cat.api.ehr.ResourceProvider;
+
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Prepared form of an {@link org.ohnlp.cat.api.criteria.EntityCriterion}
+ */
+public class PreparedEntityCriterion extends PreparedCriterion {
+    private final ClinicalEntityType type;
+    private final PreparedEntityValue[] components;
+
+    public PreparedEntityCriterion(UUID nodeUID, ClinicalEntityType type, PreparedEntityValue[] components) {
+        super(nodeUID);
+        this.type = type;
+        this.components = components.clone();
+    }
+
+    @Override
+    public boolean matches(DomainResource resource, ResourceProvider provider) {
+        for (PreparedEntityValue component : components) {
+            if (!component.matches(resource, provider)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public RowMatcher bindRows(ClinicalEntityType type, ResourceProvider provider) {
+        if (!this.type.equals(type)) {
+            return row -> false;
+        }
+        Schema schema = provider.getQuerySchema(type);
+        RowMatcher[] bound = new RowMatcher[components.length];
+        for (int i = 0; i < components.length; i++) {
+            String column = provider.getColumnForValueReference(type, components[i].getValuePath());
+            if (column == null || !schema.hasField(column)) {
+                return null;
+            }
+            bound[i] = components[i].bindRows(schema.indexOf(column), provider.getSourceName());
+        }
+        if (bound.length == 1) {
+            return bound[0];
+        }
+        return row -> {
+            for (RowMatcher component : bound) {
+                if (!component.matches(row)) {
+                    return false;
+                }
+            }
+            return true;
+        };
+    }
+
+    @Override
+    public void collectValuePaths(Set<FHIRValueLocationPath> paths) {
+        for (PreparedEntityValue component : components) {
+            paths.add(component.getValuePath());
+        }
+    }
+
+    public ClinicalEntityType getType() {
+        return type;
+    }
+
+    public int getComponentCount() {
+        return components.length;
+    }
+
+    public PreparedEntityValue getComponent(int i) {
+        return components[i];
+    }
+}
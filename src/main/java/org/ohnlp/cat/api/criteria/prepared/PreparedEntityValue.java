@@ -0,0 +1,340 @@
+package org.ohnlp.cat.api.criteria.prepared;
+
+import ca.uhn.fhir.model.api.TemporalPrecisionEnum;
+import org.hl7.fhir.r4.model.*;
+import org.ohnlp.cat.api.criteria.FHIRValueAccessors;
+import org.ohnlp.cat.api.criteria.FHIRValueLocationPath;
+import org.ohnlp.cat.api.criteria.ValueRelationType;
+import org.ohnlp.cat.api.criteria.parser.DataSourceRepresentation;
+import org.ohnlp.cat.api.ehr.ResourceProvider;
+import org.ohnlp.cat.api.utils.CaseInsensitiveStringSet;
+import org.ohnlp.cat.api.utils.LexicalUtils;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Prepared form of an {@link org.ohnlp.cat.api.criteria.EntityValue}.
+ * <p>
+ * Operands are parsed once on construction into primitive doubles and epoch days where possible, and
+ * value/code sets used for IN and coded comparisons are built up front.
+ * <p>
+ * Values are coerced according to their FHIR element type where this is known (e.g. {@link DecimalType},
+ * {@link DateType}), and otherwise via non-throwing lexical checks, so no exceptions are raised while evaluating.
+ */
+public class PreparedEntityValue implements Serializable {
+    private final FHIRValueLocationPath valuePath;
+    private final ValueRelationType reln;
+    private final boolean coded;
+    // Coded comparisons
+    private final CodeIndex codeIndex;
+    // Numeric comparisons, null if operands are not numeric. Sorted if reln is IN
+    private final double[] numericOperands;
+    // Date comparisons in epoch days, null if operands are not dates. Sorted if reln is IN
+    private final long[] dateOperands;
+    // String comparisons
+    private final String eqOperand;
+    private final CaseInsensitiveStringSet stringOperands;
+
+    public PreparedEntityValue(FHIRValueLocationPath valuePath, String[] values, ValueRelationType reln,
+                               Collection<DataSourceRepresentation>[] expandedCodes) {
+        this.valuePath = valuePath;
+        this.reln = reln;
+        this.coded = valuePath.isCoded();
+        String[] operands = values == null ? new String[0] : values;
+        if (coded) {
+            // Only EQ and IN operations are supported for coded paths, in which case values are ignored in favour of
+            // expandedCodes
+            if (!reln.equals(ValueRelationType.IN) && !reln.equals(ValueRelationType.EQ)) {
+                throw new UnsupportedOperationException("Cannot execute " + reln + " on coded value " + valuePath);
+            }
+            this.codeIndex = CodeIndex.build(expandedCodes);
+            this.numericOperands = null;
+            this.dateOperands = null;
+            this.eqOperand = null;
+            this.stringOperands = new CaseInsensitiveStringSet();
+        } else {
+            this.codeIndex = CodeIndex.build(null);
+            this.numericOperands = parseNumericOperands(reln, operands);
+            this.dateOperands = parseDateOperands(reln, operands);
+            this.eqOperand = operands.length > 0 ? operands[0] : null;
+            // Null operands are skipped, matching no value
+            this.stringOperands = new CaseInsensitiveStringSet(operands.length);
+            for (String operand : operands) {
+                this.stringOperands.add(operand);
+            }
+        }
+    }
+
+    public boolean matches(DomainResource resource, ResourceProvider provider) {
+        CodeIndex.CodeSet codes = codeIndex.forSource(provider.getSourceName());
+        return FHIRValueAccessors.forPath(valuePath, provider.getPathForValueReference(valuePath))
+                .anyMatch(resource, value -> matches(value, codes));
+    }
+
+    /**
+     * Binds this value to a row field holding the value at {@link #getValuePath()}, see
+     * {@link ResourceProvider#getColumnForValueReference(org.ohnlp.cat.api.criteria.ClinicalEntityType, FHIRValueLocationPath)}
+     *
+     * @param dataSourceID The ID of the data source from which rows are read, used to select applicable codes
+     */
+    public RowMatcher bindRows(int fieldIndex, String dataSourceID) {
+        CodeIndex.CodeSet codes = codeIndex.forSource(dataSourceID);
+        return row -> matchesRowValue(row.getValue(fieldIndex), codes);
+    }
+
+    private boolean matchesRowValue(Object value, CodeIndex.CodeSet codes) {
+        if (value == null) {
+            return false;
+        }
+        // Integral values are compared without conversion to strings. All other values are compared via their string
+        // form, as the resources to which they are otherwise mapped would be
+        if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            long integral = ((Number) value).longValue();
+            if (coded) {
+                return codes.contains(integral);
+            }
+            if (numericOperands != null) {
+                return compareNumeric(integral);
+            }
+        }
+        return matches(value.toString(), codes);
+    }
+
+    /**
+     * Evaluates a single value, testing coded values against codes belonging to any data source
+     */
+    public boolean matches(PrimitiveType<?> value) {
+        return matches(value, codeIndex.forSource(null));
+    }
+
+    /**
+     * Evaluates a single value, testing coded values only against codes belonging to the given data source
+     */
+    public boolean matches(PrimitiveType<?> value, String dataSourceID) {
+        return matches(value, codeIndex.forSource(dataSourceID));
+    }
+
+    private boolean matches(PrimitiveType<?> value, CodeIndex.CodeSet codes) {
+        if (coded) {
+            return codes.contains(value.getValueAsString());
+        }
+        if (value instanceof DecimalType) {
+            if (numericOperands != null) {
+                return compareNumeric(((DecimalType) value).getValue().doubleValue());
+            }
+            return compareStrings(value.getValueAsString());
+        }
+        if (value instanceof IntegerType) {
+            if (numericOperands != null) {
+                return compareNumeric(((IntegerType) value).getValue());
+            }
+            return compareStrings(value.getValueAsString());
+        }
+        if (value instanceof BaseDateTimeType) {
+            BaseDateTimeType dtm = (BaseDateTimeType) value;
+            // Partial dates (e.g. year only) are not dates in yyyy-MM-dd terms, and are compared as strings
+            if (dateOperands != null && dtm.getPrecision().ordinal() >= TemporalPrecisionEnum.DAY.ordinal()) {
+                long epochDay = LexicalUtils.toEpochDay(dtm.getYear(), dtm.getMonth() + 1, dtm.getDay());
+                if (epochDay != LexicalUtils.NOT_A_DATE) {
+                    return compareDates(epochDay);
+                }
+            }
+            return compareStrings(value.getValueAsString());
+        }
+        // Untyped (string/code/enumeration) values
+        return matches(value.getValueAsString(), codes);
+    }
+
+    /**
+     * Evaluates a single untyped value, testing coded values against codes belonging to any data source
+     */
+    public boolean matches(String value) {
+        return matches(value, codeIndex.forSource(null));
+    }
+
+    private boolean matches(String value, CodeIndex.CodeSet codes) {
+        if (coded) {
+            return codes.contains(value);
+        }
+        if (numericOperands != null && LexicalUtils.isNumeric(value)) {
+            return compareNumeric(Double.parseDouble(value));
+        }
+        // Next try date format, yyyy-MM-dd
+        if (dateOperands != null) {
+            long epochDay = LexicalUtils.parseEpochDay(value);
+            if (epochDay != LexicalUtils.NOT_A_DATE) {
+                return compareDates(epochDay);
+            }
+        }
+        // Finally, do a direct string compare.
+        return compareStrings(value);
+    }
+
+    private boolean compareStrings(String value) {
+        if (reln.equals(ValueRelationType.IN)) {
+            return stringOperands.contains(value);
+        } else if (reln.equals(ValueRelationType.EQ)) {
+            return eqOperand != null && eqOperand.equalsIgnoreCase(value);
+        } else {
+            throw new UnsupportedOperationException("Cannot execute " + reln + " on undefined/string datatype");
+        }
+    }
+
+    private boolean compareNumeric(double input) {
+        double val1 = numericOperands[0];
+        switch (reln) {
+            case LT:
+                return input < val1;
+            case LTE:
+                return input <= val1;
+            case GT:
+                return input > val1;
+            case GTE:
+                return input >= val1;
+            case EQ:
+                return input == val1;
+            case BETWEEN:
+                return input >= val1 && input < numericOperands[1];
+            case IN:
+                return Arrays.binarySearch(numericOperands, input) >= 0;
+        }
+        return false;
+    }
+
+    private boolean compareDates(long input) {
+        if (reln.equals(ValueRelationType.IN)) {
+            return Arrays.binarySearch(dateOperands, input) >= 0;
+        }
+        long val1 = dateOperands[0];
+        switch (reln) {
+            case LT:
+                return input < val1;
+            case LTE:
+                return input <= val1;
+            case GT:
+                return input > val1;
+            case GTE:
+                return input >= val1;
+            case EQ:
+                return input == val1;
+            case BETWEEN:
+                return input >= val1 && input < dateOperands[1];
+        }
+        return false;
+    }
+
+    /**
+     * @return Parsed operands, or null if the operands required by reln are not all numeric
+     */
+    private static double[] parseNumericOperands(ValueRelationType reln, String[] operands) {
+        int required = requiredOperandCount(reln, operands);
+        if (required == 0 || operands.length < required) {
+            return null;
+        }
+        double[] ret = new double[required];
+        for (int i = 0; i < required; i++) {
+            if (!LexicalUtils.isNumeric(operands[i])) {
+                return null;
+            }
+            ret[i] = Double.parseDouble(operands[i]);
+        }
+        if (reln.equals(ValueRelationType.IN)) {
+            Arrays.sort(ret);
+        }
+        return ret;
+    }
+
+    /**
+     * @return Parsed operands in epoch days, or null if the first operand (and the second, for BETWEEN) is not a date.
+     * Unparseable IN operands other than the first are skipped.
+     */
+    private static long[] parseDateOperands(ValueRelationType reln, String[] operands) {
+        int required = requiredOperandCount(reln, operands);
+        if (required == 0 || operands.length < required) {
+            return null;
+        }
+        long[] ret = new long[required];
+        int count = 0;
+        for (int i = 0; i < required; i++) {
+            long epochDay = LexicalUtils.parseEpochDay(operands[i]);
+            if (epochDay != LexicalUtils.NOT_A_DATE) {
+                ret[count++] = epochDay;
+            } else if (i == 0 || !reln.equals(ValueRelationType.IN)) {
+                return null;
+            }
+        }
+        ret = Arrays.copyOf(ret, count);
+        if (reln.equals(ValueRelationType.IN)) {
+            Arrays.sort(ret);
+        }
+        return ret;
+    }
+
+    private static int requiredOperandCount(ValueRelationType reln, String[] operands) {
+        switch (reln) {
+            case LT:
+            case LTE:
+            case GT:
+            case GTE:
+            case EQ:
+                return 1;
+            case BETWEEN:
+                return 2;
+            case IN:
+                return operands.length;
+            default:
+                return 0;
+        }
+    }
+
+    public FHIRValueLocationPath getValuePath() {
+        return valuePath;
+    }
+
+    public ValueRelationType getReln() {
+        return reln;
+    }
+
+    /**
+     * @return Operands as parsed numbers (sorted, for IN), or null if the operands are not numeric
+     */
+    public double[] getNumericOperands() {
+        return numericOperands == null ? null : numericOperands.clone();
+    }
+
+    /**
+     * @return Operands as parsed dates in epoch days (sorted, for IN), or null if the operands are not dates
+     */
+    public long[] getDateOperands() {
+        return dateOperands == null ? null : dateOperands.clone();
+    }
+
+    /**
+     * @return Operands used for (case-insensitive) string comparison, i.e. the first operand for EQ and all
+     * operands for IN. Empty for other relations and for coded values
+     */
+    public List<String> getStringOperands() {
+        if (coded) {
+            return Collections.emptyList();
+        }
+        switch (reln) {
+            case EQ:
+                return eqOperand == null ? Collections.emptyList() : Collections.singletonList(eqOperand);
+            case IN:
+                return stringOperands.toList();
+            default:
+                return Collections.emptyList();
+        }
+    }
+
+    /**
+     * @return The expanded codes this value is compared against if {@link FHIRValueLocationPath#isCoded()}
+     */
+    public CodeIndex getCodeIndex() {
+        return codeIndex;
+    }
+}
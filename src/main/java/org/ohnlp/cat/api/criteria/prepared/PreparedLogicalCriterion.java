@@ -0,0 +1,155 @@
+package org.ohnlp.cat.api.criteria.prepared;
+
+import org.hl7.fhir.r4.model.DomainResource;
+import org.ohnlp.cat.api.criteria.ClinicalEntityType;
+import org.ohnlp.cat.api.criteria.FHIRValueLocationPath;
+import org.ohnlp.cat.api.criteria.LogicalRelationType;
+import org.ohnlp.cat.api.ehr.ResourceProvider;
+
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Prepared form of a {@link org.ohnlp.cat.api.criteria.LogicalCriterion}
+ */
+public class PreparedLogicalCriterion extends PreparedCriterion {
+    private final LogicalRelationType type;
+    private final int numericModifier;
+    private final PreparedCriterion[] children;
+
+    public PreparedLogicalCriterion(UUID nodeUID, LogicalRelationType type, int numericModifier, List<PreparedCriterion> children) {
+        super(nodeUID);
+        this.type = type;
+        this.numericModifier = numericModifier;
+        this.children = children.toArray(new PreparedCriterion[0]);
+    }
+
+    @Override
+    public boolean matches(DomainResource resource, ResourceProvider provider) {
+        switch (type) {
+            case AND: {
+                for (PreparedCriterion c : children) {
+                    if (!c.matches(resource, provider)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            case MIN_OR: {
+                int match = 0;
+                for (PreparedCriterion val : children) {
+                    if (val.matches(resource, provider)) {
+                        match++;
+                        if (match == numericModifier) {
+                            return true;
+                        }
+                    }
+                }
+                return false;
+            }
+            case MAX_OR: {
+                int match = 0;
+                for (PreparedCriterion val : children) {
+                    if (val.matches(resource, provider)) {
+                        match++;
+                        if (match > numericModifier) {
+                            return false;
+                        }
+                    }
+                }
+                return true;
+            }
+            case NOT: {
+                for (PreparedCriterion c : children) {
+                    if (c.matches(resource, provider)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            default:
+                throw new UnsupportedOperationException("Unknown boolean relation type " + type.name());
+        }
+    }
+
+    @Override
+    public RowMatcher bindRows(ClinicalEntityType entityType, ResourceProvider provider) {
+        RowMatcher[] bound = new RowMatcher[children.length];
+        for (int i = 0; i < children.length; i++) {
+            bound[i] = children[i].bindRows(entityType, provider);
+            if (bound[i] == null) {
+                return null;
+            }
+        }
+        switch (type) {
+            case AND:
+                return row -> {
+                    for (RowMatcher c : bound) {
+                        if (!c.matches(row)) {
+                            return false;
+                        }
+                    }
+                    return true;
+                };
+            case MIN_OR: {
+                int min = numericModifier;
+                return row -> {
+                    int match = 0;
+                    for (RowMatcher c : bound) {
+                        if (c.matches(row) && ++match == min) {
+                            return true;
+                        }
+                    }
+                    return false;
+                };
+            }
+            case MAX_OR: {
+                int max = numericModifier;
+                return row -> {
+                    int match = 0;
+                    for (RowMatcher c : bound) {
+                        if (c.matches(row) && ++match > max) {
+                            return false;
+                        }
+                    }
+                    return true;
+                };
+            }
+            case NOT:
+                return row -> {
+                    for (RowMatcher c : bound) {
+                        if (c.matches(row)) {
+                            return false;
+                        }
+                    }
+                    return true;
+                };
+            default:
+                throw new UnsupportedOperationException("Unknown boolean relation type " + type.name());
+        }
+    }
+
+    @Override
+    public void collectValuePaths(Set<FHIRValueLocationPath> paths) {
+        for (PreparedCriterion child : children) {
+            child.collectValuePaths(paths);
+        }
+    }
+
+    public LogicalRelationType getType() {
+        return type;
+    }
+
+    public int getNumericModifier() {
+        return numericModifier;
+    }
+
+    public int getChildCount() {
+        return children.length;
+    }
+
+    public PreparedCriterion getChild(int i) {
+        return children[i];
+    }
+}
@@ -0,0 +1,13 @@
+package org.ohnlp.cat.api.criteria.prepared;
+
+import org.apache.beam.sdk.values.Row;
+
+import java.io.Serializable;
+
+/**
+ * A {@link PreparedCriterion} bound to the rows of a single {@link org.ohnlp.cat.api.criteria.ClinicalEntityType}, as
+ * returned by {@link PreparedCriterion#bindRows(org.ohnlp.cat.api.criteria.ClinicalEntityType, org.ohnlp.cat.api.ehr.ResourceProvider)}
+ */
+public interface RowMatcher extends Serializable {
+    boolean matches(Row row);
+}
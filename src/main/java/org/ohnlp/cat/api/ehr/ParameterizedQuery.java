@@ -0,0 +1,182 @@
+package org.ohnlp.cat.api.ehr;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A SQL query together with the positional parameters to be bound to its ? placeholders.
+ * <p>
+ * Queries may additionally reference temporary {@link ValueTable}s, which must be created on the executing
+ * connection via {@link #prepare(Connection)} prior to execution, and should be removed via
+ * {@link #release(Connection)} afterwards. The expected lifecycle is thus:
+ * <pre>
+ *     query.prepare(conn);
+ *     try (PreparedStatement ps = conn.prepareStatement(query.getSql())) {
+ *         query.bind(ps);
+ *         ...
+ *     } finally {
+ *         query.release(conn);
+ *     }
+ * </pre>
+ */
+public class ParameterizedQuery implements Serializable {
+    private final String sql;
+    private final List<Object> parameters;
+    private final List<ValueTable> valueTables;
+
+    public ParameterizedQuery(String sql) {
+        this(sql, Collections.emptyList());
+    }
+
+    public ParameterizedQuery(String sql, List<Object> parameters) {
+        this(sql, parameters, Collections.emptyList());
+    }
+
+    public ParameterizedQuery(String sql, List<Object> parameters, List<ValueTable> valueTables) {
+        this.sql = sql;
+        this.parameters = Collections.unmodifiableList(new ArrayList<>(parameters));
+        this.valueTables = Collections.unmodifiableList(new ArrayList<>(valueTables));
+    }
+
+    /**
+     * Creates and populates any {@link ValueTable}s referenced by this query on the supplied connection. Must be
+     * called on the connection that will execute the query, as temporary tables are only visible to the session
+     * that created them
+     */
+    public void prepare(Connection conn) throws SQLException {
+        for (ValueTable table : valueTables) {
+            table.create(conn);
+        }
+    }
+
+    /**
+     * Binds {@link #getParameters()} to a statement prepared from {@link #getSql()}
+     */
+    public void bind(PreparedStatement ps) throws SQLException {
+        for (int i = 0; i < parameters.size(); i++) {
+            Object param = parameters.get(i);
+            if (param instanceof ArrayParameter) {
+                ArrayParameter array = (ArrayParameter) param;
+                ps.setArray(i + 1, ps.getConnection().createArrayOf(array.getElementType(), array.getElements()));
+            } else {
+                ps.setObject(i + 1, param);
+            }
+        }
+    }
+
+    /**
+     * Drops any {@link ValueTable}s created by {@link #prepare(Connection)}
+     */
+    public void release(Connection conn) throws SQLException {
+        for (ValueTable table : valueTables) {
+            table.drop(conn);
+        }
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    public List<Object> getParameters() {
+        return parameters;
+    }
+
+    public List<ValueTable> getValueTables() {
+        return valueTables;
+    }
+
+    @Override
+    public String toString() {
+        return sql + " " + parameters;
+    }
+
+    /**
+     * A parameter bound as a SQL ARRAY via {@link Connection#createArrayOf(String, Object[])}, e.g. for use with
+     * PostgreSQL's {@code col = ANY(?)}
+     */
+    public static class ArrayParameter implements Serializable {
+        private final String elementType;
+        private final Object[] elements;
+
+        public ArrayParameter(String elementType, Object[] elements) {
+            this.elementType = elementType;
+            this.elements = elements;
+        }
+
+        public String getElementType() {
+            return elementType;
+        }
+
+        public Object[] getElements() {
+            return elements;
+        }
+
+        @Override
+        public String toString() {
+            return elementType + "[" + elements.length + "]";
+        }
+    }
+
+    /**
+     * A single-column temporary table loaded with a list of values prior to query execution, for value lists too
+     * large to bind as individual parameters
+     */
+    public static class ValueTable implements Serializable {
+        private static final int INSERT_BATCH_SIZE = 1000;
+
+        private final String createSql;
+        private final String insertSql;
+        private final String dropSql;
+        private final Object[] values;
+
+        /**
+         * @param createSql DDL creating the table. Any existing table of the same name is dropped beforehand
+         * @param insertSql An insert statement with a single ? placeholder for the value
+         * @param dropSql   DDL dropping the table if it exists
+         * @param values    The values to load
+         */
+        public ValueTable(String createSql, String insertSql, String dropSql, Object[] values) {
+            this.createSql = createSql;
+            this.insertSql = insertSql;
+            this.dropSql = dropSql;
+            this.values = values;
+        }
+
+        void create(Connection conn) throws SQLException {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute(dropSql);
+                stmt.execute(createSql);
+            }
+            try (PreparedStatement ps = conn.prepareStatement(insertSql)) {
+                int pending = 0;
+                for (Object value : values) {
+                    ps.setObject(1, value);
+                    ps.addBatch();
+                    if (++pending == INSERT_BATCH_SIZE) {
+                        ps.executeBatch();
+                        pending = 0;
+                    }
+                }
+                if (pending > 0) {
+                    ps.executeBatch();
+                }
+            }
+        }
+
+        void drop(Connection conn) throws SQLException {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute(dropSql);
+            }
+        }
+
+        public Object[] getValues() {
+            return values;
+        }
+    }
+}
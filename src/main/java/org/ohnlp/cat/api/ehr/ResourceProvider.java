@@ -5,9 +5,17 @@ import org.apache.beam.sdk.transforms.SerializableFunction;
 import org.apache.beam.sdk.values.Row;
 import org.hl7.fhir.r4.model.DomainResource;
 import org.ohnlp.cat.api.criteria.ClinicalEntityType;
+import org.ohnlp.cat.api.criteria.EntityCriterion;
 import org.ohnlp.cat.api.criteria.FHIRValueLocationPath;
 
 import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -16,14 +24,130 @@ import java.util.Set;
  * <p>
  * Produced resources are expected to possess ID tags of the format source_system_name:type:evidence_uid
  */
-public interface ResourceProvider extends Serializable {
+public interface ResourceProvider extends Serializable, AutoCloseable {
 
     void init(String sourceName, Map<String, Object> config);
 
     String getQuery(ClinicalEntityType type);
 
+    /**
+     * Returns a query for the given type restricted, where possible, to rows that may satisfy at least one of the
+     * supplied criteria, such that rows that can never match do not leave the database.
+     * <p>
+     * Filtering is conservative: the returned query yields a superset of matching rows, which are still expected to
+     * be evaluated via {@link org.ohnlp.cat.api.criteria.Criterion#matches(DomainResource, ResourceProvider)}.
+     * Results share the columns and {@link #getQuerySchema(ClinicalEntityType)} of {@link #getQuery(ClinicalEntityType)}.
+     * The default implementation applies no filtering.
+     *
+     * @param type     The type to retrieve
+     * @param criteria The criteria to push down. Criteria of a type other than type are ignored
+     */
+    default ParameterizedQuery getFilteredQuery(ClinicalEntityType type, Collection<EntityCriterion> criteria) {
+        return new ParameterizedQuery(getQuery(type));
+    }
+
     Schema getQuerySchema(ClinicalEntityType type);
 
+    /**
+     * Returns {@link #getFilteredQuery(ClinicalEntityType, Collection)} further restricted to rows whose watermark
+     * column (e.g. an ETL load timestamp) lies in [previous, current], for incremental re-extraction of data added
+     * since a previous job, see {@link org.ohnlp.cat.api.jobs.ExtractionWatermark}. Rows at the previous watermark are
+     * re-read, as rows loaded after it was captured may share its value. Record dates do not suffice as watermark
+     * columns, as rows may be loaded after a previous job but dated before it.
+     * <p>
+     * The default implementation, used by providers without a watermark column, applies no restriction. As
+     * incremental results are merged via
+     * {@link org.ohnlp.cat.api.cohorts.CandidateScore#mergeIncremental(org.ohnlp.cat.api.criteria.Criterion, org.ohnlp.cat.api.cohorts.CandidateScore, org.ohnlp.cat.api.cohorts.CandidateScore)},
+     * which is idempotent, this is equivalent to a full re-extraction.
+     *
+     * @param previous The watermark reached by the previous job, or null to extract from the beginning
+     * @param current  The watermark obtained via {@link #getCurrentWatermark(ClinicalEntityType, Connection)} prior to
+     *                 extraction, or null to extract all rows beyond previous
+     */
+    default ParameterizedQuery getIncrementalQuery(ClinicalEntityType type, Collection<EntityCriterion> criteria,
+                                                   Date previous, Date current) {
+        return getFilteredQuery(type, criteria);
+    }
+
+    /**
+     * Returns a single query extracting rows of all the given types, each restricted as by
+     * {@link #getIncrementalQuery(ClinicalEntityType, Collection, Date, Date)}, for providers that read several types
+     * from a shared source table, such that the table is scanned once rather than once per type.
+     * <p>
+     * The type of each resulting row is identified via {@link #getMultiTypeRowType(Row)}, following which it may be
+     * mapped via the {@link #getRowToResourceMapper(ClinicalEntityType)} of that type within a single multi-output
+     * transform. Results may be partitioned via
+     * {@link #getPartitionedQueries(ClinicalEntityType, ParameterizedQuery, Connection)} using any of the given types.
+     * The default implementation returns null, indicating that each type must be extracted separately.
+     */
+    default ParameterizedQuery getMultiTypeQuery(Set<ClinicalEntityType> types, Collection<EntityCriterion> criteria,
+                                                 Date previous, Date current) {
+        return null;
+    }
+
+    /**
+     * @return The schema of {@link #getMultiTypeQuery(Set, Collection, Date, Date)} for the given types
+     */
+    default Schema getMultiTypeQuerySchema(Set<ClinicalEntityType> types) {
+        throw new UnsupportedOperationException("Multi-type extraction is not supported by " + getClass().getName());
+    }
+
+    /**
+     * @return The type of a row produced by {@link #getMultiTypeQuery(Set, Collection, Date, Date)}, or null if it is
+     * of none of the requested types
+     */
+    default ClinicalEntityType getMultiTypeRowType(Row row) {
+        throw new UnsupportedOperationException("Multi-type extraction is not supported by " + getClass().getName());
+    }
+
+    /**
+     * @return The current maximum of the watermark column for the given type, to be recorded once extraction up to
+     * it has completed, or null if this provider does not support incremental extraction for the type
+     */
+    default Date getCurrentWatermark(ClinicalEntityType type, Connection conn) throws SQLException {
+        return null;
+    }
+
+    /**
+     * Splits a query for the given type (e.g. as returned by {@link #getFilteredQuery(ClinicalEntityType, Collection)})
+     * into bounded sub-queries that together return the same rows, such that they can be read in parallel.
+     * <p>
+     * Each sub-query shares {@link #getQuerySchema(ClinicalEntityType)}, and must be prepared via
+     * {@link ParameterizedQuery#prepare(java.sql.Connection)} on the connection that executes it. The default
+     * implementation does not split the query.
+     *
+     * @param type  The type being retrieved
+     * @param query The query to split
+     * @param conn  A connection to the data source, which may be used to determine partition boundaries
+     */
+    default List<ParameterizedQuery> getPartitionedQueries(ClinicalEntityType type, ParameterizedQuery query,
+                                                           Connection conn) throws SQLException {
+        return Collections.singletonList(query);
+    }
+
+    /**
+     * @return Options for reading this provider's queries via streaming cursors, as described by
+     * {@link StreamingOptions}, or null if query results should be read using driver defaults
+     */
+    default StreamingOptions getStreamingOptions() {
+        return null;
+    }
+
+    /**
+     * Returns a provider whose {@link #getQuery(ClinicalEntityType)}, {@link #getFilteredQuery(ClinicalEntityType, Collection)},
+     * {@link #getQuerySchema(ClinicalEntityType)} and {@link #getRowToResourceMapper(ClinicalEntityType)} only read
+     * and populate the fields needed to evaluate the supplied value paths, alongside resource and patient identifiers.
+     * <p>
+     * Intended for cohort evaluation, where display-only content (e.g. concept names or note text) is not required.
+     * Evidence display should continue to use an unprojected provider. The default implementation returns this
+     * provider unchanged.
+     *
+     * @param requiredPaths The value paths referenced by the criteria being evaluated
+     */
+    default ResourceProvider withProjection(Set<FHIRValueLocationPath> requiredPaths) {
+        return this;
+    }
+
     String getEvidenceIDFilter(ClinicalEntityType type);
 
     String getIndexableIDColumnName(ClinicalEntityType type);
@@ -32,9 +156,90 @@ public interface ResourceProvider extends Serializable {
 
     Set<String> convertToLocalTerminology(ClinicalEntityType type, String input);
 
+    /**
+     * Batch form of {@link #convertToLocalTerminology(ClinicalEntityType, String)}, which implementations should
+     * override to resolve all inputs in as few round trips as possible. The default implementation converts each
+     * input individually.
+     *
+     * @return The local codes for each input, keyed by input
+     */
+    default Map<String, Set<String>> convertToLocalTerminology(ClinicalEntityType type, Collection<String> inputs) {
+        Map<String, Set<String>> ret = new HashMap<>();
+        for (String input : inputs) {
+            ret.put(input, convertToLocalTerminology(type, input));
+        }
+        return ret;
+    }
+
     Object[] parseIDTagToParams(ClinicalEntityType type, String evidenceUID);
 
     String getPathForValueReference(FHIRValueLocationPath valueRef);
 
+    /**
+     * Declares the column of {@link #getQuerySchema(ClinicalEntityType)} from which the value at valueRef of resources
+     * produced by {@link #getRowToResourceMapper(ClinicalEntityType)} is copied unchanged, such that criteria may be
+     * evaluated directly on rows via {@link org.ohnlp.cat.api.criteria.prepared.PreparedCriterion#bindRows(ClinicalEntityType, ResourceProvider)}.
+     * Paths whose values are derived from one or more columns (e.g. via a lookup or concatenation) must not be declared.
+     * The default implementation declares no columns.
+     *
+     * @return The column name, or null if the path cannot be evaluated on rows of the given type
+     */
+    default String getColumnForValueReference(ClinicalEntityType type, FHIRValueLocationPath valueRef) {
+        return null;
+    }
+
     String extractPatUIDForResource(ClinicalEntityType type, DomainResource resource);
+
+    /**
+     * Declares the output column of {@link #getQuery(ClinicalEntityType)} (and of
+     * {@link #getMultiTypeQuery(Set, Collection, Date, Date)}, if supported) holding the patient identifier of each
+     * row, such that queries may be ordered by patient and rows of different types merged per patient without a
+     * shuffle. The default implementation declares no column.
+     *
+     * @return The column name, or null if rows of the given type can not be ordered by patient
+     */
+    default String getPatientIDColumnName(ClinicalEntityType type) {
+        return null;
+    }
+
+    /**
+     * @return The source name supplied to {@link #init(String, Map)}, which identifies this provider in
+     * {@link org.ohnlp.cat.api.criteria.parser.DataSourceRepresentation#getDataSourceID()}. If null, representations
+     * belonging to any data source are considered applicable to this provider
+     */
+    default String getSourceName() {
+        return null;
+    }
+
+    /**
+     * @return A connection to the underlying data source, drawn from a pool configured via
+     * {@link #init(String, Map)}, to be closed by the caller once done
+     * @throws UnsupportedOperationException if this provider is not backed by a JDBC data source
+     */
+    default Connection getConnection() throws SQLException {
+        throw new UnsupportedOperationException("This provider does not support JDBC connections");
+    }
+
+    /**
+     * @return A key identifying the pool {@link #getConnection()} draws from, shared by all providers drawing from the
+     * same pool, or null if connections are not pooled
+     */
+    default String getConnectionPoolKey() {
+        return null;
+    }
+
+    /**
+     * @return The maximum number of connections that may be open at once across all providers sharing
+     * {@link #getConnectionPoolKey()}
+     */
+    default int getConnectionPoolSize() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Releases any resources (e.g. connection pools) held by this provider
+     */
+    @Override
+    default void close() {
+    }
 }
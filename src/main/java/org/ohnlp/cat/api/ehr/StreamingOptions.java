@@ -0,0 +1,72 @@
+package org.ohnlp.cat.api.ehr;
+
+import org.ohnlp.cat.api.criteria.ClinicalEntityType;
+
+import java.io.Serializable;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Options for reading provider queries via streaming, forward-only cursors rather than fully materialized result
+ * sets. Where supplied, readers of a provider's queries are expected to use a forward-only, read-only cursor with
+ * autocommit disabled and the fetch size of the type being read, buffering at most {@link #getPrefetchRows()} rows
+ * ahead of their consumer, such that memory use is bounded regardless of result size.
+ * <p>
+ * Read from the following provider configuration keys:
+ * <ul>
+ *     <li>streaming: Whether to enable streaming reads, defaulting to false</li>
+ *     <li>fetch_size: The number of rows fetched per database round trip, either as a single value or as a map
+ *     keyed by lowercase {@link ClinicalEntityType} name. Defaults to {@link #DEFAULT_FETCH_SIZE}</li>
+ *     <li>prefetch_rows: The maximum number of rows buffered ahead of the consumer, defaulting to
+ *     {@link #DEFAULT_PREFETCH_ROWS}</li>
+ * </ul>
+ */
+public class StreamingOptions implements Serializable {
+    public static final int DEFAULT_FETCH_SIZE = 10000;
+    public static final int DEFAULT_PREFETCH_ROWS = 10000;
+
+    private final Map<ClinicalEntityType, Integer> fetchSizes;
+    private final int prefetchRows;
+
+    public StreamingOptions(Map<ClinicalEntityType, Integer> fetchSizes, int prefetchRows) {
+        this.fetchSizes = fetchSizes;
+        this.prefetchRows = prefetchRows;
+    }
+
+    /**
+     * @return Streaming options with the default fetch size and prefetch rows, for callers that must stream
+     * regardless of provider configuration
+     */
+    public static StreamingOptions defaults() {
+        return new StreamingOptions(new EnumMap<>(ClinicalEntityType.class), DEFAULT_PREFETCH_ROWS);
+    }
+
+    /**
+     * @return The streaming options specified by config, or null if streaming is not enabled
+     */
+    public static StreamingOptions fromConfig(Map<String, Object> config) {
+        if (!Boolean.parseBoolean(config.getOrDefault("streaming", false).toString())) {
+            return null;
+        }
+        Map<ClinicalEntityType, Integer> fetchSizes = new EnumMap<>(ClinicalEntityType.class);
+        Object fetchSize = config.get("fetch_size");
+        for (ClinicalEntityType type : ClinicalEntityType.values()) {
+            Object typeFetchSize = fetchSize;
+            if (fetchSize instanceof Map) {
+                typeFetchSize = ((Map<?, ?>) fetchSize).get(type.name().toLowerCase(Locale.ROOT));
+            }
+            fetchSizes.put(type, typeFetchSize == null ? DEFAULT_FETCH_SIZE : Integer.parseInt(typeFetchSize.toString()));
+        }
+        int prefetchRows = Integer.parseInt(config.getOrDefault("prefetch_rows", DEFAULT_PREFETCH_ROWS).toString());
+        return new StreamingOptions(fetchSizes, prefetchRows);
+    }
+
+    public int getFetchSize(ClinicalEntityType type) {
+        return fetchSizes.getOrDefault(type, DEFAULT_FETCH_SIZE);
+    }
+
+    public int getPrefetchRows() {
+        return prefetchRows;
+    }
+}
@@ -0,0 +1,116 @@
+package org.ohnlp.cat.api.jobs;
+
+import org.ohnlp.cat.api.criteria.ClinicalEntityType;
+import org.ohnlp.cat.api.ehr.ResourceProvider;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The high watermark of data extracted from a given data source and {@link ClinicalEntityType} by a {@link Job},
+ * i.e. the maximum value of the provider's watermark column at the time of extraction
+ * (see {@link org.ohnlp.cat.api.ehr.ResourceProvider#getCurrentWatermark(ClinicalEntityType, java.sql.Connection)}).
+ * <p>
+ * Subsequent jobs for the same project need only extract rows at or beyond the watermarks of the last job to reach
+ * {@link JobStatus#COMPLETE}, merging the results with those of that job.
+ */
+public class ExtractionWatermark implements Serializable {
+    private String sourceName;
+    private ClinicalEntityType type;
+    private Date value;
+
+    public ExtractionWatermark() {
+    }
+
+    public ExtractionWatermark(String sourceName, ClinicalEntityType type, Date value) {
+        this.sourceName = sourceName;
+        this.type = type;
+        this.value = value;
+    }
+
+    /**
+     * @param projectJobs The jobs previously run for a project
+     * @return The watermarks recorded by the most recently started job with status {@link JobStatus#COMPLETE}, or an
+     * empty list if there is no such job
+     */
+    public static List<ExtractionWatermark> fromLastCompletedJob(Collection<Job> projectJobs) {
+        return projectJobs.stream()
+                .filter(job -> JobStatus.COMPLETE.equals(job.getStatus()) && job.getWatermarks() != null)
+                .max(Comparator.comparing(Job::getStartDate, Comparator.nullsFirst(Comparator.naturalOrder())))
+                .map(Job::getWatermarks)
+                .orElse(Collections.emptyList());
+    }
+
+    /**
+     * Obtains the current watermark of each of the given types from each provider, to be obtained prior to extraction
+     * and recorded via {@link Job#setWatermarks(List)} once the job reaches {@link JobStatus#COMPLETE}. Providers not
+     * backed by a JDBC data source, and types without a watermark column, are omitted.
+     */
+    public static List<ExtractionWatermark> capture(Collection<ResourceProvider> providers,
+                                                    Collection<ClinicalEntityType> types) throws SQLException {
+        List<ExtractionWatermark> ret = new ArrayList<>();
+        for (ResourceProvider provider : providers) {
+            Connection conn;
+            try {
+                conn = provider.getConnection();
+            } catch (UnsupportedOperationException e) {
+                continue;
+            }
+            try {
+                for (ClinicalEntityType type : types) {
+                    Date value = provider.getCurrentWatermark(type, conn);
+                    if (value != null) {
+                        ret.add(new ExtractionWatermark(provider.getSourceName(), type, value));
+                    }
+                }
+            } finally {
+                conn.close();
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return The value of the watermark for the given data source and type, or null if none is recorded
+     */
+    public static Date find(Collection<ExtractionWatermark> watermarks, String sourceName, ClinicalEntityType type) {
+        for (ExtractionWatermark watermark : watermarks) {
+            if (Objects.equals(watermark.sourceName, sourceName) && Objects.equals(watermark.type, type)) {
+                return watermark.value;
+            }
+        }
+        return null;
+    }
+
+    public String getSourceName() {
+        return sourceName;
+    }
+
+    public void setSourceName(String sourceName) {
+        this.sourceName = sourceName;
+    }
+
+    public ClinicalEntityType getType() {
+        return type;
+    }
+
+    public void setType(ClinicalEntityType type) {
+        this.type = type;
+    }
+
+    public Date getValue() {
+        return value;
+    }
+
+    public void setValue(Date value) {
+        this.value = value;
+    }
+}
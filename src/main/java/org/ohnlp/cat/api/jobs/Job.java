@@ -1,6 +1,7 @@
 package org.ohnlp.cat.api.jobs;
 
 import java.util.Date;
+import java.util.List;
 import java.util.UUID;
 
 public class Job {
@@ -8,6 +9,7 @@ public class Job {
     private UUID jobUID;
     private Date startDate;
     private JobStatus status;
+    private List<ExtractionWatermark> watermarks;
 
     public UUID getProjectUID() {
         return projectUID;
@@ -40,4 +42,15 @@ public class Job {
     public void setStatus(JobStatus status) {
         this.status = status;
     }
+
+    /**
+     * @return The extraction watermarks reached by this job, per data source and type
+     */
+    public List<ExtractionWatermark> getWatermarks() {
+        return watermarks;
+    }
+
+    public void setWatermarks(List<ExtractionWatermark> watermarks) {
+        this.watermarks = watermarks;
+    }
 }
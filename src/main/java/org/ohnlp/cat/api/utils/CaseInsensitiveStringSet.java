@@ -0,0 +1,121 @@
+package org.ohnlp.cat.api.utils;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An open-addressing (linear probing) hash set of strings compared using {@link String#equalsIgnoreCase(String)}
+ * semantics.
+ * <p>
+ * Unlike lower-casing into a {@link java.util.HashSet}, lookups via {@link #contains(String)} do not allocate.
+ * Instances are not synchronized; sets that are fully populated before being shared may be read concurrently.
+ */
+public class CaseInsensitiveStringSet implements Serializable {
+    private String[] keys;
+    private int[] hashes;
+    private int size;
+    private int mask;
+
+    public CaseInsensitiveStringSet() {
+        this(16);
+    }
+
+    public CaseInsensitiveStringSet(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize) * 2 - 1) << 1;
+        allocate(capacity);
+    }
+
+    /**
+     * @return Whether key was added, i.e. it is not null and no equal key is already present. As with
+     * {@link #contains(String)}, null keys are never members
+     */
+    public boolean add(String key) {
+        if (key == null) {
+            return false;
+        }
+        int hash = hash(key);
+        int slot = hash & mask;
+        while (keys[slot] != null) {
+            if (hashes[slot] == hash && keys[slot].equalsIgnoreCase(key)) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        hashes[slot] = hash;
+        size++;
+        if (size * 2 > keys.length) {
+            rehash(keys.length << 1);
+        }
+        return true;
+    }
+
+    public boolean contains(String key) {
+        if (key == null) {
+            return false;
+        }
+        int hash = hash(key);
+        int slot = hash & mask;
+        String current;
+        while ((current = keys[slot]) != null) {
+            if (hashes[slot] == hash && current.equalsIgnoreCase(key)) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return The members of this set, in the case in which they were first added
+     */
+    public List<String> toList() {
+        List<String> ret = new ArrayList<>(size);
+        for (String key : keys) {
+            if (key != null) {
+                ret.add(key);
+            }
+        }
+        return ret;
+    }
+
+    private static int hash(String key) {
+        int h = 0;
+        for (int i = 0; i < key.length(); i++) {
+            // Same case folding as String#equalsIgnoreCase
+            h = 31 * h + Character.toLowerCase(Character.toUpperCase(key.charAt(i)));
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private void allocate(int capacity) {
+        keys = new String[capacity];
+        hashes = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    private void rehash(int capacity) {
+        String[] oldKeys = keys;
+        int[] oldHashes = hashes;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int slot = oldHashes[i] & mask;
+                while (keys[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                hashes[slot] = oldHashes[i];
+            }
+        }
+    }
+}
@@ -42,28 +42,29 @@ public class FHIRUtils {
     }
 
     public static DomainResource createAndWriteValuestoResource(FhirTerser terser, ClinicalEntityType type, String id, Map<String, Collection<String>> values) {
-        DomainResource root;
+        DomainResource root = newResource(type);
+        root.setId(id);
+        values.forEach((path, value) -> terser.addElements(root, path, value));
+        return root;
+    }
+
+    /**
+     * @return An empty resource of the FHIR type used to represent entities of the given type
+     */
+    public static DomainResource newResource(ClinicalEntityType type) {
         switch (type) {
             case PERSON:
-                root = new Person();
-                break;
+                return new Person();
             case CONDITION:
-                root = new Condition();
-                break;
+                return new Condition();
             case PROCEDURE:
-                root = new Procedure();
-                break;
+                return new Procedure();
             case MEDICATION:
-                root = new MedicationStatement();
-                break;
+                return new MedicationStatement();
             case OBSERVATION:
-                root = new Observation();
-                break;
+                return new Observation();
             default:
                 throw new IllegalArgumentException("Unsupported type " + type);
         }
-        root.setId(id);
-        values.forEach((path, value) -> terser.addElements(root, path, value));
-        return root;
     }
 }
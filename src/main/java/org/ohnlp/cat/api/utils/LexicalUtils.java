@@ -0,0 +1,212 @@
+package org.ohnlp.cat.api.utils;
+
+import java.time.LocalDate;
+import java.time.Year;
+
+/**
+ * Non-throwing lexical checks and conversions for values read out of FHIR resources, used in place of
+ * exception-driven parsing (e.g. {@link Double#parseDouble(String)} inside a try/catch) on hot evaluation paths
+ */
+public class LexicalUtils {
+
+    /**
+     * Sentinel returned by {@link #parseEpochDay(CharSequence)} and {@link #toEpochDay(long, long, long)} when the
+     * input is not a representable date
+     */
+    public static final long NOT_A_DATE = Long.MIN_VALUE;
+
+    /**
+     * Sentinel returned by {@link #parseCanonicalLong(CharSequence)} when the input is not a canonical integer
+     */
+    public static final long NOT_A_LONG = Long.MIN_VALUE;
+    // Bounds on month and day roll over, beyond which no date within the range of Year can result
+    private static final long MAX_ROLLOVER = 1L << 40;
+
+    /**
+     * Checks whether the input is a decimal literal accepted by {@link Double#parseDouble(String)}, i.e.
+     * optional leading/trailing whitespace, an optional sign, digits with an optional decimal point and exponent,
+     * and an optional f/F/d/D suffix, or the literals NaN and Infinity.
+     * <p>
+     * Hexadecimal floating point literals are not recognized.
+     */
+    public static boolean isNumeric(CharSequence s) {
+        if (s == null) {
+            return false;
+        }
+        int start = 0;
+        int end = s.length();
+        while (start < end && s.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && s.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        if (start == end) {
+            return false;
+        }
+        int i = start;
+        char c = s.charAt(i);
+        if (c == '+' || c == '-') {
+            i++;
+        }
+        if (regionEquals(s, i, end, "NaN") || regionEquals(s, i, end, "Infinity")) {
+            return true;
+        }
+        int digits = 0;
+        while (i < end && isDigit(s.charAt(i))) {
+            i++;
+            digits++;
+        }
+        if (i < end && s.charAt(i) == '.') {
+            i++;
+            while (i < end && isDigit(s.charAt(i))) {
+                i++;
+                digits++;
+            }
+        }
+        if (digits == 0) {
+            return false;
+        }
+        if (i < end && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+            i++;
+            if (i < end && (s.charAt(i) == '+' || s.charAt(i) == '-')) {
+                i++;
+            }
+            int expDigits = 0;
+            while (i < end && isDigit(s.charAt(i))) {
+                i++;
+                expDigits++;
+            }
+            if (expDigits == 0) {
+                return false;
+            }
+        }
+        if (i < end && (s.charAt(i) == 'f' || s.charAt(i) == 'F' || s.charAt(i) == 'd' || s.charAt(i) == 'D')) {
+            i++;
+        }
+        return i == end;
+    }
+
+    /**
+     * Parses integers in their canonical decimal form, i.e. the form produced by {@link Long#toString(long)}, with no
+     * sign other than a leading - on non-zero values and no leading zeros. Only values of up to 18 digits are accepted.
+     * <p>
+     * As canonical forms are unique, this can be used to key integer codes by value without changing which strings
+     * compare equal.
+     *
+     * @return The parsed value, or {@link #NOT_A_LONG} if the input is not a canonical integer
+     */
+    public static long parseCanonicalLong(CharSequence s) {
+        if (s == null) {
+            return NOT_A_LONG;
+        }
+        int len = s.length();
+        int i = 0;
+        boolean negative = false;
+        if (len > 0 && s.charAt(0) == '-') {
+            negative = true;
+            i++;
+        }
+        int digits = len - i;
+        if (digits == 0 || digits > 18) {
+            return NOT_A_LONG;
+        }
+        if (s.charAt(i) == '0' && (digits > 1 || negative)) {
+            return NOT_A_LONG;
+        }
+        long ret = 0;
+        for (; i < len; i++) {
+            char c = s.charAt(i);
+            if (!isDigit(c)) {
+                return NOT_A_LONG;
+            }
+            ret = ret * 10 + (c - '0');
+        }
+        return negative ? -ret : ret;
+    }
+
+    /**
+     * Parses a date of the form yyyy-MM-dd into days since the epoch. To remain consistent with lenient
+     * {@link java.text.SimpleDateFormat} parsing, any text following the day component (e.g. a time) is ignored,
+     * and out of range month and day values roll over into the next year/month respectively.
+     *
+     * @return The parsed date in epoch days, or {@link #NOT_A_DATE} if the input is not a date
+     */
+    public static long parseEpochDay(CharSequence s) {
+        if (s == null) {
+            return NOT_A_DATE;
+        }
+        int len = s.length();
+        int i = 0;
+        // Year
+        long year = 0;
+        int start = i;
+        while (i < len && isDigit(s.charAt(i)) && i - start < 9) {
+            year = year * 10 + (s.charAt(i) - '0');
+            i++;
+        }
+        if (i == start || i >= len || s.charAt(i) != '-') {
+            return NOT_A_DATE;
+        }
+        i++;
+        // Month
+        long month = 0;
+        start = i;
+        while (i < len && isDigit(s.charAt(i)) && i - start < 9) {
+            month = month * 10 + (s.charAt(i) - '0');
+            i++;
+        }
+        if (i == start || i >= len || s.charAt(i) != '-') {
+            return NOT_A_DATE;
+        }
+        i++;
+        // Day
+        long day = 0;
+        start = i;
+        while (i < len && isDigit(s.charAt(i)) && i - start < 9) {
+            day = day * 10 + (s.charAt(i) - '0');
+            i++;
+        }
+        if (i == start) {
+            return NOT_A_DATE;
+        }
+        return toEpochDay(year, month, day);
+    }
+
+    /**
+     * Converts a (possibly out of range) year/month/day triple to epoch days, rolling month and day over as required
+     *
+     * @param month 1-based month
+     * @param day   1-based day of month
+     * @return The date in epoch days, or {@link #NOT_A_DATE} if the rolled over year is outside the range of
+     * {@link java.time.Year}
+     */
+    public static long toEpochDay(long year, long month, long day) {
+        if (month < -MAX_ROLLOVER || month > MAX_ROLLOVER || day < -MAX_ROLLOVER || day > MAX_ROLLOVER) {
+            return NOT_A_DATE;
+        }
+        year += Math.floorDiv(month - 1, 12);
+        month = Math.floorMod(month - 1, 12) + 1;
+        if (year < Year.MIN_VALUE || year > Year.MAX_VALUE) {
+            return NOT_A_DATE;
+        }
+        // Day roll over can not overflow, as the epoch day of any supported year is well within range of a long
+        return LocalDate.of((int) year, (int) month, 1).toEpochDay() + day - 1;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean regionEquals(CharSequence s, int start, int end, String literal) {
+        if (end - start != literal.length()) {
+            return false;
+        }
+        for (int i = 0; i < literal.length(); i++) {
+            if (s.charAt(start + i) != literal.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,124 @@
+package org.ohnlp.cat.api.utils;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * An open-addressing (linear probing) hash set of primitive longs.
+ * <p>
+ * Lookups via {@link #contains(long)} neither box nor allocate. Instances are not synchronized; sets that are
+ * fully populated before being shared may be read concurrently.
+ */
+public class LongOpenHashSet implements Serializable {
+    private static final long FREE = Long.MIN_VALUE;
+
+    private long[] keys;
+    private boolean containsFree;
+    private int size;
+    private int mask;
+
+    public LongOpenHashSet() {
+        this(16);
+    }
+
+    public LongOpenHashSet(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize) * 2 - 1) << 1;
+        allocate(capacity);
+    }
+
+    public boolean add(long key) {
+        if (key == FREE) {
+            if (containsFree) {
+                return false;
+            }
+            containsFree = true;
+            size++;
+            return true;
+        }
+        int slot = slot(key);
+        while (keys[slot] != FREE) {
+            if (keys[slot] == key) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        size++;
+        if (size * 2 > keys.length) {
+            rehash(keys.length << 1);
+        }
+        return true;
+    }
+
+    public boolean contains(long key) {
+        if (key == FREE) {
+            return containsFree;
+        }
+        int slot = slot(key);
+        long current;
+        while ((current = keys[slot]) != FREE) {
+            if (current == key) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return The members of this set in ascending order
+     */
+    public long[] toSortedArray() {
+        long[] ret = new long[size];
+        int i = 0;
+        if (containsFree) {
+            ret[i++] = FREE;
+        }
+        for (long key : keys) {
+            if (key != FREE) {
+                ret[i++] = key;
+            }
+        }
+        Arrays.sort(ret);
+        return ret;
+    }
+
+    private int slot(long key) {
+        // Murmur3 finalizer, spreads sequential IDs across the table
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h & mask;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        Arrays.fill(keys, FREE);
+        mask = capacity - 1;
+    }
+
+    private void rehash(int capacity) {
+        long[] old = keys;
+        allocate(capacity);
+        for (long key : old) {
+            if (key != FREE) {
+                int slot = slot(key);
+                while (keys[slot] != FREE) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = key;
+            }
+        }
+    }
+}
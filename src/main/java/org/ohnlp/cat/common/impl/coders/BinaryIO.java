@@ -0,0 +1,163 @@
+package org.ohnlp.cat.common.impl.coders;
+
+import org.apache.beam.sdk.util.VarInt;
+import org.ohnlp.cat.api.utils.LexicalUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Primitive encodings shared by the coders within this package
+ */
+final class BinaryIO {
+    private static final int NULL = 0;
+    private static final int STRING = 1;
+    private static final int NUMERIC = 2;
+    private static final int PREFIXED_NUMERIC = 3;
+
+    // Strings commonly used as code systems and extension URLs, encoded as their (1-based) index. Entries may only
+    // be appended, as encoded data refers to them by position
+    private static final String[] DICTIONARY = {
+            "https://athena.ohdsi.org/",
+            "nlp:offset",
+            "nlp:text",
+            "http://snomed.info/sct",
+            "http://loinc.org",
+            "http://www.nlm.nih.gov/research/umls/rxnorm",
+            "http://hl7.org/fhir/sid/icd-10-cm",
+            "http://hl7.org/fhir/sid/icd-9-cm",
+            "http://www.ama-assn.org/go/cpt",
+            "http://www.nlm.nih.gov/research/umls"
+    };
+    private static final Map<String, Integer> DICTIONARY_INDEX = new HashMap<>();
+
+    static {
+        for (int i = 0; i < DICTIONARY.length; i++) {
+            DICTIONARY_INDEX.put(DICTIONARY[i], i + 1);
+        }
+    }
+
+    private BinaryIO() {
+    }
+
+    static void writeVarInt(int value, OutputStream out) throws IOException {
+        VarInt.encode(value, out);
+    }
+
+    static int readVarInt(InputStream in) throws IOException {
+        return VarInt.decodeInt(in);
+    }
+
+    /**
+     * Writes a signed long as a zig-zag varint
+     */
+    static void writeVarLong(long value, OutputStream out) throws IOException {
+        VarInt.encode((value << 1) ^ (value >> 63), out);
+    }
+
+    static long readVarLong(InputStream in) throws IOException {
+        long value = VarInt.decodeLong(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static void writeBytes(byte[] bytes, OutputStream out) throws IOException {
+        if (bytes == null) {
+            VarInt.encode(0, out);
+            return;
+        }
+        VarInt.encode(bytes.length + 1, out);
+        out.write(bytes);
+    }
+
+    static byte[] readBytes(InputStream in) throws IOException {
+        int length = VarInt.decodeInt(in) - 1;
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int n = in.read(bytes, read, length - read);
+            if (n < 0) {
+                throw new IOException("Unexpected end of stream");
+            }
+            read += n;
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes a nullable string as a varint length (0 for null) followed by UTF-8 bytes
+     */
+    static void writeString(String value, OutputStream out) throws IOException {
+        writeBytes(value == null ? null : value.getBytes(StandardCharsets.UTF_8), out);
+    }
+
+    static String readString(InputStream in) throws IOException {
+        byte[] bytes = readBytes(in);
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes a nullable string, substituting its index for strings in the shared dictionary
+     */
+    static void writeDictionaryString(String value, OutputStream out) throws IOException {
+        Integer index = value == null ? null : DICTIONARY_INDEX.get(value);
+        if (index != null) {
+            VarInt.encode(index, out);
+        } else {
+            VarInt.encode(0, out);
+            writeString(value, out);
+        }
+    }
+
+    static String readDictionaryString(InputStream in) throws IOException {
+        int index = VarInt.decodeInt(in);
+        return index == 0 ? readString(in) : DICTIONARY[index - 1];
+    }
+
+    /**
+     * Writes a nullable code or identifier, encoding canonical non-negative integers (optionally following a
+     * :-delimited prefix, e.g. source:TYPE:123) as varints
+     */
+    static void writeCode(String value, OutputStream out) throws IOException {
+        if (value == null) {
+            VarInt.encode(NULL, out);
+            return;
+        }
+        int split = value.lastIndexOf(':');
+        long numeric = LexicalUtils.parseCanonicalLong(value.substring(split + 1));
+        if (numeric < 0) {
+            VarInt.encode(STRING, out);
+            writeString(value, out);
+        } else if (split < 0) {
+            VarInt.encode(NUMERIC, out);
+            VarInt.encode(numeric, out);
+        } else {
+            VarInt.encode(PREFIXED_NUMERIC, out);
+            writeString(value.substring(0, split), out);
+            VarInt.encode(numeric, out);
+        }
+    }
+
+    static String readCode(InputStream in) throws IOException {
+        switch (VarInt.decodeInt(in)) {
+            case NULL:
+                return null;
+            case STRING:
+                return readString(in);
+            case NUMERIC:
+                return Long.toString(VarInt.decodeLong(in));
+            case PREFIXED_NUMERIC: {
+                String prefix = readString(in);
+                return prefix + ":" + VarInt.decodeLong(in);
+            }
+            default:
+                throw new IOException("Unknown code encoding");
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package org.ohnlp.cat.common.impl.coders;
+
+import org.apache.beam.sdk.coders.CoderException;
+import org.apache.beam.sdk.coders.CustomCoder;
+import org.ohnlp.cat.api.cohorts.CandidateScore;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.*;
+
+/**
+ * A {@link org.apache.beam.sdk.coders.Coder} for {@link CandidateScore}s.
+ * <p>
+ * Evidence IDs (which take the form source:TYPE:recordID) are written against a per-score table of their
+ * :-delimited prefixes, such that each ID costs a prefix index and, for numeric record IDs, a varint. Per-criterion
+ * evidence IDs are written as indices into the evidence IDs.
+ * <p>
+ * This coder is not deterministic, as evidence IDs are written in set iteration order.
+ */
+public class CandidateScoreCoder extends CustomCoder<CandidateScore> {
+    private static final CandidateScoreCoder INSTANCE = new CandidateScoreCoder();
+
+    public static CandidateScoreCoder of() {
+        return INSTANCE;
+    }
+
+    @Override
+    public void encode(CandidateScore value, OutputStream outStream) throws IOException {
+        if (value == null) {
+            throw new CoderException("Cannot encode a null CandidateScore");
+        }
+        BinaryIO.writeCode(value.getPatientUID(), outStream);
+        Double score = value.getScore();
+        outStream.write(score == null ? 0 : 1);
+        if (score != null) {
+            new DataOutputStream(outStream).writeDouble(score);
+        }
+        BinaryIO.writeVarInt(value.getDataSourceCount(), outStream);
+        Set<String> evidenceIDs = value.getEvidenceIDs();
+        // Index of each evidence ID in write order, against which per-criterion evidence is written
+        Map<String, Integer> indices = new HashMap<>();
+        if (evidenceIDs == null) {
+            BinaryIO.writeVarInt(0, outStream);
+            BinaryIO.writeVarInt(0, outStream);
+        } else {
+            Map<String, Integer> prefixes = new LinkedHashMap<>();
+            for (String evidenceID : evidenceIDs) {
+                prefixes.putIfAbsent(prefixOf(evidenceID), prefixes.size());
+            }
+            BinaryIO.writeVarInt(prefixes.size(), outStream);
+            for (String prefix : prefixes.keySet()) {
+                BinaryIO.writeString(prefix, outStream);
+            }
+            BinaryIO.writeVarInt(evidenceIDs.size() + 1, outStream);
+            for (String evidenceID : evidenceIDs) {
+                String prefix = prefixOf(evidenceID);
+                BinaryIO.writeVarInt(prefixes.get(prefix), outStream);
+                BinaryIO.writeCode(prefix == null ? evidenceID : evidenceID.substring(prefix.length() + 1), outStream);
+                indices.put(evidenceID, indices.size());
+            }
+        }
+        Map<UUID, Set<String>> criterionEvidenceIDs = value.getCriterionEvidenceIDs();
+        if (criterionEvidenceIDs == null) {
+            BinaryIO.writeVarInt(0, outStream);
+            return;
+        }
+        BinaryIO.writeVarInt(criterionEvidenceIDs.size() + 1, outStream);
+        DataOutputStream out = new DataOutputStream(outStream);
+        for (Map.Entry<UUID, Set<String>> e : criterionEvidenceIDs.entrySet()) {
+            out.writeLong(e.getKey().getMostSignificantBits());
+            out.writeLong(e.getKey().getLeastSignificantBits());
+            BinaryIO.writeVarInt(e.getValue().size(), outStream);
+            for (String evidenceID : e.getValue()) {
+                // Written as an index where also present in the evidence IDs, as is the case for scored candidates
+                Integer index = indices.get(evidenceID);
+                BinaryIO.writeVarInt(index == null ? 0 : index + 1, outStream);
+                if (index == null) {
+                    BinaryIO.writeString(evidenceID, outStream);
+                }
+            }
+        }
+    }
+
+    @Override
+    public CandidateScore decode(InputStream inStream) throws IOException {
+        CandidateScore ret = new CandidateScore();
+        ret.setPatientUID(BinaryIO.readCode(inStream));
+        int hasScore = inStream.read();
+        if (hasScore < 0) {
+            throw new CoderException("Unexpected end of stream");
+        }
+        if (hasScore == 1) {
+            ret.setScore(new DataInputStream(inStream).readDouble());
+        }
+        ret.setDataSourceCount(BinaryIO.readVarInt(inStream));
+        int prefixCount = BinaryIO.readVarInt(inStream);
+        String[] prefixes = new String[prefixCount];
+        for (int i = 0; i < prefixCount; i++) {
+            prefixes[i] = BinaryIO.readString(inStream);
+        }
+        int count = BinaryIO.readVarInt(inStream) - 1;
+        String[] ordered = new String[Math.max(0, count)];
+        if (count >= 0) {
+            Set<String> evidenceIDs = new HashSet<>(Math.max(16, count * 4 / 3 + 1));
+            for (int i = 0; i < count; i++) {
+                String prefix = prefixes[BinaryIO.readVarInt(inStream)];
+                String suffix = BinaryIO.readCode(inStream);
+                ordered[i] = prefix == null ? suffix : prefix + ":" + suffix;
+                evidenceIDs.add(ordered[i]);
+            }
+            ret.setEvidenceIDs(evidenceIDs);
+        }
+        int criterionCount = BinaryIO.readVarInt(inStream) - 1;
+        if (criterionCount < 0) {
+            return ret;
+        }
+        Map<UUID, Set<String>> criterionEvidenceIDs = new HashMap<>();
+        DataInputStream in = new DataInputStream(inStream);
+        for (int i = 0; i < criterionCount; i++) {
+            UUID criterionUID = new UUID(in.readLong(), in.readLong());
+            int idCount = BinaryIO.readVarInt(inStream);
+            Set<String> ids = new HashSet<>(Math.max(16, idCount * 4 / 3 + 1));
+            for (int j = 0; j < idCount; j++) {
+                int index = BinaryIO.readVarInt(inStream);
+                ids.add(index == 0 ? BinaryIO.readString(inStream) : ordered[index - 1]);
+            }
+            criterionEvidenceIDs.put(criterionUID, ids);
+        }
+        ret.setCriterionEvidenceIDs(criterionEvidenceIDs);
+        return ret;
+    }
+
+    @Override
+    public void verifyDeterministic() throws NonDeterministicException {
+        throw new NonDeterministicException(this, "Evidence IDs are encoded in set iteration order");
+    }
+
+    // Stateless, so all instances are equivalent
+    @Override
+    public boolean equals(Object other) {
+        return other != null && other.getClass() == getClass();
+    }
+
+    @Override
+    public int hashCode() {
+        return getClass().hashCode();
+    }
+
+    private static String prefixOf(String evidenceID) {
+        int split = evidenceID == null ? -1 : evidenceID.lastIndexOf(':');
+        return split < 0 ? null : evidenceID.substring(0, split);
+    }
+}
@@ -0,0 +1,474 @@
+package org.ohnlp.cat.common.impl.coders;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.TemporalPrecisionEnum;
+import org.apache.beam.sdk.coders.CoderException;
+import org.apache.beam.sdk.coders.CustomCoder;
+import org.hl7.fhir.r4.model.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+
+/**
+ * A {@link org.apache.beam.sdk.coders.Coder} for the {@link DomainResource}s produced by the bundled resource
+ * providers, replacing Java serialization of the HAPI object graph in shuffles and side inputs.
+ * <p>
+ * Each resource type has a fixed binary layout covering the elements populated by the providers (ID, subject, codes,
+ * date, NLP extensions and, for NLP-derived resources, the enclosing {@link DocumentReference} and note text), in
+ * which numeric IDs and codes are written as varints and common code systems and extension URLs as dictionary
+ * indices. Resources of other types, or that populate any element outside of their layout, are written as HAPI JSON,
+ * such that all resources round-trip at least as faithfully as via the HAPI JSON parser.
+ * <p>
+ * This coder is not deterministic, and so may not be used to encode keys.
+ */
+public class DomainResourceCoder extends CustomCoder<DomainResource> {
+    private static final DomainResourceCoder INSTANCE = new DomainResourceCoder();
+    private static volatile FhirContext context;
+
+    static final int JSON = 0;
+    static final int PERSON = 1;
+    static final int CONDITION = 2;
+    static final int MEDICATION_STATEMENT = 3;
+    static final int PROCEDURE = 4;
+    static final int OBSERVATION = 5;
+    static final int DOCUMENT_REFERENCE = 6;
+
+    // The top-level elements that may be populated within each layout
+    private static final Set<String> PERSON_ELEMENTS = elements("id", "gender", "birthDate");
+    private static final Set<String> CONDITION_ELEMENTS = elements("id", "extension", "subject", "code", "recordedDate");
+    private static final Set<String> MEDICATION_STATEMENT_ELEMENTS = elements("id", "extension", "subject", "medication[x]", "dateAsserted");
+    private static final Set<String> PROCEDURE_ELEMENTS = elements("id", "extension", "subject", "code", "performed[x]");
+    private static final Set<String> OBSERVATION_ELEMENTS = elements("id", "extension", "subject", "code", "value[x]", "issued");
+    private static final Set<String> DOCUMENT_REFERENCE_ELEMENTS = elements("id", "contained", "masterIdentifier", "date", "content");
+
+    public static DomainResourceCoder of() {
+        return INSTANCE;
+    }
+
+    @Override
+    public void encode(DomainResource value, OutputStream outStream) throws IOException {
+        if (value == null) {
+            throw new CoderException("Cannot encode a null resource");
+        }
+        int layout = layoutOf(value);
+        outStream.write(layout);
+        if (layout == JSON) {
+            // Written separately as the parser qualifies parsed IDs with the resource type
+            BinaryIO.writeString(value.hasIdElement() ? value.getIdElement().getValue() : null, outStream);
+            BinaryIO.writeString(getContext().newJsonParser().encodeResourceToString(value), outStream);
+        } else {
+            writeResource(layout, value, outStream);
+        }
+    }
+
+    @Override
+    public DomainResource decode(InputStream inStream) throws IOException {
+        int layout = inStream.read();
+        if (layout < 0) {
+            throw new CoderException("Unexpected end of stream");
+        }
+        if (layout == JSON) {
+            String id = BinaryIO.readString(inStream);
+            DomainResource ret = (DomainResource) getContext().newJsonParser().parseResource(BinaryIO.readString(inStream));
+            ret.setIdElement(id == null ? null : new IdType(id));
+            return ret;
+        }
+        return readResource(layout, inStream);
+    }
+
+    @Override
+    public void verifyDeterministic() throws NonDeterministicException {
+        throw new NonDeterministicException(this, "HAPI JSON encoding is not guaranteed to be deterministic");
+    }
+
+    // Stateless, so all instances are equivalent
+    @Override
+    public boolean equals(Object other) {
+        return other != null && other.getClass() == getClass();
+    }
+
+    @Override
+    public int hashCode() {
+        return getClass().hashCode();
+    }
+
+    private static int layoutOf(Resource resource) {
+        if (resource instanceof Person) {
+            Person p = (Person) resource;
+            return hasOnly(p, PERSON_ELEMENTS)
+                    && (!p.hasGender() || plain(p.getGenderElement()))
+                    && (!p.hasBirthDate() || plain(p.getBirthDateElement())) ? PERSON : JSON;
+        } else if (resource instanceof Condition) {
+            Condition c = (Condition) resource;
+            return hasOnly(c, CONDITION_ELEMENTS) && isSimple(c.getExtension())
+                    && (!c.hasSubject() || isSimple(c.getSubject()))
+                    && (!c.hasCode() || isSimple(c.getCode()))
+                    && (!c.hasRecordedDate() || plain(c.getRecordedDateElement())) ? CONDITION : JSON;
+        } else if (resource instanceof MedicationStatement) {
+            MedicationStatement ms = (MedicationStatement) resource;
+            return hasOnly(ms, MEDICATION_STATEMENT_ELEMENTS) && isSimple(ms.getExtension())
+                    && (!ms.hasSubject() || isSimple(ms.getSubject()))
+                    && (!ms.hasMedication() || (ms.getMedication() instanceof CodeableConcept && isSimple((CodeableConcept) ms.getMedication())))
+                    && (!ms.hasDateAsserted() || plain(ms.getDateAssertedElement())) ? MEDICATION_STATEMENT : JSON;
+        } else if (resource instanceof Procedure) {
+            Procedure prc = (Procedure) resource;
+            return hasOnly(prc, PROCEDURE_ELEMENTS) && isSimple(prc.getExtension())
+                    && (!prc.hasSubject() || isSimple(prc.getSubject()))
+                    && (!prc.hasCode() || isSimple(prc.getCode()))
+                    && (!prc.hasPerformed() || (prc.getPerformed() instanceof DateTimeType && plain(prc.getPerformed()))) ? PROCEDURE : JSON;
+        } else if (resource instanceof Observation) {
+            Observation obs = (Observation) resource;
+            return hasOnly(obs, OBSERVATION_ELEMENTS) && isSimple(obs.getExtension())
+                    && (!obs.hasSubject() || isSimple(obs.getSubject()))
+                    && (!obs.hasCode() || isSimple(obs.getCode()))
+                    && (!obs.hasValue() || (obs.getValue() instanceof StringType && plain(obs.getValue())))
+                    && (!obs.hasIssued() || plain(obs.getIssuedElement())) ? OBSERVATION : JSON;
+        } else if (resource instanceof DocumentReference) {
+            DocumentReference docRef = (DocumentReference) resource;
+            if (!hasOnly(docRef, DOCUMENT_REFERENCE_ELEMENTS)
+                    || (docRef.hasMasterIdentifier() && !isSimple(docRef.getMasterIdentifier()))
+                    || (docRef.hasDate() && !plain(docRef.getDateElement()))) {
+                return JSON;
+            }
+            for (DocumentReference.DocumentReferenceContentComponent content : docRef.getContent()) {
+                if (!isSimple(content)) {
+                    return JSON;
+                }
+            }
+            for (Resource contained : docRef.getContained()) {
+                if (contained instanceof DocumentReference || layoutOf(contained) == JSON) {
+                    return JSON;
+                }
+            }
+            return DOCUMENT_REFERENCE;
+        }
+        return JSON;
+    }
+
+    private static void writeResource(int layout, DomainResource resource, OutputStream out) throws IOException {
+        BinaryIO.writeCode(resource.hasIdElement() ? resource.getIdElement().getValue() : null, out);
+        switch (layout) {
+            case PERSON: {
+                Person p = (Person) resource;
+                BinaryIO.writeVarInt(p.hasGender() ? p.getGender().ordinal() + 1 : 0, out);
+                writeDate(p.hasBirthDate() ? p.getBirthDateElement() : null, out);
+                break;
+            }
+            case CONDITION: {
+                Condition c = (Condition) resource;
+                writeSubject(c.hasSubject() ? c.getSubject() : null, out);
+                writeCodeableConcept(c.hasCode() ? c.getCode() : null, out);
+                writeDate(c.hasRecordedDate() ? c.getRecordedDateElement() : null, out);
+                writeExtensions(c, out);
+                break;
+            }
+            case MEDICATION_STATEMENT: {
+                MedicationStatement ms = (MedicationStatement) resource;
+                writeSubject(ms.hasSubject() ? ms.getSubject() : null, out);
+                writeCodeableConcept(ms.hasMedication() ? (CodeableConcept) ms.getMedication() : null, out);
+                writeDate(ms.hasDateAsserted() ? ms.getDateAssertedElement() : null, out);
+                writeExtensions(ms, out);
+                break;
+            }
+            case PROCEDURE: {
+                Procedure prc = (Procedure) resource;
+                writeSubject(prc.hasSubject() ? prc.getSubject() : null, out);
+                writeCodeableConcept(prc.hasCode() ? prc.getCode() : null, out);
+                writeDate(prc.hasPerformed() ? (DateTimeType) prc.getPerformed() : null, out);
+                writeExtensions(prc, out);
+                break;
+            }
+            case OBSERVATION: {
+                Observation obs = (Observation) resource;
+                writeSubject(obs.hasSubject() ? obs.getSubject() : null, out);
+                writeCodeableConcept(obs.hasCode() ? obs.getCode() : null, out);
+                BinaryIO.writeString(obs.hasValue() ? obs.getValue().primitiveValue() : null, out);
+                writeDate(obs.hasIssued() ? obs.getIssuedElement() : null, out);
+                writeExtensions(obs, out);
+                break;
+            }
+            case DOCUMENT_REFERENCE: {
+                DocumentReference docRef = (DocumentReference) resource;
+                BinaryIO.writeCode(docRef.hasMasterIdentifier() ? docRef.getMasterIdentifier().getValue() : null, out);
+                writeDate(docRef.hasDate() ? docRef.getDateElement() : null, out);
+                BinaryIO.writeVarInt(docRef.getContent().size(), out);
+                for (DocumentReference.DocumentReferenceContentComponent content : docRef.getContent()) {
+                    BinaryIO.writeBytes(content.hasAttachment() ? content.getAttachment().getData() : null, out);
+                }
+                BinaryIO.writeVarInt(docRef.getContained().size(), out);
+                for (Resource contained : docRef.getContained()) {
+                    int containedLayout = layoutOf(contained);
+                    out.write(containedLayout);
+                    writeResource(containedLayout, (DomainResource) contained, out);
+                }
+                break;
+            }
+            default:
+                throw new CoderException("Unknown layout " + layout);
+        }
+    }
+
+    private static DomainResource readResource(int layout, InputStream in) throws IOException {
+        String id = BinaryIO.readCode(in);
+        DomainResource ret;
+        switch (layout) {
+            case PERSON: {
+                Person p = new Person();
+                int gender = BinaryIO.readVarInt(in);
+                if (gender > 0) {
+                    p.setGender(Enumerations.AdministrativeGender.values()[gender - 1]);
+                }
+                p.setBirthDateElement(readDate(new DateType(), in));
+                ret = p;
+                break;
+            }
+            case CONDITION: {
+                Condition c = new Condition();
+                c.setSubject(readSubject(in));
+                c.setCode(readCodeableConcept(in));
+                c.setRecordedDateElement(readDate(new DateTimeType(), in));
+                readExtensions(c, in);
+                ret = c;
+                break;
+            }
+            case MEDICATION_STATEMENT: {
+                MedicationStatement ms = new MedicationStatement();
+                ms.setSubject(readSubject(in));
+                ms.setMedication(readCodeableConcept(in));
+                ms.setDateAssertedElement(readDate(new DateTimeType(), in));
+                readExtensions(ms, in);
+                ret = ms;
+                break;
+            }
+            case PROCEDURE: {
+                Procedure prc = new Procedure();
+                prc.setSubject(readSubject(in));
+                prc.setCode(readCodeableConcept(in));
+                prc.setPerformed(readDate(new DateTimeType(), in));
+                readExtensions(prc, in);
+                ret = prc;
+                break;
+            }
+            case OBSERVATION: {
+                Observation obs = new Observation();
+                obs.setSubject(readSubject(in));
+                obs.setCode(readCodeableConcept(in));
+                String value = BinaryIO.readString(in);
+                if (value != null) {
+                    obs.setValue(new StringType(value));
+                }
+                obs.setIssuedElement(readDate(new InstantType(), in));
+                readExtensions(obs, in);
+                ret = obs;
+                break;
+            }
+            case DOCUMENT_REFERENCE: {
+                DocumentReference docRef = new DocumentReference();
+                String masterIdentifier = BinaryIO.readCode(in);
+                if (masterIdentifier != null) {
+                    docRef.setMasterIdentifier(new Identifier().setValue(masterIdentifier));
+                }
+                docRef.setDateElement(readDate(new InstantType(), in));
+                int contentCount = BinaryIO.readVarInt(in);
+                for (int i = 0; i < contentCount; i++) {
+                    byte[] data = BinaryIO.readBytes(in);
+                    DocumentReference.DocumentReferenceContentComponent content = docRef.addContent();
+                    if (data != null) {
+                        content.setAttachment(new Attachment().setData(data));
+                    }
+                }
+                int containedCount = BinaryIO.readVarInt(in);
+                for (int i = 0; i < containedCount; i++) {
+                    docRef.addContained(readResource(in.read(), in));
+                }
+                ret = docRef;
+                break;
+            }
+            default:
+                throw new CoderException("Unknown layout " + layout);
+        }
+        if (id != null) {
+            ret.setId(id);
+        }
+        return ret;
+    }
+
+    /**
+     * Writes a date as its precision, epoch milliseconds and time zone, retaining the exact instant (which is not
+     * necessarily representable at the element's precision) for equality with the original element
+     */
+    private static void writeDate(BaseDateTimeType date, OutputStream out) throws IOException {
+        if (date == null || date.getValue() == null) {
+            BinaryIO.writeVarInt(0, out);
+            return;
+        }
+        BinaryIO.writeVarInt(date.getPrecision().ordinal() + 1, out);
+        BinaryIO.writeVarLong(date.getValue().getTime(), out);
+        if (date.isTimeZoneZulu()) {
+            BinaryIO.writeString("Z", out);
+        } else {
+            BinaryIO.writeString(date.getTimeZone() == null ? null : date.getTimeZone().getID(), out);
+        }
+    }
+
+    private static <T extends BaseDateTimeType> T readDate(T target, InputStream in) throws IOException {
+        int precision = BinaryIO.readVarInt(in);
+        if (precision == 0) {
+            return null;
+        }
+        target.setValue(new Date(BinaryIO.readVarLong(in)), TemporalPrecisionEnum.values()[precision - 1]);
+        String timeZone = BinaryIO.readString(in);
+        if ("Z".equals(timeZone)) {
+            target.setTimeZoneZulu(true);
+        } else if (timeZone != null) {
+            target.setTimeZone(TimeZone.getTimeZone(timeZone));
+        }
+        return target;
+    }
+
+    private static void writeSubject(Reference subject, OutputStream out) throws IOException {
+        BinaryIO.writeCode(subject == null ? null : subject.getIdentifier().getValue(), out);
+    }
+
+    private static Reference readSubject(InputStream in) throws IOException {
+        String value = BinaryIO.readCode(in);
+        return value == null ? null : new Reference().setIdentifier(new Identifier().setValue(value));
+    }
+
+    private static void writeCodeableConcept(CodeableConcept concept, OutputStream out) throws IOException {
+        if (concept == null) {
+            BinaryIO.writeVarInt(0, out);
+            return;
+        }
+        List<Coding> codings = concept.getCoding();
+        BinaryIO.writeVarInt(codings.size() + 1, out);
+        for (Coding coding : codings) {
+            BinaryIO.writeDictionaryString(coding.hasSystem() ? coding.getSystem() : null, out);
+            BinaryIO.writeCode(coding.hasCode() ? coding.getCode() : null, out);
+            BinaryIO.writeString(coding.hasDisplay() ? coding.getDisplay() : null, out);
+        }
+    }
+
+    private static CodeableConcept readCodeableConcept(InputStream in) throws IOException {
+        int count = BinaryIO.readVarInt(in) - 1;
+        if (count < 0) {
+            return null;
+        }
+        CodeableConcept ret = new CodeableConcept();
+        for (int i = 0; i < count; i++) {
+            Coding coding = ret.addCoding();
+            coding.setSystem(BinaryIO.readDictionaryString(in));
+            coding.setCode(BinaryIO.readCode(in));
+            coding.setDisplay(BinaryIO.readString(in));
+        }
+        return ret;
+    }
+
+    private static void writeExtensions(DomainResource resource, OutputStream out) throws IOException {
+        List<Extension> extensions = resource.getExtension();
+        BinaryIO.writeVarInt(extensions.size(), out);
+        for (Extension extension : extensions) {
+            BinaryIO.writeDictionaryString(extension.getUrl(), out);
+            BinaryIO.writeString(extension.hasValue() ? extension.getValue().primitiveValue() : null, out);
+        }
+    }
+
+    private static void readExtensions(DomainResource resource, InputStream in) throws IOException {
+        int count = BinaryIO.readVarInt(in);
+        for (int i = 0; i < count; i++) {
+            Extension extension = resource.addExtension();
+            extension.setUrl(BinaryIO.readDictionaryString(in));
+            String value = BinaryIO.readString(in);
+            if (value != null) {
+                extension.setValue(new StringType(value));
+            }
+        }
+    }
+
+    private static boolean hasOnly(Base element, Set<String> allowed) {
+        for (Property property : element.children()) {
+            if (property.hasValues() && !allowed.contains(property.getName())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return Whether the element carries no element ID or extensions, which are not represented by any layout
+     */
+    private static boolean plain(Element element) {
+        return !element.hasId() && !element.hasExtension();
+    }
+
+    private static boolean isSimple(Identifier identifier) {
+        return plain(identifier) && !identifier.hasUse() && !identifier.hasType() && !identifier.hasSystem()
+                && !identifier.hasPeriod() && !identifier.hasAssigner()
+                && (!identifier.hasValue() || plain(identifier.getValueElement()));
+    }
+
+    private static boolean isSimple(Reference reference) {
+        return plain(reference) && !reference.hasReference() && !reference.hasType() && !reference.hasDisplay()
+                && reference.hasIdentifier() && reference.getIdentifier().hasValue() && isSimple(reference.getIdentifier());
+    }
+
+    private static boolean isSimple(CodeableConcept concept) {
+        if (!plain(concept) || concept.hasText()) {
+            return false;
+        }
+        for (Coding coding : concept.getCoding()) {
+            if (!plain(coding) || coding.hasVersion() || coding.hasUserSelected()
+                    || (coding.hasSystem() && !plain(coding.getSystemElement()))
+                    || (coding.hasCode() && !plain(coding.getCodeElement()))
+                    || (coding.hasDisplay() && !plain(coding.getDisplayElement()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSimple(List<Extension> extensions) {
+        for (Extension extension : extensions) {
+            if (!plain(extension) || (extension.hasValue() && !(extension.getValue() instanceof StringType && plain(extension.getValue())))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSimple(DocumentReference.DocumentReferenceContentComponent content) {
+        if (!plain(content) || content.hasModifierExtension() || content.hasFormat()) {
+            return false;
+        }
+        if (!content.hasAttachment()) {
+            return true;
+        }
+        Attachment attachment = content.getAttachment();
+        return plain(attachment) && !attachment.hasContentType() && !attachment.hasLanguage() && !attachment.hasUrl()
+                && !attachment.hasSize() && !attachment.hasHash() && !attachment.hasTitle() && !attachment.hasCreation()
+                && (!attachment.hasData() || plain(attachment.getDataElement()));
+    }
+
+    private static Set<String> elements(String... names) {
+        return new HashSet<>(Arrays.asList(names));
+    }
+
+    private static FhirContext getContext() {
+        if (context == null) {
+            synchronized (DomainResourceCoder.class) {
+                if (context == null) {
+                    context = FhirContext.forR4();
+                }
+            }
+        }
+        return context;
+    }
+}
@@ -0,0 +1,55 @@
+package org.ohnlp.cat.common.impl.coders;
+
+import org.apache.beam.sdk.coders.CoderException;
+import org.apache.beam.sdk.coders.CustomCoder;
+import org.ohnlp.cat.api.evidence.Evidence;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A deterministic {@link org.apache.beam.sdk.coders.Coder} for {@link Evidence}, writing numeric record IDs within
+ * evidence UIDs as varints
+ */
+public class EvidenceCoder extends CustomCoder<Evidence> {
+    private static final EvidenceCoder INSTANCE = new EvidenceCoder();
+
+    public static EvidenceCoder of() {
+        return INSTANCE;
+    }
+
+    @Override
+    public void encode(Evidence value, OutputStream outStream) throws IOException {
+        if (value == null) {
+            throw new CoderException("Cannot encode a null Evidence");
+        }
+        BinaryIO.writeCode(value.getEvidenceUID(), outStream);
+        new DataOutputStream(outStream).writeDouble(value.getScore());
+    }
+
+    @Override
+    public Evidence decode(InputStream inStream) throws IOException {
+        Evidence ret = new Evidence();
+        ret.setEvidenceUID(BinaryIO.readCode(inStream));
+        ret.setScore(new DataInputStream(inStream).readDouble());
+        return ret;
+    }
+
+    @Override
+    public void verifyDeterministic() {
+    }
+
+    // Stateless, so all instances are equivalent
+    @Override
+    public boolean equals(Object other) {
+        return other != null && other.getClass() == getClass();
+    }
+
+    @Override
+    public int hashCode() {
+        return getClass().hashCode();
+    }
+}
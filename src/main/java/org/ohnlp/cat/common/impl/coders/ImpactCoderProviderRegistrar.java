@@ -0,0 +1,37 @@
+package org.ohnlp.cat.common.impl.coders;
+
+import org.apache.beam.sdk.coders.CoderProvider;
+import org.apache.beam.sdk.coders.CoderProviderRegistrar;
+import org.apache.beam.sdk.coders.CoderProviders;
+import org.apache.beam.sdk.coders.CoderRegistry;
+import org.apache.beam.sdk.values.TypeDescriptor;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.ohnlp.cat.api.cohorts.CandidateScore;
+import org.ohnlp.cat.api.evidence.Evidence;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Registers the coders within this package as the defaults for their types, discovered by Beam via
+ * {@link java.util.ServiceLoader} when a pipeline's {@link CoderRegistry} is created
+ */
+public class ImpactCoderProviderRegistrar implements CoderProviderRegistrar {
+    @Override
+    public List<CoderProvider> getCoderProviders() {
+        return Arrays.asList(
+                CoderProviders.forCoder(TypeDescriptor.of(DomainResource.class), DomainResourceCoder.of()),
+                CoderProviders.forCoder(TypeDescriptor.of(CandidateScore.class), CandidateScoreCoder.of()),
+                CoderProviders.forCoder(TypeDescriptor.of(Evidence.class), EvidenceCoder.of()));
+    }
+
+    /**
+     * Explicitly registers the coders within this package with the given registry, e.g. where service loading is
+     * unavailable
+     */
+    public static void registerCoders(CoderRegistry registry) {
+        registry.registerCoderForClass(DomainResource.class, DomainResourceCoder.of());
+        registry.registerCoderForClass(CandidateScore.class, CandidateScoreCoder.of());
+        registry.registerCoderForClass(Evidence.class, EvidenceCoder.of());
+    }
+}
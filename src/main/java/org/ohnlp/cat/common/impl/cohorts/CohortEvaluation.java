@@ -0,0 +1,443 @@
+package org.ohnlp.cat.common.impl.cohorts;
+
+import org.apache.beam.sdk.coders.Coder;
+import org.apache.beam.sdk.coders.CoderRegistry;
+import org.apache.beam.sdk.coders.KvCoder;
+import org.apache.beam.sdk.coders.MapCoder;
+import org.apache.beam.sdk.coders.SerializableCoder;
+import org.apache.beam.sdk.coders.SetCoder;
+import org.apache.beam.sdk.coders.StringUtf8Coder;
+import org.apache.beam.sdk.coders.VarIntCoder;
+import org.apache.beam.sdk.metrics.Counter;
+import org.apache.beam.sdk.metrics.Metrics;
+import org.apache.beam.sdk.transforms.*;
+import org.apache.beam.sdk.transforms.join.CoGbkResult;
+import org.apache.beam.sdk.transforms.join.CoGroupByKey;
+import org.apache.beam.sdk.transforms.join.KeyedPCollectionTuple;
+import org.apache.beam.sdk.values.KV;
+import org.apache.beam.sdk.values.PBegin;
+import org.apache.beam.sdk.values.PCollection;
+import org.apache.beam.sdk.values.Row;
+import org.apache.beam.sdk.values.TupleTag;
+import org.apache.beam.sdk.values.TypeDescriptors;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.ohnlp.cat.api.cohorts.CandidateScore;
+import org.ohnlp.cat.api.criteria.ClinicalEntityType;
+import org.ohnlp.cat.api.criteria.Criterion;
+import org.ohnlp.cat.api.criteria.prepared.PreparedCriterion;
+import org.ohnlp.cat.api.ehr.ParameterizedQuery;
+import org.ohnlp.cat.api.ehr.ResourceProvider;
+import org.ohnlp.cat.api.jobs.ExtractionWatermark;
+import org.ohnlp.cat.common.impl.coders.CandidateScoreCoder;
+import org.ohnlp.cat.common.impl.sql.StreamingRowReader;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Evaluates a {@link Criterion} tree against a set of {@link ResourceProvider}s end to end, producing a
+ * {@link CandidateScore} for each patient with evidence for at least one entity criterion.
+ * <p>
+ * Evaluation proceeds in the following stages, each reporting throughput via Beam {@link Metrics} counters in the
+ * namespace of this class:
+ * <ol>
+ *     <li>Planning: the query of each required {@link ClinicalEntityType} is obtained from each provider, restricted
+ *     to the value paths referenced by the tree via {@link ResourceProvider#withProjection(Set)} and to rows that may
+ *     match via {@link ResourceProvider#getFilteredQuery(ClinicalEntityType, Collection)}. Where a provider supports
+ *     {@link ResourceProvider#getMultiTypeQuery(Set, Collection, Date, Date)}, all types are read in a single scan.
+ *     Queries are split via {@link ResourceProvider#getPartitionedQueries(ClinicalEntityType, ParameterizedQuery, Connection)}
+ *     and redistributed such that partitions are read in parallel</li>
+ *     <li>Matching: rows are streamed and evaluated against each entity criterion of their type, directly where
+ *     the provider declares the required columns and otherwise via their mapped resource. Rows are only mapped to
+ *     resources, and keyed by patient via {@link ResourceProvider#extractPatUIDForResource(ClinicalEntityType, DomainResource)},
+ *     if they match</li>
+ *     <li>Scoring: evidence is combined per patient, and scored via {@link Criterion#score(Map)}. The score of each
+ *     entity criterion is the fraction of providers in which the patient has matching evidence</li>
+ * </ol>
+ * Candidates may be ranked via {@link #topCandidates(int)}.
+ * <p>
+ * Subsequent jobs for the same criterion may extract only the data added since a previous job, as follows:
+ * <ol>
+ *     <li>Obtain the watermarks of the previous job via {@link ExtractionWatermark#fromLastCompletedJob(Collection)},
+ *     and the current watermarks via {@link #captureWatermarks()}, prior to extraction</li>
+ *     <li>Evaluate {@link #incremental(List, List)}, which restricts each query to rows at or beyond the previous
+ *     watermark via {@link ResourceProvider#getIncrementalQuery(ClinicalEntityType, Collection, Date, Date)}</li>
+ *     <li>Apply {@link #mergeWithPrevious(PCollection)} to the result, supplying the scores of the previous job, which
+ *     rescores each patient over the union of their previous and new evidence per entity criterion</li>
+ *     <li>Record the current watermarks via {@link org.ohnlp.cat.api.jobs.Job#setWatermarks(List)} once the job
+ *     reaches {@link org.ohnlp.cat.api.jobs.JobStatus#COMPLETE}</li>
+ * </ol>
+ * Rows removed from a data source since the previous job continue to contribute evidence until a full evaluation.
+ * <p>
+ * Patients without evidence for any entity criterion are not emitted. Trees must therefore contain at least one entity
+ * criterion that is not negated via {@link org.ohnlp.cat.api.criteria.LogicalRelationType#NOT}, as a cohort defined
+ * by exclusions alone would otherwise silently be empty; such trees are rejected on construction.
+ */
+public class CohortEvaluation extends PTransform<PBegin, PCollection<CandidateScore>> {
+    private final Criterion criterion;
+    private final List<ResourceProvider> providers;
+    private final CriterionLeaves leaves;
+    // The watermarks bounding extracted rows per data source and type, empty for a full evaluation
+    private final List<ExtractionWatermark> previousWatermarks;
+    private final List<ExtractionWatermark> currentWatermarks;
+
+    public CohortEvaluation(Criterion criterion, Collection<ResourceProvider> providers) {
+        this(criterion, new ArrayList<>(providers), new CriterionLeaves(criterion, providers.size()),
+                new ArrayList<>(), new ArrayList<>());
+    }
+
+    private CohortEvaluation(Criterion criterion, List<ResourceProvider> providers, CriterionLeaves leaves,
+                             List<ExtractionWatermark> previousWatermarks, List<ExtractionWatermark> currentWatermarks) {
+        this.criterion = criterion;
+        this.providers = providers;
+        this.leaves = leaves;
+        this.previousWatermarks = previousWatermarks;
+        this.currentWatermarks = currentWatermarks;
+    }
+
+    /**
+     * @return The current watermarks of the data sources and types evaluated, to be passed to
+     * {@link #incremental(List, List)} by this job and recorded for use by the next
+     */
+    public List<ExtractionWatermark> captureWatermarks() throws SQLException {
+        return ExtractionWatermark.capture(providers, leaves.getTypes());
+    }
+
+    /**
+     * @param previous The watermarks of the previous job, or an empty list to extract from the beginning
+     * @param current  The watermarks obtained via {@link #captureWatermarks()} prior to extraction
+     * @return An evaluation of only the rows at or beyond the previous watermarks, up to the current watermarks, to
+     * be merged with the scores of the previous job via {@link #mergeWithPrevious(PCollection)}
+     */
+    public CohortEvaluation incremental(List<ExtractionWatermark> previous, List<ExtractionWatermark> current) {
+        return new CohortEvaluation(criterion, providers, leaves, new ArrayList<>(previous), new ArrayList<>(current));
+    }
+
+    /**
+     * @param previousScores The scores emitted by the previous job, which must retain
+     *                       {@link CandidateScore#getCriterionEvidenceIDs()} (as do scores emitted by this transform)
+     * @return A transform merging scores of an {@link #incremental(List, List)} evaluation with previousScores via
+     * {@link CandidateScore#mergeIncremental(Criterion, CandidateScore, CandidateScore)}, emitting a score for each
+     * patient in either
+     */
+    public PTransform<PCollection<CandidateScore>, PCollection<CandidateScore>> mergeWithPrevious(
+            PCollection<CandidateScore> previousScores) {
+        return new MergeWithPrevious(criterion, previousScores);
+    }
+
+    /**
+     * @return A transform selecting the n highest scoring candidates, in descending order of score
+     */
+    public static PTransform<PCollection<CandidateScore>, PCollection<List<CandidateScore>>> topCandidates(int n) {
+        return Top.of(n, new ByScore());
+    }
+
+    @Override
+    public PCollection<CandidateScore> expand(PBegin input) {
+        PreparedCriterion prepared = criterion.prepare();
+        List<ResourceProvider> projected = new ArrayList<>();
+        for (ResourceProvider provider : providers) {
+            projected.add(provider.withProjection(prepared.getValuePaths()));
+        }
+        List<Integer> providerIndices = new ArrayList<>();
+        for (int i = 0; i < providers.size(); i++) {
+            providerIndices.add(i);
+        }
+        return input
+                .apply("CreateProviders", Create.of(providerIndices).withCoder(VarIntCoder.of()))
+                .apply("PlanQueries", ParDo.of(new PlanFn(projected, leaves, previousWatermarks, currentWatermarks)))
+                .setCoder(SerializableCoder.of(ReadTask.class))
+                .apply("DistributeQueries", new DistributeTasks())
+                .apply("ExtractAndMatch", ParDo.of(new MatchFn(projected, leaves)))
+                .setCoder(KvCoder.of(StringUtf8Coder.of(), KvCoder.of(VarIntCoder.of(), StringUtf8Coder.of())))
+                .apply("CombineEvidence", Combine.perKey(new EvidenceFn()))
+                .setCoder(KvCoder.of(StringUtf8Coder.of(), EvidenceFn.CODER))
+                .apply("ScorePatients", ParDo.of(new ScoreFn(leaves)))
+                .setCoder(CandidateScoreCoder.of());
+    }
+
+    /**
+     * Releases the connection pools of the deserialized providers of a DoFn instance
+     */
+    private static void closeAll(List<ResourceProvider> providers) {
+        for (ResourceProvider provider : providers) {
+            provider.close();
+        }
+    }
+
+    /**
+     * Redistributes read tasks across workers by grouping on a random key, breaking fusion with planning such that
+     * the partitions of a single provider are not all read by the worker that planned them
+     */
+    private static class DistributeTasks extends PTransform<PCollection<ReadTask>, PCollection<ReadTask>> {
+        @Override
+        public PCollection<ReadTask> expand(PCollection<ReadTask> input) {
+            return input
+                    .apply("AssignRandomKeys", WithKeys.of((ReadTask task) -> ThreadLocalRandom.current().nextInt())
+                            .withKeyType(TypeDescriptors.integers()))
+                    .setCoder(KvCoder.of(VarIntCoder.of(), input.getCoder()))
+                    .apply("GroupByRandomKey", GroupByKey.create())
+                    .apply("DropKeys", Values.create())
+                    .apply("FlattenTasks", Flatten.iterables())
+                    .setCoder(input.getCoder());
+        }
+    }
+
+    /**
+     * A partition of a provider query, of a single type or, if type is null, of a multi-type query
+     */
+    private static class ReadTask implements Serializable {
+        private final int providerIndex;
+        private final ClinicalEntityType type;
+        private final ParameterizedQuery query;
+
+        private ReadTask(int providerIndex, ClinicalEntityType type, ParameterizedQuery query) {
+            this.providerIndex = providerIndex;
+            this.type = type;
+            this.query = query;
+        }
+    }
+
+    private static class PlanFn extends DoFn<Integer, ReadTask> {
+        private final Counter queriesPlanned = Metrics.counter(CohortEvaluation.class, "queries_planned");
+        private final List<ResourceProvider> providers;
+        private final CriterionLeaves leaves;
+        private final List<ExtractionWatermark> previousWatermarks;
+        private final List<ExtractionWatermark> currentWatermarks;
+
+        private PlanFn(List<ResourceProvider> providers, CriterionLeaves leaves,
+                       List<ExtractionWatermark> previousWatermarks, List<ExtractionWatermark> currentWatermarks) {
+            this.providers = providers;
+            this.leaves = leaves;
+            this.previousWatermarks = previousWatermarks;
+            this.currentWatermarks = currentWatermarks;
+        }
+
+        @ProcessElement
+        public void processElement(@Element Integer providerIndex, OutputReceiver<ReadTask> out) throws SQLException {
+            ResourceProvider provider = providers.get(providerIndex);
+            String sourceName = provider.getSourceName();
+            Set<ClinicalEntityType> types = leaves.getTypes();
+            ClinicalEntityType first = types.iterator().next();
+            Date previous = ExtractionWatermark.find(previousWatermarks, sourceName, first);
+            Date current = ExtractionWatermark.find(currentWatermarks, sourceName, first);
+            // A single scan may only be used where all types are extracted between the same watermarks
+            boolean sharedWatermarks = true;
+            for (ClinicalEntityType type : types) {
+                sharedWatermarks &= Objects.equals(previous, ExtractionWatermark.find(previousWatermarks, sourceName, type))
+                        && Objects.equals(current, ExtractionWatermark.find(currentWatermarks, sourceName, type));
+            }
+            try (Connection conn = provider.getConnection()) {
+                ParameterizedQuery multiTypeQuery = types.size() > 1 && sharedWatermarks ?
+                        provider.getMultiTypeQuery(types, leaves.getLeaves(), previous, current) : null;
+                if (multiTypeQuery != null) {
+                    for (ParameterizedQuery partition : provider.getPartitionedQueries(first, multiTypeQuery, conn)) {
+                        out.output(new ReadTask(providerIndex, null, partition));
+                        queriesPlanned.inc();
+                    }
+                    return;
+                }
+                for (ClinicalEntityType type : types) {
+                    ParameterizedQuery query = provider.getIncrementalQuery(type, leaves.getLeaves(),
+                            ExtractionWatermark.find(previousWatermarks, sourceName, type),
+                            ExtractionWatermark.find(currentWatermarks, sourceName, type));
+                    for (ParameterizedQuery partition : provider.getPartitionedQueries(type, query, conn)) {
+                        out.output(new ReadTask(providerIndex, type, partition));
+                        queriesPlanned.inc();
+                    }
+                }
+            }
+        }
+
+        @Teardown
+        public void teardown() {
+            closeAll(providers);
+        }
+    }
+
+    /**
+     * Emits (patient UID, (slot, evidence ID)) for each row matching an entity criterion, where slot identifies the
+     * criterion and provider as leafIndex * providerCount + providerIndex
+     */
+    private static class MatchFn extends DoFn<ReadTask, KV<String, KV<Integer, String>>> {
+        private final Counter rowsRead = Metrics.counter(CohortEvaluation.class, "rows_read");
+        private final Counter rowsMatched = Metrics.counter(CohortEvaluation.class, "rows_matched");
+        private final Counter criteriaMatched = Metrics.counter(CohortEvaluation.class, "criteria_matched");
+        private final List<ResourceProvider> providers;
+        private final CriterionLeaves leaves;
+        // Bound evaluation state, keyed by provider index and type
+        private transient Map<Integer, Map<ClinicalEntityType, CriterionLeaves.Binding>> bindings;
+
+        private MatchFn(List<ResourceProvider> providers, CriterionLeaves leaves) {
+            this.providers = providers;
+            this.leaves = leaves;
+        }
+
+        @Setup
+        public void setup() {
+            bindings = new HashMap<>();
+        }
+
+        @ProcessElement
+        public void processElement(@Element ReadTask task, OutputReceiver<KV<String, KV<Integer, String>>> out) throws SQLException {
+            ResourceProvider provider = providers.get(task.providerIndex);
+            Map<ClinicalEntityType, CriterionLeaves.Binding> providerBindings = bindings.computeIfAbsent(task.providerIndex, k -> new EnumMap<>(ClinicalEntityType.class));
+            try (Connection conn = provider.getConnection();
+                 StreamingRowReader reader = leaves.open(provider, task.type, task.query, conn,
+                         provider.getStreamingOptions())) {
+                while (reader.hasNext()) {
+                    Row row = reader.next();
+                    rowsRead.inc();
+                    ClinicalEntityType type = task.type != null ? task.type : provider.getMultiTypeRowType(row);
+                    if (type == null || !leaves.getTypes().contains(type)) {
+                        continue;
+                    }
+                    CriterionLeaves.Binding binding = providerBindings.computeIfAbsent(type, t -> leaves.bind(provider, t, task.type == null));
+                    int matched = leaves.match(provider, task.providerIndex, binding, row,
+                            (patientUID, slot, evidenceID) -> out.output(KV.of(patientUID, KV.of(slot, evidenceID))));
+                    if (matched > 0) {
+                        rowsMatched.inc();
+                        criteriaMatched.inc(matched);
+                    }
+                }
+            }
+        }
+
+        @Teardown
+        public void teardown() {
+            closeAll(providers);
+        }
+    }
+
+    /**
+     * Accumulates the evidence IDs of a patient by slot
+     */
+    private static class EvidenceFn extends Combine.CombineFn<KV<Integer, String>, Map<Integer, Set<String>>, Map<Integer, Set<String>>> {
+        private static final MapCoder<Integer, Set<String>> CODER = MapCoder.of(VarIntCoder.of(), SetCoder.of(StringUtf8Coder.of()));
+
+        @Override
+        public Map<Integer, Set<String>> createAccumulator() {
+            return new HashMap<>();
+        }
+
+        @Override
+        public Map<Integer, Set<String>> addInput(Map<Integer, Set<String>> accumulator, KV<Integer, String> input) {
+            accumulator.computeIfAbsent(input.getKey(), k -> new HashSet<>()).add(input.getValue());
+            return accumulator;
+        }
+
+        @Override
+        public Map<Integer, Set<String>> mergeAccumulators(Iterable<Map<Integer, Set<String>>> accumulators) {
+            Iterator<Map<Integer, Set<String>>> it = accumulators.iterator();
+            Map<Integer, Set<String>> ret = it.next();
+            while (it.hasNext()) {
+                it.next().forEach((slot, evidence) -> ret.computeIfAbsent(slot, k -> new HashSet<>()).addAll(evidence));
+            }
+            return ret;
+        }
+
+        @Override
+        public Map<Integer, Set<String>> extractOutput(Map<Integer, Set<String>> accumulator) {
+            return accumulator;
+        }
+
+        @Override
+        public Coder<Map<Integer, Set<String>>> getAccumulatorCoder(CoderRegistry registry, Coder<KV<Integer, String>> inputCoder) {
+            return CODER;
+        }
+
+        @Override
+        public Coder<Map<Integer, Set<String>>> getDefaultOutputCoder(CoderRegistry registry, Coder<KV<Integer, String>> inputCoder) {
+            return CODER;
+        }
+    }
+
+    private static class ScoreFn extends DoFn<KV<String, Map<Integer, Set<String>>>, CandidateScore> {
+        private final Counter patientsScored = Metrics.counter(CohortEvaluation.class, "patients_scored");
+        private final CriterionLeaves leaves;
+
+        private ScoreFn(CriterionLeaves leaves) {
+            this.leaves = leaves;
+        }
+
+        @ProcessElement
+        public void processElement(@Element KV<String, Map<Integer, Set<String>>> evidence, OutputReceiver<CandidateScore> out) {
+            out.output(leaves.score(evidence.getKey(), evidence.getValue()));
+            patientsScored.inc();
+        }
+    }
+
+    private static class MergeWithPrevious extends PTransform<PCollection<CandidateScore>, PCollection<CandidateScore>> {
+        private final Criterion criterion;
+        private final PCollection<CandidateScore> previousScores;
+
+        private MergeWithPrevious(Criterion criterion, PCollection<CandidateScore> previousScores) {
+            this.criterion = criterion;
+            this.previousScores = previousScores;
+        }
+
+        @Override
+        public PCollection<CandidateScore> expand(PCollection<CandidateScore> input) {
+            TupleTag<CandidateScore> previousTag = new TupleTag<>();
+            TupleTag<CandidateScore> currentTag = new TupleTag<>();
+            return KeyedPCollectionTuple
+                    .of(previousTag, byPatient("KeyPreviousScores", previousScores))
+                    .and(currentTag, byPatient("KeyCurrentScores", input))
+                    .apply("JoinScores", CoGroupByKey.create())
+                    .apply("MergeScores", ParDo.of(new MergeFn(criterion, previousTag, currentTag)))
+                    .setCoder(CandidateScoreCoder.of());
+        }
+
+        private static PCollection<KV<String, CandidateScore>> byPatient(String name, PCollection<CandidateScore> scores) {
+            return scores
+                    .apply(name, WithKeys.of(CandidateScore::getPatientUID).withKeyType(TypeDescriptors.strings()))
+                    .setCoder(KvCoder.of(StringUtf8Coder.of(), CandidateScoreCoder.of()));
+        }
+    }
+
+    private static class MergeFn extends DoFn<KV<String, CoGbkResult>, CandidateScore> {
+        private final Counter patientsMerged = Metrics.counter(CohortEvaluation.class, "patients_merged");
+        private final Criterion criterion;
+        private final TupleTag<CandidateScore> previousTag;
+        private final TupleTag<CandidateScore> currentTag;
+
+        private MergeFn(Criterion criterion, TupleTag<CandidateScore> previousTag, TupleTag<CandidateScore> currentTag) {
+            this.criterion = criterion;
+            this.previousTag = previousTag;
+            this.currentTag = currentTag;
+        }
+
+        @ProcessElement
+        public void processElement(@Element KV<String, CoGbkResult> scores, OutputReceiver<CandidateScore> out) {
+            CandidateScore previous = null;
+            for (CandidateScore score : scores.getValue().getAll(previousTag)) {
+                previous = CandidateScore.mergeIncremental(criterion, previous, score);
+            }
+            CandidateScore current = null;
+            for (CandidateScore score : scores.getValue().getAll(currentTag)) {
+                current = CandidateScore.mergeIncremental(criterion, current, score);
+            }
+            if (previous != null && current != null) {
+                patientsMerged.inc();
+            }
+            out.output(CandidateScore.mergeIncremental(criterion, previous, current));
+        }
+    }
+
+    private static class ByScore implements Comparator<CandidateScore>, Serializable {
+        @Override
+        public int compare(CandidateScore o1, CandidateScore o2) {
+            double s1 = o1.getScore() == null ? Double.NEGATIVE_INFINITY : o1.getScore();
+            double s2 = o2.getScore() == null ? Double.NEGATIVE_INFINITY : o2.getScore();
+            int ret = Double.compare(s1, s2);
+            if (ret == 0 && o1.getPatientUID() != null && o2.getPatientUID() != null) {
+                // Ties are broken by patient UID, such that rankings are stable across runs
+                ret = o2.getPatientUID().compareTo(o1.getPatientUID());
+            }
+            return ret;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package org.ohnlp.cat.common.impl.cohorts;
+
+import org.apache.beam.sdk.schemas.Schema;
+import org.apache.beam.sdk.transforms.SerializableFunction;
+import org.apache.beam.sdk.values.Row;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.ohnlp.cat.api.cohorts.CandidateScore;
+import org.ohnlp.cat.api.criteria.ClinicalEntityType;
+import org.ohnlp.cat.api.criteria.Criterion;
+import org.ohnlp.cat.api.criteria.EntityCriterion;
+import org.ohnlp.cat.api.criteria.LogicalCriterion;
+import org.ohnlp.cat.api.criteria.LogicalRelationType;
+import org.ohnlp.cat.api.criteria.prepared.PreparedCriterion;
+import org.ohnlp.cat.api.criteria.prepared.RowMatcher;
+import org.ohnlp.cat.api.ehr.ParameterizedQuery;
+import org.ohnlp.cat.api.ehr.ResourceProvider;
+import org.ohnlp.cat.api.ehr.StreamingOptions;
+import org.ohnlp.cat.common.impl.sql.StreamingRowReader;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * The entity criteria of a {@link Criterion} tree, with the row matching and scoring logic shared by the cohort
+ * evaluation modes of this package.
+ * <p>
+ * Evidence is recorded by slot, identifying the entity criterion and provider as leafIndex * providerCount + providerIndex.
+ * <p>
+ * As only patients with evidence for at least one entity criterion are scored, trees must contain at least one
+ * positive entity criterion (i.e. one beneath an even number of {@link LogicalRelationType#NOT} nodes). Patients
+ * satisfying a tree of exclusions alone have no evidence, and would therefore never be emitted.
+ */
+class CriterionLeaves implements Serializable {
+    private final Criterion criterion;
+    private final List<EntityCriterion> leaves;
+    private final Set<ClinicalEntityType> types;
+    private final int providerCount;
+    private transient List<PreparedCriterion> preparedLeaves;
+
+    CriterionLeaves(Criterion criterion, int providerCount) {
+        if (providerCount == 0) {
+            throw new IllegalArgumentException("At least one resource provider is required");
+        }
+        this.criterion = criterion;
+        this.leaves = new ArrayList<>();
+        if (!collectLeaves(criterion, false, leaves)) {
+            throw new IllegalArgumentException("Criterion trees must contain at least one entity criterion that is not "
+                    + "negated, as only patients with evidence for an entity criterion can be scored");
+        }
+        this.types = EnumSet.noneOf(ClinicalEntityType.class);
+        for (EntityCriterion leaf : leaves) {
+            if (leaf.getNodeUID() == null) {
+                throw new IllegalArgumentException("All entity criteria must have a node UID to be scored");
+            }
+            types.add(leaf.getType());
+        }
+        this.providerCount = providerCount;
+    }
+
+    /**
+     * Adds the entity criteria of a tree to leaves, in depth-first order
+     *
+     * @param negated Whether criterion lies beneath an odd number of NOT nodes
+     * @return Whether any entity criterion of the tree is positive
+     */
+    private static boolean collectLeaves(Criterion criterion, boolean negated, List<EntityCriterion> leaves) {
+        if (criterion instanceof EntityCriterion) {
+            leaves.add((EntityCriterion) criterion);
+            return !negated;
+        }
+        boolean positive = false;
+        if (criterion instanceof LogicalCriterion && ((LogicalCriterion) criterion).getChildren() != null) {
+            LogicalCriterion logical = (LogicalCriterion) criterion;
+            boolean negateChildren = negated ^ logical.getType() == LogicalRelationType.NOT;
+            for (Criterion child : logical.getChildren()) {
+                positive |= collectLeaves(child, negateChildren, leaves);
+            }
+        }
+        return positive;
+    }
+
+    List<EntityCriterion> getLeaves() {
+        return leaves;
+    }
+
+    /**
+     * @return The types of all entity criteria, in declaration order of {@link ClinicalEntityType}
+     */
+    Set<ClinicalEntityType> getTypes() {
+        return types;
+    }
+
+    /**
+     * Binds the entity criteria of the given type to rows of a provider
+     *
+     * @param multiType Whether rows are read via {@link ResourceProvider#getMultiTypeQuery(Set, Collection, Date, Date)}
+     */
+    Binding bind(ResourceProvider provider, ClinicalEntityType type, boolean multiType) {
+        // Rows of multi-type queries may only be matched directly if positioned as in the single-type schema
+        boolean bindable = !multiType || isPrefix(provider.getQuerySchema(type), provider.getMultiTypeQuerySchema(types));
+        List<Integer> leafIndices = new ArrayList<>();
+        List<RowMatcher> matchers = new ArrayList<>();
+        for (int i = 0; i < leaves.size(); i++) {
+            if (leaves.get(i).getType().equals(type)) {
+                leafIndices.add(i);
+                matchers.add(bindable ? getPreparedLeaves().get(i).bindRows(type, provider) : null);
+            }
+        }
+        return new Binding(type, leafIndices.stream().mapToInt(Integer::intValue).toArray(),
+                matchers.toArray(new RowMatcher[0]), provider.getRowToResourceMapper(type));
+    }
+
+    /**
+     * Evaluates a row against each bound entity criterion, passing the evidence of each match to out. Rows are only
+     * mapped to resources, and their patient extracted, if they match.
+     *
+     * @return The number of entity criteria matched
+     */
+    int match(ResourceProvider provider, int providerIndex, Binding binding, Row row, EvidenceConsumer out) {
+        DomainResource resource = null;
+        String patientUID = null;
+        int matched = 0;
+        for (int i = 0; i < binding.leafIndices.length; i++) {
+            RowMatcher matcher = binding.matchers[i];
+            if (matcher != null && !matcher.matches(row)) {
+                continue;
+            }
+            if (resource == null) {
+                resource = binding.mapper.apply(row);
+            }
+            if (matcher == null && !getPreparedLeaves().get(binding.leafIndices[i]).matches(resource, provider)) {
+                continue;
+            }
+            if (patientUID == null) {
+                patientUID = provider.extractPatUIDForResource(binding.type, resource);
+                if (patientUID == null) {
+                    return 0;
+                }
+            }
+            out.accept(patientUID, binding.leafIndices[i] * providerCount + providerIndex, resource.getId());
+            matched++;
+        }
+        return matched;
+    }
+
+    /**
+     * Scores a patient from their evidence, by slot, via
+     * {@link CandidateScore#fromCriterionEvidence(Criterion, String, Map, int)}
+     */
+    CandidateScore score(String patientUID, Map<Integer, Set<String>> evidence) {
+        Map<UUID, Set<String>> criterionEvidenceIDs = new HashMap<>();
+        evidence.forEach((slot, evidenceIDs) -> criterionEvidenceIDs
+                .computeIfAbsent(leaves.get(slot / providerCount).getNodeUID(), k -> new HashSet<>())
+                .addAll(evidenceIDs));
+        return CandidateScore.fromCriterionEvidence(criterion, patientUID, criterionEvidenceIDs, providerCount);
+    }
+
+    /**
+     * Opens a reader over a query of a single type or, if type is null, over a multi-type query of {@link #getTypes()}
+     *
+     * @param options The streaming options to read with, or null to read using driver defaults
+     */
+    StreamingRowReader open(ResourceProvider provider, ClinicalEntityType type, ParameterizedQuery query,
+                            Connection conn, StreamingOptions options) throws SQLException {
+        if (type != null) {
+            return StreamingRowReader.open(conn, query, provider.getQuerySchema(type), options, type);
+        }
+        return StreamingRowReader.open(conn, query, provider.getMultiTypeQuerySchema(types), options,
+                types.iterator().next());
+    }
+
+    private List<PreparedCriterion> getPreparedLeaves() {
+        if (preparedLeaves == null) {
+            preparedLeaves = new ArrayList<>();
+            for (EntityCriterion leaf : leaves) {
+                preparedLeaves.add(leaf.prepare());
+            }
+        }
+        return preparedLeaves;
+    }
+
+    private static boolean isPrefix(Schema prefix, Schema schema) {
+        if (prefix.getFieldCount() > schema.getFieldCount()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.getFieldCount(); i++) {
+            if (!prefix.getField(i).equals(schema.getField(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Receives the evidence of a row matching an entity criterion
+     */
+    interface EvidenceConsumer {
+        void accept(String patientUID, int slot, String evidenceID);
+    }
+
+    /**
+     * The entity criteria of a single type, bound to rows of a provider
+     */
+    static class Binding {
+        private final ClinicalEntityType type;
+        private final int[] leafIndices;
+        // null where rows must be evaluated via their mapped resource
+        private final RowMatcher[] matchers;
+        private final SerializableFunction<Row, DomainResource> mapper;
+
+        private Binding(ClinicalEntityType type, int[] leafIndices, RowMatcher[] matchers,
+                        SerializableFunction<Row, DomainResource> mapper) {
+            this.type = type;
+            this.leafIndices = leafIndices;
+            this.matchers = matchers;
+            this.mapper = mapper;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package org.ohnlp.cat.common.impl.cohorts;
+
+import org.apache.beam.sdk.values.Row;
+import org.ohnlp.cat.api.cohorts.CandidateScore;
+import org.ohnlp.cat.api.criteria.ClinicalEntityType;
+import org.ohnlp.cat.api.criteria.Criterion;
+import org.ohnlp.cat.api.criteria.prepared.PreparedCriterion;
+import org.ohnlp.cat.api.ehr.ParameterizedQuery;
+import org.ohnlp.cat.api.ehr.ResourceProvider;
+import org.ohnlp.cat.api.ehr.StreamingOptions;
+import org.ohnlp.cat.common.impl.sql.StreamingRowReader;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Evaluates a {@link Criterion} tree against a set of {@link ResourceProvider}s within a single process, without
+ * grouping resources by patient via a shuffle, for single-node deployments in which that shuffle dominates.
+ * <p>
+ * Each provider query is ordered by the column declared via {@link ResourceProvider#getPatientIDColumnName(ClinicalEntityType)},
+ * which is typically clustered (e.g. person_id in the OMOP CDM), and the resulting streams (one per provider if
+ * {@link ResourceProvider#getMultiTypeQuery(Set, Collection, Date, Date)} is supported, and one per provider and type
+ * otherwise) are merged on patient in a single pass. Each patient is scored as for {@link CohortEvaluation} as soon as
+ * all streams have advanced past their rows, such that only the evidence of the current patient is held in memory.
+ * <p>
+ * All streams are read concurrently, each on its own connection and via a forward-only cursor, using the provider's
+ * {@link StreamingOptions} or {@link StreamingOptions#defaults()} if it specifies none. Memory is thus bounded by the
+ * fetch size and prefetch buffer of each stream rather than by the size of each ordered result. As each connection is
+ * held until the evaluation completes, the streams drawing from a connection pool (see
+ * {@link ResourceProvider#getConnectionPoolKey()}) must not outnumber its connections: this is checked before any
+ * stream is opened. Patient IDs are compared numerically where numeric and as strings otherwise; the
+ * database ordering of string IDs must therefore match {@link String#compareTo(String)}.
+ */
+public class SortedMergeCohortEvaluator {
+    private final Criterion criterion;
+    private final List<ResourceProvider> providers;
+    private final CriterionLeaves leaves;
+
+    public SortedMergeCohortEvaluator(Criterion criterion, Collection<ResourceProvider> providers) {
+        this.leaves = new CriterionLeaves(criterion, providers.size());
+        this.criterion = criterion;
+        this.providers = new ArrayList<>(providers);
+        for (ResourceProvider provider : this.providers) {
+            for (ClinicalEntityType type : leaves.getTypes()) {
+                if (provider.getPatientIDColumnName(type) == null) {
+                    throw new UnsupportedOperationException("Provider " + provider.getSourceName()
+                            + " can not order " + type + " rows by patient");
+                }
+            }
+        }
+    }
+
+    /**
+     * Evaluates the criterion, passing a {@link CandidateScore} to out for each patient with evidence for at least
+     * one entity criterion, in ascending order of patient ID
+     *
+     * @return The number of patients scored
+     * @throws IllegalStateException if the streams of a connection pool outnumber its connections, or if a provider
+     *                               does not return rows in patient order
+     */
+    public long evaluate(Consumer<CandidateScore> out) throws SQLException {
+        PreparedCriterion prepared = criterion.prepare();
+        List<ResourceProvider> projected = new ArrayList<>();
+        List<PatientStream> streams = new ArrayList<>();
+        try {
+            for (int i = 0; i < providers.size(); i++) {
+                projected.add(providers.get(i).withProjection(prepared.getValuePaths()));
+                open(i, projected.get(i), streams);
+            }
+            checkPoolCapacity(streams);
+            PriorityQueue<PatientStream> heads = new PriorityQueue<>(Math.max(1, streams.size()),
+                    (s1, s2) -> comparePatientIDs(s1.patientID, s2.patientID));
+            for (PatientStream stream : streams) {
+                if (stream.advance()) {
+                    heads.add(stream);
+                }
+            }
+            long patientsScored = 0;
+            // Evidence of the current patient, by patient UID and slot. Keyed by UID as extracted from matched
+            // resources, which is expected to be unique per patient ID
+            Map<String, Map<Integer, Set<String>>> evidence = new HashMap<>();
+            CriterionLeaves.EvidenceConsumer collector = (patientUID, slot, evidenceID) -> evidence
+                    .computeIfAbsent(patientUID, k -> new HashMap<>())
+                    .computeIfAbsent(slot, k -> new HashSet<>())
+                    .add(evidenceID);
+            while (!heads.isEmpty()) {
+                Object patientID = heads.peek().patientID;
+                while (!heads.isEmpty() && comparePatientIDs(heads.peek().patientID, patientID) == 0) {
+                    PatientStream stream = heads.poll();
+                    boolean hasNext;
+                    do {
+                        stream.match(collector);
+                        hasNext = stream.advance();
+                    } while (hasNext && comparePatientIDs(stream.patientID, patientID) == 0);
+                    if (hasNext) {
+                        if (comparePatientIDs(stream.patientID, patientID) < 0) {
+                            throw new IllegalStateException("Rows of provider " + stream.provider.getSourceName()
+                                    + " are not ordered by patient: " + stream.patientID + " follows " + patientID);
+                        }
+                        heads.add(stream);
+                    }
+                }
+                for (Map.Entry<String, Map<Integer, Set<String>>> e : evidence.entrySet()) {
+                    out.accept(leaves.score(e.getKey(), e.getValue()));
+                    patientsScored++;
+                }
+                evidence.clear();
+            }
+            return patientsScored;
+        } finally {
+            try {
+                for (PatientStream stream : streams) {
+                    stream.close();
+                }
+            } finally {
+                // Projected providers hold their own connection pool references
+                for (int i = 0; i < projected.size(); i++) {
+                    if (projected.get(i) != providers.get(i)) {
+                        projected.get(i).close();
+                    }
+                }
+            }
+        }
+    }
+
+    private void open(int providerIndex, ResourceProvider provider, List<PatientStream> streams) throws SQLException {
+        Set<ClinicalEntityType> types = leaves.getTypes();
+        ParameterizedQuery multiTypeQuery = types.size() > 1 ?
+                provider.getMultiTypeQuery(types, leaves.getLeaves(), null, null) : null;
+        if (multiTypeQuery != null) {
+            String column = provider.getPatientIDColumnName(types.iterator().next());
+            streams.add(new PatientStream(providerIndex, provider, null,
+                    orderByPatient(multiTypeQuery, column), column));
+            return;
+        }
+        for (ClinicalEntityType type : types) {
+            String column = provider.getPatientIDColumnName(type);
+            streams.add(new PatientStream(providerIndex, provider, type,
+                    orderByPatient(provider.getFilteredQuery(type, leaves.getLeaves()), column), column));
+        }
+    }
+
+    /**
+     * Fails fast if the streams drawing from any connection pool outnumber its connections, as all streams hold their
+     * connection until the evaluation completes and would otherwise wait on connections that are never returned
+     */
+    private static void checkPoolCapacity(List<PatientStream> streams) {
+        Map<String, List<PatientStream>> byPool = new LinkedHashMap<>();
+        for (PatientStream stream : streams) {
+            String poolKey = stream.provider.getConnectionPoolKey();
+            if (poolKey != null) {
+                byPool.computeIfAbsent(poolKey, k -> new ArrayList<>()).add(stream);
+            }
+        }
+        for (List<PatientStream> poolStreams : byPool.values()) {
+            int capacity = Integer.MAX_VALUE;
+            Set<String> sourceNames = new LinkedHashSet<>();
+            for (PatientStream stream : poolStreams) {
+                capacity = Math.min(capacity, stream.provider.getConnectionPoolSize());
+                sourceNames.add(stream.provider.getSourceName());
+            }
+            if (poolStreams.size() > capacity) {
+                throw new IllegalStateException("Sorted-merge evaluation reads " + poolStreams.size() + " streams "
+                        + "concurrently from the connection pool of provider(s) " + String.join(", ", sourceNames)
+                        + ", which holds at most " + capacity + " connections: increase pool_size to at least "
+                        + poolStreams.size());
+            }
+        }
+    }
+
+    private static ParameterizedQuery orderByPatient(ParameterizedQuery query, String column) {
+        return new ParameterizedQuery("SELECT * FROM (" + query.getSql() + ") patient_ordered ORDER BY " + column,
+                query.getParameters(), query.getValueTables());
+    }
+
+    private static int comparePatientIDs(Object id1, Object id2) {
+        if (id1 instanceof Number && id2 instanceof Number) {
+            return Long.compare(((Number) id1).longValue(), ((Number) id2).longValue());
+        }
+        return id1.toString().compareTo(id2.toString());
+    }
+
+    /**
+     * The rows of a provider query, of a single type or, if type is null, of a multi-type query, positioned at a row
+     * with a non-null patient ID
+     */
+    private class PatientStream implements AutoCloseable {
+        private final int providerIndex;
+        private final ResourceProvider provider;
+        private final ClinicalEntityType type;
+        private final ParameterizedQuery query;
+        private final String patientIDColumn;
+        private final Map<ClinicalEntityType, CriterionLeaves.Binding> bindings = new EnumMap<>(ClinicalEntityType.class);
+        private Connection conn;
+        private StreamingRowReader reader;
+        private Row row;
+        private Object patientID;
+
+        private PatientStream(int providerIndex, ResourceProvider provider, ClinicalEntityType type,
+                              ParameterizedQuery query, String patientIDColumn) {
+            this.providerIndex = providerIndex;
+            this.provider = provider;
+            this.type = type;
+            this.query = query;
+            this.patientIDColumn = patientIDColumn;
+        }
+
+        /**
+         * Moves to the next row with a patient ID, opening the stream if required
+         *
+         * @return false if the stream is exhausted
+         */
+        private boolean advance() throws SQLException {
+            if (reader == null) {
+                conn = provider.getConnection();
+                StreamingOptions options = provider.getStreamingOptions();
+                // Ordered results are otherwise materialized in full by some drivers (e.g. PostgreSQL)
+                reader = leaves.open(provider, type, query, conn, options != null ? options : StreamingOptions.defaults());
+            }
+            while (reader.hasNext()) {
+                row = reader.next();
+                patientID = row.getValue(patientIDColumn);
+                if (patientID != null) {
+                    return true;
+                }
+            }
+            row = null;
+            patientID = null;
+            return false;
+        }
+
+        private void match(CriterionLeaves.EvidenceConsumer out) {
+            ClinicalEntityType rowType = type != null ? type : provider.getMultiTypeRowType(row);
+            if (rowType == null || !leaves.getTypes().contains(rowType)) {
+                return;
+            }
+            CriterionLeaves.Binding binding = bindings.computeIfAbsent(rowType, t -> leaves.bind(provider, t, type == null));
+            leaves.match(provider, providerIndex, binding, row, out);
+        }
+
+        @Override
+        public void close() throws SQLException {
+            try {
+                if (reader != null) {
+                    reader.close();
+                }
+            } finally {
+                if (conn != null) {
+                    conn.close();
+                }
+            }
+        }
+    }
+}
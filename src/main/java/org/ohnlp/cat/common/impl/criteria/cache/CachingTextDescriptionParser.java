@@ -0,0 +1,70 @@
+package org.ohnlp.cat.common.impl.criteria.cache;
+
+import org.ohnlp.cat.api.criteria.parser.TextDescriptionParser;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Caches the CUIs returned by a delegate {@link TextDescriptionParser}, keyed by (parser ID, normalized text), where
+ * text is normalized by lower-casing, trimming and collapsing whitespace.
+ */
+public class CachingTextDescriptionParser implements TextDescriptionParser, AutoCloseable {
+    private final TextDescriptionParser delegate;
+    private final String parserID;
+    private final LRUCache<Set<String>> cache;
+
+    /**
+     * @param delegate        The parser to cache
+     * @param parserID        Identifies the delegate and its configuration within keys, such that a persisted cache
+     *                        may be shared by several parsers
+     * @param maxEntries      The maximum number of descriptions retained
+     * @param persistencePath The file in which entries are persisted across restarts, or null if not persisted
+     */
+    public CachingTextDescriptionParser(TextDescriptionParser delegate, String parserID, int maxEntries, Path persistencePath) {
+        this.delegate = delegate;
+        this.parserID = parserID;
+        this.cache = new LRUCache<>(maxEntries, persistencePath, LRUCache.setOf(String.class));
+    }
+
+    @Override
+    public Set<String> parseToUMLS(String input) {
+        if (input == null) {
+            return delegate.parseToUMLS(null);
+        }
+        String key = parserID + "|" + normalize(input);
+        Set<String> cached = cache.get(key);
+        if (cached == null) {
+            Set<String> parsed = delegate.parseToUMLS(input);
+            if (parsed == null) {
+                return null;
+            }
+            cached = new HashSet<>(parsed);
+            cache.put(key, cached);
+        }
+        return new HashSet<>(cached);
+    }
+
+    public CacheStats getStats() {
+        return cache.getStats();
+    }
+
+    /**
+     * Persists cached entries, if a persistence path was supplied
+     */
+    public void save() throws IOException {
+        cache.save();
+    }
+
+    @Override
+    public void close() throws IOException {
+        save();
+    }
+
+    static String normalize(String input) {
+        return input.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    }
+}
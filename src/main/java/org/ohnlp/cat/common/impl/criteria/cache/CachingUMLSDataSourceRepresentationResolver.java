@@ -0,0 +1,100 @@
+package org.ohnlp.cat.common.impl.criteria.cache;
+
+import org.ohnlp.cat.api.criteria.ClinicalEntityType;
+import org.ohnlp.cat.api.criteria.parser.DataSourceRepresentation;
+import org.ohnlp.cat.api.criteria.parser.UMLSDataSourceRepresentationResolver;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Caches the representations returned by a delegate {@link UMLSDataSourceRepresentationResolver}, keyed by
+ * (resolver ID, entity type, CUI). As representations do not depend on the requesting data sources, these are
+ * not part of the key and are instead applied to cached representations on retrieval.
+ */
+public class CachingUMLSDataSourceRepresentationResolver implements UMLSDataSourceRepresentationResolver, AutoCloseable {
+    private final UMLSDataSourceRepresentationResolver delegate;
+    private final String resolverID;
+    private final LRUCache<Set<DataSourceRepresentation>> cache;
+
+    /**
+     * @param delegate        The resolver to cache
+     * @param resolverID      Identifies the delegate and its configuration within keys, such that a persisted cache
+     *                        may be shared by several resolvers
+     * @param maxEntries      The maximum number of (type, CUI) entries retained
+     * @param persistencePath The file in which entries are persisted across restarts, or null if not persisted
+     */
+    public CachingUMLSDataSourceRepresentationResolver(UMLSDataSourceRepresentationResolver delegate, String resolverID,
+                                                       int maxEntries, Path persistencePath) {
+        this.delegate = delegate;
+        this.resolverID = resolverID;
+        this.cache = new LRUCache<>(maxEntries, persistencePath, LRUCache.setOf(DataSourceRepresentation.class));
+    }
+
+    @Override
+    public void init(Map<String, Object> config) {
+        delegate.init(config);
+    }
+
+    @Override
+    public Set<DataSourceRepresentation> resolveForUMLS(ClinicalEntityType type, Collection<String> requestingDataSourceIDs, String umlsCUI) {
+        return resolveForUMLS(type, requestingDataSourceIDs, Collections.singleton(umlsCUI)).get(umlsCUI);
+    }
+
+    @Override
+    public Map<String, Set<DataSourceRepresentation>> resolveForUMLS(ClinicalEntityType type, Collection<String> requestingDataSourceIDs, Collection<String> umlsCUIs) {
+        Map<String, Set<DataSourceRepresentation>> ret = new HashMap<>();
+        Set<String> misses = new LinkedHashSet<>();
+        for (String cui : umlsCUIs) {
+            Set<DataSourceRepresentation> cached = cache.get(getKey(type, cui));
+            if (cached != null) {
+                ret.put(cui, withDataSources(cached, requestingDataSourceIDs));
+            } else {
+                misses.add(cui);
+            }
+        }
+        if (!misses.isEmpty()) {
+            delegate.resolveForUMLS(type, requestingDataSourceIDs, misses).forEach((cui, representations) -> {
+                cache.put(getKey(type, cui), withDataSources(representations, null));
+                ret.put(cui, representations);
+            });
+        }
+        return ret;
+    }
+
+    public CacheStats getStats() {
+        return cache.getStats();
+    }
+
+    /**
+     * Persists cached entries, if a persistence path was supplied
+     */
+    public void save() throws IOException {
+        cache.save();
+    }
+
+    @Override
+    public void close() throws IOException {
+        save();
+    }
+
+    private String getKey(ClinicalEntityType type, String cui) {
+        return resolverID + "|" + type.name() + "|" + cui;
+    }
+
+    private static Set<DataSourceRepresentation> withDataSources(Set<DataSourceRepresentation> representations,
+                                                                 Collection<String> dataSourceIDs) {
+        Set<DataSourceRepresentation> ret = new HashSet<>();
+        for (DataSourceRepresentation representation : representations) {
+            DataSourceRepresentation copy = new DataSourceRepresentation();
+            copy.setDataSourceID(dataSourceIDs);
+            copy.setSourceUMLSCUI(representation.getSourceUMLSCUI());
+            copy.setRepresentation(representation.getRepresentation());
+            copy.setRepresentationDescription(representation.getRepresentationDescription());
+            copy.setResolverID(representation.getResolverID());
+            ret.add(copy);
+        }
+        return ret;
+    }
+}
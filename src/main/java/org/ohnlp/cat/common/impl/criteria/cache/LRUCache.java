@@ -0,0 +1,117 @@
+package org.ohnlp.cat.common.impl.criteria.cache;
+
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A bounded, thread-safe, least recently used cache of string keys with hit/miss statistics, optionally persisted
+ * as JSON to a local file such that it remains warm across restarts.
+ *
+ * @param <V> The value type, which must be (de)serializable by Jackson if persisted
+ */
+public class LRUCache<V> {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final int maxEntries;
+    private final Path persistencePath;
+    private final JavaType persistedType;
+    private final LinkedHashMap<String, V> entries;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param maxEntries      The maximum number of entries retained
+     * @param persistencePath The file from which entries are loaded, if it exists, and to which they are written by
+     *                        {@link #save()}, or null if not persisted
+     * @param valueType       The type of persisted values
+     */
+    public LRUCache(int maxEntries, Path persistencePath, JavaType valueType) {
+        this.maxEntries = maxEntries;
+        this.persistencePath = persistencePath;
+        this.persistedType = MAPPER.getTypeFactory().constructMapType(LinkedHashMap.class,
+                MAPPER.getTypeFactory().constructType(String.class), valueType);
+        this.entries = new LinkedHashMap<String, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                if (size() > LRUCache.this.maxEntries) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+        load();
+    }
+
+    public static JavaType setOf(Class<?> elementClazz) {
+        return MAPPER.getTypeFactory().constructCollectionType(Set.class, elementClazz);
+    }
+
+    /**
+     * @return The cached value, or null if absent
+     */
+    public synchronized V get(String key) {
+        V value = entries.get(key);
+        if (value == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return value;
+    }
+
+    public synchronized void put(String key, V value) {
+        entries.put(key, value);
+    }
+
+    public synchronized CacheStats getStats() {
+        return new CacheStats(hits, misses, evictions, entries.size());
+    }
+
+    /**
+     * Writes all entries, in least to most recently used order, to the persistence path if configured. The file is
+     * replaced atomically, such that concurrent readers never observe a partially written cache
+     */
+    public void save() throws IOException {
+        if (persistencePath == null) {
+            return;
+        }
+        Map<String, V> snapshot;
+        synchronized (this) {
+            snapshot = new LinkedHashMap<>(entries);
+        }
+        Path tmp = Files.createTempFile(persistencePath.toAbsolutePath().getParent(), persistencePath.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                MAPPER.writeValue(out, snapshot);
+            }
+            Files.move(tmp, persistencePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private void load() {
+        if (persistencePath == null || !Files.exists(persistencePath)) {
+            return;
+        }
+        try {
+            Map<String, V> persisted = MAPPER.readValue(persistencePath.toFile(), persistedType);
+            entries.putAll(persisted);
+        } catch (IOException e) {
+            // A corrupt or incompatible cache file is equivalent to a cold cache, and is replaced on next save
+            entries.clear();
+        }
+        evictions = 0;
+    }
+}
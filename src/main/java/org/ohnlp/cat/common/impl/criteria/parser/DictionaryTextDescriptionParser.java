@@ -0,0 +1,159 @@
+package org.ohnlp.cat.common.impl.criteria.parser;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.ohnlp.cat.api.criteria.parser.TextDescriptionParser;
+import org.ohnlp.cat.common.impl.sql.PooledConnectionSource;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@link TextDescriptionParser} that locates UMLS concepts in free text via dictionary lookup, without calling an
+ * external NLP service.
+ * <p>
+ * Dictionary strings and input text are tokenized into lower-cased runs of letters and digits, and matched via a
+ * token-level Aho-Corasick automaton, such that matches always align to token boundaries. Where matches overlap, the
+ * leftmost (and then longest) match is retained. The compiled automaton is immutable and may be shared across threads,
+ * e.g. via {@link #parseToUMLS(Collection)}.
+ */
+public class DictionaryTextDescriptionParser implements TextDescriptionParser {
+    // MRCONSO.RRF column indices
+    private static final int CUI_COL = 0;
+    private static final int LAT_COL = 1;
+    private static final int SAB_COL = 11;
+    private static final int STR_COL = 14;
+    private static final int SUPPRESS_COL = 16;
+
+    private final TokenAutomaton automaton;
+    private final String[] cuis;
+
+    private DictionaryTextDescriptionParser(TokenAutomaton automaton, String[] cuis) {
+        this.automaton = automaton;
+        this.cuis = cuis;
+    }
+
+    @Override
+    public Set<String> parseToUMLS(String input) {
+        Set<String> ret = new HashSet<>();
+        if (input == null) {
+            return ret;
+        }
+        for (TokenAutomaton.Match match : automaton.findLongestMatches(input)) {
+            for (int cui : match.values) {
+                ret.add(cuis[cui]);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Parses all inputs in parallel using the shared automaton
+     *
+     * @return The CUIs found in each input, keyed by input
+     */
+    public Map<String, Set<String>> parseToUMLS(Collection<String> inputs) {
+        Map<String, Set<String>> ret = new ConcurrentHashMap<>();
+        inputs.parallelStream().distinct().filter(Objects::nonNull).forEach(input -> ret.put(input, parseToUMLS(input)));
+        return ret;
+    }
+
+    /**
+     * Loads a dictionary from an MRCONSO.RRF file, excluding suppressed (SUPPRESS = O, E or Y) strings
+     *
+     * @param languages The LAT values to include (e.g. ENG)
+     * @param vocabs    The SABs to include, or null to include all vocabularies
+     * @param minLength The minimum length of included strings, excluding short strings such as abbreviations that
+     *                  are commonly ambiguous
+     */
+    public static DictionaryTextDescriptionParser fromMRCONSO(Path mrconsoPath, Collection<String> languages,
+                                                              Collection<String> vocabs, int minLength) throws IOException {
+        Builder builder = new Builder(minLength);
+        Set<String> lats = new HashSet<>(languages);
+        Set<String> sabs = vocabs == null ? null : new HashSet<>(vocabs);
+        try (BufferedReader reader = Files.newBufferedReader(mrconsoPath, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] cols = line.split("\\|", -1);
+                if (cols.length <= SUPPRESS_COL
+                        || !lats.contains(cols[LAT_COL])
+                        || (sabs != null && !sabs.contains(cols[SAB_COL]))
+                        || cols[SUPPRESS_COL].equals("O") || cols[SUPPRESS_COL].equals("E") || cols[SUPPRESS_COL].equals("Y")) {
+                    continue;
+                }
+                builder.add(cols[STR_COL], cols[CUI_COL]);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Loads a dictionary from a custom table containing CUI and STR columns, configured via the jdbcURL, driver and
+     * tableName keys (alongside optional user, password and minLength keys)
+     */
+    public static DictionaryTextDescriptionParser fromTable(Map<String, Object> config) {
+        JsonNode json = new ObjectMapper().valueToTree(config);
+        Map<String, Object> poolConfig = new HashMap<>();
+        poolConfig.put("url", json.get("jdbcURL").asText());
+        poolConfig.put("driver", json.get("driver").asText());
+        poolConfig.put("pool_size", 1);
+        for (String key : Arrays.asList("user", "password")) {
+            if (json.hasNonNull(key)) {
+                poolConfig.put(key, json.get(key).asText());
+            }
+        }
+        Builder builder = new Builder(json.has("minLength") ? json.get("minLength").asInt() : 3);
+        try (PooledConnectionSource connections = PooledConnectionSource.fromConfig(poolConfig);
+             Connection conn = connections.getConnection();
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT CUI, STR FROM " + json.get("tableName").asText())) {
+            while (rs.next()) {
+                builder.add(rs.getString(2), rs.getString(1));
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Accumulates (string, CUI) dictionary entries prior to compiling them into an automaton
+     */
+    public static class Builder {
+        private final int minLength;
+        private final TokenAutomaton.Builder automaton = new TokenAutomaton.Builder();
+        private final Map<String, Integer> cuiIDs = new HashMap<>();
+        private final List<String> cuis = new ArrayList<>();
+
+        public Builder(int minLength) {
+            this.minLength = minLength;
+        }
+
+        public Builder add(String str, String cui) {
+            if (str == null || cui == null || str.trim().length() < minLength) {
+                return this;
+            }
+            Integer cuiID = cuiIDs.get(cui);
+            if (cuiID == null) {
+                cuiID = cuis.size();
+                cuiIDs.put(cui, cuiID);
+                cuis.add(cui);
+            }
+            automaton.add(str, cuiID);
+            return this;
+        }
+
+        public DictionaryTextDescriptionParser build() {
+            return new DictionaryTextDescriptionParser(automaton.build(), cuis.toArray(new String[0]));
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package org.ohnlp.cat.common.impl.criteria.parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * An immutable Aho-Corasick automaton over token sequences, in which transitions are stored in compressed sparse
+ * row form (sorted token IDs per state) and text is tokenized into lower-cased runs of letters and digits. As
+ * dictionary entries and text are tokenized identically, matches always begin and end on token boundaries.
+ * <p>
+ * Instances are safe for concurrent use.
+ */
+class TokenAutomaton {
+    private final Map<String, Integer> tokenIDs;
+    // Transitions of state s are edgeTokens/edgeTargets[edgeStart[s]..edgeStart[s + 1])
+    private final int[] edgeStart;
+    private final int[] edgeTokens;
+    private final int[] edgeTargets;
+    private final int[] fail;
+    // The nearest state on the failure chain (excluding self) at which an entry ends, or -1
+    private final int[] outputLink;
+    private final int[] depth;
+    // The values of the entry ending at each state, or null
+    private final int[][] values;
+
+    private TokenAutomaton(Map<String, Integer> tokenIDs, int[] edgeStart, int[] edgeTokens, int[] edgeTargets,
+                           int[] fail, int[] outputLink, int[] depth, int[][] values) {
+        this.tokenIDs = tokenIDs;
+        this.edgeStart = edgeStart;
+        this.edgeTokens = edgeTokens;
+        this.edgeTargets = edgeTargets;
+        this.fail = fail;
+        this.outputLink = outputLink;
+        this.depth = depth;
+        this.values = values;
+    }
+
+    /**
+     * A match of a dictionary entry spanning tokens [start, end)
+     */
+    static class Match {
+        final int start;
+        final int end;
+        final int[] values;
+
+        Match(int start, int end, int[] values) {
+            this.start = start;
+            this.end = end;
+            this.values = values;
+        }
+    }
+
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean tokenChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (tokenChar && start < 0) {
+                start = i;
+            } else if (!tokenChar && start >= 0) {
+                tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * @return The leftmost non-overlapping matches in text, preferring the longest match at each start, in order of
+     * occurrence
+     */
+    List<Match> findLongestMatches(String text) {
+        List<String> tokens = tokenize(text);
+        List<Match> all = new ArrayList<>();
+        int state = 0;
+        for (int i = 0; i < tokens.size(); i++) {
+            Integer token = tokenIDs.get(tokens.get(i));
+            if (token == null) {
+                // A token absent from the dictionary cannot continue any entry
+                state = 0;
+                continue;
+            }
+            int next;
+            while ((next = transition(state, token)) < 0 && state != 0) {
+                state = fail[state];
+            }
+            state = Math.max(next, 0);
+            for (int s = values[state] != null ? state : outputLink[state]; s >= 0; s = outputLink[s]) {
+                all.add(new Match(i + 1 - depth[s], i + 1, values[s]));
+            }
+        }
+        all.sort((a, b) -> a.start != b.start ? Integer.compare(a.start, b.start) : Integer.compare(b.end, a.end));
+        List<Match> ret = new ArrayList<>();
+        int covered = 0;
+        for (Match match : all) {
+            if (match.start >= covered) {
+                ret.add(match);
+                covered = match.end;
+            }
+        }
+        return ret;
+    }
+
+    private int transition(int state, int token) {
+        int idx = Arrays.binarySearch(edgeTokens, edgeStart[state], edgeStart[state + 1], token);
+        return idx >= 0 ? edgeTargets[idx] : -1;
+    }
+
+    static class Builder {
+        private final Map<String, Integer> tokenIDs = new HashMap<>();
+        private final Map<Long, Integer> edges = new HashMap<>();
+        private final Map<Integer, int[]> values = new HashMap<>();
+        private int[] depth = new int[1024];
+        private int stateCount = 1;
+
+        /**
+         * Adds an entry for the given text, which is ignored if it contains no tokens
+         */
+        void add(String text, int value) {
+            List<String> tokens = tokenize(text);
+            if (tokens.isEmpty()) {
+                return;
+            }
+            int state = 0;
+            for (String token : tokens) {
+                Integer tokenID = tokenIDs.computeIfAbsent(token, k -> tokenIDs.size());
+                long key = ((long) state << 32) | tokenID;
+                Integer child = edges.get(key);
+                if (child == null) {
+                    child = stateCount++;
+                    if (child >= depth.length) {
+                        depth = Arrays.copyOf(depth, depth.length * 2);
+                    }
+                    depth[child] = depth[state] + 1;
+                    edges.put(key, child);
+                }
+                state = child;
+            }
+            int[] existing = values.get(state);
+            if (existing == null) {
+                values.put(state, new int[]{value});
+            } else if (Arrays.stream(existing).noneMatch(v -> v == value)) {
+                int[] merged = Arrays.copyOf(existing, existing.length + 1);
+                merged[existing.length] = value;
+                values.put(state, merged);
+            }
+        }
+
+        TokenAutomaton build() {
+            // Sort edges by (state, token) to obtain CSR transitions
+            long[] keys = new long[edges.size()];
+            int e = 0;
+            for (long key : edges.keySet()) {
+                keys[e++] = key;
+            }
+            Arrays.sort(keys);
+            int[] edgeStart = new int[stateCount + 1];
+            int[] edgeTokens = new int[keys.length];
+            int[] edgeTargets = new int[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                edgeStart[(int) (keys[i] >>> 32) + 1]++;
+                edgeTokens[i] = (int) keys[i];
+                edgeTargets[i] = edges.get(keys[i]);
+            }
+            for (int s = 0; s < stateCount; s++) {
+                edgeStart[s + 1] += edgeStart[s];
+            }
+            int[][] stateValues = new int[stateCount][];
+            values.forEach((state, v) -> stateValues[state] = v);
+            // Breadth-first construction of failure and output links
+            int[] fail = new int[stateCount];
+            int[] outputLink = new int[stateCount];
+            Arrays.fill(outputLink, -1);
+            int[] queue = new int[stateCount];
+            int head = 0;
+            int tail = 0;
+            for (int i = edgeStart[0]; i < edgeStart[1]; i++) {
+                queue[tail++] = edgeTargets[i];
+            }
+            TokenAutomaton partial = new TokenAutomaton(tokenIDs, edgeStart, edgeTokens, edgeTargets, fail, outputLink,
+                    Arrays.copyOf(depth, stateCount), stateValues);
+            while (head < tail) {
+                int state = queue[head++];
+                for (int i = edgeStart[state]; i < edgeStart[state + 1]; i++) {
+                    int token = edgeTokens[i];
+                    int child = edgeTargets[i];
+                    int f = fail[state];
+                    int next;
+                    while ((next = partial.transition(f, token)) < 0 && f != 0) {
+                        f = fail[f];
+                    }
+                    fail[child] = Math.max(next, 0);
+                    outputLink[child] = stateValues[fail[child]] != null ? fail[child] : outputLink[fail[child]];
+                    queue[tail++] = child;
+                }
+            }
+            return partial;
+        }
+    }
+}
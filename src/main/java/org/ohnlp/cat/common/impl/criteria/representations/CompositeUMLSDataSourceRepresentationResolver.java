@@ -0,0 +1,192 @@
+package org.ohnlp.cat.common.impl.criteria.representations;
+
+import org.ohnlp.cat.api.criteria.ClinicalEntityType;
+import org.ohnlp.cat.api.criteria.parser.DataSourceRepresentation;
+import org.ohnlp.cat.api.criteria.parser.UMLSDataSourceRepresentationResolver;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Queries several {@link UMLSDataSourceRepresentationResolver}s (e.g. those listed by
+ * {@link org.ohnlp.cat.api.ehr.DataSourceInformation#getTextResolvers()}) concurrently on a bounded executor, such
+ * that resolution latency is that of the slowest resolver rather than the sum of all resolvers.
+ * <p>
+ * Each resolver must respond within the configured deadline, measured from when its query starts running on the
+ * executor, such that time spent queued behind concurrent calls does not count against it. Queries that have not
+ * started within the deadline of the call, or that do not complete within the deadline of their start, are cancelled
+ * and reported via {@link Resolution#getTimedOutResolvers()}, and resolvers that fail are reported via
+ * {@link Resolution#getFailedResolvers()}. In both cases, results from the remaining resolvers are still returned.
+ */
+public class CompositeUMLSDataSourceRepresentationResolver implements UMLSDataSourceRepresentationResolver, AutoCloseable {
+    private static final AtomicInteger THREAD_ID = new AtomicInteger();
+
+    private final Map<String, UMLSDataSourceRepresentationResolver> resolvers;
+    private final long deadlineMillis;
+    private final ExecutorService executor;
+
+    /**
+     * @param resolvers      The resolvers to query, keyed by resolver ID
+     * @param deadlineMillis The time each resolver is allowed per call
+     * @param parallelism    The maximum number of resolvers queried concurrently across all calls, which must allow
+     *                       all resolvers of a single call to run concurrently
+     */
+    public CompositeUMLSDataSourceRepresentationResolver(Map<String, UMLSDataSourceRepresentationResolver> resolvers,
+                                                         long deadlineMillis, int parallelism) {
+        if (parallelism < resolvers.size()) {
+            throw new IllegalArgumentException("Parallelism " + parallelism + " would queue resolvers of a single call "
+                    + "behind one another: at least " + resolvers.size() + " is required");
+        }
+        this.resolvers = new LinkedHashMap<>(resolvers);
+        this.deadlineMillis = deadlineMillis;
+        this.executor = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread t = new Thread(r, "umls-resolver-" + THREAD_ID.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Initializes each resolver with the entry of config keyed by its resolver ID, if present
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public void init(Map<String, Object> config) {
+        resolvers.forEach((id, resolver) -> {
+            Object resolverConfig = config.get(id);
+            if (resolverConfig instanceof Map) {
+                resolver.init((Map<String, Object>) resolverConfig);
+            }
+        });
+    }
+
+    @Override
+    public Set<DataSourceRepresentation> resolveForUMLS(ClinicalEntityType type, Collection<String> requestingDataSourceIDs, String umlsCUI) {
+        return resolveForUMLS(type, requestingDataSourceIDs, Collections.singleton(umlsCUI)).get(umlsCUI);
+    }
+
+    @Override
+    public Map<String, Set<DataSourceRepresentation>> resolveForUMLS(ClinicalEntityType type, Collection<String> requestingDataSourceIDs, Collection<String> umlsCUIs) {
+        return resolve(type, requestingDataSourceIDs, umlsCUIs).getRepresentations();
+    }
+
+    /**
+     * Resolves the given CUIs via all resolvers, returning partial results if any resolver times out or fails
+     */
+    public Resolution resolve(ClinicalEntityType type, Collection<String> requestingDataSourceIDs, Collection<String> umlsCUIs) {
+        long deadlineNanos = TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+        long submitted = System.nanoTime();
+        Map<String, Set<DataSourceRepresentation>> representations = new HashMap<>();
+        for (String cui : umlsCUIs) {
+            representations.put(cui, new HashSet<>());
+        }
+        Resolution ret = new Resolution(representations);
+        if (umlsCUIs.isEmpty()) {
+            return ret;
+        }
+        CompletionService<Map.Entry<String, Map<String, Set<DataSourceRepresentation>>>> completion =
+                new ExecutorCompletionService<>(executor);
+        Map<Future<?>, String> pending = new HashMap<>();
+        // The time at which each resolver's query started running, by resolver ID
+        Map<String, Long> started = new ConcurrentHashMap<>();
+        resolvers.forEach((id, resolver) -> pending.put(
+                completion.submit(() -> {
+                    started.put(id, System.nanoTime());
+                    return new AbstractMap.SimpleImmutableEntry<>(id,
+                            resolver.resolveForUMLS(type, requestingDataSourceIDs, umlsCUIs));
+                }),
+                id));
+        try {
+            while (!pending.isEmpty()) {
+                long now = System.nanoTime();
+                long next = Long.MAX_VALUE;
+                Iterator<Map.Entry<Future<?>, String>> it = pending.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<Future<?>, String> e = it.next();
+                    Long start = started.get(e.getValue());
+                    long expiry = (start == null ? submitted : start) + deadlineNanos;
+                    if (expiry - now <= 0 && !e.getKey().isDone()) {
+                        e.getKey().cancel(true);
+                        ret.timedOutResolvers.add(e.getValue());
+                        it.remove();
+                    } else if (next == Long.MAX_VALUE || expiry - next < 0) {
+                        next = expiry;
+                    }
+                }
+                if (pending.isEmpty()) {
+                    break;
+                }
+                Future<Map.Entry<String, Map<String, Set<DataSourceRepresentation>>>> done =
+                        completion.poll(next - now, TimeUnit.NANOSECONDS);
+                // Null where the earliest deadline passed, and absent where cancelled on timeout
+                String id = done == null ? null : pending.remove(done);
+                if (id == null) {
+                    continue;
+                }
+                try {
+                    // Merge as each resolver completes, such that results are deduplicated without retaining
+                    // per-resolver result sets
+                    done.get().getValue().forEach((cui, resolved) -> {
+                        Set<DataSourceRepresentation> merged = representations.get(cui);
+                        if (merged != null && resolved != null) {
+                            merged.addAll(resolved);
+                        }
+                    });
+                } catch (ExecutionException e) {
+                    ret.failedResolvers.put(id, e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        pending.forEach((future, id) -> {
+            future.cancel(true);
+            ret.timedOutResolvers.add(id);
+        });
+        return ret;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * The (possibly partial) result of resolving a set of CUIs via all resolvers
+     */
+    public static class Resolution {
+        private final Map<String, Set<DataSourceRepresentation>> representations;
+        private final Set<String> timedOutResolvers = new LinkedHashSet<>();
+        private final Map<String, Throwable> failedResolvers = new LinkedHashMap<>();
+
+        private Resolution(Map<String, Set<DataSourceRepresentation>> representations) {
+            this.representations = representations;
+        }
+
+        /**
+         * @return The deduplicated representations returned by all resolvers that completed in time, keyed by CUI
+         */
+        public Map<String, Set<DataSourceRepresentation>> getRepresentations() {
+            return representations;
+        }
+
+        /**
+         * @return The IDs of resolvers that did not complete before the deadline
+         */
+        public Set<String> getTimedOutResolvers() {
+            return timedOutResolvers;
+        }
+
+        /**
+         * @return The causes of failure of resolvers that failed, keyed by resolver ID
+         */
+        public Map<String, Throwable> getFailedResolvers() {
+            return failedResolvers;
+        }
+
+        public boolean isComplete() {
+            return timedOutResolvers.isEmpty() && failedResolvers.isEmpty();
+        }
+    }
+}
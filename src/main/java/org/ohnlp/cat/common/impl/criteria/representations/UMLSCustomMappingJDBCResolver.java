@@ -6,49 +6,69 @@ import com.fasterxml.jackson.databind.node.ArrayNode;
 import org.ohnlp.cat.api.criteria.ClinicalEntityType;
 import org.ohnlp.cat.api.criteria.parser.DataSourceRepresentation;
 import org.ohnlp.cat.api.criteria.parser.UMLSDataSourceRepresentationResolver;
+import org.ohnlp.cat.api.ehr.ParameterizedQuery;
+import org.ohnlp.cat.common.impl.sql.PooledConnectionSource;
+import org.ohnlp.cat.common.impl.sql.QueryParameters;
+import org.ohnlp.cat.common.impl.sql.SQLDialect;
 
 import java.sql.*;
 import java.util.*;
 
 public class UMLSCustomMappingJDBCResolver implements UMLSDataSourceRepresentationResolver {
 
-    private String jdbcurl;
     private String tableName;
     private String resolverId;
+    private PooledConnectionSource connections;
+    private SQLDialect dialect;
+    private int bulkBindingThreshold;
 
     @Override
     public void init(Map<String, Object> config) {
         JsonNode json = new ObjectMapper().valueToTree(config);
         this.resolverId = json.get("resolverID").asText();
-        String driverClass = json.get("driver").asText();
-        this.jdbcurl = json.get("jdbcURL").asText();
         this.tableName = json.get("tableName").asText();
-
-
-        try {
-            Class.forName(driverClass);
-        } catch (ClassNotFoundException e) {
-            throw new RuntimeException(e);
-        }
+        this.connections = UMLSSourceVocabJDBCResolver.connectionsFromConfig(json);
+        this.dialect = SQLDialect.fromJdbcUrl(json.get("jdbcURL").asText());
+        this.bulkBindingThreshold = QueryParameters.getBulkBindingThreshold(config);
     }
 
     @Override
     public Set<DataSourceRepresentation> resolveForUMLS(ClinicalEntityType type, Collection<String> requestingDataSourceIDs, String umlsCUI) {
-        HashSet<DataSourceRepresentation> ret = new HashSet<>();
-        //TODO handle authentication etc
-        try (Connection conn = DriverManager.getConnection(jdbcurl)) {
-            PreparedStatement ps = conn.prepareStatement("SELECT CODE, CODE_DESC FROM " + this.tableName + " WHERE CUI = ?");
-            ps.setString(1, umlsCUI);
-            ResultSet rs = ps.executeQuery();
-            while (rs.next()) {
-                String code = rs.getString(1);
-                String str = rs.getString(2);
-                DataSourceRepresentation representation = new DataSourceRepresentation();
-                representation.setRepresentation(code);
-                representation.setRepresentationDescription(str);
-                representation.setResolverID(resolverId);
-                representation.setDataSourceID(requestingDataSourceIDs);
-                ret.add(representation);
+        return resolveForUMLS(type, requestingDataSourceIDs, Collections.singleton(umlsCUI)).get(umlsCUI);
+    }
+
+    @Override
+    public Map<String, Set<DataSourceRepresentation>> resolveForUMLS(ClinicalEntityType type, Collection<String> requestingDataSourceIDs, Collection<String> umlsCUIs) {
+        Map<String, Set<DataSourceRepresentation>> ret = new HashMap<>();
+        for (String cui : umlsCUIs) {
+            ret.put(cui, new HashSet<>());
+        }
+        if (ret.isEmpty()) {
+            return ret;
+        }
+        QueryParameters params = new QueryParameters(dialect, bulkBindingThreshold);
+        String cuiPredicate = params.bindStringList("CUI", new ArrayList<>(ret.keySet()));
+        ParameterizedQuery query = params.toQuery("SELECT CUI, CODE, CODE_DESC FROM " + this.tableName + " WHERE " + cuiPredicate);
+        try (Connection conn = connections.getConnection()) {
+            query.prepare(conn);
+            try (PreparedStatement ps = conn.prepareStatement(query.getSql())) {
+                query.bind(ps);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        Set<DataSourceRepresentation> representations = ret.get(rs.getString(1));
+                        if (representations == null) {
+                            continue;
+                        }
+                        DataSourceRepresentation representation = new DataSourceRepresentation();
+                        representation.setRepresentation(rs.getString(2));
+                        representation.setRepresentationDescription(rs.getString(3));
+                        representation.setResolverID(resolverId);
+                        representation.setDataSourceID(requestingDataSourceIDs);
+                        representations.add(representation);
+                    }
+                }
+            } finally {
+                query.release(conn);
             }
         } catch (SQLException e) {
             throw new RuntimeException(e);
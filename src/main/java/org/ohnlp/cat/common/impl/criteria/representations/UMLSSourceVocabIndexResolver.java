@@ -0,0 +1,352 @@
+package org.ohnlp.cat.common.impl.criteria.representations;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import org.ohnlp.cat.api.criteria.ClinicalEntityType;
+import org.ohnlp.cat.api.criteria.parser.DataSourceRepresentation;
+import org.ohnlp.cat.api.criteria.parser.UMLSDataSourceRepresentationResolver;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * A database-free equivalent of {@link UMLSSourceVocabJDBCResolver}, serving lookups from a compact index of an
+ * MRCONSO.RRF file that is memory-mapped on {@link #init(Map)}.
+ * <p>
+ * The index contains the sorted numeric portion of each CUI, the range of (SAB, CODE, STR) records belonging to each
+ * CUI, and a pool of length-prefixed UTF-8 strings referenced by those records. Only rows belonging to configured
+ * vocabularies are indexed. As the index is mapped as a single buffer, it may not exceed 2GB. Configured via the
+ * following keys:
+ * <ul>
+ *     <li>indexPath: The index file</li>
+ *     <li>mrconsoPath: The MRCONSO.RRF file from which to (re)build the index if it is absent or was built from a
+ *     different file or vocabulary list. May be omitted if a prebuilt index is distributed instead</li>
+ *     <li>vocabs: SABs to be resolved for each {@link ClinicalEntityType}, as per {@link UMLSSourceVocabJDBCResolver}</li>
+ * </ul>
+ */
+public class UMLSSourceVocabIndexResolver implements UMLSDataSourceRepresentationResolver {
+    private static final int MAGIC = 0x554D4958;
+    private static final int VERSION = 1;
+    private static final int RECORD_INTS = 3;
+    // MRCONSO.RRF column indices
+    private static final int CUI_COL = 0;
+    private static final int SAB_COL = 11;
+    private static final int CODE_COL = 13;
+    private static final int STR_COL = 14;
+
+    private Map<ClinicalEntityType, boolean[]> sabsByType;
+    private String[] sabs;
+    private ByteBuffer index;
+    private int cuiCount;
+    private int cuisOffset;
+    private int startsOffset;
+    private int recordsOffset;
+    private int poolOffset;
+
+    @Override
+    public void init(Map<String, Object> config) {
+        JsonNode json = new ObjectMapper().valueToTree(config);
+        Path indexPath = Paths.get(json.get("indexPath").asText());
+        Path mrconsoPath = json.hasNonNull("mrconsoPath") ? Paths.get(json.get("mrconsoPath").asText()) : null;
+        Map<ClinicalEntityType, List<String>> sourceVocabMapping = new HashMap<>();
+        Set<String> allVocabs = new TreeSet<>();
+        JsonNode sourceVocabs = json.get("vocabs");
+        for (ClinicalEntityType type : ClinicalEntityType.values()) {
+            if (sourceVocabs.has(type.name())) {
+                List<String> srcVocabs = new ArrayList<>();
+                for (JsonNode src : ((ArrayNode) sourceVocabs.get(type.name()))) {
+                    srcVocabs.add(src.asText());
+                }
+                sourceVocabMapping.put(type, srcVocabs);
+                allVocabs.addAll(srcVocabs);
+            }
+        }
+        try {
+            if (mrconsoPath != null && !isCurrent(indexPath, mrconsoPath, allVocabs)) {
+                build(mrconsoPath, indexPath, allVocabs);
+            }
+            load(indexPath);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        Map<String, Integer> sabIndices = new HashMap<>();
+        for (int i = 0; i < sabs.length; i++) {
+            sabIndices.put(sabs[i], i);
+        }
+        Set<String> missing = new TreeSet<>(allVocabs);
+        missing.removeAll(sabIndices.keySet());
+        if (!missing.isEmpty()) {
+            throw new IllegalStateException("Index " + indexPath + " does not contain vocabularies " + missing
+                    + " and no mrconsoPath was supplied from which to rebuild it");
+        }
+        this.sabsByType = new EnumMap<>(ClinicalEntityType.class);
+        sourceVocabMapping.forEach((type, vocabs) -> {
+            boolean[] allowed = new boolean[sabs.length];
+            for (String vocab : vocabs) {
+                allowed[sabIndices.get(vocab)] = true;
+            }
+            sabsByType.put(type, allowed);
+        });
+    }
+
+    @Override
+    public Set<DataSourceRepresentation> resolveForUMLS(ClinicalEntityType type, Collection<String> requestingDataSourceIDs, String umlsCUI) {
+        HashSet<DataSourceRepresentation> ret = new HashSet<>();
+        boolean[] allowed = sabsByType.get(type);
+        int cui = parseCUI(umlsCUI);
+        if (allowed == null || cui < 0) {
+            return ret;
+        }
+        int pos = findCUI(cui);
+        if (pos < 0) {
+            return ret;
+        }
+        // Each lookup uses its own view such that relative reads are thread-safe
+        ByteBuffer view = index.duplicate();
+        int start = view.getInt(startsOffset + 4 * pos);
+        int end = view.getInt(startsOffset + 4 * (pos + 1));
+        for (int record = start; record < end; record++) {
+            int recordOffset = recordsOffset + 4 * RECORD_INTS * record;
+            int sab = view.getInt(recordOffset);
+            if (!allowed[sab]) {
+                continue;
+            }
+            DataSourceRepresentation representation = new DataSourceRepresentation();
+            representation.setRepresentation(readString(view, view.getInt(recordOffset + 4)));
+            representation.setRepresentationDescription(readString(view, view.getInt(recordOffset + 8)));
+            representation.setResolverID(sabs[sab]);
+            representation.setDataSourceID(requestingDataSourceIDs);
+            ret.add(representation);
+        }
+        return ret;
+    }
+
+    private int findCUI(int cui) {
+        int low = 0;
+        int high = cuiCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int value = index.getInt(cuisOffset + 4 * mid);
+            if (value < cui) {
+                low = mid + 1;
+            } else if (value > cui) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private String readString(ByteBuffer view, int offset) {
+        int length = view.getInt(poolOffset + offset);
+        byte[] bytes = new byte[length];
+        view.position(poolOffset + offset + 4);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return The numeric portion of a CUI of the form C0000000, or -1 if malformed
+     */
+    private static int parseCUI(String cui) {
+        if (cui == null || cui.length() < 2 || cui.length() > 10 || Character.toUpperCase(cui.charAt(0)) != 'C') {
+            return -1;
+        }
+        int value = 0;
+        for (int i = 1; i < cui.length(); i++) {
+            char c = cui.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private void load(Path indexPath) throws IOException {
+        try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(indexPath + " exceeds the 2GB that can be memory-mapped as a single buffer");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException(indexPath + " is not a compatible MRCONSO index");
+            }
+            buffer.getLong(); // source length
+            buffer.getLong(); // source last modified
+            this.sabs = new String[buffer.getInt()];
+            for (int i = 0; i < sabs.length; i++) {
+                byte[] bytes = new byte[buffer.getShort()];
+                buffer.get(bytes);
+                sabs[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+            this.cuiCount = buffer.getInt();
+            int recordCount = buffer.getInt();
+            this.cuisOffset = buffer.position();
+            this.startsOffset = cuisOffset + 4 * cuiCount;
+            this.recordsOffset = startsOffset + 4 * (cuiCount + 1);
+            this.poolOffset = recordsOffset + 4 * RECORD_INTS * recordCount;
+            this.index = buffer;
+        }
+    }
+
+    /**
+     * @return Whether the index at indexPath exists and was built from the current mrconsoPath with the given SABs
+     */
+    private static boolean isCurrent(Path indexPath, Path mrconsoPath, Set<String> vocabs) throws IOException {
+        if (!Files.exists(indexPath)) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexPath)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || in.readLong() != Files.size(mrconsoPath)
+                    || in.readLong() != Files.getLastModifiedTime(mrconsoPath).toMillis()) {
+                return false;
+            }
+            Set<String> indexed = new TreeSet<>();
+            int sabCount = in.readInt();
+            for (int i = 0; i < sabCount; i++) {
+                byte[] bytes = new byte[in.readShort()];
+                in.readFully(bytes);
+                indexed.add(new String(bytes, StandardCharsets.UTF_8));
+            }
+            return indexed.equals(vocabs);
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Builds an index of the rows of mrconsoPath belonging to the given SABs, e.g. such that it can be distributed
+     * to workers in lieu of MRCONSO.RRF. The index is written to a temporary file and atomically moved to indexPath
+     */
+    public static void build(Path mrconsoPath, Path indexPath, Set<String> vocabs) throws IOException {
+        List<String> sabs = new ArrayList<>(new TreeSet<>(vocabs));
+        Map<String, Integer> sabIndices = new HashMap<>();
+        for (int i = 0; i < sabs.size(); i++) {
+            sabIndices.put(sabs.get(i), i);
+        }
+        Path poolFile = Files.createTempFile(indexPath.toAbsolutePath().getParent(), "mrconso", ".pool");
+        Path indexFile = Files.createTempFile(indexPath.toAbsolutePath().getParent(), "mrconso", ".idx");
+        try {
+            // Records are accumulated as (cui, sab, code offset, string offset), with strings appended to the pool
+            int[] records = new int[4 * 1024];
+            int recordCount = 0;
+            long poolLength = 0;
+            Map<String, Integer> codeOffsets = new HashMap<>();
+            try (BufferedReader reader = Files.newBufferedReader(mrconsoPath, StandardCharsets.UTF_8);
+                 DataOutputStream pool = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(poolFile)))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] cols = line.split("\\|", -1);
+                    if (cols.length <= STR_COL) {
+                        continue;
+                    }
+                    Integer sab = sabIndices.get(cols[SAB_COL]);
+                    int cui = parseCUI(cols[CUI_COL]);
+                    if (sab == null || cui < 0) {
+                        continue;
+                    }
+                    Integer codeOffset = codeOffsets.get(cols[CODE_COL]);
+                    if (codeOffset == null) {
+                        codeOffset = (int) poolLength;
+                        poolLength += writeString(pool, cols[CODE_COL]);
+                        codeOffsets.put(cols[CODE_COL], codeOffset);
+                    }
+                    int strOffset = (int) poolLength;
+                    poolLength += writeString(pool, cols[STR_COL]);
+                    // Checked against the whole file once all records are known, but bounded here to fail early
+                    if (poolLength > Integer.MAX_VALUE) {
+                        throw tooLarge(poolLength);
+                    }
+                    if (4 * (recordCount + 1) > records.length) {
+                        records = Arrays.copyOf(records, records.length * 2);
+                    }
+                    records[4 * recordCount] = cui;
+                    records[4 * recordCount + 1] = sab;
+                    records[4 * recordCount + 2] = codeOffset;
+                    records[4 * recordCount + 3] = strOffset;
+                    recordCount++;
+                }
+            }
+            // Sort records by CUI, retaining file order within each CUI
+            long[] order = new long[recordCount];
+            for (int i = 0; i < recordCount; i++) {
+                order[i] = ((long) records[4 * i] << 32) | i;
+            }
+            Arrays.sort(order);
+            int cuiCount = 0;
+            for (int i = 0; i < recordCount; i++) {
+                if (i == 0 || (order[i] >>> 32) != (order[i - 1] >>> 32)) {
+                    cuiCount++;
+                }
+            }
+            long headerLength = 4 + 4 + 8 + 8 + 4 + 4 + 4;
+            for (String sab : sabs) {
+                headerLength += 2 + sab.getBytes(StandardCharsets.UTF_8).length;
+            }
+            // Pool offsets are relative to the pool, so bounding the file also bounds their absolute positions
+            long fileLength = headerLength + 4L * cuiCount + 4L * (cuiCount + 1) + 4L * RECORD_INTS * recordCount
+                    + poolLength;
+            if (fileLength > Integer.MAX_VALUE) {
+                throw tooLarge(fileLength);
+            }
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(indexFile)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(Files.size(mrconsoPath));
+                out.writeLong(Files.getLastModifiedTime(mrconsoPath).toMillis());
+                out.writeInt(sabs.size());
+                for (String sab : sabs) {
+                    byte[] bytes = sab.getBytes(StandardCharsets.UTF_8);
+                    out.writeShort(bytes.length);
+                    out.write(bytes);
+                }
+                out.writeInt(cuiCount);
+                out.writeInt(recordCount);
+                int[] starts = new int[cuiCount + 1];
+                int cuiIdx = -1;
+                for (int i = 0; i < recordCount; i++) {
+                    if (i == 0 || (order[i] >>> 32) != (order[i - 1] >>> 32)) {
+                        out.writeInt((int) (order[i] >>> 32));
+                        starts[++cuiIdx] = i;
+                    }
+                }
+                starts[cuiCount] = recordCount;
+                for (int start : starts) {
+                    out.writeInt(start);
+                }
+                for (int i = 0; i < recordCount; i++) {
+                    int record = (int) order[i];
+                    out.writeInt(records[4 * record + 1]);
+                    out.writeInt(records[4 * record + 2]);
+                    out.writeInt(records[4 * record + 3]);
+                }
+                Files.copy(poolFile, out);
+            }
+            Files.move(indexFile, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(poolFile);
+            Files.deleteIfExists(indexFile);
+        }
+    }
+
+    private static IOException tooLarge(long length) {
+        return new IOException("MRCONSO index of at least " + length + " bytes exceeds the 2GB that can be "
+                + "memory-mapped, restrict the configured vocabularies");
+    }
+
+    private static int writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        return 4 + bytes.length;
+    }
+}
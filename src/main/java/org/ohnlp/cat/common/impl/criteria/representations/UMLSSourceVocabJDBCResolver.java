@@ -6,6 +6,10 @@ import com.fasterxml.jackson.databind.node.ArrayNode;
 import org.ohnlp.cat.api.criteria.ClinicalEntityType;
 import org.ohnlp.cat.api.criteria.parser.DataSourceRepresentation;
 import org.ohnlp.cat.api.criteria.parser.UMLSDataSourceRepresentationResolver;
+import org.ohnlp.cat.api.ehr.ParameterizedQuery;
+import org.ohnlp.cat.common.impl.sql.PooledConnectionSource;
+import org.ohnlp.cat.common.impl.sql.QueryParameters;
+import org.ohnlp.cat.common.impl.sql.SQLDialect;
 
 import java.sql.*;
 import java.util.*;
@@ -13,15 +17,15 @@ import java.util.*;
 public class UMLSSourceVocabJDBCResolver implements UMLSDataSourceRepresentationResolver {
 
     Map<ClinicalEntityType, List<String>> sourceVocabMapping;
-    private String jdbcurl;
     private String tableName;
+    private PooledConnectionSource connections;
+    private SQLDialect dialect;
+    private int bulkBindingThreshold;
 
     @Override
     public void init(Map<String, Object> config) {
         this.sourceVocabMapping = new HashMap<>();
         JsonNode json = new ObjectMapper().valueToTree(config);
-        String driverClass = json.get("driver").asText();
-        this.jdbcurl = json.get("jdbcURL").asText();
         this.tableName = json.get("mrconsotablename").asText();
         JsonNode sourceVocabs = json.get("vocabs");
         for (ClinicalEntityType type : ClinicalEntityType.values()) {
@@ -33,40 +37,70 @@ public class UMLSSourceVocabJDBCResolver implements UMLSDataSourceRepresentation
                 sourceVocabMapping.put(type, srcVocabs);
             }
         }
+        this.connections = connectionsFromConfig(json);
+        this.dialect = SQLDialect.fromJdbcUrl(json.get("jdbcURL").asText());
+        this.bulkBindingThreshold = QueryParameters.getBulkBindingThreshold(config);
+    }
 
-        try {
-            Class.forName(driverClass);
-        } catch (ClassNotFoundException e) {
-           throw new RuntimeException(e);
+    /**
+     * Maps the jdbcURL, driver and optional user, password and pool_size resolver configuration keys to a
+     * {@link PooledConnectionSource}
+     */
+    static PooledConnectionSource connectionsFromConfig(JsonNode json) {
+        Map<String, Object> poolConfig = new HashMap<>();
+        poolConfig.put("url", json.get("jdbcURL").asText());
+        poolConfig.put("driver", json.get("driver").asText());
+        for (String key : Arrays.asList("user", "password", "pool_size")) {
+            if (json.hasNonNull(key)) {
+                poolConfig.put(key, json.get(key).asText());
+            }
         }
+        return PooledConnectionSource.fromConfig(poolConfig);
     }
 
     @Override
     public Set<DataSourceRepresentation> resolveForUMLS(ClinicalEntityType type, Collection<String> requestingDataSourceIDs, String umlsCUI) {
-        HashSet<DataSourceRepresentation> ret = new HashSet<>();
+        return resolveForUMLS(type, requestingDataSourceIDs, Collections.singleton(umlsCUI)).get(umlsCUI);
+    }
+
+    @Override
+    public Map<String, Set<DataSourceRepresentation>> resolveForUMLS(ClinicalEntityType type, Collection<String> requestingDataSourceIDs, Collection<String> umlsCUIs) {
+        Map<String, Set<DataSourceRepresentation>> ret = new HashMap<>();
+        for (String cui : umlsCUIs) {
+            ret.put(cui, new HashSet<>());
+        }
         List<String> vocabs = sourceVocabMapping.get(type);
-        if (vocabs != null) {
-            //TODO handle authentication etc
-            try (Connection conn = DriverManager.getConnection(jdbcurl)){
-                PreparedStatement ps = conn.prepareStatement("SELECT CODE, STR FROM " + this.tableName + " WHERE CUI = ? AND SAB = ?");
-                ps.setString(1, umlsCUI);
-                for (String vocab : vocabs) {
-                    ps.setString(2, vocab);
-                    ResultSet rs = ps.executeQuery();
+        if (vocabs == null || vocabs.isEmpty() || ret.isEmpty()) {
+            return ret;
+        }
+        QueryParameters params = new QueryParameters(dialect, bulkBindingThreshold);
+        String cuiPredicate = params.bindStringList("CUI", new ArrayList<>(ret.keySet()));
+        String sabPredicate = params.bindStringList("SAB", vocabs);
+        ParameterizedQuery query = params.toQuery("SELECT CUI, SAB, CODE, STR FROM " + this.tableName
+                + " WHERE " + cuiPredicate + " AND " + sabPredicate);
+        try (Connection conn = connections.getConnection()) {
+            query.prepare(conn);
+            try (PreparedStatement ps = conn.prepareStatement(query.getSql())) {
+                query.bind(ps);
+                try (ResultSet rs = ps.executeQuery()) {
                     while (rs.next()) {
-                        String code = rs.getString(1);
-                        String str = rs.getString(2);
+                        Set<DataSourceRepresentation> representations = ret.get(rs.getString(1));
+                        if (representations == null) {
+                            continue;
+                        }
                         DataSourceRepresentation representation = new DataSourceRepresentation();
-                        representation.setRepresentation(code);
-                        representation.setRepresentationDescription(str);
-                        representation.setResolverID(vocab);
+                        representation.setRepresentation(rs.getString(3));
+                        representation.setRepresentationDescription(rs.getString(4));
+                        representation.setResolverID(rs.getString(2));
                         representation.setDataSourceID(requestingDataSourceIDs);
-                        ret.add(representation);
+                        representations.add(representation);
                     }
                 }
-            } catch (SQLException e) {
-                throw new RuntimeException(e);
+            } finally {
+                query.release(conn);
             }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
         }
         return ret;
     }
@@ -0,0 +1,98 @@
+package org.ohnlp.cat.common.impl.ehr;
+
+import org.apache.beam.sdk.transforms.DoFn;
+import org.apache.beam.sdk.transforms.PTransform;
+import org.apache.beam.sdk.transforms.ParDo;
+import org.apache.beam.sdk.transforms.SerializableFunction;
+import org.apache.beam.sdk.values.PCollection;
+import org.apache.beam.sdk.values.PCollectionTuple;
+import org.apache.beam.sdk.values.Row;
+import org.apache.beam.sdk.values.TupleTag;
+import org.apache.beam.sdk.values.TupleTagList;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.ohnlp.cat.api.criteria.ClinicalEntityType;
+import org.ohnlp.cat.api.ehr.ResourceProvider;
+import org.ohnlp.cat.common.impl.coders.DomainResourceCoder;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Maps the rows of a {@link ResourceProvider#getMultiTypeQuery(Set, java.util.Collection, java.util.Date, java.util.Date)}
+ * to resources via the row mapper of each row's type, emitting the resources of each type to the output tagged with
+ * {@link #tagFor(ClinicalEntityType)}, such that a source table read once may feed the evaluation of every type.
+ * Rows of types other than those requested are dropped.
+ */
+public class MultiTypeResourceRouter extends PTransform<PCollection<Row>, PCollectionTuple> {
+    private static final Map<ClinicalEntityType, TupleTag<DomainResource>> TAGS = new EnumMap<>(ClinicalEntityType.class);
+
+    static {
+        for (ClinicalEntityType type : ClinicalEntityType.values()) {
+            TAGS.put(type, new TupleTag<DomainResource>("resources-" + type.name()) {
+            });
+        }
+    }
+
+    private final ResourceProvider provider;
+    private final List<ClinicalEntityType> types;
+
+    public MultiTypeResourceRouter(ResourceProvider provider, Set<ClinicalEntityType> types) {
+        if (types.isEmpty()) {
+            throw new IllegalArgumentException("At least one type must be routed");
+        }
+        this.provider = provider;
+        this.types = new ArrayList<>(types);
+    }
+
+    /**
+     * @return The tag of the output containing resources of the given type
+     */
+    public static TupleTag<DomainResource> tagFor(ClinicalEntityType type) {
+        return TAGS.get(type);
+    }
+
+    @Override
+    public PCollectionTuple expand(PCollection<Row> input) {
+        List<TupleTag<?>> additional = new ArrayList<>();
+        for (ClinicalEntityType type : types.subList(1, types.size())) {
+            additional.add(tagFor(type));
+        }
+        PCollectionTuple ret = input.apply(ParDo.of(new RouteFn(provider, types))
+                .withOutputTags(tagFor(types.get(0)), TupleTagList.of(additional)));
+        for (ClinicalEntityType type : types) {
+            ret.get(tagFor(type)).setCoder(DomainResourceCoder.of());
+        }
+        return ret;
+    }
+
+    private static class RouteFn extends DoFn<Row, DomainResource> {
+        private final ResourceProvider provider;
+        private final List<ClinicalEntityType> types;
+        private transient Map<ClinicalEntityType, SerializableFunction<Row, DomainResource>> mappers;
+
+        private RouteFn(ResourceProvider provider, List<ClinicalEntityType> types) {
+            this.provider = provider;
+            this.types = types;
+        }
+
+        @Setup
+        public void setup() {
+            mappers = new EnumMap<>(ClinicalEntityType.class);
+            for (ClinicalEntityType type : types) {
+                mappers.put(type, provider.getRowToResourceMapper(type));
+            }
+        }
+
+        @ProcessElement
+        public void processElement(@Element Row row, MultiOutputReceiver out) {
+            ClinicalEntityType type = provider.getMultiTypeRowType(row);
+            SerializableFunction<Row, DomainResource> mapper = type == null ? null : mappers.get(type);
+            if (mapper != null) {
+                out.get(tagFor(type)).output(mapper.apply(row));
+            }
+        }
+    }
+}
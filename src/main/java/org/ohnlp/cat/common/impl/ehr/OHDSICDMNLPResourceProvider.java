@@ -5,68 +5,311 @@ import org.apache.beam.sdk.transforms.SerializableFunction;
 import org.apache.beam.sdk.values.Row;
 import org.hl7.fhir.r4.model.*;
 import org.ohnlp.cat.api.criteria.ClinicalEntityType;
+import org.ohnlp.cat.api.criteria.EntityCriterion;
 import org.ohnlp.cat.api.criteria.FHIRValueLocationPath;
+import org.ohnlp.cat.api.ehr.ParameterizedQuery;
 import org.ohnlp.cat.api.ehr.ResourceProvider;
+import org.ohnlp.cat.api.ehr.StreamingOptions;
+import org.ohnlp.cat.common.impl.sql.PooledConnectionSource;
+import org.ohnlp.cat.common.impl.sql.QueryParameters;
+import org.ohnlp.cat.common.impl.sql.RangePartitioner;
+import org.ohnlp.cat.common.impl.sql.SQLCriterionPushdown;
+import org.ohnlp.cat.common.impl.sql.SQLDialect;
+import org.ohnlp.cat.common.impl.sql.WatermarkSupport;
 
 import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
 import java.util.*;
+import java.util.stream.Collectors;
 
 public class OHDSICDMNLPResourceProvider implements ResourceProvider {
+    // The date NLP was run, such that notes processed after a previous extraction are picked up regardless of note date
+    private static final Map<ClinicalEntityType, String> DEFAULT_WATERMARK_COLUMNS = new EnumMap<>(ClinicalEntityType.class);
+
+    // The CONCEPT.domain_id of NOTE_NLP concepts of each type
+    private static final Map<ClinicalEntityType, String> DOMAIN_IDS = new EnumMap<>(ClinicalEntityType.class);
+    private static final Map<String, ClinicalEntityType> TYPES_BY_DOMAIN_ID = new HashMap<>();
+    // Identifies the type of each row of a multi-type query
+    private static final ProjectedColumn DOMAIN_COLUMN = ProjectedColumn.always("c.domain_id",
+            Schema.Field.of("domain_id", Schema.FieldType.STRING));
+
+    static {
+        DOMAIN_IDS.put(ClinicalEntityType.PERSON, "NONE");
+        DOMAIN_IDS.put(ClinicalEntityType.CONDITION, "Condition");
+        DOMAIN_IDS.put(ClinicalEntityType.PROCEDURE, "Procedure");
+        DOMAIN_IDS.put(ClinicalEntityType.MEDICATION, "Drug");
+        DOMAIN_IDS.put(ClinicalEntityType.OBSERVATION, "Measurement");
+        DOMAIN_IDS.forEach((type, domainID) -> TYPES_BY_DOMAIN_ID.put(domainID, type));
+        DEFAULT_WATERMARK_COLUMNS.put(ClinicalEntityType.CONDITION, "nlp.nlp_date");
+        DEFAULT_WATERMARK_COLUMNS.put(ClinicalEntityType.PROCEDURE, "nlp.nlp_date");
+        DEFAULT_WATERMARK_COLUMNS.put(ClinicalEntityType.MEDICATION, "nlp.nlp_date");
+        DEFAULT_WATERMARK_COLUMNS.put(ClinicalEntityType.OBSERVATION, "nlp.nlp_date");
+    }
+
     private String cdmSchemaName;
     private String sourceName;
+    private Map<String, Object> config;
+    private SQLDialect dialect;
+    private int bulkBindingThreshold;
+    private RangePartitioner partitioner;
+    private StreamingOptions streamingOptions;
+    private PooledConnectionSource connections;
+    // Whether to resolve concept names via an in-memory dictionary rather than joining concept
+    private boolean useConceptDictionary;
+    private long conceptDictionaryBudgetMB;
+    private transient OMOPConceptDictionary conceptDictionary;
+    private transient boolean conceptNamesPreloaded;
+    // Whether note text is fetched on demand via a note store rather than attached to every resource
+    private boolean useNoteStore;
+    private long noteStoreBudgetMB;
+    private boolean compressNotes;
+    private transient OMOPNoteStore noteStore;
+    private Map<ClinicalEntityType, String> watermarkColumns;
+    // Value paths this provider is restricted to, or null if unprojected
+    private Set<FHIRValueLocationPath> projection;
 
     @Override
     public void init(String sourceName, Map<String, Object> config) {
         this.sourceName = sourceName;
+        this.config = config;
         this.cdmSchemaName = config.getOrDefault("schema", "cdm").toString();
+        this.dialect = SQLDialect.fromConfig(config);
+        this.bulkBindingThreshold = QueryParameters.getBulkBindingThreshold(config);
+        this.partitioner = RangePartitioner.fromConfig(dialect, config);
+        this.streamingOptions = StreamingOptions.fromConfig(config);
+        this.connections = PooledConnectionSource.fromConfig(config);
+        this.useConceptDictionary = Boolean.parseBoolean(config.getOrDefault("concept_dictionary", false).toString());
+        this.conceptDictionaryBudgetMB = Long.parseLong(config.getOrDefault("concept_dictionary_memory_mb", 64).toString());
+        this.useNoteStore = Boolean.parseBoolean(config.getOrDefault("note_store", false).toString());
+        this.noteStoreBudgetMB = Long.parseLong(config.getOrDefault("note_store_memory_mb", 64).toString());
+        this.compressNotes = Boolean.parseBoolean(config.getOrDefault("note_store_compression", false).toString());
+        this.watermarkColumns = WatermarkSupport.columnsFromConfig(config, DEFAULT_WATERMARK_COLUMNS);
+    }
+
+    @Override
+    public ResourceProvider withProjection(Set<FHIRValueLocationPath> requiredPaths) {
+        OHDSICDMNLPResourceProvider ret = new OHDSICDMNLPResourceProvider();
+        ret.init(sourceName, config);
+        ret.projection = requiredPaths.isEmpty() ?
+                EnumSet.noneOf(FHIRValueLocationPath.class) : EnumSet.copyOf(requiredPaths);
+        return ret;
     }
 
     @Override
     public String getQuery(ClinicalEntityType type) {
-        String base = "SELECT nlp.note_nlp_id, c.concept_name, nlp.note_nlp_concept_id, " +
-                "n.person_id, n.note_id, n.note_date, " +
-                "n.note_text, nlp.offset, nlp.lexical_variant " +
-                "FROM " + cdmSchemaName + ".NOTE n JOIN " + cdmSchemaName + ".NOTE_NLP nlp " +
-                "ON n.note_id = nlp.note_id AND nlp.term_exists = 'Y' " +
-                "JOIN " + cdmSchemaName + ".CONCEPT c " +
-                "ON nlp.note_nlp_concept_id = c.concept_id WHERE c.domain_id = ";
-        String domainID;
-        switch (type) {
-            case PERSON:
-                domainID = "'NONE'";
-                break;
-            case CONDITION:
-                domainID = "'Condition'";
-                break;
-            case PROCEDURE:
-                domainID = "'Procedure'";
-                break;
-            case MEDICATION:
-                domainID = "'Drug'";
-                break;
-            case OBSERVATION:
-                domainID = "'Measurement'";
-                break;
-            default:
+        String domainID = DOMAIN_IDS.get(type);
+        if (domainID == null) {
+            throw new UnsupportedOperationException("Unknown entity type " + type);
+        }
+        String base = "SELECT " + ProjectedColumn.selectList(getColumns(), projection) + " " + getNoteJoin();
+        if (useConceptDictionary) {
+            // Names are resolved via the dictionary, so concept is only needed to filter by domain
+            return base + "WHERE nlp.note_nlp_concept_id IN (SELECT c.concept_id FROM " + cdmSchemaName + ".CONCEPT c " +
+                    "WHERE c.domain_id = '" + domainID + "')";
+        }
+        return base + "JOIN " + cdmSchemaName + ".CONCEPT c " +
+                "ON nlp.note_nlp_concept_id = c.concept_id WHERE c.domain_id = '" + domainID + "'";
+    }
+
+    private String getNoteJoin() {
+        return "FROM " + cdmSchemaName + ".NOTE n JOIN " + cdmSchemaName + ".NOTE_NLP nlp " +
+                "ON n.note_id = nlp.note_id AND nlp.term_exists = 'Y' ";
+    }
+
+    /**
+     * Scans NOTE_NLP once for all given types, joining CONCEPT to filter by (and select) the union of their domains,
+     * with each type's criteria and watermark restriction applied to rows of its domain only
+     */
+    @Override
+    public ParameterizedQuery getMultiTypeQuery(Set<ClinicalEntityType> types, Collection<EntityCriterion> criteria,
+                                                Date previous, Date current) {
+        QueryParameters params = new QueryParameters(dialect, bulkBindingThreshold);
+        List<String> branches = new ArrayList<>();
+        for (ClinicalEntityType type : EnumSet.copyOf(types)) {
+            if (type.equals(ClinicalEntityType.PERSON)) {
+                // No person information is present in NOTE_NLP
+                continue;
+            }
+            String domainID = DOMAIN_IDS.get(type);
+            if (domainID == null) {
                 throw new UnsupportedOperationException("Unknown entity type " + type);
+            }
+            String predicate = getPredicate(type, criteria, previous, current, params);
+            branches.add("(c.domain_id = '" + domainID + "'" + (predicate == null ? "" : " AND (" + predicate + ")") + ")");
+        }
+        String sql = "SELECT " + ProjectedColumn.selectList(getMultiTypeColumns(), projection) + " " + getNoteJoin() +
+                "JOIN " + cdmSchemaName + ".CONCEPT c ON nlp.note_nlp_concept_id = c.concept_id WHERE " +
+                (branches.isEmpty() ? "1 = 0" : String.join(" OR ", branches));
+        return params.toQuery(sql);
+    }
+
+    @Override
+    public Schema getMultiTypeQuerySchema(Set<ClinicalEntityType> types) {
+        return ProjectedColumn.schema(getMultiTypeColumns(), projection);
+    }
+
+    @Override
+    public ClinicalEntityType getMultiTypeRowType(Row row) {
+        return TYPES_BY_DOMAIN_ID.get(row.getString("domain_id"));
+    }
+
+    private List<ProjectedColumn> getMultiTypeColumns() {
+        List<ProjectedColumn> ret = new ArrayList<>(getColumns());
+        ret.add(DOMAIN_COLUMN);
+        return ret;
+    }
+
+    private List<ProjectedColumn> getColumns() {
+        if (!useConceptDictionary && !useNoteStore) {
+            return columns;
+        }
+        // concept_name is resolved via the dictionary rather than the concept join, and note_text via the note store
+        return columns.stream()
+                .filter(c -> !(useConceptDictionary && c.getField().getName().equals("concept_name")))
+                .filter(c -> !(useNoteStore && c.getField().getName().equals("note_text")))
+                .collect(Collectors.toList());
+    }
+
+    private synchronized OMOPConceptDictionary getConceptDictionary() {
+        if (conceptDictionary == null) {
+            conceptDictionary = OMOPConceptDictionary.shared(connections, cdmSchemaName, dialect, bulkBindingThreshold,
+                    conceptDictionaryBudgetMB * 1024 * 1024);
+        }
+        return conceptDictionary;
+    }
+
+    /**
+     * @return The concept dictionary, with the concepts referenced by NOTE_NLP preloaded such that row mappers resolve
+     * names without querying CONCEPT
+     */
+    private synchronized OMOPConceptDictionary getConceptNameDictionary() {
+        if (!conceptNamesPreloaded) {
+            getConceptDictionary().preload("SELECT DISTINCT note_nlp_concept_id FROM " + cdmSchemaName + ".NOTE_NLP");
+            conceptNamesPreloaded = true;
+        }
+        return conceptDictionary;
+    }
+
+    /**
+     * @return The store from which the text of this provider's notes is fetched on demand, created on first use
+     */
+    public synchronized OMOPNoteStore getNoteStore() {
+        if (noteStore == null) {
+            noteStore = OMOPNoteStore.shared(connections, cdmSchemaName, dialect, bulkBindingThreshold,
+                    noteStoreBudgetMB * 1024 * 1024, compressNotes);
+        }
+        return noteStore;
+    }
+
+    /**
+     * Cuts an evidence snippet from the note from which a resource produced by this provider was extracted, e.g. for
+     * display when the evidence is reviewed
+     *
+     * @param contextChars The number of characters of context to include on either side of the NLP match
+     * @return The snippet, or null if the resource carries no note ID or the note does not exist
+     */
+    public String getEvidenceSnippet(DomainResource resource, int contextChars) {
+        DocumentReference docRef = (DocumentReference) resource;
+        if (!docRef.hasMasterIdentifier() || !docRef.getMasterIdentifier().hasValue()) {
+            return null;
+        }
+        String offset = null;
+        String lexicalVariant = null;
+        if (docRef.hasContained()) {
+            DomainResource contained = (DomainResource) docRef.getContained().get(0);
+            Extension offsetExtension = contained.getExtensionByUrl("nlp:offset");
+            Extension textExtension = contained.getExtensionByUrl("nlp:text");
+            offset = offsetExtension == null || !offsetExtension.hasValue() ? null : offsetExtension.getValue().primitiveValue();
+            lexicalVariant = textExtension == null || !textExtension.hasValue() ? null : textExtension.getValue().primitiveValue();
+        }
+        return getNoteStore().getSnippet(docRef.getMasterIdentifier().getValue(), offset, lexicalVariant, contextChars);
+    }
+
+    @Override
+    public ParameterizedQuery getFilteredQuery(ClinicalEntityType type, Collection<EntityCriterion> criteria) {
+        return getIncrementalQuery(type, criteria, null, null);
+    }
+
+    @Override
+    public ParameterizedQuery getIncrementalQuery(ClinicalEntityType type, Collection<EntityCriterion> criteria,
+                                                  Date previous, Date current) {
+        QueryParameters params = new QueryParameters(dialect, bulkBindingThreshold);
+        String predicate = getPredicate(type, criteria, previous, current, params);
+        if (predicate == null) {
+            return new ParameterizedQuery(getQuery(type));
+        }
+        return params.toQuery(getQuery(type) + " AND (" + predicate + ")");
+    }
+
+    /**
+     * Renders the criteria pushdown and watermark restriction for a single type, or null if unrestricted
+     */
+    private String getPredicate(ClinicalEntityType type, Collection<EntityCriterion> criteria, Date previous,
+                                Date current, QueryParameters params) {
+        Map<FHIRValueLocationPath, SQLCriterionPushdown.ValuePredicateRenderer> renderers = new EnumMap<>(FHIRValueLocationPath.class);
+        SQLCriterionPushdown.ValuePredicateRenderer conceptRenderer = SQLCriterionPushdown.integerCodes("nlp.note_nlp_concept_id");
+        if (type.equals(ClinicalEntityType.MEDICATION)) {
+            renderers.put(FHIRValueLocationPath.MEDICATION_CODE, conceptRenderer);
+        } else if (!type.equals(ClinicalEntityType.PERSON)) {
+            renderers.put(FHIRValueLocationPath.CONDITION_CODE, conceptRenderer);
+            renderers.put(FHIRValueLocationPath.PROCEDURE_CODE, conceptRenderer);
+            renderers.put(FHIRValueLocationPath.OBSERVATION_CODE, conceptRenderer);
+        }
+        String predicate = SQLCriterionPushdown.render(criteria, type, sourceName, renderers, params);
+        String watermarkColumn = watermarkColumns.get(type);
+        if (watermarkColumn != null) {
+            predicate = WatermarkSupport.and(predicate,
+                    WatermarkSupport.predicate(watermarkColumn, previous, current, params));
+        }
+        return predicate;
+    }
+
+    @Override
+    public Date getCurrentWatermark(ClinicalEntityType type, Connection conn) throws SQLException {
+        String watermarkColumn = watermarkColumns.get(type);
+        if (watermarkColumn == null) {
+            return null;
         }
-        return base + domainID;
+        return WatermarkSupport.queryWatermark(conn, "SELECT MAX(" + watermarkColumn + ") " +
+                "FROM " + cdmSchemaName + ".NOTE n JOIN " + cdmSchemaName + ".NOTE_NLP nlp ON n.note_id = nlp.note_id");
     }
 
     @Override
     public Schema getQuerySchema(ClinicalEntityType type) {
         // Schema is the same across all return types
-        return Schema.of(
-                Schema.Field.of("note_nlp_id", Schema.FieldType.INT32),
-                Schema.Field.of("concept_name", Schema.FieldType.STRING),
-                Schema.Field.of("note_nlp_concept_id", Schema.FieldType.INT32),
-                Schema.Field.of("person_id", Schema.FieldType.INT32),
-                Schema.Field.of("note_id", Schema.FieldType.STRING),
-                Schema.Field.of("note_date", Schema.FieldType.DATETIME),
-                Schema.Field.of("note_text", Schema.FieldType.STRING),
-                Schema.Field.of("offset", Schema.FieldType.STRING),
-                Schema.Field.of("lexical_variant", Schema.FieldType.STRING)
-        );
+        return ProjectedColumn.schema(getColumns(), projection);
+    }
+
+    @Override
+    public List<ParameterizedQuery> getPartitionedQueries(ClinicalEntityType type, ParameterizedQuery query,
+                                                          Connection conn) throws SQLException {
+        return partitioner.partition(query, getIndexableIDColumnName(type), conn);
+    }
+
+    @Override
+    public StreamingOptions getStreamingOptions() {
+        return streamingOptions;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return connections.getConnection();
+    }
+
+    @Override
+    public String getConnectionPoolKey() {
+        return connections.getPoolKey();
+    }
+
+    @Override
+    public int getConnectionPoolSize() {
+        return connections.getPoolSize();
+    }
+
+    @Override
+    public void close() {
+        connections.close();
     }
 
     @Override
@@ -125,6 +368,25 @@ public class OHDSICDMNLPResourceProvider implements ResourceProvider {
         return String.join(".", "contained", valueRef.getPath());
     }
 
+    @Override
+    public String getColumnForValueReference(ClinicalEntityType type, FHIRValueLocationPath valueRef) {
+        switch (type) {
+            case CONDITION:
+            case PROCEDURE:
+            case OBSERVATION:
+                return valueRef.getPath().equals("code.coding.code") ? "note_nlp_concept_id" : null;
+            case MEDICATION:
+                return valueRef.equals(FHIRValueLocationPath.MEDICATION_CODE) ? "note_nlp_concept_id" : null;
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public String getSourceName() {
+        return sourceName;
+    }
+
     @Override
     public String extractPatUIDForResource(ClinicalEntityType type, DomainResource resource) {
         // First, unbox
@@ -152,7 +414,12 @@ public class OHDSICDMNLPResourceProvider implements ResourceProvider {
         }
     }
 
-    // Row to Resource Mapping functions
+    @Override
+    public String getPatientIDColumnName(ClinicalEntityType type) {
+        return "person_id";
+    }
+
+    // Row to Resource Mapping functions. Columns not selected by a projection are left unset
     private final SerializableFunction<Row, DomainResource> personMappingFunction = (in) -> {
         return new Person(); // There is no person information supported in note_nlp at this time
     };
@@ -160,126 +427,132 @@ public class OHDSICDMNLPResourceProvider implements ResourceProvider {
     private final SerializableFunction<Row, DomainResource> conditionMappingFunction = (in) -> {
         String recordID = in.getInt32("note_nlp_id") + "";
         String personID = in.getInt32("person_id") + "";
-        String conditionConceptID = in.getInt32("note_nlp_concept_id") + "";
-        Date dtm = new Date(in.getDateTime("note_date").getMillis());
+        Date dtm = optDate(in);
         Condition cdn = new Condition();
         cdn.setId(String.join(":", sourceName, ClinicalEntityType.CONDITION.name(), recordID));
         cdn.setSubject(new Reference().setIdentifier(new Identifier().setValue(personID)));
-        cdn.setCode(
-                new CodeableConcept().addCoding(
-                        new Coding(
-                                "https://athena.ohdsi.org/",
-                                conditionConceptID,
-                                in.getString("concept_name")))
-        );
-        cdn.setRecordedDate(dtm);
-        Extension nlpExtension = cdn.addExtension();
-        nlpExtension.setUrl("nlp:offset").setValue(new StringType(in.getString("offset")));
-        Extension nlpTextExtension = cdn.addExtension();
-        nlpTextExtension.setUrl("nlp:text").setValue(new StringType(in.getString("lexical_variant")));
-        String note_id = in.getString("note_id");
-        String note_text = in.getString("note_text");
-        DocumentReference docRef = new DocumentReference();
-        docRef.setMasterIdentifier(new Identifier().setValue(note_id + ""));
-        docRef.setDate(dtm);
-        docRef.setId(String.join(":", sourceName, ClinicalEntityType.CONDITION.name(), recordID));
-        docRef.addContent().setAttachment(new Attachment().setData(note_text.getBytes(StandardCharsets.UTF_8)));
-        docRef.addContained(cdn);
-        return docRef;
+        if (in.getSchema().hasField("note_nlp_concept_id")) {
+            cdn.setCode(toCodeableConcept(in));
+        }
+        if (dtm != null) {
+            cdn.setRecordedDate(dtm);
+        }
+        addNLPExtensions(in, cdn);
+        return toDocumentReference(in, ClinicalEntityType.CONDITION, recordID, dtm, cdn);
     };
 
     private final SerializableFunction<Row, DomainResource> medicationMappingFunction = (in) -> {
         String recordID = in.getInt32("note_nlp_id") + "";
         String personID = in.getInt32("person_id") + "";
-        String drugConceptId = in.getInt32("note_nlp_concept_id") + "";
-        Date dtm = new Date(in.getDateTime("note_date").getMillis());
+        Date dtm = optDate(in);
         // TODO see about mapping date ends? there doesn't seem to currently be a target in FHIR somehow (or am just blind)
         MedicationStatement ms = new MedicationStatement();
         ms.setId(String.join(":", sourceName, ClinicalEntityType.MEDICATION.name(), recordID));
         ms.setSubject(new Reference().setIdentifier(new Identifier().setValue(personID)));
-        ms.setMedication(
-                new CodeableConcept().addCoding(
-                        new Coding(
-                                "https://athena.ohdsi.org/",
-                                drugConceptId,
-                                in.getString("concept_name")))
-        );
-        ms.setDateAsserted(dtm);
-        Extension nlpExtension = ms.addExtension();
-        nlpExtension.setUrl("nlp:offset").setValue(new StringType(in.getString("offset")));
-        Extension nlpTextExtension = ms.addExtension();
-        nlpTextExtension.setUrl("nlp:text").setValue(new StringType(in.getString("lexical_variant")));
-
-        String note_id = in.getString("note_id");
-        String note_text = in.getString("note_text");
-        DocumentReference docRef = new DocumentReference();
-        docRef.setMasterIdentifier(new Identifier().setValue(note_id + ""));
-        docRef.setDate(dtm);
-        docRef.setId(String.join(":", sourceName, ClinicalEntityType.MEDICATION.name(), recordID));
-        docRef.addContent().setAttachment(new Attachment().setData(note_text.getBytes(StandardCharsets.UTF_8)));
-        docRef.addContained(ms);
-        return docRef;
+        if (in.getSchema().hasField("note_nlp_concept_id")) {
+            ms.setMedication(toCodeableConcept(in));
+        }
+        if (dtm != null) {
+            ms.setDateAsserted(dtm);
+        }
+        addNLPExtensions(in, ms);
+        return toDocumentReference(in, ClinicalEntityType.MEDICATION, recordID, dtm, ms);
     };
 
     private final SerializableFunction<Row, DomainResource> procedureMappingFUnction = (in) -> {
         String recordID = in.getInt32("note_nlp_id") + "";
         String personID = in.getInt32("person_id") + "";
-        String conceptID = in.getInt32("note_nlp_concept_id") + "";
-        Date dtm = new Date(in.getDateTime("note_date").getMillis());
+        Date dtm = optDate(in);
         Procedure prc = new Procedure();
         prc.setId(String.join(":", sourceName, ClinicalEntityType.PROCEDURE.name(), recordID));
         prc.setSubject(new Reference().setIdentifier(new Identifier().setValue(personID)));
-        prc.setCode(
-                new CodeableConcept().addCoding(
-                        new Coding(
-                                "https://athena.ohdsi.org/",
-                                conceptID,
-                                in.getString("concept_name")))
-        );
-        prc.setPerformed(new DateTimeType(dtm));
-        Extension nlpExtension = prc.addExtension();
-        nlpExtension.setUrl("nlp:offset").setValue(new StringType(in.getString("offset")));
-        Extension nlpTextExtension = prc.addExtension();
-        nlpTextExtension.setUrl("nlp:text").setValue(new StringType(in.getString("lexical_variant")));
-        String note_id = in.getString("note_id");
-        String note_text = in.getString("note_text");
-        DocumentReference docRef = new DocumentReference();
-        docRef.setMasterIdentifier(new Identifier().setValue(note_id + ""));
-        docRef.setDate(dtm);
-        docRef.setId(String.join(":", sourceName, ClinicalEntityType.PROCEDURE.name(), recordID));
-        docRef.addContent().setAttachment(new Attachment().setData(note_text.getBytes(StandardCharsets.UTF_8)));
-        docRef.addContained(prc);
-        return docRef;
+        if (in.getSchema().hasField("note_nlp_concept_id")) {
+            prc.setCode(toCodeableConcept(in));
+        }
+        if (dtm != null) {
+            prc.setPerformed(new DateTimeType(dtm));
+        }
+        addNLPExtensions(in, prc);
+        return toDocumentReference(in, ClinicalEntityType.PROCEDURE, recordID, dtm, prc);
     };
 
     private final SerializableFunction<Row, DomainResource> observationMappingFunction = (in) -> {
         String recordID = in.getInt32("note_nlp_id") + "";
         String personID = in.getInt32("person_id") + "";
-        String conceptID = in.getInt32("note_nlp_concept_id") + "";
-        Date dtm = new Date(in.getDateTime("note_date").getMillis());
+        Date dtm = optDate(in);
         Observation obs = new Observation();
         obs.setId(String.join(":", sourceName, ClinicalEntityType.OBSERVATION.name(), recordID));
         obs.setSubject(new Reference().setIdentifier(new Identifier().setValue(personID)));
-        obs.setCode(
-                new CodeableConcept().addCoding(
-                        new Coding(
-                                "https://athena.ohdsi.org/",
-                                conceptID,
-                                in.getString("concept_name")))
-        );
-        obs.setIssued(dtm);
-        Extension nlpExtension = obs.addExtension();
-        nlpExtension.setUrl("nlp:offset").setValue(new StringType(in.getString("offset")));
-        Extension nlpTextExtension = obs.addExtension();
-        nlpTextExtension.setUrl("nlp:text").setValue(new StringType(in.getString("lexical_variant")));
-        String note_id = in.getString("note_id");
-        String note_text = in.getString("note_text");
+        if (in.getSchema().hasField("note_nlp_concept_id")) {
+            obs.setCode(toCodeableConcept(in));
+        }
+        if (dtm != null) {
+            obs.setIssued(dtm);
+        }
+        addNLPExtensions(in, obs);
+        return toDocumentReference(in, ClinicalEntityType.OBSERVATION, recordID, dtm, obs);
+    };
+
+    private static Date optDate(Row in) {
+        return in.getSchema().hasField("note_date") ? new Date(in.getDateTime("note_date").getMillis()) : null;
+    }
+
+    private CodeableConcept toCodeableConcept(Row in) {
+        int conceptID = in.getInt32("note_nlp_concept_id");
+        String conceptName = null;
+        if (in.getSchema().hasField("concept_name")) {
+            conceptName = in.getString("concept_name");
+        } else if (useConceptDictionary && projection == null) {
+            conceptName = getConceptNameDictionary().getConceptName(conceptID);
+        }
+        return new CodeableConcept().addCoding(
+                new Coding(
+                        "https://athena.ohdsi.org/",
+                        conceptID + "",
+                        conceptName));
+    }
+
+    private static void addNLPExtensions(Row in, DomainResource resource) {
+        if (in.getSchema().hasField("offset")) {
+            Extension nlpExtension = resource.addExtension();
+            nlpExtension.setUrl("nlp:offset").setValue(new StringType(in.getString("offset")));
+        }
+        if (in.getSchema().hasField("lexical_variant")) {
+            Extension nlpTextExtension = resource.addExtension();
+            nlpTextExtension.setUrl("nlp:text").setValue(new StringType(in.getString("lexical_variant")));
+        }
+    }
+
+    private DocumentReference toDocumentReference(Row in, ClinicalEntityType type, String recordID, Date dtm, DomainResource contained) {
         DocumentReference docRef = new DocumentReference();
-        docRef.setDate(dtm);
-        docRef.setMasterIdentifier(new Identifier().setValue(note_id + ""));
-        docRef.setId(String.join(":", sourceName, ClinicalEntityType.OBSERVATION.name(), recordID));
-        docRef.addContent().setAttachment(new Attachment().setData(note_text.getBytes(StandardCharsets.UTF_8)));
-        docRef.addContained(obs);
+        if (in.getSchema().hasField("note_id")) {
+            String note_id = in.getString("note_id");
+            docRef.setMasterIdentifier(new Identifier().setValue(note_id + ""));
+        }
+        if (dtm != null) {
+            docRef.setDate(dtm);
+        }
+        docRef.setId(String.join(":", sourceName, type.name(), recordID));
+        if (in.getSchema().hasField("note_text")) {
+            String note_text = in.getString("note_text");
+            docRef.addContent().setAttachment(new Attachment().setData(note_text.getBytes(StandardCharsets.UTF_8)));
+        }
+        docRef.addContained(contained);
         return docRef;
-    };
+    }
+
+    // Query result columns, shared across all return types
+    private static final List<ProjectedColumn> columns = Arrays.asList(
+            ProjectedColumn.always("nlp.note_nlp_id", Schema.Field.of("note_nlp_id", Schema.FieldType.INT32)),
+            ProjectedColumn.fullOnly("c.concept_name", Schema.Field.of("concept_name", Schema.FieldType.STRING)),
+            ProjectedColumn.forPaths("nlp.note_nlp_concept_id", Schema.Field.of("note_nlp_concept_id", Schema.FieldType.INT32),
+                    FHIRValueLocationPath.CONDITION_CODE, FHIRValueLocationPath.PROCEDURE_CODE,
+                    FHIRValueLocationPath.MEDICATION_CODE, FHIRValueLocationPath.OBSERVATION_CODE),
+            ProjectedColumn.always("n.person_id", Schema.Field.of("person_id", Schema.FieldType.INT32)),
+            ProjectedColumn.fullOnly("n.note_id", Schema.Field.of("note_id", Schema.FieldType.STRING)),
+            ProjectedColumn.fullOnly("n.note_date", Schema.Field.of("note_date", Schema.FieldType.DATETIME)),
+            ProjectedColumn.fullOnly("n.note_text", Schema.Field.of("note_text", Schema.FieldType.STRING)),
+            ProjectedColumn.fullOnly("nlp.offset", Schema.Field.of("offset", Schema.FieldType.STRING)),
+            ProjectedColumn.fullOnly("nlp.lexical_variant", Schema.Field.of("lexical_variant", Schema.FieldType.STRING))
+    );
 }
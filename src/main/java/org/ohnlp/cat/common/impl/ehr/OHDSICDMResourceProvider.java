@@ -5,92 +5,308 @@ import org.apache.beam.sdk.transforms.SerializableFunction;
 import org.apache.beam.sdk.values.Row;
 import org.hl7.fhir.r4.model.*;
 import org.ohnlp.cat.api.criteria.ClinicalEntityType;
+import org.ohnlp.cat.api.criteria.EntityCriterion;
 import org.ohnlp.cat.api.criteria.FHIRValueLocationPath;
+import org.ohnlp.cat.api.criteria.prepared.PreparedEntityValue;
+import org.ohnlp.cat.api.ehr.ParameterizedQuery;
 import org.ohnlp.cat.api.ehr.ResourceProvider;
+import org.ohnlp.cat.api.ehr.StreamingOptions;
+import org.ohnlp.cat.common.impl.sql.PooledConnectionSource;
+import org.ohnlp.cat.common.impl.sql.QueryParameters;
+import org.ohnlp.cat.common.impl.sql.RangePartitioner;
+import org.ohnlp.cat.common.impl.sql.SQLCriterionPushdown;
+import org.ohnlp.cat.common.impl.sql.SQLDialect;
+import org.ohnlp.cat.common.impl.sql.WatermarkSupport;
 
 import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.time.LocalDate;
 import java.util.*;
+import java.util.stream.Collectors;
 
 public class OHDSICDMResourceProvider implements ResourceProvider {
 
+    private static final FHIRValueLocationPath[] CODE_PATHS = {
+            FHIRValueLocationPath.CONDITION_CODE,
+            FHIRValueLocationPath.PROCEDURE_CODE,
+            FHIRValueLocationPath.OBSERVATION_CODE
+    };
+
     private String cdmSchemaName;
-    private Connection conn;
     private String sourceName;
+    private Map<String, Object> config;
+    private SQLDialect dialect;
+    private int bulkBindingThreshold;
+    private RangePartitioner partitioner;
+    private StreamingOptions streamingOptions;
+    private PooledConnectionSource connections;
+    // Whether to resolve concept names via an in-memory dictionary rather than joining concept
+    private boolean useConceptDictionary;
+    private long conceptDictionaryBudgetMB;
+    private transient OMOPConceptDictionary conceptDictionary;
+    // The types for which the concepts referenced by their table have been preloaded
+    private transient Set<ClinicalEntityType> conceptNamesPreloaded;
+    private boolean expandDescendants;
+    private transient OMOPConceptAncestorIndex ancestorIndex;
+    private Map<ClinicalEntityType, String> watermarkColumns;
+    // Value paths this provider is restricted to, or null if unprojected
+    private Set<FHIRValueLocationPath> projection;
 
     @Override
     public void init(String sourceName, Map<String, Object> config) {
         this.sourceName = sourceName;
+        this.config = config;
         this.cdmSchemaName = config.getOrDefault("schema", "cdm").toString();
+        this.dialect = SQLDialect.fromConfig(config);
+        this.bulkBindingThreshold = QueryParameters.getBulkBindingThreshold(config);
+        this.partitioner = RangePartitioner.fromConfig(dialect, config);
+        this.streamingOptions = StreamingOptions.fromConfig(config);
+        this.connections = PooledConnectionSource.fromConfig(config);
+        this.useConceptDictionary = Boolean.parseBoolean(config.getOrDefault("concept_dictionary", false).toString());
+        this.conceptDictionaryBudgetMB = Long.parseLong(config.getOrDefault("concept_dictionary_memory_mb", 64).toString());
+        this.expandDescendants = Boolean.parseBoolean(config.getOrDefault("concept_ancestor_index", false).toString());
+        // Record dates miss rows loaded after a previous extraction but dated before it, so only ETL load timestamps
+        // configured via watermark_columns are used. Types without one are extracted in full
+        this.watermarkColumns = WatermarkSupport.columnsFromConfig(config, Collections.emptyMap());
+    }
+
+    @Override
+    public ResourceProvider withProjection(Set<FHIRValueLocationPath> requiredPaths) {
+        OHDSICDMResourceProvider ret = new OHDSICDMResourceProvider();
+        ret.init(sourceName, config);
+        ret.projection = requiredPaths.isEmpty() ?
+                EnumSet.noneOf(FHIRValueLocationPath.class) : EnumSet.copyOf(requiredPaths);
+        return ret;
     }
 
     @Override
     public String getQuery(ClinicalEntityType type) {
+        String select = "SELECT " + ProjectedColumn.selectList(getColumns(type), projection) + " FROM ";
+        // concept_name is display-only, so the concept join can be skipped entirely for projected queries
+        switch (type) {
+            case PERSON:
+                return select + getTable(type);
+            case CONDITION:
+                return select + getTable(type) + conceptJoin("co.condition_concept_id");
+            case PROCEDURE:
+                return select + getTable(type) + conceptJoin("p.procedure_concept_id");
+            case MEDICATION:
+                return select + getTable(type) + conceptJoin("d.drug_concept_id");
+            case OBSERVATION:
+                return select + getTable(type) + conceptJoin("m.measurement_concept_id");
+            default:
+                throw new UnsupportedOperationException("Unknown clinical entity type " + type);
+        }
+    }
+
+    private String getTable(ClinicalEntityType type) {
+        switch (type) {
+            case PERSON:
+                return cdmSchemaName + ".person";
+            case CONDITION:
+                return cdmSchemaName + ".condition_occurrence co";
+            case PROCEDURE:
+                return cdmSchemaName + ".procedure_occurrence p";
+            case MEDICATION:
+                return cdmSchemaName + ".drug_exposure d";
+            case OBSERVATION:
+                return cdmSchemaName + ".measurement m";
+            default:
+                throw new UnsupportedOperationException("Unknown clinical entity type " + type);
+        }
+    }
+
+    private String conceptJoin(String conceptIDColumn) {
+        if (projection != null || useConceptDictionary) {
+            return "";
+        }
+        return " JOIN " + cdmSchemaName + ".concept c ON " + conceptIDColumn + " = c.concept_id";
+    }
+
+    @Override
+    public ParameterizedQuery getFilteredQuery(ClinicalEntityType type, Collection<EntityCriterion> criteria) {
+        return getIncrementalQuery(type, criteria, null, null);
+    }
+
+    @Override
+    public ParameterizedQuery getIncrementalQuery(ClinicalEntityType type, Collection<EntityCriterion> criteria,
+                                                  Date previous, Date current) {
+        QueryParameters params = new QueryParameters(dialect, bulkBindingThreshold);
+        String predicate = SQLCriterionPushdown.render(criteria, type, sourceName, getPushdownRenderers(type), params);
+        String watermarkColumn = watermarkColumns.get(type);
+        if (watermarkColumn != null) {
+            predicate = WatermarkSupport.and(predicate,
+                    WatermarkSupport.predicate(watermarkColumn, previous, current, params));
+        }
+        if (predicate == null) {
+            return new ParameterizedQuery(getQuery(type));
+        }
+        return params.toQuery(getQuery(type) + " WHERE " + predicate);
+    }
+
+    @Override
+    public Date getCurrentWatermark(ClinicalEntityType type, Connection conn) throws SQLException {
+        String watermarkColumn = watermarkColumns.get(type);
+        if (watermarkColumn == null) {
+            return null;
+        }
+        return WatermarkSupport.queryWatermark(conn, "SELECT MAX(" + watermarkColumn + ") FROM " + getTable(type));
+    }
+
+    private Map<FHIRValueLocationPath, SQLCriterionPushdown.ValuePredicateRenderer> getPushdownRenderers(ClinicalEntityType type) {
+        Map<FHIRValueLocationPath, SQLCriterionPushdown.ValuePredicateRenderer> ret = new EnumMap<>(FHIRValueLocationPath.class);
         switch (type) {
             case PERSON:
-                return "SELECT person_id, " +
-                        "gender_concept_id, " +
-                        "year_of_birth, " +
-                        "month_of_birth," +
-                        "day_of_birth," +
-                        "race_concept_id," +
-                        "ethnicity_concept_id" +
-                        " FROM " + cdmSchemaName + ".person ";
+                ret.put(FHIRValueLocationPath.PERSON_GENDER, (value, codes, params) -> genderPredicate(value));
+                ret.put(FHIRValueLocationPath.PERSON_DOB, (value, codes, params) -> birthYearPredicate(value, params));
+                break;
             case CONDITION:
-                return "SELECT co.condition_occurrence_id, " +
-                        "co.person_id, " +
-                        "co.condition_concept_id, " +
-                        "c.concept_name," +
-                        "co.condition_start_date FROM " +
-                        cdmSchemaName + ".condition_occurrence co JOIN " + cdmSchemaName + ".concept c " +
-                        "ON co.condition_concept_id = c.concept_id";
+                putCodePaths(ret, SQLCriterionPushdown.integerCodes("co.condition_concept_id"));
+                break;
             case PROCEDURE:
-                return "SELECT p.procedure_occurrence_id, " +
-                        "p.person_id, " +
-                        "p.procedure_concept_id, " +
-                        "c.concept_name, " +
-                        "p.procedure_date FROM " +
-                        cdmSchemaName + ".procedure_occurrence p JOIN " + cdmSchemaName + ".concept c " +
-                        "ON p.procedure_concept_id = c.concept_id";
+                putCodePaths(ret, SQLCriterionPushdown.integerCodes("p.procedure_concept_id"));
+                break;
             case MEDICATION:
-                return "SELECT d.drug_exposure_id, " +
-                        "d.person_id, " +
-                        "d.drug_concept_id, " +
-                        "c.concept_name, " +
-                        "d.drug_exposure_start_date," +
-                        "d.drug_exposure_end_date FROM " +
-                        cdmSchemaName + ".drug_exposure d JOIN " + cdmSchemaName + ".concept c " +
-                        "ON d.drug_concept_id = c.concept_id";
+                ret.put(FHIRValueLocationPath.MEDICATION_CODE, SQLCriterionPushdown.integerCodes("d.drug_concept_id"));
+                break;
             case OBSERVATION:
-                return "SELECT m.measurement_id, " +
-                        "m.person_id, " +
-                        "m.measurement_concept_id, " +
-                        "c.concept_name, " +
-                        "m.measurement_date," +
-                        "m.value_as_number," +
-                        "m.value_as_concept_id FROM " +
-                        cdmSchemaName + ".measurement m JOIN " + cdmSchemaName + ".concept c " +
-                        "ON m.measurement_concept_id = c.concept_id";
+                putCodePaths(ret, SQLCriterionPushdown.integerCodes("m.measurement_concept_id"));
+                ret.put(FHIRValueLocationPath.OBSERVATION_VALUE, (value, codes, params) -> {
+                    double[] operands = value.getNumericOperands();
+                    if (operands == null) {
+                        return null;
+                    }
+                    String range = SQLCriterionPushdown.rangePredicate("m.value_as_number", value.getReln(), operands, params);
+                    // Values fall back to value_as_concept_id when value_as_number is absent
+                    return range == null ? null :
+                            "(" + range + ") OR (m.value_as_number IS NULL AND m.value_as_concept_id IS NOT NULL)";
+                });
+                break;
             default:
                 throw new UnsupportedOperationException("Unknown clinical entity type " + type);
         }
+        return ret;
+    }
+
+    // Conditions, procedures and measurements all share the code.coding.code path
+    private static void putCodePaths(Map<FHIRValueLocationPath, SQLCriterionPushdown.ValuePredicateRenderer> renderers,
+                                     SQLCriterionPushdown.ValuePredicateRenderer renderer) {
+        renderers.put(FHIRValueLocationPath.CONDITION_CODE, renderer);
+        renderers.put(FHIRValueLocationPath.PROCEDURE_CODE, renderer);
+        renderers.put(FHIRValueLocationPath.OBSERVATION_CODE, renderer);
+    }
+
+    private static String genderPredicate(PreparedEntityValue value) {
+        boolean male = false;
+        boolean female = false;
+        for (String operand : value.getStringOperands()) {
+            if (operand.equalsIgnoreCase(Enumerations.AdministrativeGender.MALE.toCode())) {
+                male = true;
+            } else if (operand.equalsIgnoreCase(Enumerations.AdministrativeGender.FEMALE.toCode())) {
+                female = true;
+            } else {
+                return null;
+            }
+        }
+        // Mirrors personMappingFunction: 0 is null, 8507 male, anything else female
+        if (male && female) {
+            return "gender_concept_id <> 0";
+        } else if (male) {
+            return "gender_concept_id = 8507";
+        } else if (female) {
+            return "gender_concept_id NOT IN (0, 8507)";
+        }
+        return null;
+    }
+
+    private static String birthYearPredicate(PreparedEntityValue value, QueryParameters params) {
+        long[] operands = value.getDateOperands();
+        if (operands == null || operands.length == 0) {
+            return null;
+        }
+        // Birth dates are assembled from year/month/day_of_birth, so filter on year_of_birth alone, widened
+        // by a year in either direction to allow for lenient roll-over of out of range month/day values
+        int first = LocalDate.ofEpochDay(operands[0]).getYear();
+        int last = LocalDate.ofEpochDay(operands[operands.length - 1]).getYear();
+        switch (value.getReln()) {
+            case LT:
+            case LTE:
+                params.add(first + 1);
+                return "year_of_birth <= ?";
+            case GT:
+            case GTE:
+                params.add(first - 1);
+                return "year_of_birth >= ?";
+            case EQ:
+            case BETWEEN:
+            case IN:
+                params.add(first - 1);
+                params.add(last + 1);
+                return "year_of_birth BETWEEN ? AND ?";
+            default:
+                return null;
+        }
     }
 
     @Override
     public Schema getQuerySchema(ClinicalEntityType type) {
+        return ProjectedColumn.schema(getColumns(type), projection);
+    }
+
+    @Override
+    public List<ParameterizedQuery> getPartitionedQueries(ClinicalEntityType type, ParameterizedQuery query,
+                                                          Connection conn) throws SQLException {
+        return partitioner.partition(query, getIndexableIDColumnName(type), conn);
+    }
+
+    @Override
+    public StreamingOptions getStreamingOptions() {
+        return streamingOptions;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return connections.getConnection();
+    }
+
+    @Override
+    public String getConnectionPoolKey() {
+        return connections.getPoolKey();
+    }
+
+    @Override
+    public int getConnectionPoolSize() {
+        return connections.getPoolSize();
+    }
+
+    @Override
+    public void close() {
+        connections.close();
+    }
+
+    private List<ProjectedColumn> getColumns(ClinicalEntityType type) {
+        List<ProjectedColumn> columns = getJoinedColumns(type);
+        if (useConceptDictionary) {
+            // concept_name is resolved via the dictionary rather than the concept join
+            return columns.stream()
+                    .filter(c -> !c.getField().getName().equals("concept_name"))
+                    .collect(Collectors.toList());
+        }
+        return columns;
+    }
+
+    private static List<ProjectedColumn> getJoinedColumns(ClinicalEntityType type) {
         switch (type) {
             case PERSON:
-                return personSchema;
+                return personColumns;
             case CONDITION:
-                return conditionSchema;
+                return conditionColumns;
             case PROCEDURE:
-                return procedureSchema;
+                return procedureColumns;
             case MEDICATION:
-                return medicationSchema;
+                return medicationColumns;
             case OBSERVATION:
-                return observationSchema;
+                return observationColumns;
             default:
                 throw new UnsupportedOperationException("Unknown clinical entity type " + type);
         }
@@ -152,26 +368,73 @@ public class OHDSICDMResourceProvider implements ResourceProvider {
 
     @Override
     public Set<String> convertToLocalTerminology(ClinicalEntityType type, String input) {
-        Set<String> resultCodes = new HashSet<>();
         // Only EQ and IN operations are supported for _CODE paths, so we can just flat expand
         // the resulting values
-        try {
-            PreparedStatement lookupPS = conn.prepareStatement("SELECT concept_id FROM cdm.CONCEPT WHERE concept_code = ?");
-            lookupPS.setString(1, input.toUpperCase(Locale.ROOT));
-            ResultSet rs = lookupPS.executeQuery();
-            while (rs.next()) {
-                resultCodes.add(rs.getInt("concept_id") + "");
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
-            throw new RuntimeException(e); // TODO
-        }
+        Set<String> resultCodes = convertToLocalTerminology(type, Collections.singleton(input)).get(input);
         if (resultCodes.size() == 0) {
             throw new RuntimeException("Vocab expansion resulted in 0 terms!"); // TODO
         }
         return resultCodes;
     }
 
+    @Override
+    public Map<String, Set<String>> convertToLocalTerminology(ClinicalEntityType type, Collection<String> inputs) {
+        Map<String, Set<String>> ret = new HashMap<>();
+        Map<String, List<String>> inputsByCode = new HashMap<>();
+        for (String input : inputs) {
+            ret.put(input, new HashSet<>());
+            inputsByCode.computeIfAbsent(input.toUpperCase(Locale.ROOT), k -> new ArrayList<>()).add(input);
+        }
+        if (inputsByCode.isEmpty()) {
+            return ret;
+        }
+        // Resolves all uncached codes in a single round trip
+        getConceptDictionary().getConceptIDsByCode(inputsByCode.keySet()).forEach((code, conceptIDs) -> {
+            if (expandDescendants) {
+                conceptIDs = getAncestorIndex().getDescendants(conceptIDs);
+            }
+            for (String input : inputsByCode.get(code)) {
+                for (long conceptID : conceptIDs) {
+                    ret.get(input).add(conceptID + "");
+                }
+            }
+        });
+        return ret;
+    }
+
+    /**
+     * @return The concept ancestor closure of this provider's CDM, loaded on first use
+     */
+    public synchronized OMOPConceptAncestorIndex getAncestorIndex() {
+        if (ancestorIndex == null) {
+            ancestorIndex = OMOPConceptAncestorIndex.shared(connections, cdmSchemaName);
+        }
+        return ancestorIndex;
+    }
+
+    private synchronized OMOPConceptDictionary getConceptDictionary() {
+        if (conceptDictionary == null) {
+            conceptDictionary = OMOPConceptDictionary.shared(connections, cdmSchemaName, dialect, bulkBindingThreshold,
+                    conceptDictionaryBudgetMB * 1024 * 1024);
+        }
+        return conceptDictionary;
+    }
+
+    /**
+     * @return The concept dictionary, with the concepts referenced by the table of the given type preloaded such that
+     * row mappers resolve names without querying CONCEPT. Only the table being mapped is scanned, as workers mapping
+     * a single type would otherwise read the concept IDs of every event table
+     */
+    private synchronized OMOPConceptDictionary getConceptNameDictionary(ClinicalEntityType type, String conceptIDField) {
+        if (conceptNamesPreloaded == null) {
+            conceptNamesPreloaded = EnumSet.noneOf(ClinicalEntityType.class);
+        }
+        if (conceptNamesPreloaded.add(type)) {
+            getConceptDictionary().preload("SELECT DISTINCT " + conceptIDField + " FROM " + getTable(type));
+        }
+        return conceptDictionary;
+    }
+
     @Override
     public Object[] parseIDTagToParams(ClinicalEntityType type, String evidenceUID) {
         return new Object[] {Long.parseLong(evidenceUID)}; // TODO not all types might be long
@@ -182,6 +445,29 @@ public class OHDSICDMResourceProvider implements ResourceProvider {
         return valueRef.getPath();
     }
 
+    @Override
+    public String getColumnForValueReference(ClinicalEntityType type, FHIRValueLocationPath valueRef) {
+        // Only concept IDs are copied unchanged, other paths being derived from (e.g. gender concept IDs) or
+        // combining (e.g. birth dates) columns
+        switch (type) {
+            case CONDITION:
+                return valueRef.getPath().equals("code.coding.code") ? "condition_concept_id" : null;
+            case PROCEDURE:
+                return valueRef.getPath().equals("code.coding.code") ? "procedure_concept_id" : null;
+            case OBSERVATION:
+                return valueRef.getPath().equals("code.coding.code") ? "measurement_concept_id" : null;
+            case MEDICATION:
+                return valueRef.equals(FHIRValueLocationPath.MEDICATION_CODE) ? "drug_concept_id" : null;
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public String getSourceName() {
+        return sourceName;
+    }
+
     @Override
     public String extractPatUIDForResource(ClinicalEntityType type, DomainResource r) {
         switch (type) {
@@ -206,37 +492,44 @@ public class OHDSICDMResourceProvider implements ResourceProvider {
         }
     }
 
-    // Row to Resource Mapping functions
+    @Override
+    public String getPatientIDColumnName(ClinicalEntityType type) {
+        return "person_id";
+    }
+
+    // Row to Resource Mapping functions. Columns not selected by a projection are left unset
     private final SerializableFunction<Row, DomainResource> personMappingFunction = (in) -> {
         String personID = in.getInt32("person_id") + "";
-        int genderConceptId = in.getInt32("gender_concept_id");
-        int birthyr = in.getInt32("year_of_birth");
-        int birthmnth = in.getInt32("month_of_birth");
-        int birthday = in.getInt32("day_of_birth");
-        int raceConceptId = in.getInt32("race_concept_id");
-        int ethnicityConceptId = in.getInt32("ethnicity_concept_id");
         Person p = new Person();
         p.setId(String.join(":", sourceName, ClinicalEntityType.PERSON.name(), personID));
-        switch (genderConceptId) {
-            case 0:
-                p.setGender(Enumerations.AdministrativeGender.NULL);
-                break;
-            case 8507:
-                p.setGender(Enumerations.AdministrativeGender.MALE);
-                break;
-            case 8532:
-                p.setGender(Enumerations.AdministrativeGender.FEMALE);
-                break;
-            default:
-                p.setGender(Enumerations.AdministrativeGender.UNKNOWN);
-                break;
+        if (in.getSchema().hasField("gender_concept_id")) {
+            int genderConceptId = in.getInt32("gender_concept_id");
+            switch (genderConceptId) {
+                case 0:
+                    p.setGender(Enumerations.AdministrativeGender.NULL);
+                    break;
+                case 8507:
+                    p.setGender(Enumerations.AdministrativeGender.MALE);
+                    break;
+                case 8532:
+                    p.setGender(Enumerations.AdministrativeGender.FEMALE);
+                    break;
+                default:
+                    p.setGender(Enumerations.AdministrativeGender.UNKNOWN);
+                    break;
+            }
+            p.setGender(genderConceptId == 0 ? // Only accepted values are 8507/8532, leave 0 as null fallback
+                    Enumerations.AdministrativeGender.NULL :
+                    (genderConceptId == 8507 ?
+                            Enumerations.AdministrativeGender.MALE :
+                            Enumerations.AdministrativeGender.FEMALE));
+        }
+        if (in.getSchema().hasField("year_of_birth")) {
+            int birthyr = in.getInt32("year_of_birth");
+            int birthmnth = in.getInt32("month_of_birth");
+            int birthday = in.getInt32("day_of_birth");
+            p.setBirthDate(new GregorianCalendar(birthyr, birthmnth - 1, birthday).getTime());
         }
-        p.setGender(genderConceptId == 0 ? // Only accepted values are 8507/8532, leave 0 as null fallback
-                Enumerations.AdministrativeGender.NULL :
-                (genderConceptId == 8507 ?
-                        Enumerations.AdministrativeGender.MALE :
-                        Enumerations.AdministrativeGender.FEMALE));
-        p.setBirthDate(new GregorianCalendar(birthyr, birthmnth - 1, birthday).getTime());
         // TODO seems race and ethnicity not mapped to FHIR person? investigate where else this is.
         return p;
     };
@@ -244,136 +537,142 @@ public class OHDSICDMResourceProvider implements ResourceProvider {
     private final SerializableFunction<Row, DomainResource> conditionMappingFunction = (in) -> {
         String recordID = in.getInt32("condition_occurrence_id") + "";
         String personID = in.getInt32("person_id") + "";
-        String conditionConceptID = in.getInt32("condition_concept_id") + "";
-        Date dtm = new Date(in.getDateTime("condition_start_date").getMillis());
         Condition cdn = new Condition();
         cdn.setId(String.join(":", sourceName, ClinicalEntityType.CONDITION.name(), recordID));
         cdn.setSubject(new Reference().setIdentifier(new Identifier().setValue(personID)));
-        cdn.setCode(
-                new CodeableConcept().addCoding(
-                        new Coding(
-                                "https://athena.ohdsi.org/",
-                                conditionConceptID,
-                                in.getString("concept_name")))
-        );
-        cdn.setRecordedDate(dtm);
+        if (in.getSchema().hasField("condition_concept_id")) {
+            cdn.setCode(toCodeableConcept(in, ClinicalEntityType.CONDITION, "condition_concept_id"));
+        }
+        if (in.getSchema().hasField("condition_start_date")) {
+            cdn.setRecordedDate(new Date(in.getDateTime("condition_start_date").getMillis()));
+        }
         return cdn;
     };
 
     private final SerializableFunction<Row, DomainResource> medicationMappingFunction = (in) -> {
         String recordID = in.getInt32("drug_exposure_id") + "";
         String personID = in.getInt32("person_id") + "";
-        String drugConceptId = in.getInt32("drug_concept_id") + "";
-        Date dtm = new Date(in.getDateTime("drug_exposure_start_date").getMillis());
         // TODO see about mapping date ends? there doesn't seem to currently be a target in FHIR somehow (or am just blind)
         MedicationStatement ms = new MedicationStatement();
         ms.setId(String.join(":", sourceName, ClinicalEntityType.MEDICATION.name(), recordID));
         ms.setSubject(new Reference().setIdentifier(new Identifier().setValue(personID)));
-        ms.setMedication(
-                new CodeableConcept().addCoding(
-                        new Coding(
-                                "https://athena.ohdsi.org/",
-                                drugConceptId,
-                                in.getString("concept_name")))
-        );
-        ms.setDateAsserted(dtm);
+        if (in.getSchema().hasField("drug_concept_id")) {
+            ms.setMedication(toCodeableConcept(in, ClinicalEntityType.MEDICATION, "drug_concept_id"));
+        }
+        if (in.getSchema().hasField("drug_exposure_start_date")) {
+            ms.setDateAsserted(new Date(in.getDateTime("drug_exposure_start_date").getMillis()));
+        }
         return ms;
     };
 
     private final SerializableFunction<Row, DomainResource> procedureMappingFunction = (in) -> {
         String recordID = in.getInt32("procedure_occurrence_id") + "";
         String personID = in.getInt32("person_id") + "";
-        String conceptID = in.getInt32("procedure_concept_id") + "";
-        Date dtm = new Date(in.getDateTime("procedure_date").getMillis());
         Procedure prc = new Procedure();
         prc.setId(String.join(":", sourceName, ClinicalEntityType.PROCEDURE.name(), recordID));
         prc.setSubject(new Reference().setIdentifier(new Identifier().setValue(personID)));
-        prc.setCode(
-                new CodeableConcept().addCoding(
-                        new Coding(
-                                "https://athena.ohdsi.org/",
-                                conceptID,
-                                in.getString("concept_name")))
-        );
-        prc.setPerformed(new DateTimeType(dtm));
+        if (in.getSchema().hasField("procedure_concept_id")) {
+            prc.setCode(toCodeableConcept(in, ClinicalEntityType.PROCEDURE, "procedure_concept_id"));
+        }
+        if (in.getSchema().hasField("procedure_date")) {
+            prc.setPerformed(new DateTimeType(new Date(in.getDateTime("procedure_date").getMillis())));
+        }
         return prc;
     };
 
     private final SerializableFunction<Row, DomainResource> observationMappingFunction = (in) -> {
         String recordID = in.getInt32("measurement_id") + "";
         String personID = in.getInt32("person_id") + "";
-        String conceptID = in.getInt32("measurement_concept_id") + "";
-        Date dtm = new Date(in.getDateTime("measurement_date").getMillis());
         Observation obs = new Observation();
         obs.setId(String.join(":", sourceName, ClinicalEntityType.OBSERVATION.name(), recordID));
         obs.setSubject(new Reference().setIdentifier(new Identifier().setValue(personID)));
-        obs.setCode(
-                new CodeableConcept().addCoding(
-                        new Coding(
-                                "https://athena.ohdsi.org/",
-                                conceptID,
-                                in.getString("concept_name")))
-        );
-        String value = null;
-        if (in.getFloat("value_as_number") != null) {
-            value = in.getFloat("value_as_number") + "";
-        } else {
-            value = in.getString("value_as_concept_id");
-            if (value != null && value.trim().length() == 0) {
-                value = null;
+        if (in.getSchema().hasField("measurement_concept_id")) {
+            obs.setCode(toCodeableConcept(in, ClinicalEntityType.OBSERVATION, "measurement_concept_id"));
+        }
+        if (in.getSchema().hasField("value_as_number")) {
+            String value = null;
+            if (in.getFloat("value_as_number") != null) {
+                value = in.getFloat("value_as_number") + "";
+            } else {
+                value = in.getString("value_as_concept_id");
+                if (value != null && value.trim().length() == 0) {
+                    value = null;
+                }
+            }
+            if (value != null) {
+                obs.setValue(new StringType(value));
             }
         }
-        if (value != null) {
-            obs.setValue(new StringType(value));
+        if (in.getSchema().hasField("measurement_date")) {
+            obs.setIssued(new Date(in.getDateTime("measurement_date").getMillis()));
         }
-        obs.setIssued(dtm);
         return obs;
     };
 
-    // Individual query result schemas
-    private final Schema personSchema = Schema.builder()
-            .addFields(
-                    Schema.Field.of("person_id", Schema.FieldType.INT32),
-                    Schema.Field.of("gender_concept_id", Schema.FieldType.INT32),
-                    Schema.Field.of("year_of_birth", Schema.FieldType.INT32),
-                    Schema.Field.of("month_of_birth", Schema.FieldType.INT32),
-                    Schema.Field.of("day_of_birth", Schema.FieldType.INT32),
-                    Schema.Field.of("race_concept_id", Schema.FieldType.INT32),
-                    Schema.Field.of("ethnicity_concept_id", Schema.FieldType.INT32)
-            ).build();
-    private final Schema conditionSchema = Schema.builder()
-            .addFields(
-                    Schema.Field.of("condition_occurrence_id", Schema.FieldType.INT32),
-                    Schema.Field.of("person_id", Schema.FieldType.INT32),
-                    Schema.Field.of("condition_concept_id", Schema.FieldType.INT32),
-                    Schema.Field.of("concept_name", Schema.FieldType.STRING),
-                    Schema.Field.of("condition_start_date", Schema.FieldType.DATETIME)
-            ).build();
-    private final Schema medicationSchema = Schema.builder()
-            .addFields(
-                    Schema.Field.of("drug_exposure_id", Schema.FieldType.INT32),
-                    Schema.Field.of("person_id", Schema.FieldType.INT32),
-                    Schema.Field.of("drug_concept_id", Schema.FieldType.INT32),
-                    Schema.Field.of("concept_name", Schema.FieldType.STRING),
-                    Schema.Field.of("drug_exposure_start_date", Schema.FieldType.DATETIME),
-                    Schema.Field.of("drug_exposure_end_date", Schema.FieldType.DATETIME)
-            ).build();
-    private final Schema procedureSchema = Schema.builder()
-            .addFields(
-                    Schema.Field.of("procedure_occurrence_id", Schema.FieldType.INT32),
-                    Schema.Field.of("person_id", Schema.FieldType.INT32),
-                    Schema.Field.of("procedure_concept_id", Schema.FieldType.INT32),
-                    Schema.Field.of("concept_name", Schema.FieldType.STRING),
-                    Schema.Field.of("procedure_date", Schema.FieldType.DATETIME)
-            ).build();
-    private final Schema observationSchema = Schema.builder()
-            .addFields(
-                    Schema.Field.of("measurement_id", Schema.FieldType.INT32),
-                    Schema.Field.of("person_id", Schema.FieldType.INT32),
-                    Schema.Field.of("measurement_concept_id", Schema.FieldType.INT32),
-                    Schema.Field.of("concept_name", Schema.FieldType.STRING),
-                    Schema.Field.of("measurement_date", Schema.FieldType.DATETIME),
-                    Schema.Field.of("value_as_number", Schema.FieldType.FLOAT.withNullable(true)),
-                    Schema.Field.of("value_as_concept_id", Schema.FieldType.STRING.withNullable(true))
-            ).build();
+    private CodeableConcept toCodeableConcept(Row in, ClinicalEntityType type, String conceptIDField) {
+        int conceptID = in.getInt32(conceptIDField);
+        String conceptName = null;
+        if (in.getSchema().hasField("concept_name")) {
+            conceptName = in.getString("concept_name");
+        } else if (useConceptDictionary && projection == null) {
+            conceptName = getConceptNameDictionary(type, conceptIDField).getConceptName(conceptID);
+        }
+        return new CodeableConcept().addCoding(
+                new Coding(
+                        "https://athena.ohdsi.org/",
+                        conceptID + "",
+                        conceptName));
+    }
+
+    // Individual query result columns
+    private static final List<ProjectedColumn> personColumns = Arrays.asList(
+            ProjectedColumn.always("person_id", Schema.Field.of("person_id", Schema.FieldType.INT32)),
+            ProjectedColumn.forPaths("gender_concept_id", Schema.Field.of("gender_concept_id", Schema.FieldType.INT32),
+                    FHIRValueLocationPath.PERSON_GENDER),
+            ProjectedColumn.forPaths("year_of_birth", Schema.Field.of("year_of_birth", Schema.FieldType.INT32),
+                    FHIRValueLocationPath.PERSON_DOB),
+            ProjectedColumn.forPaths("month_of_birth", Schema.Field.of("month_of_birth", Schema.FieldType.INT32),
+                    FHIRValueLocationPath.PERSON_DOB),
+            ProjectedColumn.forPaths("day_of_birth", Schema.Field.of("day_of_birth", Schema.FieldType.INT32),
+                    FHIRValueLocationPath.PERSON_DOB),
+            ProjectedColumn.fullOnly("race_concept_id", Schema.Field.of("race_concept_id", Schema.FieldType.INT32)),
+            ProjectedColumn.fullOnly("ethnicity_concept_id", Schema.Field.of("ethnicity_concept_id", Schema.FieldType.INT32))
+    );
+    private static final List<ProjectedColumn> conditionColumns = Arrays.asList(
+            ProjectedColumn.always("co.condition_occurrence_id", Schema.Field.of("condition_occurrence_id", Schema.FieldType.INT32)),
+            ProjectedColumn.always("co.person_id", Schema.Field.of("person_id", Schema.FieldType.INT32)),
+            ProjectedColumn.forPaths("co.condition_concept_id", Schema.Field.of("condition_concept_id", Schema.FieldType.INT32),
+                    CODE_PATHS),
+            ProjectedColumn.fullOnly("c.concept_name", Schema.Field.of("concept_name", Schema.FieldType.STRING)),
+            ProjectedColumn.fullOnly("co.condition_start_date", Schema.Field.of("condition_start_date", Schema.FieldType.DATETIME))
+    );
+    private static final List<ProjectedColumn> medicationColumns = Arrays.asList(
+            ProjectedColumn.always("d.drug_exposure_id", Schema.Field.of("drug_exposure_id", Schema.FieldType.INT32)),
+            ProjectedColumn.always("d.person_id", Schema.Field.of("person_id", Schema.FieldType.INT32)),
+            ProjectedColumn.forPaths("d.drug_concept_id", Schema.Field.of("drug_concept_id", Schema.FieldType.INT32),
+                    FHIRValueLocationPath.MEDICATION_CODE),
+            ProjectedColumn.fullOnly("c.concept_name", Schema.Field.of("concept_name", Schema.FieldType.STRING)),
+            ProjectedColumn.fullOnly("d.drug_exposure_start_date", Schema.Field.of("drug_exposure_start_date", Schema.FieldType.DATETIME)),
+            ProjectedColumn.fullOnly("d.drug_exposure_end_date", Schema.Field.of("drug_exposure_end_date", Schema.FieldType.DATETIME))
+    );
+    private static final List<ProjectedColumn> procedureColumns = Arrays.asList(
+            ProjectedColumn.always("p.procedure_occurrence_id", Schema.Field.of("procedure_occurrence_id", Schema.FieldType.INT32)),
+            ProjectedColumn.always("p.person_id", Schema.Field.of("person_id", Schema.FieldType.INT32)),
+            ProjectedColumn.forPaths("p.procedure_concept_id", Schema.Field.of("procedure_concept_id", Schema.FieldType.INT32),
+                    CODE_PATHS),
+            ProjectedColumn.fullOnly("c.concept_name", Schema.Field.of("concept_name", Schema.FieldType.STRING)),
+            ProjectedColumn.fullOnly("p.procedure_date", Schema.Field.of("procedure_date", Schema.FieldType.DATETIME))
+    );
+    private static final List<ProjectedColumn> observationColumns = Arrays.asList(
+            ProjectedColumn.always("m.measurement_id", Schema.Field.of("measurement_id", Schema.FieldType.INT32)),
+            ProjectedColumn.always("m.person_id", Schema.Field.of("person_id", Schema.FieldType.INT32)),
+            ProjectedColumn.forPaths("m.measurement_concept_id", Schema.Field.of("measurement_concept_id", Schema.FieldType.INT32),
+                    CODE_PATHS),
+            ProjectedColumn.fullOnly("c.concept_name", Schema.Field.of("concept_name", Schema.FieldType.STRING)),
+            ProjectedColumn.fullOnly("m.measurement_date", Schema.Field.of("measurement_date", Schema.FieldType.DATETIME)),
+            ProjectedColumn.forPaths("m.value_as_number", Schema.Field.of("value_as_number", Schema.FieldType.FLOAT.withNullable(true)),
+                    FHIRValueLocationPath.OBSERVATION_VALUE),
+            ProjectedColumn.forPaths("m.value_as_concept_id", Schema.Field.of("value_as_concept_id", Schema.FieldType.STRING.withNullable(true)),
+                    FHIRValueLocationPath.OBSERVATION_VALUE)
+    );
 }
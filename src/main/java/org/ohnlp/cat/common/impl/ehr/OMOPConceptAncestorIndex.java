@@ -0,0 +1,154 @@
+package org.ohnlp.cat.common.impl.ehr;
+
+import org.ohnlp.cat.api.utils.LongOpenHashSet;
+import org.ohnlp.cat.common.impl.sql.PooledConnectionSource;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * A materialized copy of the OMOP CDM CONCEPT_ANCESTOR transitive closure, shared by all providers within a JVM that
+ * read the same database and schema, used to expand concepts to their descendants without querying the database.
+ * <p>
+ * The closure is loaded once, in a single ordered scan, into compressed sparse row form: a sorted array of ancestor
+ * concept IDs, and for each ancestor a range of a sorted array of descendant concept IDs. Descendant lookups are thus
+ * a binary search followed by an array copy. As OMOP concept IDs are 32-bit integers, int arrays are used, requiring
+ * approximately 4 bytes per CONCEPT_ANCESTOR row.
+ */
+public class OMOPConceptAncestorIndex {
+    private static final Map<String, CompletableFuture<OMOPConceptAncestorIndex>> SHARED = new HashMap<>();
+    private static final int FETCH_SIZE = 10000;
+
+    private final int[] ancestors;
+    // Descendants of ancestors[i] are descendants[offsets[i]..offsets[i + 1])
+    private final int[] offsets;
+    private final int[] descendants;
+
+    private OMOPConceptAncestorIndex(int[] ancestors, int[] offsets, int[] descendants) {
+        this.ancestors = ancestors;
+        this.offsets = offsets;
+        this.descendants = descendants;
+    }
+
+    /**
+     * Gets the index shared by all callers reading the same database and schema, loading it if required. Only callers
+     * of the same database and schema wait for a load in progress; a failed load is retried by the next caller.
+     */
+    public static OMOPConceptAncestorIndex shared(PooledConnectionSource connections, String cdmSchemaName) {
+        String key = connections.getKey() + "|" + cdmSchemaName;
+        CompletableFuture<OMOPConceptAncestorIndex> future;
+        boolean loading = false;
+        synchronized (SHARED) {
+            future = SHARED.get(key);
+            if (future == null) {
+                future = new CompletableFuture<>();
+                SHARED.put(key, future);
+                loading = true;
+            }
+        }
+        if (loading) {
+            // Loaded via a handle of its own, such that closing the caller's handle meanwhile does not fail the load
+            try (PooledConnectionSource own = connections.copy()) {
+                future.complete(load(own, cdmSchemaName));
+            } catch (RuntimeException | Error e) {
+                // Waiting callers fail alongside this one, rather than waiting indefinitely
+                synchronized (SHARED) {
+                    SHARED.remove(key, future);
+                }
+                future.completeExceptionally(e);
+                throw e;
+            }
+        }
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    /**
+     * @return The given concept and all its descendants, in ascending order
+     */
+    public long[] getDescendants(long conceptID) {
+        return getDescendants(new long[]{conceptID});
+    }
+
+    /**
+     * @return The given concepts and all their descendants, deduplicated in ascending order
+     */
+    public long[] getDescendants(long[] conceptIDs) {
+        LongOpenHashSet ret = new LongOpenHashSet(conceptIDs.length * 4);
+        for (long conceptID : conceptIDs) {
+            ret.add(conceptID);
+            if (conceptID < Integer.MIN_VALUE || conceptID > Integer.MAX_VALUE) {
+                continue;
+            }
+            int idx = Arrays.binarySearch(ancestors, (int) conceptID);
+            if (idx < 0) {
+                continue;
+            }
+            for (int i = offsets[idx]; i < offsets[idx + 1]; i++) {
+                ret.add(descendants[i]);
+            }
+        }
+        return ret.toSortedArray();
+    }
+
+    /**
+     * @return The number of (ancestor, descendant) pairs in the index
+     */
+    public int size() {
+        return descendants.length;
+    }
+
+    private static OMOPConceptAncestorIndex load(PooledConnectionSource connections, String cdmSchemaName) {
+        int[] ancestors = new int[1024];
+        int[] offsets = new int[1025];
+        int[] descendants = new int[1024];
+        int ancestorCount = 0;
+        int pairCount = 0;
+        try (Connection conn = connections.getConnection()) {
+            boolean autoCommit = conn.getAutoCommit();
+            // Required by some drivers (e.g. PostgreSQL) to stream rather than buffer the result set
+            conn.setAutoCommit(false);
+            try (Statement stmt = conn.createStatement()) {
+                stmt.setFetchSize(FETCH_SIZE);
+                try (ResultSet rs = stmt.executeQuery("SELECT ancestor_concept_id, descendant_concept_id FROM "
+                        + cdmSchemaName + ".concept_ancestor ORDER BY ancestor_concept_id, descendant_concept_id")) {
+                    while (rs.next()) {
+                        int ancestor = rs.getInt(1);
+                        int descendant = rs.getInt(2);
+                        if (ancestorCount == 0 || ancestors[ancestorCount - 1] != ancestor) {
+                            if (ancestorCount == ancestors.length) {
+                                ancestors = Arrays.copyOf(ancestors, ancestorCount * 2);
+                                offsets = Arrays.copyOf(offsets, ancestorCount * 2 + 1);
+                            }
+                            ancestors[ancestorCount] = ancestor;
+                            offsets[ancestorCount++] = pairCount;
+                        }
+                        if (pairCount == descendants.length) {
+                            descendants = Arrays.copyOf(descendants, pairCount * 2);
+                        }
+                        descendants[pairCount++] = descendant;
+                    }
+                }
+            } finally {
+                conn.rollback();
+                conn.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+        offsets[ancestorCount] = pairCount;
+        return new OMOPConceptAncestorIndex(Arrays.copyOf(ancestors, ancestorCount),
+                Arrays.copyOf(offsets, ancestorCount + 1), Arrays.copyOf(descendants, pairCount));
+    }
+}
@@ -0,0 +1,369 @@
+package org.ohnlp.cat.common.impl.ehr;
+
+import org.ohnlp.cat.api.ehr.ParameterizedQuery;
+import org.ohnlp.cat.common.impl.sql.PooledConnectionSource;
+import org.ohnlp.cat.common.impl.sql.QueryParameters;
+import org.ohnlp.cat.common.impl.sql.SQLDialect;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * An in-memory cache of the OMOP CDM CONCEPT table, shared by all providers within a JVM that read the same
+ * database and schema, used to resolve concept names and codes without joining or querying CONCEPT per row/code.
+ * <p>
+ * Concepts are loaded in blocks of {@link #BLOCK_SIZE} consecutive concept IDs, stored as sorted primitive ID arrays
+ * with interned code, vocabulary and name strings. Code lookups are cached separately. Both are evicted in least
+ * recently used order once their estimated size exceeds the configured memory budget.
+ * <p>
+ * Callers resolving names for every row should first {@link #preload(String)} the concepts their rows reference, such
+ * that blocks are loaded in a single scan rather than by one query per block on first lookup within a row mapper.
+ */
+public class OMOPConceptDictionary {
+    static final int BLOCK_SHIFT = 10;
+    static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+    private static final Map<String, OMOPConceptDictionary> SHARED = new HashMap<>();
+
+    private final PooledConnectionSource connections;
+    private final String cdmSchemaName;
+    private final SQLDialect dialect;
+    private final int bulkBindingThreshold;
+    private final long memoryBudgetBytes;
+    private final LinkedHashMap<Long, Block> blocks = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, long[]> conceptIDsByCode = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<String> preloadedQueries = new HashSet<>();
+    private long usedBytes;
+
+    private OMOPConceptDictionary(PooledConnectionSource connections, String cdmSchemaName, SQLDialect dialect,
+                                  int bulkBindingThreshold, long memoryBudgetBytes) {
+        this.connections = connections;
+        this.cdmSchemaName = cdmSchemaName;
+        this.dialect = dialect;
+        this.bulkBindingThreshold = bulkBindingThreshold;
+        this.memoryBudgetBytes = memoryBudgetBytes;
+    }
+
+    /**
+     * Gets the dictionary shared by all callers reading the same database and schema, creating it if required. The
+     * memory budget is that of the first caller. The dictionary holds its own copy of the connection handle, as it
+     * outlives the provider that created it.
+     */
+    public static OMOPConceptDictionary shared(PooledConnectionSource connections, String cdmSchemaName, SQLDialect dialect,
+                                               int bulkBindingThreshold, long memoryBudgetBytes) {
+        synchronized (SHARED) {
+            return SHARED.computeIfAbsent(connections.getKey() + "|" + cdmSchemaName,
+                    k -> new OMOPConceptDictionary(connections.copy(), cdmSchemaName, dialect, bulkBindingThreshold, memoryBudgetBytes));
+        }
+    }
+
+    /**
+     * @return The concept with the given ID, or null if no such concept exists
+     */
+    public Concept getConcept(long conceptID) {
+        long blockID = conceptID >> BLOCK_SHIFT;
+        Block block;
+        synchronized (this) {
+            block = blocks.get(blockID);
+        }
+        if (block == null) {
+            // Loaded outside the lock so that lookups against cached blocks are not held up by loads. Concurrent
+            // loads of the same block are possible, but harmless
+            block = loadBlock(blockID);
+            synchronized (this) {
+                if (blocks.put(blockID, block) == null) {
+                    usedBytes += block.bytes;
+                    evict();
+                }
+            }
+        }
+        return block.get(conceptID);
+    }
+
+    /**
+     * Loads every block containing a concept ID returned by referencedConceptIDQuery in a single ordered scan of
+     * CONCEPT, until the memory budget is reached. Blocks beyond the budget, or containing concepts referenced only
+     * after preloading, are loaded on demand as before. Each query is only run once per dictionary, and concurrent
+     * callers wait for the preload in progress.
+     *
+     * @param referencedConceptIDQuery A query selecting concept IDs as its only column, with or without duplicates
+     */
+    public void preload(String referencedConceptIDQuery) {
+        synchronized (preloadedQueries) {
+            if (!preloadedQueries.add(referencedConceptIDQuery)) {
+                return;
+            }
+            try (Connection conn = connections.getConnection()) {
+                TreeSet<Long> blockIDs = new TreeSet<>();
+                try (PreparedStatement ps = conn.prepareStatement(referencedConceptIDQuery);
+                     ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        blockIDs.add(rs.getLong(1) >> BLOCK_SHIFT);
+                    }
+                }
+                synchronized (this) {
+                    blockIDs.removeAll(blocks.keySet());
+                }
+                if (!blockIDs.isEmpty()) {
+                    scanBlocks(conn, blockIDs);
+                }
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * @return The name of the concept with the given ID, or null if no such concept exists
+     */
+    public String getConceptName(long conceptID) {
+        Concept concept = getConcept(conceptID);
+        return concept == null ? null : concept.getName();
+    }
+
+    /**
+     * Resolves concept codes to concept IDs, compared in upper case, querying all codes that are not already cached
+     * in a single round trip
+     *
+     * @return The matching concept IDs for each code, keyed by code. Codes without a matching concept map to an
+     * empty array
+     */
+    public Map<String, long[]> getConceptIDsByCode(Collection<String> codes) {
+        Map<String, long[]> ret = new HashMap<>();
+        Map<String, List<String>> missing = new HashMap<>();
+        synchronized (this) {
+            for (String code : codes) {
+                String key = code.toUpperCase(Locale.ROOT);
+                long[] ids = conceptIDsByCode.get(key);
+                if (ids != null) {
+                    ret.put(code, ids);
+                } else {
+                    missing.computeIfAbsent(key, k -> new ArrayList<>()).add(code);
+                }
+            }
+        }
+        if (missing.isEmpty()) {
+            return ret;
+        }
+        Map<String, long[]> loaded = loadCodes(missing.keySet());
+        synchronized (this) {
+            loaded.forEach((key, ids) -> {
+                if (conceptIDsByCode.put(key, ids) == null) {
+                    usedBytes += estimateBytes(key) + 16 + 8L * ids.length;
+                }
+                for (String code : missing.get(key)) {
+                    ret.put(code, ids);
+                }
+            });
+            evict();
+        }
+        return ret;
+    }
+
+    /**
+     * @return The estimated size of all cached content
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Long, Block>> blockIt = blocks.entrySet().iterator();
+        Iterator<Map.Entry<String, long[]>> codeIt = conceptIDsByCode.entrySet().iterator();
+        // Alternate between caches such that neither is starved by the other
+        boolean fromBlocks = true;
+        while (usedBytes > memoryBudgetBytes && (blockIt.hasNext() || codeIt.hasNext())) {
+            if ((fromBlocks && blockIt.hasNext()) || !codeIt.hasNext()) {
+                usedBytes -= blockIt.next().getValue().bytes;
+                blockIt.remove();
+            } else {
+                Map.Entry<String, long[]> e = codeIt.next();
+                usedBytes -= estimateBytes(e.getKey()) + 16 + 8L * e.getValue().length;
+                codeIt.remove();
+            }
+            fromBlocks = !fromBlocks;
+        }
+    }
+
+    private Block loadBlock(long blockID) {
+        long start = blockID << BLOCK_SHIFT;
+        List<Concept> concepts = new ArrayList<>();
+        try (Connection conn = connections.getConnection();
+             PreparedStatement ps = conn.prepareStatement("SELECT concept_id, concept_code, vocabulary_id, concept_name " +
+                     "FROM " + cdmSchemaName + ".concept WHERE concept_id >= ? AND concept_id < ? ORDER BY concept_id")) {
+            ps.setLong(1, start);
+            ps.setLong(2, start + BLOCK_SIZE);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    concepts.add(new Concept(rs.getLong(1), intern(rs.getString(2)), intern(rs.getString(3)),
+                            intern(rs.getString(4))));
+                }
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+        return new Block(concepts);
+    }
+
+    /**
+     * Streams CONCEPT across the range of the given blocks, retaining the concepts of those blocks only
+     */
+    private void scanBlocks(Connection conn, TreeSet<Long> blockIDs) throws SQLException {
+        boolean autoCommit = conn.getAutoCommit();
+        // Forward-only with autocommit disabled, such that drivers stream rather than buffer the scan
+        conn.setAutoCommit(false);
+        try (PreparedStatement ps = conn.prepareStatement("SELECT concept_id, concept_code, vocabulary_id, concept_name " +
+                        "FROM " + cdmSchemaName + ".concept WHERE concept_id >= ? AND concept_id < ? ORDER BY concept_id",
+                ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            ps.setFetchSize(BLOCK_SIZE);
+            ps.setLong(1, blockIDs.first() << BLOCK_SHIFT);
+            ps.setLong(2, (blockIDs.last() + 1) << BLOCK_SHIFT);
+            try (ResultSet rs = ps.executeQuery()) {
+                long blockID = Long.MIN_VALUE;
+                List<Concept> concepts = new ArrayList<>();
+                while (rs.next()) {
+                    long conceptID = rs.getLong(1);
+                    if (conceptID >> BLOCK_SHIFT != blockID) {
+                        if (!concepts.isEmpty() && !putPreloaded(blockID, new Block(concepts))) {
+                            return;
+                        }
+                        blockID = conceptID >> BLOCK_SHIFT;
+                        concepts = new ArrayList<>();
+                    }
+                    if (blockIDs.contains(blockID)) {
+                        concepts.add(new Concept(conceptID, intern(rs.getString(2)), intern(rs.getString(3)),
+                                intern(rs.getString(4))));
+                    }
+                }
+                if (!concepts.isEmpty() && !putPreloaded(blockID, new Block(concepts))) {
+                    return;
+                }
+            }
+            // Referenced IDs without a concept would otherwise be queried again on every lookup
+            for (long referenced : blockIDs) {
+                if (!putPreloaded(referenced, new Block(Collections.emptyList()))) {
+                    return;
+                }
+            }
+        } finally {
+            if (autoCommit) {
+                // Nothing was written, so simply end the read transaction
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * Caches a preloaded block unless doing so would exceed the memory budget, as preloaded blocks should not evict
+     * one another
+     *
+     * @return Whether the block was cached
+     */
+    private synchronized boolean putPreloaded(long blockID, Block block) {
+        if (blocks.containsKey(blockID)) {
+            return true;
+        }
+        if (usedBytes + block.bytes > memoryBudgetBytes) {
+            return false;
+        }
+        blocks.put(blockID, block);
+        usedBytes += block.bytes;
+        return true;
+    }
+
+    private Map<String, long[]> loadCodes(Collection<String> upperCaseCodes) {
+        Map<String, List<Long>> found = new HashMap<>();
+        QueryParameters params = new QueryParameters(dialect, bulkBindingThreshold);
+        String predicate = params.bindStringList("concept_code", new ArrayList<>(upperCaseCodes));
+        ParameterizedQuery query = params.toQuery("SELECT concept_code, concept_id FROM " + cdmSchemaName + ".concept WHERE " + predicate);
+        try (Connection conn = connections.getConnection()) {
+            query.prepare(conn);
+            try (PreparedStatement ps = conn.prepareStatement(query.getSql())) {
+                query.bind(ps);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        found.computeIfAbsent(rs.getString(1), k -> new ArrayList<>()).add(rs.getLong(2));
+                    }
+                }
+            } finally {
+                query.release(conn);
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+        Map<String, long[]> ret = new HashMap<>();
+        for (String code : upperCaseCodes) {
+            List<Long> ids = found.getOrDefault(code, Collections.emptyList());
+            ret.put(code, ids.stream().mapToLong(Long::longValue).sorted().toArray());
+        }
+        return ret;
+    }
+
+    private static String intern(String s) {
+        return s == null ? null : s.intern();
+    }
+
+    private static long estimateBytes(String s) {
+        return s == null ? 0 : 40 + 2L * s.length();
+    }
+
+    /**
+     * Concepts within a single block of IDs, with IDs stored relative to the start of the block
+     */
+    private static class Block {
+        private final int[] offsets;
+        private final Concept[] concepts;
+        private final long bytes;
+
+        private Block(List<Concept> concepts) {
+            this.offsets = new int[concepts.size()];
+            this.concepts = concepts.toArray(new Concept[0]);
+            long bytes = 64 + 4L * offsets.length + 8L * offsets.length;
+            for (int i = 0; i < offsets.length; i++) {
+                Concept concept = this.concepts[i];
+                offsets[i] = (int) (concept.getConceptID() & (BLOCK_SIZE - 1));
+                // Interned strings may be shared with other concepts, so this is an upper bound
+                bytes += 40 + estimateBytes(concept.getConceptCode()) + estimateBytes(concept.getName());
+            }
+            this.bytes = bytes;
+        }
+
+        private Concept get(long conceptID) {
+            int idx = Arrays.binarySearch(offsets, (int) (conceptID & (BLOCK_SIZE - 1)));
+            return idx < 0 ? null : concepts[idx];
+        }
+    }
+
+    public static class Concept {
+        private final long conceptID;
+        private final String conceptCode;
+        private final String vocabularyID;
+        private final String name;
+
+        public Concept(long conceptID, String conceptCode, String vocabularyID, String name) {
+            this.conceptID = conceptID;
+            this.conceptCode = conceptCode;
+            this.vocabularyID = vocabularyID;
+            this.name = name;
+        }
+
+        public long getConceptID() {
+            return conceptID;
+        }
+
+        public String getConceptCode() {
+            return conceptCode;
+        }
+
+        public String getVocabularyID() {
+            return vocabularyID;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+}
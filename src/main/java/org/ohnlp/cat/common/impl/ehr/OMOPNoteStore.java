@@ -0,0 +1,253 @@
+package org.ohnlp.cat.common.impl.ehr;
+
+import org.ohnlp.cat.api.ehr.ParameterizedQuery;
+import org.ohnlp.cat.api.utils.LexicalUtils;
+import org.ohnlp.cat.common.impl.sql.PooledConnectionSource;
+import org.ohnlp.cat.common.impl.sql.QueryParameters;
+import org.ohnlp.cat.common.impl.sql.SQLDialect;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * On-demand access to OMOP CDM NOTE text by note_id, shared by all providers within a JVM that read the same database
+ * and schema, such that NLP-derived resources need only carry the note_id and the offset and lexical variant of their
+ * match rather than a copy of the full note text per NOTE_NLP row.
+ * <p>
+ * Notes are fetched in batches of all requested notes that are not already cached, in a single round trip, and cached
+ * as UTF-8 (optionally deflate-compressed) bytes. The cache is evicted in least recently used order once its size
+ * exceeds the configured memory budget.
+ */
+public class OMOPNoteStore {
+    private static final Map<String, OMOPNoteStore> SHARED = new HashMap<>();
+
+    private final PooledConnectionSource connections;
+    private final String cdmSchemaName;
+    private final SQLDialect dialect;
+    private final int bulkBindingThreshold;
+    private final long memoryBudgetBytes;
+    private final boolean compress;
+    private final LinkedHashMap<String, byte[]> notes = new LinkedHashMap<>(16, 0.75f, true);
+    private long usedBytes;
+
+    private OMOPNoteStore(PooledConnectionSource connections, String cdmSchemaName, SQLDialect dialect,
+                          int bulkBindingThreshold, long memoryBudgetBytes, boolean compress) {
+        this.connections = connections;
+        this.cdmSchemaName = cdmSchemaName;
+        this.dialect = dialect;
+        this.bulkBindingThreshold = bulkBindingThreshold;
+        this.memoryBudgetBytes = memoryBudgetBytes;
+        this.compress = compress;
+    }
+
+    /**
+     * Gets the store shared by all callers reading the same database and schema, creating it if required. The memory
+     * budget and compression setting are those of the first caller. The store holds its own copy of the connection
+     * handle, as it outlives the provider that created it.
+     */
+    public static OMOPNoteStore shared(PooledConnectionSource connections, String cdmSchemaName, SQLDialect dialect,
+                                       int bulkBindingThreshold, long memoryBudgetBytes, boolean compress) {
+        synchronized (SHARED) {
+            return SHARED.computeIfAbsent(connections.getKey() + "|" + cdmSchemaName,
+                    k -> new OMOPNoteStore(connections.copy(), cdmSchemaName, dialect, bulkBindingThreshold, memoryBudgetBytes, compress));
+        }
+    }
+
+    /**
+     * @return The text of the given note, or null if no such note exists
+     */
+    public String getNoteText(String noteID) {
+        return getNoteTexts(Collections.singleton(noteID)).get(noteID);
+    }
+
+    /**
+     * Gets the text of the given notes, querying all notes that are not already cached in a single round trip
+     *
+     * @return The text of each note, keyed by note ID. Notes that do not exist are omitted.
+     */
+    public Map<String, String> getNoteTexts(Collection<String> noteIDs) {
+        Map<String, String> ret = new HashMap<>();
+        Set<String> missing = new HashSet<>();
+        synchronized (this) {
+            for (String noteID : noteIDs) {
+                byte[] cached = notes.get(noteID);
+                if (cached != null) {
+                    ret.put(noteID, decode(cached));
+                } else {
+                    missing.add(noteID);
+                }
+            }
+        }
+        if (missing.isEmpty()) {
+            return ret;
+        }
+        Map<String, String> loaded = loadNotes(missing);
+        Map<String, byte[]> encoded = new HashMap<>();
+        // Encoded outside the lock as compression is comparatively expensive
+        loaded.forEach((noteID, text) -> encoded.put(noteID, encode(text)));
+        synchronized (this) {
+            encoded.forEach((noteID, bytes) -> {
+                byte[] previous = notes.put(noteID, bytes);
+                usedBytes += estimateBytes(noteID, bytes) - (previous == null ? 0 : estimateBytes(noteID, previous));
+            });
+            evict();
+        }
+        ret.putAll(loaded);
+        return ret;
+    }
+
+    /**
+     * Cuts a snippet surrounding an NLP match from the text of a note
+     *
+     * @param offset         The character offset of the match within the note (i.e. NOTE_NLP.offset), or null if
+     *                       unknown, in which case the first occurrence of the lexical variant is used
+     * @param lexicalVariant The matched text (i.e. NOTE_NLP.lexical_variant)
+     * @param contextChars   The number of characters of context to include on either side of the match
+     * @return The snippet, or null if the note does not exist
+     */
+    public String getSnippet(String noteID, String offset, String lexicalVariant, int contextChars) {
+        String text = getNoteText(noteID);
+        if (text == null) {
+            return null;
+        }
+        int length = lexicalVariant == null ? 0 : lexicalVariant.length();
+        int start = offset == null ? -1 : parseLeadingInt(offset);
+        if ((start < 0 || start > text.length()) && lexicalVariant != null) {
+            start = text.indexOf(lexicalVariant);
+        }
+        if (start < 0 || start > text.length()) {
+            return null;
+        }
+        return text.substring(Math.max(0, start - contextChars), Math.min(text.length(), start + length + contextChars));
+    }
+
+    /**
+     * @return The estimated size of all cached content
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, byte[]>> it = notes.entrySet().iterator();
+        while (usedBytes > memoryBudgetBytes && it.hasNext()) {
+            Map.Entry<String, byte[]> e = it.next();
+            usedBytes -= estimateBytes(e.getKey(), e.getValue());
+            it.remove();
+        }
+    }
+
+    private Map<String, String> loadNotes(Collection<String> noteIDs) {
+        QueryParameters params = new QueryParameters(dialect, bulkBindingThreshold);
+        String predicate;
+        long[] numericIDs = toNumericIDs(noteIDs);
+        if (numericIDs != null) {
+            // note_id is an integer column in the CDM, which not all databases will implicitly compare to strings
+            predicate = params.bindLongList("note_id", numericIDs);
+        } else {
+            predicate = params.bindStringList("note_id", new ArrayList<>(noteIDs));
+        }
+        ParameterizedQuery query = params.toQuery("SELECT note_id, note_text FROM " + cdmSchemaName + ".note WHERE " + predicate);
+        Map<String, String> ret = new HashMap<>();
+        try (Connection conn = connections.getConnection()) {
+            query.prepare(conn);
+            try (PreparedStatement ps = conn.prepareStatement(query.getSql())) {
+                query.bind(ps);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        String text = rs.getString(2);
+                        ret.put(rs.getString(1), text == null ? "" : text);
+                    }
+                }
+            } finally {
+                query.release(conn);
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+        return ret;
+    }
+
+    private static long[] toNumericIDs(Collection<String> noteIDs) {
+        long[] ret = new long[noteIDs.size()];
+        int i = 0;
+        for (String noteID : noteIDs) {
+            long value = LexicalUtils.parseCanonicalLong(noteID);
+            if (value == LexicalUtils.NOT_A_LONG) {
+                return null;
+            }
+            ret[i++] = value;
+        }
+        return ret;
+    }
+
+    private byte[] encode(String text) {
+        byte[] raw = text.getBytes(StandardCharsets.UTF_8);
+        if (!compress) {
+            return raw;
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 16);
+            byte[] buf = new byte[4096];
+            while (!deflater.finished()) {
+                out.write(buf, 0, deflater.deflate(buf));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private String decode(byte[] bytes) {
+        if (!compress) {
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length * 3);
+            byte[] buf = new byte[4096];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buf);
+                // Empty text inflates to nothing, at which point the stream is finished rather than truncated
+                if (n == 0 && !inflater.finished() && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalStateException("Truncated note text");
+                }
+                out.write(buf, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static int parseLeadingInt(String s) {
+        int i = 0;
+        while (i < s.length() && Character.isWhitespace(s.charAt(i))) {
+            i++;
+        }
+        int start = i;
+        long ret = 0;
+        while (i < s.length() && s.charAt(i) >= '0' && s.charAt(i) <= '9' && ret <= Integer.MAX_VALUE) {
+            ret = ret * 10 + (s.charAt(i++) - '0');
+        }
+        return i == start || ret > Integer.MAX_VALUE ? -1 : (int) ret;
+    }
+
+    private static long estimateBytes(String noteID, byte[] bytes) {
+        return 40 + 2L * noteID.length() + 16 + bytes.length;
+    }
+}
@@ -0,0 +1,87 @@
+package org.ohnlp.cat.common.impl.ehr;
+
+import org.apache.beam.sdk.schemas.Schema;
+import org.ohnlp.cat.api.criteria.FHIRValueLocationPath;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * A column selected by an OHDSI CDM provider query, together with the {@link FHIRValueLocationPath}s that require it.
+ * <p>
+ * Used to derive matching query projections and schemas from a single column definition when a provider is
+ * restricted via {@link org.ohnlp.cat.api.ehr.ResourceProvider#withProjection(Set)}
+ */
+class ProjectedColumn implements Serializable {
+    private final String expression;
+    private final Schema.Field field;
+    // null if always selected, empty if only selected by unprojected queries
+    private final Set<FHIRValueLocationPath> requiredFor;
+
+    private ProjectedColumn(String expression, Schema.Field field, Set<FHIRValueLocationPath> requiredFor) {
+        this.expression = expression;
+        this.field = field;
+        this.requiredFor = requiredFor;
+    }
+
+    /**
+     * A column required by all queries, e.g. record and patient identifiers
+     */
+    static ProjectedColumn always(String expression, Schema.Field field) {
+        return new ProjectedColumn(expression, field, null);
+    }
+
+    /**
+     * A column only required by projections including at least one of the given paths
+     */
+    static ProjectedColumn forPaths(String expression, Schema.Field field, FHIRValueLocationPath... paths) {
+        return new ProjectedColumn(expression, field, Collections.unmodifiableSet(EnumSet.copyOf(Arrays.asList(paths))));
+    }
+
+    /**
+     * A column only required for display purposes (e.g. evidence), and thus never selected by projections
+     */
+    static ProjectedColumn fullOnly(String expression, Schema.Field field) {
+        return new ProjectedColumn(expression, field, Collections.emptySet());
+    }
+
+    /**
+     * @param projection The required paths, or null if unprojected
+     */
+    boolean isSelected(Set<FHIRValueLocationPath> projection) {
+        if (projection == null || requiredFor == null) {
+            return true;
+        }
+        for (FHIRValueLocationPath path : requiredFor) {
+            if (projection.contains(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    Schema.Field getField() {
+        return field;
+    }
+
+    static String selectList(List<ProjectedColumn> columns, Set<FHIRValueLocationPath> projection) {
+        return columns.stream()
+                .filter(c -> c.isSelected(projection))
+                .map(c -> c.expression)
+                .collect(Collectors.joining(", "));
+    }
+
+    static Schema schema(List<ProjectedColumn> columns, Set<FHIRValueLocationPath> projection) {
+        return Schema.builder()
+                .addFields(columns.stream()
+                        .filter(c -> c.isSelected(projection))
+                        .map(c -> c.field)
+                        .collect(Collectors.toList()))
+                .build();
+    }
+}
@@ -1,19 +1,20 @@
 package org.ohnlp.cat.common.impl.sql;
 
-import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.util.FhirTerser;
 import org.apache.beam.sdk.schemas.Schema;
 import org.apache.beam.sdk.transforms.SerializableFunction;
 import org.apache.beam.sdk.values.Row;
 import org.hl7.fhir.r4.model.*;
 import org.ohnlp.cat.api.criteria.ClinicalEntityType;
+import org.ohnlp.cat.api.criteria.EntityCriterion;
 import org.ohnlp.cat.api.criteria.FHIRValueLocationPath;
+import org.ohnlp.cat.api.ehr.ParameterizedQuery;
 import org.ohnlp.cat.api.ehr.ResourceProvider;
-import org.ohnlp.cat.api.utils.FHIRUtils;
+import org.ohnlp.cat.api.ehr.StreamingOptions;
 
+import java.sql.Connection;
+import java.sql.SQLException;
 import java.time.Instant;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
 public class GenericSQLviaJDBCResourceProvider implements ResourceProvider {
@@ -22,38 +23,65 @@ public class GenericSQLviaJDBCResourceProvider implements ResourceProvider {
     private Map<ClinicalEntityType, Schema> schemas;
     private Map<ClinicalEntityType, SerializableFunction<Row, DomainResource>> mappingFunctions;
     private Map<ClinicalEntityType, String[]> idCols;
+    // Single-column FHIR path mappings, by path, used for predicate pushdown
+    private Map<ClinicalEntityType, Map<String, String>> pathColumns;
     private String sourceName;
+    private SQLDialect dialect;
+    private int bulkBindingThreshold;
+    private RangePartitioner partitioner;
+    private StreamingOptions streamingOptions;
+    private PooledConnectionSource connections;
+    // Query output columns to use for incremental extraction, by type
+    private Map<ClinicalEntityType, String> watermarkColumns;
 
 
     @Override
     public void init(String sourceName, Map<String, Object> config) {
         this.sourceName = sourceName;
+        this.dialect = SQLDialect.fromConfig(config);
+        this.bulkBindingThreshold = QueryParameters.getBulkBindingThreshold(config);
+        this.partitioner = RangePartitioner.fromConfig(dialect, config);
+        this.streamingOptions = StreamingOptions.fromConfig(config);
+        this.connections = PooledConnectionSource.fromConfig(config);
+        this.watermarkColumns = new HashMap<>();
         this.queries = new HashMap<>();
         this.schemas = new HashMap<>();
         this.mappingFunctions = new HashMap<>();
+        this.pathColumns = new HashMap<>();
+        this.idCols = new HashMap<>();
         for (ClinicalEntityType type : ClinicalEntityType.values()) {
             Map<String, Object> base = (Map<String, Object>) config.get(type.name().toLowerCase(Locale.ROOT));
             if (base != null) {
-                String[] idCols = null;
+                String[] typeIDCols = null;
                 queries.put(type, base.get("query").toString());
+                if (base.containsKey("watermark_column")) {
+                    watermarkColumns.put(type, base.get("watermark_column").toString());
+                }
                 Schema.Builder builder = Schema.builder();
                 ((Map<String, Object>) base.get("schema"))
                         .forEach((col, field) ->
                                 builder.addField(col, Schema.FieldType.of(Schema.TypeName.valueOf(field.toString()))));
                 schemas.put(type, builder.build());
                 Map<String, String> fhirPathMappings = new HashMap<>();
+                Map<String, String> columnsByPath = new HashMap<>();
+                Set<String> multiColumnPaths = new HashSet<>();
                 for (Map.Entry<String, Object> e : ((Map<String, Object>) base.get("mappings")).entrySet()) {
                     String col = e.getKey();
                     String target = e.getValue().toString();
                     fhirPathMappings.put(col, target.toString());
                     if (target.toString().equalsIgnoreCase("ID")) {
-                        idCols = col.split(",");
+                        typeIDCols = col.split(",");
+                    } else if (col.contains(",") || columnsByPath.put(target, col) != null) {
+                        multiColumnPaths.add(target);
                     }
                 }
-                if (idCols == null) {
+                multiColumnPaths.forEach(columnsByPath::remove);
+                pathColumns.put(type, columnsByPath);
+                if (typeIDCols == null) {
                     throw new IllegalArgumentException("No ID Mapping/Columns Provided");
                 }
-                this.mappingFunctions.put(type, new GenericPathBasedMappingFunction(type, fhirPathMappings));
+                idCols.put(type, typeIDCols);
+                this.mappingFunctions.put(type, new GenericPathBasedMappingFunction(type, schemas.get(type), fhirPathMappings));
             }
 
         }
@@ -64,11 +92,106 @@ public class GenericSQLviaJDBCResourceProvider implements ResourceProvider {
         return queries.get(type);
     }
 
+    @Override
+    public ParameterizedQuery getFilteredQuery(ClinicalEntityType type, Collection<EntityCriterion> criteria) {
+        return getIncrementalQuery(type, criteria, null, null);
+    }
+
+    @Override
+    public ParameterizedQuery getIncrementalQuery(ClinicalEntityType type, Collection<EntityCriterion> criteria,
+                                                  Date previous, Date current) {
+        Map<FHIRValueLocationPath, SQLCriterionPushdown.ValuePredicateRenderer> renderers = new EnumMap<>(FHIRValueLocationPath.class);
+        Map<String, String> columns = pathColumns.getOrDefault(type, Collections.emptyMap());
+        for (FHIRValueLocationPath valueRef : FHIRValueLocationPath.values()) {
+            String col = columns.get(getPathForValueReference(valueRef));
+            if (col == null) {
+                continue;
+            }
+            String qualifiedCol = "impact_src." + col;
+            switch (schemas.get(type).getField(col).getType().getTypeName()) {
+                case BYTE:
+                case INT16:
+                case INT32:
+                case INT64:
+                    renderers.put(valueRef, valueRef.isCoded() ?
+                            SQLCriterionPushdown.integerCodes(qualifiedCol) :
+                            SQLCriterionPushdown.numericRange(qualifiedCol));
+                    break;
+                case DECIMAL:
+                case FLOAT:
+                case DOUBLE:
+                    if (!valueRef.isCoded()) {
+                        renderers.put(valueRef, SQLCriterionPushdown.numericRange(qualifiedCol));
+                    }
+                    break;
+                case STRING:
+                    if (valueRef.isCoded()) {
+                        renderers.put(valueRef, SQLCriterionPushdown.stringCodes(qualifiedCol));
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        QueryParameters params = new QueryParameters(dialect, bulkBindingThreshold);
+        String predicate = SQLCriterionPushdown.render(criteria, type, sourceName, renderers, params);
+        String watermarkColumn = watermarkColumns.get(type);
+        if (watermarkColumn != null) {
+            predicate = WatermarkSupport.and(predicate,
+                    WatermarkSupport.predicate("impact_src." + watermarkColumn, previous, current, params));
+        }
+        if (predicate == null) {
+            return new ParameterizedQuery(getQuery(type));
+        }
+        return params.toQuery("SELECT * FROM (" + getQuery(type) + ") impact_src WHERE " + predicate);
+    }
+
+    @Override
+    public Date getCurrentWatermark(ClinicalEntityType type, Connection conn) throws SQLException {
+        String watermarkColumn = watermarkColumns.get(type);
+        if (watermarkColumn == null) {
+            return null;
+        }
+        return WatermarkSupport.queryWatermark(conn,
+                "SELECT MAX(impact_src." + watermarkColumn + ") FROM (" + getQuery(type) + ") impact_src");
+    }
+
     @Override
     public Schema getQuerySchema(ClinicalEntityType type) {
         return schemas.get(type);
     }
 
+    @Override
+    public List<ParameterizedQuery> getPartitionedQueries(ClinicalEntityType type, ParameterizedQuery query,
+                                                          Connection conn) throws SQLException {
+        return partitioner.partition(query, getIndexableIDColumnName(type), conn);
+    }
+
+    @Override
+    public StreamingOptions getStreamingOptions() {
+        return streamingOptions;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return connections.getConnection();
+    }
+
+    @Override
+    public String getConnectionPoolKey() {
+        return connections.getPoolKey();
+    }
+
+    @Override
+    public int getConnectionPoolSize() {
+        return connections.getPoolSize();
+    }
+
+    @Override
+    public void close() {
+        connections.close();
+    }
+
     @Override
     public String getEvidenceIDFilter(ClinicalEntityType type) {
         if (idCols.get(type) != null) {
@@ -152,6 +275,21 @@ public class GenericSQLviaJDBCResourceProvider implements ResourceProvider {
         return valueRef.getPath();
     }
 
+    @Override
+    public String getColumnForValueReference(ClinicalEntityType type, FHIRValueLocationPath valueRef) {
+        String col = pathColumns.getOrDefault(type, Collections.emptyMap()).get(getPathForValueReference(valueRef));
+        // Date/time values are reformatted when parsed into FHIR date types, and so are not copied unchanged
+        if (col == null || schemas.get(type).getField(col).getType().getTypeName().isDateType()) {
+            return null;
+        }
+        return col;
+    }
+
+    @Override
+    public String getSourceName() {
+        return sourceName;
+    }
+
     @Override
     public String extractPatUIDForResource(ClinicalEntityType type, DomainResource r) { // TODO verify functionality
         switch (type) {
@@ -179,38 +317,23 @@ public class GenericSQLviaJDBCResourceProvider implements ResourceProvider {
     public static class GenericPathBasedMappingFunction implements SerializableFunction<Row, DomainResource> {
 
         private final Map<String, String> mappings;
-        private transient ThreadLocal<FhirTerser> terser;
+        private final Schema schema;
         private final ClinicalEntityType type;
+        // Compiled lazily, i.e. once per worker after deserialization
+        private transient volatile RowMappingPlan plan;
 
-        public GenericPathBasedMappingFunction(ClinicalEntityType type, Map<String, String> fhirPathMappings) {
+        public GenericPathBasedMappingFunction(ClinicalEntityType type, Schema schema, Map<String, String> fhirPathMappings) {
             this.type = type;
+            this.schema = schema;
             this.mappings = fhirPathMappings;
         }
 
         @Override
         public DomainResource apply(Row input) {
-            Map<String, Collection<String>> pathToValue = new HashMap<>();
-            AtomicReference<String> id = new AtomicReference<>();
-            this.mappings.forEach((colNames, target) -> {
-                String[] cols = colNames.split(",");
-                List<String> values = new ArrayList<>();
-                for (String col : cols) {
-                    values.add(input.getValue(col).toString()); // TODO date type coercion might be broken here
-                }
-                String value = String.join("|~|", values);
-                if (target.equalsIgnoreCase("ID")) {
-                    id.set(value);
-                } else {
-                    pathToValue.computeIfAbsent(target, k -> new HashSet<>()).add(value);
-                }
-            });
-            if (id.get() == null) {
-                throw new IllegalStateException("No ID mapping is provided");
-            }
-            if (terser == null) {
-                terser = ThreadLocal.withInitial(() -> FhirContext.forR4().newTerser());
+            if (plan == null) {
+                plan = RowMappingPlan.compile(type, schema, mappings);
             }
-            return FHIRUtils.createAndWriteValuestoResource(terser.get(), type, id.get(), pathToValue);
+            return plan.apply(input);
         }
     }
 }
@@ -0,0 +1,171 @@
+package org.ohnlp.cat.common.impl.sql;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A serializable handle to a pooled JDBC data source, shared by all handles within a JVM that refer to the same
+ * URL, user and pool size. The underlying pool is created lazily on first use (i.e. on each worker after
+ * deserialization) and closed once all handles referring to it have been closed. A closed handle can not be reused;
+ * long-lived consumers that outlive the handle they were created from (e.g. JVM-wide caches) should hold their own
+ * {@link #copy()}.
+ * <p>
+ * Configured via the following configuration keys:
+ * <ul>
+ *     <li>url: The JDBC URL. If absent, {@link #getConnection()} is unsupported</li>
+ *     <li>user, password: Credentials, if not supplied via the URL</li>
+ *     <li>driver: The driver class to load, for drivers that do not register themselves</li>
+ *     <li>pool_size: The maximum number of pooled connections, defaulting to 4. Handles of differing pool sizes use
+ *     separate pools</li>
+ * </ul>
+ */
+public class PooledConnectionSource implements Serializable, AutoCloseable {
+    private static final Map<String, SharedPool> POOLS = new HashMap<>();
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final String driver;
+    private final int poolSize;
+    private transient HikariDataSource dataSource;
+    private transient boolean closed;
+
+    private PooledConnectionSource(String url, String user, String password, String driver, int poolSize) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.driver = driver;
+        this.poolSize = poolSize;
+    }
+
+    public static PooledConnectionSource fromConfig(Map<String, Object> config) {
+        return new PooledConnectionSource(
+                config.containsKey("url") ? config.get("url").toString() : null,
+                config.containsKey("user") ? config.get("user").toString() : null,
+                config.containsKey("password") ? config.get("password").toString() : null,
+                config.containsKey("driver") ? config.get("driver").toString() : null,
+                Integer.parseInt(config.getOrDefault("pool_size", 4).toString()));
+    }
+
+    /**
+     * @return A new, unopened handle to the same pool, holding its own reference to it once used
+     */
+    public PooledConnectionSource copy() {
+        return new PooledConnectionSource(url, user, password, driver, poolSize);
+    }
+
+    public boolean isConfigured() {
+        return url != null;
+    }
+
+    /**
+     * @return A pooled connection, to be closed by the caller to return it to the pool
+     * @throws IllegalStateException if this handle has been closed
+     */
+    public Connection getConnection() throws SQLException {
+        return getDataSource().getConnection();
+    }
+
+    private synchronized HikariDataSource getDataSource() {
+        if (url == null) {
+            throw new UnsupportedOperationException("No JDBC url configured");
+        }
+        if (closed) {
+            // Re-acquiring the pool would add a reference that is never released
+            throw new IllegalStateException("Connection source for " + url + " has been closed");
+        }
+        if (dataSource == null) {
+            synchronized (POOLS) {
+                SharedPool pool = POOLS.computeIfAbsent(poolKey(), k -> new SharedPool(createDataSource()));
+                pool.references++;
+                dataSource = pool.dataSource;
+            }
+        }
+        return dataSource;
+    }
+
+    private HikariDataSource createDataSource() {
+        HikariConfig hikariConfig = new HikariConfig();
+        hikariConfig.setJdbcUrl(url);
+        if (user != null) {
+            hikariConfig.setUsername(user);
+        }
+        if (password != null) {
+            hikariConfig.setPassword(password);
+        }
+        if (driver != null) {
+            hikariConfig.setDriverClassName(driver);
+        }
+        hikariConfig.setMaximumPoolSize(poolSize);
+        hikariConfig.setMinimumIdle(0);
+        hikariConfig.setPoolName("impact-" + Integer.toHexString(poolKey().hashCode()));
+        // Client-side statement caching for drivers that support it (e.g. MySQL). PostgreSQL caches server-side
+        // prepared statements per connection by default and ignores these
+        hikariConfig.addDataSourceProperty("cachePrepStmts", "true");
+        hikariConfig.addDataSourceProperty("prepStmtCacheSize", "256");
+        hikariConfig.addDataSourceProperty("prepStmtCacheSqlLimit", "4096");
+        return new HikariDataSource(hikariConfig);
+    }
+
+    private String poolKey() {
+        return getKey() + "|" + poolSize;
+    }
+
+    /**
+     * @return A key identifying the database this handle connects to, shared by all handles of the same URL and user
+     * regardless of pool size
+     */
+    public String getKey() {
+        return url + "|" + Objects.toString(user, "");
+    }
+
+    /**
+     * @return A key identifying the pool this handle draws connections from, shared by all handles using that pool
+     */
+    public String getPoolKey() {
+        return poolKey();
+    }
+
+    /**
+     * @return The maximum number of connections of the pool, shared by all handles with the same {@link #getPoolKey()}
+     */
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * Releases this handle's reference to the shared pool, closing the pool if no other references remain. Further
+     * connection requests via this handle fail.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (dataSource == null) {
+            return;
+        }
+        synchronized (POOLS) {
+            SharedPool pool = POOLS.get(poolKey());
+            if (pool != null && --pool.references <= 0) {
+                POOLS.remove(poolKey());
+                pool.dataSource.close();
+            }
+        }
+        dataSource = null;
+    }
+
+    private static class SharedPool {
+        private final HikariDataSource dataSource;
+        private int references;
+
+        private SharedPool(HikariDataSource dataSource) {
+            this.dataSource = dataSource;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package org.ohnlp.cat.common.impl.sql;
+
+import org.ohnlp.cat.api.ehr.ParameterizedQuery;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Accumulates the positional parameters and temporary value tables used by a {@link ParameterizedQuery} under
+ * construction, binding value lists according to the {@link SQLDialect} of the target database.
+ * <p>
+ * Value lists of up to {@link #getBulkBindingThreshold()} elements are bound as plain IN lists. Larger lists are
+ * bound as a single array parameter where supported, loaded into a temporary table where supported, and otherwise
+ * split into IN lists of at most {@link SQLDialect#maxInListSize()} elements. IN lists are padded to a power of two
+ * by repeating their last element, such that the number of distinct statements (and thus cached query plans)
+ * produced for value lists of varying size remains small.
+ */
+public class QueryParameters {
+    public static final int DEFAULT_BULK_BINDING_THRESHOLD = 100;
+
+    private final SQLDialect dialect;
+    private final int bulkBindingThreshold;
+    private final List<Object> parameters = new ArrayList<>();
+    private final List<ParameterizedQuery.ValueTable> valueTables = new ArrayList<>();
+    // Offset applied to value table names, such that forked instances produce names distinct from their parent's
+    private final int valueTableOffset;
+
+    public QueryParameters() {
+        this(SQLDialect.GENERIC, DEFAULT_BULK_BINDING_THRESHOLD);
+    }
+
+    public QueryParameters(SQLDialect dialect, int bulkBindingThreshold) {
+        this(dialect, bulkBindingThreshold, 0);
+    }
+
+    private QueryParameters(SQLDialect dialect, int bulkBindingThreshold, int valueTableOffset) {
+        this.dialect = dialect;
+        this.bulkBindingThreshold = bulkBindingThreshold;
+        this.valueTableOffset = valueTableOffset;
+    }
+
+    /**
+     * Reads the "bulk_binding_threshold" key from a provider configuration
+     */
+    public static int getBulkBindingThreshold(Map<String, Object> config) {
+        Object threshold = config.get("bulk_binding_threshold");
+        return threshold == null ? DEFAULT_BULK_BINDING_THRESHOLD : Integer.parseInt(threshold.toString());
+    }
+
+    /**
+     * @return An empty instance with the same dialect whose parameters can later be appended to this instance
+     * via {@link #addAll(QueryParameters)}, provided nothing else is added to this instance in the interim
+     */
+    public QueryParameters fork() {
+        return new QueryParameters(dialect, bulkBindingThreshold, valueTableOffset + valueTables.size());
+    }
+
+    public void add(Object param) {
+        parameters.add(param);
+    }
+
+    public void addAll(QueryParameters other) {
+        parameters.addAll(other.parameters);
+        valueTables.addAll(other.valueTables);
+    }
+
+    /**
+     * Binds a list of integer values, returning a predicate satisfied where column is equal to any of them
+     */
+    public String bindLongList(String column, long[] values) {
+        Object[] boxed = new Object[values.length];
+        for (int i = 0; i < values.length; i++) {
+            boxed[i] = values[i];
+        }
+        return bindValueList(column, boxed, "bigint", "BIGINT");
+    }
+
+    /**
+     * Binds a list of character values, returning a predicate satisfied where column is equal to any of them
+     */
+    public String bindStringList(String column, List<String> values) {
+        return bindValueList(column, values.toArray(), "varchar", "VARCHAR(1024)");
+    }
+
+    private String bindValueList(String column, Object[] values, String arrayElementType, String columnType) {
+        if (values.length == 0) {
+            return "1 = 0";
+        }
+        if (values.length > bulkBindingThreshold) {
+            if (dialect.supportsArrayParameters()) {
+                parameters.add(new ParameterizedQuery.ArrayParameter(arrayElementType, values));
+                return column + " = ANY(?)";
+            }
+            if (dialect.supportsTemporaryTables()) {
+                String name = "impact_vs_" + (valueTableOffset + valueTables.size());
+                String ref = dialect.temporaryTableReference(name);
+                valueTables.add(new ParameterizedQuery.ValueTable(
+                        dialect.createTemporaryTable(name, columnType),
+                        "INSERT INTO " + ref + " (val) VALUES (?)",
+                        dialect.dropTemporaryTable(name),
+                        values));
+                return column + " IN (SELECT val FROM " + ref + ")";
+            }
+        }
+        int chunkSize = dialect.maxInListSize();
+        if (values.length <= chunkSize) {
+            return inList(column, values, 0, values.length);
+        }
+        StringBuilder sb = new StringBuilder("(");
+        for (int start = 0; start < values.length; start += chunkSize) {
+            if (start > 0) {
+                sb.append(" OR ");
+            }
+            sb.append(inList(column, values, start, Math.min(values.length, start + chunkSize)));
+        }
+        return sb.append(")").toString();
+    }
+
+    private String inList(String column, Object[] values, int start, int end) {
+        int count = end - start;
+        int padded = Math.min(Integer.highestOneBit(count - 1) << 1, dialect.maxInListSize());
+        padded = Math.max(padded, count);
+        for (int i = 0; i < padded; i++) {
+            parameters.add(values[Math.min(start + i, end - 1)]);
+        }
+        return column + " IN (" + SQLCriterionPushdown.placeholders(padded) + ")";
+    }
+
+    public SQLDialect getDialect() {
+        return dialect;
+    }
+
+    public int getBulkBindingThreshold() {
+        return bulkBindingThreshold;
+    }
+
+    public ParameterizedQuery toQuery(String sql) {
+        return new ParameterizedQuery(sql, parameters, valueTables);
+    }
+}
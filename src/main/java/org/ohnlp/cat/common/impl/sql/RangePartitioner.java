@@ -0,0 +1,196 @@
+package org.ohnlp.cat.common.impl.sql;
+
+import org.ohnlp.cat.api.ehr.ParameterizedQuery;
+
+import java.io.Serializable;
+import java.math.BigInteger;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Splits a query into sub-queries over contiguous ranges of an integral column, such that each range can be
+ * extracted in parallel.
+ * <p>
+ * Configured via the following provider configuration keys:
+ * <ul>
+ *     <li>partitions: The number of sub-queries to produce, defaulting to 1 (no partitioning)</li>
+ *     <li>partition_column: The query output column to partition on, e.g. person_id. Defaults to the
+ *     provider's indexable ID column</li>
+ *     <li>partition_strategy: minmax to split the range between the minimum and maximum values evenly (the default),
+ *     or percentile to place boundaries at percentiles of a random sample of values. Percentile sampling is only
+ *     supported on PostgreSQL, with other dialects falling back to minmax</li>
+ *     <li>partition_sample_fraction: The fraction of rows sampled by the percentile strategy, defaulting to 0.01</li>
+ * </ul>
+ */
+public class RangePartitioner implements Serializable {
+
+    public enum Strategy {
+        MINMAX,
+        PERCENTILE
+    }
+
+    private final SQLDialect dialect;
+    private final int partitions;
+    private final String column;
+    private final Strategy strategy;
+    private final double sampleFraction;
+
+    public RangePartitioner(SQLDialect dialect, int partitions, String column, Strategy strategy, double sampleFraction) {
+        this.dialect = dialect;
+        this.partitions = partitions;
+        this.column = column;
+        this.strategy = strategy;
+        this.sampleFraction = sampleFraction;
+    }
+
+    public static RangePartitioner fromConfig(SQLDialect dialect, Map<String, Object> config) {
+        return new RangePartitioner(
+                dialect,
+                Integer.parseInt(config.getOrDefault("partitions", 1).toString()),
+                config.containsKey("partition_column") ? config.get("partition_column").toString() : null,
+                Strategy.valueOf(config.getOrDefault("partition_strategy", "minmax").toString().toUpperCase(Locale.ROOT)),
+                Double.parseDouble(config.getOrDefault("partition_sample_fraction", 0.01).toString()));
+    }
+
+    /**
+     * Splits query into up to the configured number of sub-queries, which together return the same rows as query.
+     * Each sub-query shares the value tables of query, and must be prepared on the connection that executes it.
+     *
+     * @param query         The query to split
+     * @param defaultColumn The column to partition on if none is configured
+     * @param conn          A connection used to determine partition boundaries
+     * @return The sub-queries, or a singleton list containing query if it cannot be split
+     */
+    public List<ParameterizedQuery> partition(ParameterizedQuery query, String defaultColumn, Connection conn) throws SQLException {
+        String col = column == null ? defaultColumn : column;
+        if (partitions <= 1 || col == null || col.contains(",")) {
+            return Collections.singletonList(query);
+        }
+        long[] boundaries;
+        query.prepare(conn);
+        try {
+            if (strategy.equals(Strategy.PERCENTILE) && dialect.supportsArrayParameters()) {
+                boundaries = sampleBoundaries(query, col, conn);
+            } else {
+                boundaries = rangeBoundaries(query, col, conn);
+            }
+        } finally {
+            query.release(conn);
+        }
+        if (boundaries == null || boundaries.length == 0) {
+            return Collections.singletonList(query);
+        }
+        List<ParameterizedQuery> ret = new ArrayList<>(boundaries.length + 1);
+        String base = "SELECT * FROM (" + query.getSql() + ") impact_part WHERE ";
+        for (int i = 0; i <= boundaries.length; i++) {
+            List<Object> params = new ArrayList<>(query.getParameters());
+            String predicate;
+            if (i == 0) {
+                // Rows without a partition value are assigned to the first partition
+                predicate = col + " < ? OR " + col + " IS NULL";
+                params.add(boundaries[0]);
+            } else if (i == boundaries.length) {
+                predicate = col + " >= ?";
+                params.add(boundaries[i - 1]);
+            } else {
+                predicate = col + " >= ? AND " + col + " < ?";
+                params.add(boundaries[i - 1]);
+                params.add(boundaries[i]);
+            }
+            ret.add(new ParameterizedQuery(base + predicate, params, query.getValueTables()));
+        }
+        return ret;
+    }
+
+    private long[] rangeBoundaries(ParameterizedQuery query, String col, Connection conn) throws SQLException {
+        ParameterizedQuery stats = new ParameterizedQuery(
+                "SELECT MIN(" + col + "), MAX(" + col + ") FROM (" + query.getSql() + ") impact_part",
+                query.getParameters());
+        try (PreparedStatement ps = conn.prepareStatement(stats.getSql())) {
+            stats.bind(ps);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next() || !isIntegral(rs.getMetaData())) {
+                    return null;
+                }
+                long min = rs.getLong(1);
+                if (rs.wasNull()) {
+                    return null;
+                }
+                long max = rs.getLong(2);
+                BigInteger span = BigInteger.valueOf(max).subtract(BigInteger.valueOf(min)).add(BigInteger.ONE);
+                long[] ret = new long[partitions - 1];
+                for (int i = 1; i < partitions; i++) {
+                    ret[i - 1] = BigInteger.valueOf(min)
+                            .add(span.multiply(BigInteger.valueOf(i)).divide(BigInteger.valueOf(partitions)))
+                            .longValue();
+                }
+                return distinct(ret, min);
+            }
+        }
+    }
+
+    private long[] sampleBoundaries(ParameterizedQuery query, String col, Connection conn) throws SQLException {
+        Object[] fractions = new Object[partitions - 1];
+        for (int i = 1; i < partitions; i++) {
+            fractions[i - 1] = (double) i / partitions;
+        }
+        List<Object> params = new ArrayList<>();
+        params.add(new ParameterizedQuery.ArrayParameter("float8", fractions));
+        params.addAll(query.getParameters());
+        params.add(sampleFraction);
+        ParameterizedQuery stats = new ParameterizedQuery(
+                "SELECT MIN(" + col + "), percentile_disc(?) WITHIN GROUP (ORDER BY " + col + ") " +
+                        "FROM (" + query.getSql() + ") impact_part WHERE random() < ?",
+                params);
+        try (PreparedStatement ps = conn.prepareStatement(stats.getSql())) {
+            stats.bind(ps);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next() || !isIntegral(rs.getMetaData())) {
+                    return null;
+                }
+                long min = rs.getLong(1);
+                if (rs.wasNull()) {
+                    return null;
+                }
+                Array percentiles = rs.getArray(2);
+                if (percentiles == null) {
+                    return null;
+                }
+                Object[] values = (Object[]) percentiles.getArray();
+                long[] ret = new long[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    ret[i] = ((Number) values[i]).longValue();
+                }
+                return distinct(ret, min);
+            }
+        }
+    }
+
+    /**
+     * @return The sorted, distinct boundaries strictly greater than min, as a boundary at or below the minimum
+     * would produce an empty partition
+     */
+    private static long[] distinct(long[] boundaries, long min) {
+        return Arrays.stream(boundaries).filter(b -> b > min).sorted().distinct().toArray();
+    }
+
+    private static boolean isIntegral(ResultSetMetaData meta) throws SQLException {
+        switch (meta.getColumnType(1)) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+                return true;
+            case Types.NUMERIC:
+            case Types.DECIMAL:
+                // e.g. Oracle NUMBER(19)
+                return meta.getScale(1) == 0;
+            default:
+                return false;
+        }
+    }
+
+    public int getPartitions() {
+        return partitions;
+    }
+}
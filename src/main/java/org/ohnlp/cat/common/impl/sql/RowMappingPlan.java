@@ -0,0 +1,227 @@
+package org.ohnlp.cat.common.impl.sql;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementCompositeDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.parser.DataFormatException;
+import org.apache.beam.sdk.schemas.Schema;
+import org.apache.beam.sdk.values.Row;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.ohnlp.cat.api.criteria.ClinicalEntityType;
+import org.ohnlp.cat.api.utils.FHIRUtils;
+
+import java.util.*;
+
+/**
+ * A compiled form of a {@link GenericSQLviaJDBCResourceProvider} column-to-FHIR-path mapping, in which source columns
+ * are resolved to row indices and FHIR paths to HAPI child definitions once, such that rows are written directly
+ * into resources without per-row path parsing or reflection.
+ * <p>
+ * Paths are written with the semantics of {@link ca.uhn.fhir.util.FhirTerser#addElements(IBase, String, Collection)}:
+ * intermediate elements are reused if present and created otherwise, values are appended to repeating leaf elements,
+ * and non-repeating leaf elements may only be set once. Multi-column mappings are joined with |~|, and null column
+ * values are skipped.
+ */
+class RowMappingPlan {
+    private static volatile FhirContext context;
+
+    private final ClinicalEntityType type;
+    private final int[] idColumns;
+    private final List<Target> targets;
+
+    private RowMappingPlan(ClinicalEntityType type, int[] idColumns, List<Target> targets) {
+        this.type = type;
+        this.idColumns = idColumns;
+        this.targets = targets;
+    }
+
+    /**
+     * @param mappings Comma-delimited source column names, keyed to their FHIR path or ID
+     * @throws IllegalArgumentException if a column is absent from schema or a path cannot be resolved
+     */
+    static RowMappingPlan compile(ClinicalEntityType type, Schema schema, Map<String, String> mappings) {
+        FhirContext ctx = getContext();
+        RuntimeResourceDefinition resourceDef = ctx.getResourceDefinition(FHIRUtils.newResource(type));
+        int[] idColumns = null;
+        Map<String, List<int[]>> columnsByPath = new TreeMap<>();
+        for (Map.Entry<String, String> e : mappings.entrySet()) {
+            String[] cols = e.getKey().split(",");
+            int[] indices = new int[cols.length];
+            for (int i = 0; i < cols.length; i++) {
+                if (!schema.hasField(cols[i])) {
+                    throw new IllegalArgumentException("Mapped column " + cols[i] + " is not present in the schema for " + type);
+                }
+                indices[i] = schema.indexOf(cols[i]);
+            }
+            if (e.getValue().equalsIgnoreCase("ID")) {
+                idColumns = indices;
+            } else {
+                columnsByPath.computeIfAbsent(e.getValue(), k -> new ArrayList<>()).add(indices);
+            }
+        }
+        if (idColumns == null) {
+            throw new IllegalStateException("No ID mapping is provided");
+        }
+        List<Target> targets = new ArrayList<>();
+        columnsByPath.forEach((path, columns) -> targets.add(new Target(path, resolve(resourceDef, path), columns)));
+        return new RowMappingPlan(type, idColumns, targets);
+    }
+
+    private static Step[] resolve(RuntimeResourceDefinition resourceDef, String path) {
+        List<String> parts = new ArrayList<>(Arrays.asList(path.split("\\.")));
+        if (parts.size() > 1 && parts.get(0).equals(resourceDef.getName())) {
+            parts.remove(0);
+        }
+        Step[] steps = new Step[parts.size()];
+        BaseRuntimeElementCompositeDefinition<?> current = resourceDef;
+        for (int i = 0; i < parts.size(); i++) {
+            String name = parts.get(i);
+            BaseRuntimeChildDefinition child = current.getChildByName(name);
+            if (child == null) {
+                throw new IllegalArgumentException("Invalid path " + path + ": Element of type " + current.getName()
+                        + " has no child named " + name);
+            }
+            BaseRuntimeElementDefinition<?> element = child.getChildByName(name);
+            boolean leaf = i == parts.size() - 1;
+            if (leaf && !(element.newInstance(child.getInstanceConstructorArguments()) instanceof IPrimitiveType)) {
+                throw new IllegalArgumentException("Invalid path " + path + ": " + name + " is not a primitive type");
+            } else if (!leaf && !(element instanceof BaseRuntimeElementCompositeDefinition)) {
+                throw new IllegalArgumentException("Invalid path " + path + ": " + name + " is a primitive type");
+            }
+            steps[i] = new Step(child, element);
+            if (!leaf) {
+                current = (BaseRuntimeElementCompositeDefinition<?>) element;
+            }
+        }
+        return steps;
+    }
+
+    DomainResource apply(Row input) {
+        String id = read(input, idColumns);
+        if (id == null) {
+            throw new IllegalStateException("Null ID for " + type + " row " + input);
+        }
+        DomainResource root = FHIRUtils.newResource(type);
+        root.setId(id);
+        for (Target target : targets) {
+            target.write(root, input);
+        }
+        return root;
+    }
+
+    private static String read(Row input, int[] columns) {
+        if (columns.length == 1) {
+            Object value = input.getValue(columns[0]);
+            return value == null ? null : value.toString();
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < columns.length; i++) {
+            Object value = input.getValue(columns[i]);
+            if (value == null) {
+                return null;
+            }
+            if (i > 0) {
+                sb.append("|~|");
+            }
+            sb.append(value);
+        }
+        return sb.toString();
+    }
+
+    private static FhirContext getContext() {
+        if (context == null) {
+            synchronized (RowMappingPlan.class) {
+                if (context == null) {
+                    context = FhirContext.forR4();
+                }
+            }
+        }
+        return context;
+    }
+
+    private static class Step {
+        private final BaseRuntimeChildDefinition child;
+        private final BaseRuntimeElementDefinition<?> element;
+        private final boolean repeats;
+
+        private Step(BaseRuntimeChildDefinition child, BaseRuntimeElementDefinition<?> element) {
+            this.child = child;
+            this.element = element;
+            this.repeats = child.getMax() != 1;
+        }
+
+        private IBase newInstance() {
+            return element.newInstance(child.getInstanceConstructorArguments());
+        }
+    }
+
+    private static class Target {
+        private final String path;
+        private final Step[] steps;
+        private final List<int[]> columns;
+
+        private Target(String path, Step[] steps, List<int[]> columns) {
+            this.path = path;
+            this.steps = steps;
+            this.columns = columns;
+        }
+
+        private void write(IBase root, Row input) {
+            Collection<String> values;
+            if (columns.size() == 1) {
+                String value = read(input, columns.get(0));
+                if (value == null) {
+                    return;
+                }
+                values = Collections.singletonList(value);
+            } else {
+                values = new LinkedHashSet<>();
+                for (int[] group : columns) {
+                    String value = read(input, group);
+                    if (value != null) {
+                        values.add(value);
+                    }
+                }
+                if (values.isEmpty()) {
+                    return;
+                }
+            }
+            IBase current = root;
+            for (int i = 0; i < steps.length - 1; i++) {
+                Step step = steps[i];
+                Optional<IBase> existing = step.child.getAccessor().getFirstValueOrNull(current);
+                IBase next;
+                if (existing.isPresent()) {
+                    next = existing.get();
+                } else {
+                    next = step.newInstance();
+                    step.child.getMutator().addValue(current, next);
+                }
+                current = next;
+            }
+            Step leaf = steps[steps.length - 1];
+            if (!leaf.repeats) {
+                if (values.size() > 1) {
+                    throw new DataFormatException("Can not add multiple values at path " + path + ": Element does not repeat");
+                }
+                Optional<IBase> existing = leaf.child.getAccessor().getFirstValueOrNull(current);
+                if (existing.isPresent() && !existing.get().isEmpty()) {
+                    throw new DataFormatException("Element at path " + path + " is not repeatable and not empty");
+                }
+            }
+            for (String value : values) {
+                IPrimitiveType<?> primitive = (IPrimitiveType<?>) leaf.newInstance();
+                primitive.setValueAsString(value);
+                if (leaf.repeats) {
+                    leaf.child.getMutator().addValue(current, primitive);
+                } else {
+                    leaf.child.getMutator().setValue(current, primitive);
+                }
+            }
+        }
+    }
+}
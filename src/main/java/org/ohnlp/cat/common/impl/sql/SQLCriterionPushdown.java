@@ -0,0 +1,171 @@
+package org.ohnlp.cat.common.impl.sql;
+
+import org.ohnlp.cat.api.criteria.ClinicalEntityType;
+import org.ohnlp.cat.api.criteria.EntityCriterion;
+import org.ohnlp.cat.api.criteria.EntityValue;
+import org.ohnlp.cat.api.criteria.FHIRValueLocationPath;
+import org.ohnlp.cat.api.criteria.ValueRelationType;
+import org.ohnlp.cat.api.criteria.prepared.CodeIndex;
+import org.ohnlp.cat.api.criteria.prepared.PreparedEntityValue;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Translates {@link EntityCriterion}s into SQL WHERE predicates for use by JDBC-backed
+ * {@link org.ohnlp.cat.api.ehr.ResourceProvider#getFilteredQuery(ClinicalEntityType, Collection)} implementations.
+ * <p>
+ * Translation is conservative: any {@link EntityValue} that cannot be expressed by the provider-supplied
+ * {@link ValuePredicateRenderer}s is treated as always true, so the resulting predicate never excludes a row that
+ * would otherwise match. Value lists are bound per the {@link SQLDialect} of the supplied {@link QueryParameters}.
+ */
+public final class SQLCriterionPushdown {
+
+    private SQLCriterionPushdown() {
+    }
+
+    /**
+     * Renders a SQL predicate for a single prepared value
+     */
+    public interface ValuePredicateRenderer extends Serializable {
+        /**
+         * @param value  The value to render
+         * @param codes  The expanded codes applicable to the data source being queried
+         * @param params Parameters to which any positional parameters or value tables used by the predicate should
+         *               be appended
+         * @return A predicate using ? placeholders, or null if value cannot be expressed by this renderer
+         */
+        String render(PreparedEntityValue value, CodeIndex.CodeSet codes, QueryParameters params);
+    }
+
+    /**
+     * Renders a predicate satisfied by any row that may match at least one of the supplied criteria
+     *
+     * @param criteria   The criteria to push down. Only criteria of the supplied type are considered
+     * @param type       The type being queried
+     * @param sourceName The data source being queried, used to select applicable expanded codes
+     * @param renderers  Renderers for the value paths supported by the provider. Paths without a renderer are not
+     *                   pushed down
+     * @param params     Parameters to which positional parameters and value tables used by the predicate are appended
+     * @return The predicate, or null if no restriction can be applied
+     */
+    public static String render(Collection<EntityCriterion> criteria, ClinicalEntityType type, String sourceName,
+                                Map<FHIRValueLocationPath, ValuePredicateRenderer> renderers, QueryParameters params) {
+        List<String> disjuncts = new ArrayList<>();
+        QueryParameters disjunctParams = params.fork();
+        for (EntityCriterion criterion : criteria) {
+            if (!type.equals(criterion.getType())) {
+                continue;
+            }
+            List<String> conjuncts = new ArrayList<>();
+            for (EntityValue component : criterion.getComponents()) {
+                ValuePredicateRenderer renderer = renderers.get(component.getValuePath());
+                if (renderer == null) {
+                    continue;
+                }
+                PreparedEntityValue value = component.prepare();
+                String predicate = renderer.render(value, value.getCodeIndex().forSource(sourceName), disjunctParams);
+                if (predicate != null) {
+                    conjuncts.add(predicate);
+                }
+            }
+            if (conjuncts.isEmpty()) {
+                // This criterion may match any row, so no restriction can be applied at all
+                return null;
+            }
+            disjuncts.add(conjuncts.stream().map(c -> "(" + c + ")").collect(Collectors.joining(" AND ")));
+        }
+        if (disjuncts.isEmpty()) {
+            return null;
+        }
+        params.addAll(disjunctParams);
+        return disjuncts.stream().map(d -> "(" + d + ")").collect(Collectors.joining(" OR "));
+    }
+
+    /**
+     * Renderer for coded values stored in an integer column (e.g. OMOP concept IDs). Codes that are not integers
+     * can never equal the column and are dropped.
+     */
+    public static ValuePredicateRenderer integerCodes(String column) {
+        return (value, codes, params) -> {
+            if (!value.getValuePath().isCoded()) {
+                return null;
+            }
+            return params.bindLongList(column, codes.getNumericCodes());
+        };
+    }
+
+    /**
+     * Renderer for coded values stored in a character column, compared case-insensitively
+     */
+    public static ValuePredicateRenderer stringCodes(String column) {
+        return (value, codes, params) -> {
+            if (!value.getValuePath().isCoded()) {
+                return null;
+            }
+            Set<String> allCodes = new LinkedHashSet<>();
+            for (long code : codes.getNumericCodes()) {
+                allCodes.add(Long.toString(code));
+            }
+            for (String code : codes.getNonNumericCodes()) {
+                allCodes.add(code.toLowerCase(Locale.ROOT));
+            }
+            return params.bindStringList("LOWER(" + column + ")", new ArrayList<>(allCodes));
+        };
+    }
+
+    /**
+     * Renderer for numeric range (LT/LTE/GT/GTE/BETWEEN) comparisons against a numeric column. Equality is not pushed
+     * down, as values may pass through a lower precision representation before being compared.
+     */
+    public static ValuePredicateRenderer numericRange(String column) {
+        return (value, codes, params) -> {
+            double[] operands = value.getNumericOperands();
+            if (value.getValuePath().isCoded() || operands == null) {
+                return null;
+            }
+            return rangePredicate(column, value.getReln(), operands, params);
+        };
+    }
+
+    /**
+     * Renders a range comparison of column against operands per {@link PreparedEntityValue} semantics
+     * (BETWEEN being inclusive of the lower and exclusive of the upper bound)
+     *
+     * @return The predicate, or null if reln is not a range comparison
+     */
+    public static String rangePredicate(String column, ValueRelationType reln, double[] operands, QueryParameters params) {
+        switch (reln) {
+            case LT:
+                params.add(operands[0]);
+                return column + " < ?";
+            case LTE:
+                params.add(operands[0]);
+                return column + " <= ?";
+            case GT:
+                params.add(operands[0]);
+                return column + " > ?";
+            case GTE:
+                params.add(operands[0]);
+                return column + " >= ?";
+            case BETWEEN:
+                params.add(operands[0]);
+                params.add(operands[1]);
+                return column + " >= ? AND " + column + " < ?";
+            default:
+                return null;
+        }
+    }
+
+    public static String placeholders(int count) {
+        StringBuilder sb = new StringBuilder(count * 3);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append('?');
+        }
+        return sb.toString();
+    }
+}
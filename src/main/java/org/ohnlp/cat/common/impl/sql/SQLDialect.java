@@ -0,0 +1,125 @@
+package org.ohnlp.cat.common.impl.sql;
+
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * SQL dialects with distinct strategies for binding large value lists, see {@link QueryParameters}.
+ * <p>
+ * Dialects supporting array parameters bind value lists as a single {@code col = ANY(?)} parameter, dialects with
+ * session-scoped temporary tables load value lists into a temporary table, and all others fall back to chunked
+ * IN lists.
+ */
+public enum SQLDialect {
+    POSTGRESQL("jdbc:postgresql:"),
+    H2("jdbc:h2:"),
+    HSQLDB("jdbc:hsqldb:"),
+    SQLSERVER("jdbc:sqlserver:"),
+    MYSQL("jdbc:mysql:"),
+    ORACLE("jdbc:oracle:"),
+    GENERIC(null);
+
+    private final String urlPrefix;
+
+    SQLDialect(String urlPrefix) {
+        this.urlPrefix = urlPrefix;
+    }
+
+    /**
+     * @return The dialect corresponding to the supplied JDBC URL, or {@link #GENERIC} if unrecognized
+     */
+    public static SQLDialect fromJdbcUrl(String url) {
+        if (url != null) {
+            String lower = url.toLowerCase(Locale.ROOT);
+            for (SQLDialect dialect : values()) {
+                if (dialect.urlPrefix != null && lower.startsWith(dialect.urlPrefix)) {
+                    return dialect;
+                }
+            }
+        }
+        return GENERIC;
+    }
+
+    /**
+     * Resolves the dialect from a provider configuration, using the "dialect" key if present, otherwise
+     * inferring it from the JDBC URL in the "url" key
+     */
+    public static SQLDialect fromConfig(Map<String, Object> config) {
+        Object dialect = config.get("dialect");
+        if (dialect != null) {
+            return valueOf(dialect.toString().toUpperCase(Locale.ROOT));
+        }
+        Object url = config.get("url");
+        return fromJdbcUrl(url == null ? null : url.toString());
+    }
+
+    public boolean supportsArrayParameters() {
+        return this == POSTGRESQL;
+    }
+
+    public boolean supportsTemporaryTables() {
+        switch (this) {
+            case H2:
+            case HSQLDB:
+            case SQLSERVER:
+            case MYSQL:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return How a temporary table of the given name should be referenced in queries
+     */
+    String temporaryTableReference(String name) {
+        switch (this) {
+            case HSQLDB:
+                return "SESSION." + name;
+            case SQLSERVER:
+                return "#" + name;
+            default:
+                return name;
+        }
+    }
+
+    String createTemporaryTable(String name, String columnType) {
+        String ref = temporaryTableReference(name);
+        switch (this) {
+            case H2:
+                return "CREATE LOCAL TEMPORARY TABLE " + ref + " (val " + columnType + ")";
+            case HSQLDB:
+                return "DECLARE LOCAL TEMPORARY TABLE " + name + " (val " + columnType + ") ON COMMIT PRESERVE ROWS";
+            case SQLSERVER:
+                return "CREATE TABLE " + ref + " (val " + columnType + ")";
+            case MYSQL:
+                return "CREATE TEMPORARY TABLE " + ref + " (val " + columnType + ")";
+            default:
+                throw new UnsupportedOperationException("Temporary tables are not supported for " + this);
+        }
+    }
+
+    String dropTemporaryTable(String name) {
+        String ref = temporaryTableReference(name);
+        switch (this) {
+            case H2:
+                return "DROP TABLE IF EXISTS " + ref;
+            case HSQLDB:
+                return "DROP TABLE " + ref + " IF EXISTS";
+            case SQLSERVER:
+                return "IF OBJECT_ID('tempdb.." + ref + "') IS NOT NULL DROP TABLE " + ref;
+            case MYSQL:
+                return "DROP TEMPORARY TABLE IF EXISTS " + ref;
+            default:
+                throw new UnsupportedOperationException("Temporary tables are not supported for " + this);
+        }
+    }
+
+    /**
+     * @return The maximum number of elements in a single IN list
+     */
+    int maxInListSize() {
+        // Oracle rejects IN lists of more than 1000 elements, which also serves as a reasonable bound elsewhere
+        return 1000;
+    }
+}
@@ -0,0 +1,263 @@
+package org.ohnlp.cat.common.impl.sql;
+
+import org.apache.beam.sdk.schemas.Schema;
+import org.apache.beam.sdk.values.Row;
+import org.joda.time.Instant;
+import org.ohnlp.cat.api.criteria.ClinicalEntityType;
+import org.ohnlp.cat.api.ehr.ParameterizedQuery;
+import org.ohnlp.cat.api.ehr.ResourceProvider;
+import org.ohnlp.cat.api.ehr.StreamingOptions;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads a {@link ParameterizedQuery} as a stream of {@link Row}s matching a provider's query schema.
+ * <p>
+ * Where {@link StreamingOptions} are supplied, rows are read using a forward-only, read-only cursor with autocommit
+ * disabled and an explicit fetch size, such that drivers (notably PostgreSQL's) fetch rows incrementally rather than
+ * materializing the entire result set. Rows are then read by a background thread into a bounded buffer, so that
+ * fetching overlaps with consumption while memory use remains bounded by the fetch size and buffer size regardless
+ * of result size. Otherwise, rows are read directly from a result set with driver defaults, on the calling thread.
+ * <p>
+ * The connection is used exclusively by this reader until {@link #close()}, which restores its autocommit setting
+ * and releases any value tables created for the query.
+ */
+public class StreamingRowReader implements Iterator<Row>, AutoCloseable {
+    // Marks the end of the result set
+    private static final Row END = Row.nullRow(Schema.builder().build());
+
+    private final Connection conn;
+    private final ParameterizedQuery query;
+    private final Schema schema;
+    private final boolean autoCommit;
+    private final PreparedStatement ps;
+    private final ResultSet rs;
+    // The buffer and producer thread of streaming reads, or null if rows are read directly
+    private final BlockingQueue<Row> buffer;
+    private final Thread producer;
+    private int[] columns;
+    private volatile boolean closed;
+    private volatile Throwable failure;
+    private Row next;
+
+    private StreamingRowReader(Connection conn, ParameterizedQuery query, Schema schema, StreamingOptions options,
+                               ClinicalEntityType type) throws SQLException {
+        this.conn = conn;
+        this.query = query;
+        this.schema = schema;
+        this.autoCommit = conn.getAutoCommit();
+        query.prepare(conn);
+        PreparedStatement ps = null;
+        try {
+            if (options != null) {
+                conn.setAutoCommit(false);
+                ps = conn.prepareStatement(query.getSql(), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                ps.setFetchSize(options.getFetchSize(type));
+                ps.setFetchDirection(ResultSet.FETCH_FORWARD);
+            } else {
+                ps = conn.prepareStatement(query.getSql());
+            }
+            query.bind(ps);
+            this.ps = ps;
+            this.rs = ps.executeQuery();
+        } catch (SQLException | RuntimeException e) {
+            if (ps != null) {
+                ps.close();
+            }
+            restore();
+            throw e;
+        }
+        if (options != null) {
+            this.buffer = new ArrayBlockingQueue<>(Math.max(1, options.getPrefetchRows()));
+            this.producer = new Thread(this::produce, "impact-streaming-reader");
+            this.producer.setDaemon(true);
+            this.producer.start();
+        } else {
+            this.buffer = null;
+            this.producer = null;
+        }
+    }
+
+    /**
+     * Opens a reader over query, streaming per the options of the supplied provider if specified
+     */
+    public static StreamingRowReader open(ResourceProvider provider, ClinicalEntityType type, ParameterizedQuery query,
+                                          Connection conn) throws SQLException {
+        return new StreamingRowReader(conn, query, provider.getQuerySchema(type), provider.getStreamingOptions(), type);
+    }
+
+    /**
+     * Opens a reader over query
+     *
+     * @param options The streaming options to apply, or null to read using driver defaults
+     * @param type    The type whose fetch size is used if streaming
+     */
+    public static StreamingRowReader open(Connection conn, ParameterizedQuery query, Schema schema,
+                                          StreamingOptions options, ClinicalEntityType type) throws SQLException {
+        return new StreamingRowReader(conn, query, schema, options, type);
+    }
+
+    private void produce() {
+        try {
+            Row row;
+            while (!closed && (row = readRow()) != END) {
+                enqueue(row);
+            }
+        } catch (Throwable t) {
+            failure = t;
+        } finally {
+            try {
+                enqueue(END);
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void enqueue(Row row) throws InterruptedException {
+        while (!closed) {
+            if (buffer.offer(row, 100, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        }
+    }
+
+    private Row readRow() throws SQLException {
+        if (columns == null) {
+            columns = new int[schema.getFieldCount()];
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = rs.findColumn(schema.getField(i).getName());
+            }
+        }
+        if (!rs.next()) {
+            return END;
+        }
+        List<Object> values = new ArrayList<>(columns.length);
+        for (int i = 0; i < columns.length; i++) {
+            values.add(readValue(rs, columns[i], schema.getField(i).getType()));
+        }
+        return Row.withSchema(schema).attachValues(values);
+    }
+
+    private static Object readValue(ResultSet rs, int column, Schema.FieldType type) throws SQLException {
+        Object ret;
+        switch (type.getTypeName()) {
+            case BYTE:
+                ret = rs.getByte(column);
+                break;
+            case INT16:
+                ret = rs.getShort(column);
+                break;
+            case INT32:
+                ret = rs.getInt(column);
+                break;
+            case INT64:
+                ret = rs.getLong(column);
+                break;
+            case DECIMAL:
+                ret = rs.getBigDecimal(column);
+                break;
+            case FLOAT:
+                ret = rs.getFloat(column);
+                break;
+            case DOUBLE:
+                ret = rs.getDouble(column);
+                break;
+            case STRING:
+                ret = rs.getString(column);
+                break;
+            case DATETIME: {
+                Timestamp ts = rs.getTimestamp(column);
+                ret = ts == null ? null : new Instant(ts.getTime());
+                break;
+            }
+            case BOOLEAN:
+                ret = rs.getBoolean(column);
+                break;
+            case BYTES:
+                ret = rs.getBytes(column);
+                break;
+            default:
+                throw new UnsupportedOperationException("Unsupported column type " + type.getTypeName());
+        }
+        return rs.wasNull() ? null : ret;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            if (closed) {
+                return false;
+            }
+            if (buffer == null) {
+                try {
+                    next = readRow();
+                } catch (SQLException e) {
+                    throw new IllegalStateException("Failed to read query results", e);
+                }
+                return next != END;
+            }
+            try {
+                next = buffer.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while awaiting rows", e);
+            }
+            if (failure != null) {
+                throw new IllegalStateException("Failed to read query results", failure);
+            }
+        }
+        return next != END;
+    }
+
+    @Override
+    public Row next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Row ret = next;
+        next = null;
+        return ret;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (producer != null) {
+            try {
+                producer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            buffer.clear();
+        }
+        try {
+            rs.close();
+            ps.close();
+        } finally {
+            restore();
+        }
+    }
+
+    private void restore() throws SQLException {
+        try {
+            if (autoCommit && !conn.getAutoCommit()) {
+                // Nothing was written, so simply end the read transaction
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
+        } finally {
+            query.release(conn);
+        }
+    }
+}
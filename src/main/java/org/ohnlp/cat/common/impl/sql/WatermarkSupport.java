@@ -0,0 +1,94 @@
+package org.ohnlp.cat.common.impl.sql;
+
+import org.ohnlp.cat.api.criteria.ClinicalEntityType;
+
+import java.sql.*;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Shared implementation of watermark-based incremental extraction for JDBC-backed providers, see
+ * {@link org.ohnlp.cat.api.ehr.ResourceProvider#getIncrementalQuery(ClinicalEntityType, java.util.Collection, Date, Date)}
+ */
+public final class WatermarkSupport {
+
+    private WatermarkSupport() {
+    }
+
+    /**
+     * Reads watermark columns from the "watermark_columns" configuration key, a map keyed by lowercase
+     * {@link ClinicalEntityType} name, falling back to defaults for types that are not configured
+     */
+    public static Map<ClinicalEntityType, String> columnsFromConfig(Map<String, Object> config,
+                                                                    Map<ClinicalEntityType, String> defaults) {
+        Map<ClinicalEntityType, String> ret = new EnumMap<>(ClinicalEntityType.class);
+        ret.putAll(defaults);
+        Object configured = config.get("watermark_columns");
+        if (configured instanceof Map) {
+            for (ClinicalEntityType type : ClinicalEntityType.values()) {
+                Object col = ((Map<?, ?>) configured).get(type.name().toLowerCase(Locale.ROOT));
+                if (col != null) {
+                    ret.put(type, col.toString());
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Renders a predicate restricting column to [previous, current]. Rows at the previous watermark are re-read, as
+     * rows may be loaded after it was captured but share its value (e.g. where the column is a date), and merging
+     * incremental results is idempotent
+     *
+     * @return The predicate, or null if neither bound is supplied
+     */
+    public static String predicate(String column, Date previous, Date current, QueryParameters params) {
+        if (previous == null && current == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        if (previous != null) {
+            sb.append(column).append(" >= ?");
+            params.add(new Timestamp(previous.getTime()));
+        }
+        if (current != null) {
+            if (previous != null) {
+                sb.append(" AND ");
+            }
+            sb.append(column).append(" <= ?");
+            params.add(new Timestamp(current.getTime()));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return The conjunction of the two predicates, either of which may be null if absent
+     */
+    public static String and(String first, String second) {
+        if (first == null) {
+            return second;
+        }
+        if (second == null) {
+            return first;
+        }
+        return "(" + first + ") AND (" + second + ")";
+    }
+
+    /**
+     * Executes a query returning a single timestamp, e.g. {@code SELECT MAX(col) FROM ...}
+     *
+     * @return The timestamp, or null if the query returned no value
+     */
+    public static Date queryWatermark(Connection conn, String sql) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(sql)) {
+            if (!rs.next()) {
+                return null;
+            }
+            Timestamp ts = rs.getTimestamp(1);
+            return ts == null ? null : new Date(ts.getTime());
+        }
+    }
+}
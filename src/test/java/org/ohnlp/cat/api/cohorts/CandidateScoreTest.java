@@ -0,0 +1,96 @@
+package org.ohnlp.cat.api.cohorts;
+
+import org.junit.Test;
+import org.ohnlp.cat.api.criteria.Criterion;
+import org.ohnlp.cat.api.criteria.EntityCriterion;
+import org.ohnlp.cat.api.criteria.LogicalCriterion;
+import org.ohnlp.cat.api.criteria.LogicalRelationType;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class CandidateScoreTest {
+    private final EntityCriterion condition = leaf();
+    private final EntityCriterion observation = leaf();
+    // condition AND NOT observation
+    private final Criterion criterion = logical(LogicalRelationType.AND, condition,
+            logical(LogicalRelationType.NOT, observation));
+
+    @Test
+    public void testFromCriterionEvidence() {
+        CandidateScore score = CandidateScore.fromCriterionEvidence(criterion, "1",
+                evidence(condition, "a:CONDITION:1", "a:CONDITION:2", "b:CONDITION:1"), 2);
+        // Two records of the same source count once: (2/2 - 0) / 2
+        assertEquals(0.5, score.getScore(), 1e-9);
+        assertEquals(2, score.getDataSourceCount());
+        assertEquals(new HashSet<>(Arrays.asList("a:CONDITION:1", "a:CONDITION:2", "b:CONDITION:1")), score.getEvidenceIDs());
+    }
+
+    @Test
+    public void testMergeEvidenceOfNewDataSource() {
+        CandidateScore previous = CandidateScore.fromCriterionEvidence(criterion, "1",
+                evidence(condition, "a:CONDITION:1"), 2);
+        CandidateScore current = CandidateScore.fromCriterionEvidence(criterion, "1",
+                evidence(condition, "b:CONDITION:7"), 2);
+        assertEquals(0.25, previous.getScore(), 1e-9);
+        assertEquals(0.25, current.getScore(), 1e-9);
+        // Evidence in both data sources, which neither score alone reflects
+        CandidateScore merged = CandidateScore.mergeIncremental(criterion, previous, current);
+        assertEquals(0.5, merged.getScore(), 1e-9);
+        assertEquals(new HashSet<>(Arrays.asList("a:CONDITION:1", "b:CONDITION:7")), merged.getEvidenceIDs());
+        assertEquals(Collections.singleton(condition.getNodeUID()), merged.getCriterionEvidenceIDs().keySet());
+    }
+
+    @Test
+    public void testMergeNewExclusionLowersScore() {
+        CandidateScore previous = CandidateScore.fromCriterionEvidence(criterion, "1",
+                evidence(condition, "a:CONDITION:1", "b:CONDITION:1"), 2);
+        Map<UUID, Set<String>> exclusion = evidence(observation, "a:OBSERVATION:3");
+        CandidateScore current = CandidateScore.fromCriterionEvidence(criterion, "1", exclusion, 2);
+        CandidateScore merged = CandidateScore.mergeIncremental(criterion, previous, current);
+        assertEquals(0.5, previous.getScore(), 1e-9);
+        assertEquals(-0.25, current.getScore(), 1e-9);
+        // (2/2 - 1/2) / 2, below both the previous score and the maximum of the two
+        assertEquals(0.25, merged.getScore(), 1e-9);
+    }
+
+    @Test
+    public void testMergeIsIdempotent() {
+        CandidateScore previous = CandidateScore.fromCriterionEvidence(criterion, "1",
+                evidence(condition, "a:CONDITION:1"), 2);
+        CandidateScore merged = CandidateScore.mergeIncremental(criterion, previous, previous);
+        assertEquals(previous.getScore(), merged.getScore(), 1e-9);
+        assertEquals(previous.getEvidenceIDs(), merged.getEvidenceIDs());
+        assertSame(previous, CandidateScore.mergeIncremental(criterion, previous, null));
+        assertSame(previous, CandidateScore.mergeIncremental(criterion, null, previous));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMergeRequiresCriterionEvidence() {
+        CandidateScore previous = new CandidateScore("1", 0.5, new HashSet<>(Collections.singleton("a:CONDITION:1")));
+        CandidateScore current = CandidateScore.fromCriterionEvidence(criterion, "1",
+                evidence(condition, "b:CONDITION:1"), 2);
+        CandidateScore.mergeIncremental(criterion, previous, current);
+    }
+
+    private static Map<UUID, Set<String>> evidence(EntityCriterion leaf, String... evidenceIDs) {
+        Map<UUID, Set<String>> ret = new HashMap<>();
+        ret.put(leaf.getNodeUID(), new HashSet<>(Arrays.asList(evidenceIDs)));
+        return ret;
+    }
+
+    private static EntityCriterion leaf() {
+        EntityCriterion ret = new EntityCriterion();
+        ret.setNodeUID(UUID.randomUUID());
+        return ret;
+    }
+
+    private static LogicalCriterion logical(LogicalRelationType type, Criterion... children) {
+        LogicalCriterion ret = new LogicalCriterion();
+        ret.setNodeUID(UUID.randomUUID());
+        ret.setType(type);
+        ret.setChildren(Arrays.asList(children));
+        return ret;
+    }
+}
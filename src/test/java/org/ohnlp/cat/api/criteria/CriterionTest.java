@@ -0,0 +1,54 @@
+package org.ohnlp.cat.api.criteria;
+
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.hl7.fhir.r4.model.Observation;
+import org.junit.Test;
+import org.ohnlp.cat.api.cohorts.CandidateScore;
+import org.ohnlp.cat.api.criteria.prepared.PreparedCriterion;
+import org.ohnlp.cat.api.ehr.ResourceProvider;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class CriterionTest {
+    /**
+     * A criterion defined outside this module, which does not override {@link Criterion#prepare()}
+     */
+    private static class IsConditionCriterion extends Criterion {
+        @Override
+        public boolean matches(DomainResource resource, ResourceProvider resourceProvider) {
+            return resource instanceof Condition;
+        }
+
+        @Override
+        public double score(Map<UUID, CandidateScore> scoreByCriterionUID) {
+            return scoreByCriterionUID.containsKey(getNodeUID()) ? 1 : 0;
+        }
+    }
+
+    @Test
+    public void testDefaultPrepare() {
+        IsConditionCriterion criterion = new IsConditionCriterion();
+        criterion.setNodeUID(UUID.randomUUID());
+        PreparedCriterion prepared = criterion.prepare();
+        assertEquals(criterion.getNodeUID(), prepared.getNodeUID());
+        assertTrue(prepared.matches(new Condition(), null));
+        assertFalse(prepared.matches(new Observation(), null));
+        // Rows are mapped to resources, which are read in full
+        assertNull(prepared.bindRows(ClinicalEntityType.CONDITION, null));
+        assertEquals(EnumSet.allOf(FHIRValueLocationPath.class), prepared.getValuePaths());
+    }
+
+    @Test
+    public void testDefaultPrepareWithinLogicalCriterion() {
+        LogicalCriterion not = new LogicalCriterion();
+        not.setType(LogicalRelationType.NOT);
+        not.setChildren(Collections.singletonList(new IsConditionCriterion()));
+        PreparedCriterion prepared = not.prepare();
+        assertFalse(prepared.matches(new Condition(), null));
+        assertTrue(prepared.matches(new Observation(), null));
+        assertNull(prepared.bindRows(ClinicalEntityType.CONDITION, null));
+    }
+}
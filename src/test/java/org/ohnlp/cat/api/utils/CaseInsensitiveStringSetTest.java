@@ -0,0 +1,49 @@
+package org.ohnlp.cat.api.utils;
+
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.Test;
+import org.ohnlp.cat.api.criteria.FHIRValueLocationPath;
+import org.ohnlp.cat.api.criteria.ValueRelationType;
+import org.ohnlp.cat.api.criteria.prepared.PreparedEntityValue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.junit.Assert.*;
+
+public class CaseInsensitiveStringSetTest {
+    @Test
+    public void testCaseInsensitiveMembership() {
+        CaseInsensitiveStringSet set = new CaseInsensitiveStringSet(2);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(set.add("Value" + i));
+        }
+        assertFalse(set.add("VALUE7"));
+        assertEquals(100, set.size());
+        assertTrue(set.contains("value99"));
+        assertFalse(set.contains("value100"));
+        // Members keep the case in which they were first added
+        assertTrue(set.toList().contains("Value7"));
+    }
+
+    @Test
+    public void testNullIsSkipped() {
+        CaseInsensitiveStringSet set = new CaseInsensitiveStringSet();
+        assertFalse(set.add(null));
+        assertTrue(set.isEmpty());
+        assertFalse(set.contains(null));
+        assertTrue(set.add("a"));
+        assertFalse(set.add(null));
+        assertEquals(Collections.singletonList("a"), set.toList());
+    }
+
+    @Test
+    public void testNullOperandsAreSkipped() {
+        PreparedEntityValue value = new PreparedEntityValue(FHIRValueLocationPath.PERSON_GENDER,
+                new String[]{"female", null, "Other"}, ValueRelationType.IN, null);
+        assertEquals(new HashSet<>(Arrays.asList("female", "Other")), new HashSet<>(value.getStringOperands()));
+        assertTrue(value.matches(new StringType("other")));
+        assertFalse(value.matches(new StringType("male")));
+    }
+}
@@ -0,0 +1,75 @@
+package org.ohnlp.cat.common.impl.coders;
+
+import org.apache.beam.sdk.coders.SerializableCoder;
+import org.apache.beam.sdk.util.CoderUtils;
+import org.junit.Test;
+import org.ohnlp.cat.api.cohorts.CandidateScore;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class CandidateScoreCoderTest {
+    @Test
+    public void testRoundTrip() throws Exception {
+        Set<String> evidenceIDs = new HashSet<>(Arrays.asList("a:CONDITION:1", "a:CONDITION:12345678901",
+                "b:MEDICATION:x-7", "unprefixed"));
+        CandidateScore score = new CandidateScore("42", -0.25, evidenceIDs);
+        score.setDataSourceCount(2);
+        Map<UUID, Set<String>> criterionEvidenceIDs = new HashMap<>();
+        criterionEvidenceIDs.put(UUID.randomUUID(), new HashSet<>(Arrays.asList("a:CONDITION:1", "b:MEDICATION:x-7")));
+        // Per-criterion evidence absent from the evidence IDs is written inline
+        criterionEvidenceIDs.put(UUID.randomUUID(), new HashSet<>(Arrays.asList("unprefixed", "c:OBSERVATION:3")));
+        criterionEvidenceIDs.put(UUID.randomUUID(), new HashSet<>());
+        score.setCriterionEvidenceIDs(criterionEvidenceIDs);
+        CandidateScore decoded = roundTrip(score);
+        assertEquals("42", decoded.getPatientUID());
+        assertEquals(-0.25, decoded.getScore(), 0);
+        assertEquals(2, decoded.getDataSourceCount());
+        assertEquals(evidenceIDs, decoded.getEvidenceIDs());
+        assertEquals(criterionEvidenceIDs, decoded.getCriterionEvidenceIDs());
+    }
+
+    @Test
+    public void testAbsentFields() throws Exception {
+        CandidateScore decoded = roundTrip(new CandidateScore(null, null, null));
+        assertNull(decoded.getPatientUID());
+        assertNull(decoded.getScore());
+        assertNull(decoded.getEvidenceIDs());
+        assertNull(decoded.getCriterionEvidenceIDs());
+
+        decoded = roundTrip(new CandidateScore("1", 0.0, new HashSet<>()));
+        assertEquals(Collections.emptySet(), decoded.getEvidenceIDs());
+        assertNull(decoded.getCriterionEvidenceIDs());
+    }
+
+    @Test
+    public void testEncodedSize() throws Exception {
+        // As in CandidateScoreCoderBenchmark, 64 evidence IDs over 4 entity criteria
+        Random random = new Random(42);
+        Set<String> evidenceIDs = new HashSet<>();
+        Map<UUID, Set<String>> criterionEvidenceIDs = new HashMap<>();
+        for (int leaf = 0; leaf < 4; leaf++) {
+            Set<String> ids = new HashSet<>();
+            for (int i = 0; i < 16; i++) {
+                ids.add((i % 2 == 0 ? "ehr" : "nlp") + ":CONDITION:" + random.nextInt(100_000_000));
+            }
+            criterionEvidenceIDs.put(new UUID(random.nextLong(), random.nextLong()), ids);
+            evidenceIDs.addAll(ids);
+        }
+        CandidateScore score = new CandidateScore("12345678", 0.75, evidenceIDs);
+        score.setDataSourceCount(2);
+        score.setCriterionEvidenceIDs(criterionEvidenceIDs);
+        int encoded = CoderUtils.encodeToByteArray(CandidateScoreCoder.of(), score).length;
+        int serialized = CoderUtils.encodeToByteArray(SerializableCoder.of(CandidateScore.class), score).length;
+        // Evidence IDs of around 20 characters are written once, and referenced by index per criterion
+        assertTrue("Encoded " + encoded + " bytes", encoded < 10 * evidenceIDs.size());
+        assertTrue("Encoded " + encoded + " bytes, serialized " + serialized, encoded * 3 < serialized);
+        assertEquals(criterionEvidenceIDs, roundTrip(score).getCriterionEvidenceIDs());
+    }
+
+    private static CandidateScore roundTrip(CandidateScore score) throws Exception {
+        return CoderUtils.decodeFromByteArray(CandidateScoreCoder.of(),
+                CoderUtils.encodeToByteArray(CandidateScoreCoder.of(), score));
+    }
+}
@@ -0,0 +1,211 @@
+package org.ohnlp.cat.common.impl.coders;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.apache.beam.sdk.coders.SerializableCoder;
+import org.apache.beam.sdk.util.CoderUtils;
+import org.hl7.fhir.r4.model.*;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+public class DomainResourceCoderTest {
+    // 2021-03-04T05:06:07.089Z, which is not representable at day precision
+    private static final Date DATE = new Date(1614834367089L);
+
+    @Test
+    public void testPerson() throws Exception {
+        Person p = new Person();
+        p.setId("a:PERSON:1");
+        p.setGender(Enumerations.AdministrativeGender.FEMALE);
+        p.setBirthDate(DATE);
+        assertRoundTrip(p, DomainResourceCoder.PERSON);
+        assertRoundTrip(new Person(), DomainResourceCoder.PERSON);
+    }
+
+    @Test
+    public void testCondition() throws Exception {
+        Condition c = new Condition();
+        c.setId("a:CONDITION:12345678901");
+        c.setSubject(subject("1"));
+        c.setCode(concept());
+        c.setRecordedDate(DATE);
+        nlpExtensions(c);
+        assertRoundTrip(c, DomainResourceCoder.CONDITION);
+        assertRoundTrip(new Condition(), DomainResourceCoder.CONDITION);
+    }
+
+    @Test
+    public void testMedicationStatement() throws Exception {
+        MedicationStatement ms = new MedicationStatement();
+        ms.setId("a:MEDICATION:2");
+        ms.setSubject(subject("p-2"));
+        ms.setMedication(concept());
+        ms.setDateAsserted(DATE);
+        nlpExtensions(ms);
+        assertRoundTrip(ms, DomainResourceCoder.MEDICATION_STATEMENT);
+        assertRoundTrip(new MedicationStatement(), DomainResourceCoder.MEDICATION_STATEMENT);
+    }
+
+    @Test
+    public void testProcedure() throws Exception {
+        Procedure prc = new Procedure();
+        prc.setId("a:PROCEDURE:3");
+        prc.setSubject(subject("3"));
+        prc.setCode(concept());
+        DateTimeType performed = new DateTimeType(DATE);
+        performed.setTimeZone(TimeZone.getTimeZone("America/Chicago"));
+        prc.setPerformed(performed);
+        assertRoundTrip(prc, DomainResourceCoder.PROCEDURE);
+        assertRoundTrip(new Procedure(), DomainResourceCoder.PROCEDURE);
+    }
+
+    @Test
+    public void testObservation() throws Exception {
+        Observation obs = new Observation();
+        obs.setId("a:OBSERVATION:4");
+        obs.setSubject(subject("4"));
+        obs.setCode(concept());
+        obs.setValue(new StringType("7.5"));
+        InstantType issued = new InstantType(DATE);
+        issued.setTimeZoneZulu(true);
+        obs.setIssuedElement(issued);
+        nlpExtensions(obs);
+        assertRoundTrip(obs, DomainResourceCoder.OBSERVATION);
+        assertRoundTrip(new Observation(), DomainResourceCoder.OBSERVATION);
+    }
+
+    @Test
+    public void testDocumentReference() throws Exception {
+        Condition contained = new Condition();
+        contained.setId("a:CONDITION:5");
+        contained.setSubject(subject("5"));
+        contained.setCode(concept());
+        nlpExtensions(contained);
+        DocumentReference docRef = new DocumentReference();
+        docRef.setId("a:NOTE:6");
+        docRef.setMasterIdentifier(new Identifier().setValue("6"));
+        docRef.setDate(DATE);
+        docRef.addContent().setAttachment(new Attachment().setData("Patient denies chest pain".getBytes(StandardCharsets.UTF_8)));
+        docRef.addContent();
+        docRef.addContained(contained);
+        assertRoundTrip(docRef, DomainResourceCoder.DOCUMENT_REFERENCE);
+        assertRoundTrip(new DocumentReference(), DomainResourceCoder.DOCUMENT_REFERENCE);
+    }
+
+    @Test
+    public void testElementOutsideLayout() throws Exception {
+        Condition c = new Condition();
+        c.setId("a:CONDITION:1");
+        c.setSubject(subject("1"));
+        c.addNote().setText("Not part of the condition layout");
+        assertRoundTrip(c, DomainResourceCoder.JSON);
+    }
+
+    @Test
+    public void testNonPlainElements() throws Exception {
+        Person p = new Person();
+        p.setGender(Enumerations.AdministrativeGender.MALE);
+        p.getGenderElement().addExtension("urn:source", new StringType("intake form"));
+        assertRoundTrip(p, DomainResourceCoder.JSON);
+
+        Condition c = new Condition();
+        c.setSubject(subject("1").setDisplay("Jane Doe"));
+        assertRoundTrip(c, DomainResourceCoder.JSON);
+
+        Condition versioned = new Condition();
+        versioned.setCode(concept());
+        versioned.getCode().getCodingFirstRep().setVersion("v5");
+        assertRoundTrip(versioned, DomainResourceCoder.JSON);
+
+        Condition extended = new Condition();
+        extended.addExtension("nlp:offset", new IntegerType(5));
+        assertRoundTrip(extended, DomainResourceCoder.JSON);
+    }
+
+    @Test
+    public void testChoiceTypesOutsideLayout() throws Exception {
+        MedicationStatement ms = new MedicationStatement();
+        ms.setMedication(new Reference("Medication/1"));
+        assertRoundTrip(ms, DomainResourceCoder.JSON);
+
+        Procedure prc = new Procedure();
+        // JSON retains dates to their precision only, so whole seconds are used
+        prc.setPerformed(new Period().setStart(new Date(1614834367000L)));
+        assertRoundTrip(prc, DomainResourceCoder.JSON);
+
+        Observation obs = new Observation();
+        obs.setValue(new Quantity(7.5));
+        assertRoundTrip(obs, DomainResourceCoder.JSON);
+    }
+
+    @Test
+    public void testDocumentReferenceOutsideLayout() throws Exception {
+        DocumentReference nested = new DocumentReference();
+        nested.addContained(new DocumentReference());
+        assertRoundTrip(nested, DomainResourceCoder.JSON);
+
+        Condition annotated = new Condition();
+        annotated.addNote().setText("Not part of the condition layout");
+        DocumentReference containing = new DocumentReference();
+        containing.addContained(annotated);
+        assertRoundTrip(containing, DomainResourceCoder.JSON);
+
+        DocumentReference typed = new DocumentReference();
+        typed.addContent().setAttachment(new Attachment().setContentType("text/plain"));
+        assertRoundTrip(typed, DomainResourceCoder.JSON);
+    }
+
+    @Test
+    public void testUnsupportedType() throws Exception {
+        Encounter encounter = new Encounter();
+        encounter.setId("a:ENCOUNTER:1");
+        encounter.setStatus(Encounter.EncounterStatus.FINISHED);
+        assertRoundTrip(encounter, DomainResourceCoder.JSON);
+    }
+
+    @Test
+    public void testEncodedSize() throws Exception {
+        // An NLP-derived condition, as in DomainResourceCoderBenchmark
+        Condition c = new Condition();
+        c.setId("nlp:CONDITION:10000001");
+        c.setSubject(subject("123456"));
+        c.setCode(new CodeableConcept().addCoding(new Coding("https://athena.ohdsi.org/", "201826",
+                "Type 2 diabetes mellitus without complication")));
+        c.setRecordedDate(DATE);
+        nlpExtensions(c);
+        int encoded = CoderUtils.encodeToByteArray(DomainResourceCoder.of(), c).length;
+        int json = FhirContext.forR4().newJsonParser().encodeResourceToString(c).getBytes(StandardCharsets.UTF_8).length;
+        int serialized = CoderUtils.encodeToByteArray(SerializableCoder.of(DomainResource.class), c).length;
+        assertTrue("Encoded " + encoded + " bytes, JSON " + json, encoded * 3 < json);
+        assertTrue("Encoded " + encoded + " bytes, serialized " + serialized, encoded * 10 < serialized);
+    }
+
+    private static void assertRoundTrip(DomainResource resource, int layout) throws Exception {
+        byte[] encoded = CoderUtils.encodeToByteArray(DomainResourceCoder.of(), resource);
+        assertEquals(layout, encoded[0]);
+        DomainResource decoded = CoderUtils.decodeFromByteArray(DomainResourceCoder.of(), encoded);
+        assertEquals(resource.getClass(), decoded.getClass());
+        assertEquals(resource.getIdElement().getValue(), decoded.getIdElement().getValue());
+        assertTrue(resource.getClass().getSimpleName() + " did not round-trip", resource.equalsDeep(decoded));
+    }
+
+    private static Reference subject(String patientID) {
+        return new Reference().setIdentifier(new Identifier().setValue(patientID));
+    }
+
+    private static CodeableConcept concept() {
+        CodeableConcept ret = new CodeableConcept();
+        ret.addCoding().setSystem("https://athena.ohdsi.org/").setCode("201826").setDisplay("Type 2 diabetes mellitus");
+        ret.addCoding().setSystem("urn:local").setCode("E11.9");
+        return ret;
+    }
+
+    private static void nlpExtensions(DomainResource resource) {
+        resource.addExtension("nlp:offset", new StringType("120"));
+        resource.addExtension("nlp:text", new StringType("T2DM"));
+    }
+}
@@ -0,0 +1,225 @@
+package org.ohnlp.cat.common.impl.cohorts;
+
+import org.apache.beam.sdk.PipelineResult;
+import org.apache.beam.sdk.metrics.MetricNameFilter;
+import org.apache.beam.sdk.metrics.MetricResult;
+import org.apache.beam.sdk.metrics.MetricsFilter;
+import org.apache.beam.sdk.testing.PAssert;
+import org.apache.beam.sdk.testing.TestPipeline;
+import org.apache.beam.sdk.transforms.Create;
+import org.apache.beam.sdk.values.PCollection;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.ohnlp.cat.api.cohorts.CandidateScore;
+import org.ohnlp.cat.api.criteria.ClinicalEntityType;
+import org.ohnlp.cat.api.criteria.Criterion;
+import org.ohnlp.cat.api.criteria.FHIRValueLocationPath;
+import org.ohnlp.cat.api.criteria.LogicalRelationType;
+import org.ohnlp.cat.api.ehr.ResourceProvider;
+import org.ohnlp.cat.api.jobs.ExtractionWatermark;
+import org.ohnlp.cat.common.impl.coders.CandidateScoreCoder;
+
+import java.sql.SQLException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class CohortEvaluationTest {
+    @Rule
+    public final transient TestPipeline pipeline = TestPipeline.create();
+
+    private EmbeddedCDM cdmA;
+    private EmbeddedCDM cdmB;
+    private List<ResourceProvider> providers;
+
+    @Before
+    public void setUp() throws SQLException {
+        cdmA = new EmbeddedCDM("cohort_evaluation_a");
+        cdmB = new EmbeddedCDM("cohort_evaluation_b");
+        for (int personID = 1; personID <= 5; personID++) {
+            cdmA.person(personID, 8507, 1980);
+            cdmB.person(personID, 8507, 1980);
+        }
+        cdmA.condition(1, 1, 100, "2020-01-01")
+                .condition(2, 2, 100, "2020-01-01")
+                .condition(3, 3, 200, "2020-01-01")
+                .condition(4, 4, 100, "2020-01-01")
+                .drug(1, 1, 300, "2020-01-01")
+                .drug(2, 3, 300, "2020-01-01")
+                .measurement(1, 4, 400, "2020-01-01", 1.0);
+        cdmB.condition(1, 1, 100, "2020-01-01")
+                .drug(1, 2, 300, "2020-01-01")
+                .measurement(1, 2, 400, "2020-01-01", 1.0);
+        providers = Arrays.asList(cdmA.provider("a"), cdmB.provider("b"));
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        for (ResourceProvider provider : providers) {
+            provider.close();
+        }
+        cdmA.close();
+        cdmB.close();
+    }
+
+    /**
+     * @return condition 100 AND medication 300 AND NOT observation 400
+     */
+    private static Criterion criterion() {
+        return Criteria.logical(LogicalRelationType.AND,
+                Criteria.codeIn(ClinicalEntityType.CONDITION, FHIRValueLocationPath.CONDITION_CODE, "100"),
+                Criteria.codeIn(ClinicalEntityType.MEDICATION, FHIRValueLocationPath.MEDICATION_CODE, "300"),
+                Criteria.logical(LogicalRelationType.NOT,
+                        Criteria.codeIn(ClinicalEntityType.OBSERVATION, FHIRValueLocationPath.OBSERVATION_CODE, "400")));
+    }
+
+    @Test
+    public void testEvaluation() {
+        PCollection<CandidateScore> scores = pipeline.apply(new CohortEvaluation(criterion(), providers));
+        PAssert.that(scores).satisfies(candidates -> {
+            Map<String, CandidateScore> byPatient = new HashMap<>();
+            for (CandidateScore candidate : candidates) {
+                assertNull(byPatient.put(candidate.getPatientUID(), candidate));
+            }
+            // Patient 5 has no evidence, and is not emitted
+            assertEquals(new HashSet<>(Arrays.asList("1", "2", "3", "4")), byPatient.keySet());
+            // Condition in both providers, medication in one: (2/2 + 1/2 - 0) / 3
+            assertCandidate(byPatient.get("1"), 0.5, "a:CONDITION:1", "b:CONDITION:1", "a:MEDICATION:1");
+            // Excluded observation in one provider: (1/2 + 1/2 - 1/2) / 3
+            assertCandidate(byPatient.get("2"), 1 / 6.0, "a:CONDITION:2", "b:MEDICATION:1", "b:OBSERVATION:1");
+            assertCandidate(byPatient.get("3"), 1 / 6.0, "a:MEDICATION:2");
+            assertCandidate(byPatient.get("4"), 0.0, "a:CONDITION:4", "a:OBSERVATION:1");
+            return null;
+        });
+        PipelineResult result = pipeline.run();
+        result.waitUntilFinish();
+        // One query per provider and type, unpartitioned. Code filters are pushed down, such that only the
+        // nine matching rows are read
+        assertEquals(6, counter(result, "queries_planned"));
+        assertEquals(9, counter(result, "rows_read"));
+        assertEquals(9, counter(result, "rows_matched"));
+        assertEquals(9, counter(result, "criteria_matched"));
+        assertEquals(4, counter(result, "patients_scored"));
+    }
+
+    @Test
+    public void testPartitionedEvaluation() {
+        List<ResourceProvider> partitioned = Arrays.asList(
+                cdmA.provider("a", Collections.singletonMap("partitions", 4)),
+                cdmB.provider("b", Collections.singletonMap("partitions", 4)));
+        try {
+            PCollection<CandidateScore> scores = pipeline.apply(new CohortEvaluation(criterion(), partitioned));
+            PAssert.that(scores).satisfies(candidates -> {
+                Map<String, Double> byPatient = new HashMap<>();
+                for (CandidateScore candidate : candidates) {
+                    byPatient.put(candidate.getPatientUID(), candidate.getScore());
+                }
+                assertEquals(4, byPatient.size());
+                assertEquals(0.5, byPatient.get("1"), 1e-9);
+                assertEquals(1 / 6.0, byPatient.get("2"), 1e-9);
+                return null;
+            });
+            PipelineResult result = pipeline.run();
+            result.waitUntilFinish();
+            assertTrue(counter(result, "queries_planned") > 6);
+            assertEquals(9, counter(result, "rows_read"));
+            assertEquals(4, counter(result, "patients_scored"));
+        } finally {
+            for (ResourceProvider provider : partitioned) {
+                provider.close();
+            }
+        }
+    }
+
+    @Test
+    public void testIncrementalEvaluation() throws SQLException {
+        List<ResourceProvider> watermarked = Arrays.asList(
+                cdmA.provider("a", EmbeddedCDM.loadWatermarks()),
+                cdmB.provider("b", EmbeddedCDM.loadWatermarks()));
+        try {
+            Criterion criterion = criterion();
+            CohortEvaluation evaluation = new CohortEvaluation(criterion, watermarked);
+            List<CandidateScore> previousScores = new ArrayList<>();
+            new SortedMergeCohortEvaluator(criterion, watermarked).evaluate(previousScores::add);
+            List<ExtractionWatermark> previous = evaluation.captureWatermarks();
+            assertEquals(6, previous.size());
+            // Patient 1 gains a medication in provider b, patient 3 an exclusion, and patient 5 their first evidence.
+            // Patient 4 gains a medication loaded after the previous job, but dated before any previous row
+            cdmB.loadedAt("2020-02-01 00:00:00")
+                    .drug(2, 1, 300, "2020-02-01")
+                    .measurement(2, 3, 400, "2020-02-01", 1.0);
+            cdmA.loadedAt("2020-02-01 00:00:00")
+                    .condition(5, 5, 100, "2020-02-01")
+                    .drug(3, 4, 300, "2019-06-01");
+            List<ExtractionWatermark> current = evaluation.captureWatermarks();
+            Map<String, Double> expected = new HashMap<>();
+            new SortedMergeCohortEvaluator(criterion, watermarked).evaluate(score -> expected.put(score.getPatientUID(), score.getScore()));
+            assertEquals(2 / 3.0, expected.get("1"), 1e-9);
+            assertEquals(0.0, expected.get("3"), 1e-9);
+            assertEquals(1 / 6.0, expected.get("4"), 1e-9);
+            assertEquals(1 / 6.0, expected.get("5"), 1e-9);
+
+            PCollection<CandidateScore> scores = pipeline
+                    .apply(evaluation.incremental(previous, current))
+                    .apply(evaluation.mergeWithPrevious(pipeline.apply("PreviousScores",
+                            Create.of(previousScores).withCoder(CandidateScoreCoder.of()))));
+            PAssert.that(scores).satisfies(candidates -> {
+                Map<String, Double> byPatient = new HashMap<>();
+                for (CandidateScore candidate : candidates) {
+                    assertNull(byPatient.put(candidate.getPatientUID(), candidate.getScore()));
+                }
+                // Identical to a full evaluation over all rows
+                assertEquals(expected.keySet(), byPatient.keySet());
+                expected.forEach((patientUID, score) -> assertEquals(score, byPatient.get(patientUID), 1e-9));
+                return null;
+            });
+            PipelineResult result = pipeline.run();
+            result.waitUntilFinish();
+            // The four rows loaded since, alongside the nine rows loaded at the previous watermark, which are re-read
+            // as rows loaded later may share it, and merge idempotently
+            assertEquals(13, counter(result, "rows_read"));
+            assertEquals(5, counter(result, "patients_scored"));
+            assertEquals(4, counter(result, "patients_merged"));
+        } finally {
+            for (ResourceProvider provider : watermarked) {
+                provider.close();
+            }
+        }
+    }
+
+    @Test
+    public void testWatermarksRequireLoadColumns() throws SQLException {
+        // Record dates are not used as watermarks, such that all rows are extracted
+        assertTrue(new CohortEvaluation(criterion(), providers).captureWatermarks().isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsExclusionOnlyTree() {
+        new CohortEvaluation(Criteria.logical(LogicalRelationType.NOT,
+                Criteria.codeIn(ClinicalEntityType.CONDITION, FHIRValueLocationPath.CONDITION_CODE, "100")), providers);
+    }
+
+    @Test
+    public void testAcceptsDoublyNegatedTree() {
+        new CohortEvaluation(Criteria.logical(LogicalRelationType.NOT, Criteria.logical(LogicalRelationType.NOT,
+                Criteria.codeIn(ClinicalEntityType.CONDITION, FHIRValueLocationPath.CONDITION_CODE, "100"))), providers);
+    }
+
+    private static void assertCandidate(CandidateScore candidate, double score, String... evidenceIDs) {
+        assertEquals(score, candidate.getScore(), 1e-9);
+        assertEquals(2, candidate.getDataSourceCount());
+        assertEquals(new HashSet<>(Arrays.asList(evidenceIDs)), candidate.getEvidenceIDs());
+    }
+
+    private static long counter(PipelineResult result, String name) {
+        long ret = 0;
+        for (MetricResult<Long> counter : result.metrics().queryMetrics(MetricsFilter.builder()
+                .addNameFilter(MetricNameFilter.named(CohortEvaluation.class, name))
+                .build()).getCounters()) {
+            ret += counter.getAttempted();
+        }
+        return ret;
+    }
+}
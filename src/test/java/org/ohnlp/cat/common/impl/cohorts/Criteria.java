@@ -0,0 +1,55 @@
+package org.ohnlp.cat.common.impl.cohorts;
+
+import org.ohnlp.cat.api.criteria.ClinicalEntityType;
+import org.ohnlp.cat.api.criteria.Criterion;
+import org.ohnlp.cat.api.criteria.EntityCriterion;
+import org.ohnlp.cat.api.criteria.EntityValue;
+import org.ohnlp.cat.api.criteria.FHIRValueLocationPath;
+import org.ohnlp.cat.api.criteria.LogicalCriterion;
+import org.ohnlp.cat.api.criteria.LogicalRelationType;
+import org.ohnlp.cat.api.criteria.ValueRelationType;
+import org.ohnlp.cat.api.criteria.parser.DataSourceRepresentation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Builders for criterion trees used in tests
+ */
+class Criteria {
+    private Criteria() {
+    }
+
+    /**
+     * @return An entity criterion matching resources whose code at path is any of the given codes, in any provider
+     */
+    @SuppressWarnings("unchecked")
+    static EntityCriterion codeIn(ClinicalEntityType type, FHIRValueLocationPath path, String... codes) {
+        List<DataSourceRepresentation> representations = new ArrayList<>();
+        for (String code : codes) {
+            DataSourceRepresentation representation = new DataSourceRepresentation();
+            representation.setRepresentation(code);
+            representations.add(representation);
+        }
+        EntityValue value = new EntityValue();
+        value.setValuePath(path);
+        value.setReln(ValueRelationType.IN);
+        value.setExpandedCodes(new Collection[]{representations});
+        EntityCriterion ret = new EntityCriterion();
+        ret.setNodeUID(UUID.randomUUID());
+        ret.setType(type);
+        ret.setComponents(new EntityValue[]{value});
+        return ret;
+    }
+
+    static LogicalCriterion logical(LogicalRelationType type, Criterion... children) {
+        LogicalCriterion ret = new LogicalCriterion();
+        ret.setNodeUID(UUID.randomUUID());
+        ret.setType(type);
+        ret.setChildren(Arrays.asList(children));
+        return ret;
+    }
+}
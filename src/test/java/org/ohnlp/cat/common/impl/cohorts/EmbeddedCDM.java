@@ -0,0 +1,134 @@
+package org.ohnlp.cat.common.impl.cohorts;
+
+import org.ohnlp.cat.api.ehr.ResourceProvider;
+import org.ohnlp.cat.common.impl.ehr.OHDSICDMResourceProvider;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An in-memory H2 database holding the OMOP CDM tables read by {@link OHDSICDMResourceProvider}, which remains open
+ * until {@link #close()}. Event rows record the time they were loaded in a loaded_at column, set via
+ * {@link #loadedAt(String)}, for use as a watermark column via {@link #loadWatermarks()}.
+ */
+class EmbeddedCDM implements AutoCloseable {
+    private final String url;
+    private final Connection conn;
+    private String loadedAt = "2020-01-01 00:00:00";
+
+    EmbeddedCDM(String name) throws SQLException {
+        this.url = "jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1";
+        this.conn = DriverManager.getConnection(url, "sa", "");
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE SCHEMA cdm");
+            stmt.execute("CREATE TABLE cdm.person (person_id INT PRIMARY KEY, gender_concept_id INT, year_of_birth INT, "
+                    + "month_of_birth INT, day_of_birth INT, race_concept_id INT, ethnicity_concept_id INT)");
+            stmt.execute("CREATE TABLE cdm.condition_occurrence (condition_occurrence_id INT PRIMARY KEY, person_id INT, "
+                    + "condition_concept_id INT, condition_start_date DATE, loaded_at TIMESTAMP)");
+            stmt.execute("CREATE TABLE cdm.drug_exposure (drug_exposure_id INT PRIMARY KEY, person_id INT, "
+                    + "drug_concept_id INT, drug_exposure_start_date DATE, drug_exposure_end_date DATE, loaded_at TIMESTAMP)");
+            stmt.execute("CREATE TABLE cdm.procedure_occurrence (procedure_occurrence_id INT PRIMARY KEY, person_id INT, "
+                    + "procedure_concept_id INT, procedure_date DATE, loaded_at TIMESTAMP)");
+            stmt.execute("CREATE TABLE cdm.measurement (measurement_id INT PRIMARY KEY, person_id INT, "
+                    + "measurement_concept_id INT, measurement_date DATE, value_as_number REAL, value_as_concept_id VARCHAR(32), "
+                    + "loaded_at TIMESTAMP)");
+            stmt.execute("CREATE TABLE cdm.concept (concept_id INT PRIMARY KEY, concept_name VARCHAR(255))");
+        }
+    }
+
+    EmbeddedCDM person(int personID, int genderConceptID, int yearOfBirth) throws SQLException {
+        return insert("INSERT INTO cdm.person VALUES (?, ?, ?, 1, 1, 0, 0)", personID, genderConceptID, yearOfBirth);
+    }
+
+    /**
+     * Sets the load time recorded for event rows inserted from now on
+     */
+    EmbeddedCDM loadedAt(String timestamp) {
+        this.loadedAt = timestamp;
+        return this;
+    }
+
+    EmbeddedCDM condition(int id, int personID, int conceptID, String date) throws SQLException {
+        return insert("INSERT INTO cdm.condition_occurrence VALUES (?, ?, ?, CAST(? AS DATE), CAST(? AS TIMESTAMP))",
+                id, personID, conceptID, date, loadedAt);
+    }
+
+    EmbeddedCDM drug(int id, int personID, int conceptID, String date) throws SQLException {
+        return insert("INSERT INTO cdm.drug_exposure VALUES (?, ?, ?, CAST(? AS DATE), CAST(? AS DATE), CAST(? AS TIMESTAMP))",
+                id, personID, conceptID, date, date, loadedAt);
+    }
+
+    EmbeddedCDM procedure(int id, int personID, int conceptID, String date) throws SQLException {
+        return insert("INSERT INTO cdm.procedure_occurrence VALUES (?, ?, ?, CAST(? AS DATE), CAST(? AS TIMESTAMP))",
+                id, personID, conceptID, date, loadedAt);
+    }
+
+    EmbeddedCDM measurement(int id, int personID, int conceptID, String date, double value) throws SQLException {
+        return insert("INSERT INTO cdm.measurement VALUES (?, ?, ?, CAST(? AS DATE), ?, NULL, CAST(? AS TIMESTAMP))",
+                id, personID, conceptID, date, value, loadedAt);
+    }
+
+    EmbeddedCDM execute(String sql) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute(sql);
+        }
+        return this;
+    }
+
+    private EmbeddedCDM insert(String sql, Object... params) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            for (int i = 0; i < params.length; i++) {
+                ps.setObject(i + 1, params[i]);
+            }
+            ps.executeUpdate();
+        }
+        return this;
+    }
+
+    /**
+     * @return An initialized provider reading this database, with additional configuration overriding the defaults
+     */
+    ResourceProvider provider(String sourceName, Map<String, Object> config) {
+        Map<String, Object> providerConfig = new HashMap<>();
+        providerConfig.put("url", url);
+        providerConfig.put("driver", "org.h2.Driver");
+        providerConfig.put("user", "sa");
+        providerConfig.put("password", "");
+        providerConfig.putAll(config);
+        ResourceProvider ret = new OHDSICDMResourceProvider();
+        ret.init(sourceName, providerConfig);
+        return ret;
+    }
+
+    /**
+     * @return Provider configuration using loaded_at as the watermark column of each event table
+     */
+    static Map<String, Object> loadWatermarks() {
+        Map<String, Object> columns = new HashMap<>();
+        columns.put("condition", "co.loaded_at");
+        columns.put("procedure", "p.loaded_at");
+        columns.put("medication", "d.loaded_at");
+        columns.put("observation", "m.loaded_at");
+        Map<String, Object> ret = new HashMap<>();
+        ret.put("watermark_columns", columns);
+        return ret;
+    }
+
+    ResourceProvider provider(String sourceName) {
+        return provider(sourceName, new HashMap<>());
+    }
+
+    @Override
+    public void close() throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("DROP ALL OBJECTS");
+        } finally {
+            conn.close();
+        }
+    }
+}
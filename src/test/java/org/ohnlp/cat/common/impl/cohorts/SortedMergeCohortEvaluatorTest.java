@@ -0,0 +1,139 @@
+package org.ohnlp.cat.common.impl.cohorts;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.ohnlp.cat.api.cohorts.CandidateScore;
+import org.ohnlp.cat.api.criteria.ClinicalEntityType;
+import org.ohnlp.cat.api.criteria.Criterion;
+import org.ohnlp.cat.api.criteria.FHIRValueLocationPath;
+import org.ohnlp.cat.api.criteria.LogicalRelationType;
+import org.ohnlp.cat.api.ehr.ResourceProvider;
+
+import java.sql.SQLException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class SortedMergeCohortEvaluatorTest {
+    private EmbeddedCDM cdmA;
+    private EmbeddedCDM cdmB;
+    private List<ResourceProvider> providers;
+
+    @Before
+    public void setUp() throws SQLException {
+        cdmA = new EmbeddedCDM("sorted_merge_a");
+        cdmB = new EmbeddedCDM("sorted_merge_b");
+        // Patient IDs are chosen such that numeric and string orderings differ
+        cdmA.condition(1, 10, 100, "2020-01-01")
+                .condition(2, 2, 100, "2020-01-01")
+                .condition(3, 100, 100, "2020-01-01")
+                .condition(4, 2, 100, "2020-01-02")
+                .condition(5, 7, 200, "2020-01-01")
+                .drug(1, 2, 300, "2020-01-01")
+                .drug(2, 100, 300, "2020-01-01");
+        cdmB.condition(1, 100, 100, "2020-01-01")
+                .drug(1, 10, 300, "2020-01-01")
+                .drug(2, 3, 300, "2020-01-01")
+                .measurement(1, 2, 400, "2020-01-01", 1.0);
+        providers = Arrays.asList(cdmA.provider("a"), cdmB.provider("b"));
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        for (ResourceProvider provider : providers) {
+            provider.close();
+        }
+        cdmA.close();
+        cdmB.close();
+    }
+
+    /**
+     * @return condition 100 AND medication 300 AND NOT observation 400
+     */
+    private static Criterion criterion() {
+        return Criteria.logical(LogicalRelationType.AND,
+                Criteria.codeIn(ClinicalEntityType.CONDITION, FHIRValueLocationPath.CONDITION_CODE, "100"),
+                Criteria.codeIn(ClinicalEntityType.MEDICATION, FHIRValueLocationPath.MEDICATION_CODE, "300"),
+                Criteria.logical(LogicalRelationType.NOT,
+                        Criteria.codeIn(ClinicalEntityType.OBSERVATION, FHIRValueLocationPath.OBSERVATION_CODE, "400")));
+    }
+
+    @Test
+    public void testEvaluation() throws SQLException {
+        List<CandidateScore> scores = new ArrayList<>();
+        long scored = new SortedMergeCohortEvaluator(criterion(), providers).evaluate(scores::add);
+        assertEquals(4, scored);
+        List<String> patients = new ArrayList<>();
+        for (CandidateScore score : scores) {
+            patients.add(score.getPatientUID());
+            assertEquals(2, score.getDataSourceCount());
+        }
+        // Emitted in ascending numeric order of patient ID
+        assertEquals(Arrays.asList("2", "3", "10", "100"), patients);
+        // Two conditions in provider a count once: (1/2 + 1/2 - 1/2) / 3
+        assertEquals(1 / 6.0, scores.get(0).getScore(), 1e-9);
+        assertEquals(new HashSet<>(Arrays.asList("a:CONDITION:2", "a:CONDITION:4", "a:MEDICATION:1", "b:OBSERVATION:1")),
+                scores.get(0).getEvidenceIDs());
+        assertEquals(1 / 6.0, scores.get(1).getScore(), 1e-9);
+        assertEquals(Collections.singleton("b:MEDICATION:2"), scores.get(1).getEvidenceIDs());
+        // Condition and medication from different providers: (1/2 + 1/2) / 3
+        assertEquals(1 / 3.0, scores.get(2).getScore(), 1e-9);
+        assertEquals(new HashSet<>(Arrays.asList("a:CONDITION:1", "b:MEDICATION:1")), scores.get(2).getEvidenceIDs());
+        assertEquals(0.5, scores.get(3).getScore(), 1e-9);
+        assertEquals(new HashSet<>(Arrays.asList("a:CONDITION:3", "b:CONDITION:1", "a:MEDICATION:2")),
+                scores.get(3).getEvidenceIDs());
+    }
+
+    @Test
+    public void testStreamsOutnumberPool() throws SQLException {
+        // One stream per type, drawn from a pool shared by both providers of the same database
+        List<ResourceProvider> pooled = Arrays.asList(
+                cdmA.provider("a1", Collections.singletonMap("pool_size", 4)),
+                cdmA.provider("a2", Collections.singletonMap("pool_size", 4)));
+        try {
+            long start = System.nanoTime();
+            try {
+                new SortedMergeCohortEvaluator(criterion(), pooled).evaluate(score -> {
+                });
+                fail("Expected six streams to be rejected by a pool of four connections");
+            } catch (IllegalStateException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("reads 6 streams concurrently from the connection "
+                        + "pool of provider(s) a1, a2, which holds at most 4 connections"));
+            }
+            // Rejected up front, rather than once the pool's connection timeout elapses
+            assertTrue(System.nanoTime() - start < 10_000_000_000L);
+        } finally {
+            for (ResourceProvider provider : pooled) {
+                provider.close();
+            }
+        }
+        // Sufficient for both providers' streams
+        List<ResourceProvider> sized = Arrays.asList(
+                cdmA.provider("a1", Collections.singletonMap("pool_size", 6)),
+                cdmA.provider("a2", Collections.singletonMap("pool_size", 6)));
+        try {
+            assertEquals(3, new SortedMergeCohortEvaluator(criterion(), sized).evaluate(score -> {
+            }));
+        } finally {
+            for (ResourceProvider provider : sized) {
+                provider.close();
+            }
+        }
+    }
+
+    @Test
+    public void testUnorderedStream() throws SQLException {
+        // Person IDs stored as strings are ordered as such by the database, but read as integers by the provider,
+        // such that 100 is followed by 2
+        cdmA.execute("ALTER TABLE cdm.condition_occurrence ALTER COLUMN person_id VARCHAR(16)");
+        SortedMergeCohortEvaluator evaluator = new SortedMergeCohortEvaluator(criterion(), providers);
+        try {
+            evaluator.evaluate(score -> {
+            });
+            fail("Expected unordered rows to be rejected");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("provider a are not ordered by patient: 2 follows 100"));
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package org.ohnlp.cat.common.impl.criteria.parser;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class DictionaryTextDescriptionParserTest {
+    private static DictionaryTextDescriptionParser parser() {
+        return new DictionaryTextDescriptionParser.Builder(3)
+                .add("Myocardial infarction", "C0027051")
+                .add("Heart attack", "C0027051")
+                .add("Heart", "C0018787")
+                .add("Attack rate", "C0683957")
+                .add("Type 2 diabetes mellitus", "C0011860")
+                .add("Diabetes mellitus", "C0011849")
+                // Shorter than the minimum length
+                .add("MI", "C0027051")
+                .add(null, "C0000001")
+                .add("Orphan", null)
+                .build();
+    }
+
+    @Test
+    public void testParse() {
+        DictionaryTextDescriptionParser parser = parser();
+        // The longest match at each start, such that diabetes mellitus within type 2 diabetes mellitus is not reported
+        assertEquals(new HashSet<>(Arrays.asList("C0027051", "C0011860")),
+                parser.parseToUMLS("History of heart attack rate and type-2 diabetes mellitus"));
+        assertEquals(Collections.singleton("C0018787"), parser.parseToUMLS("heart unknown attack"));
+        assertTrue(parser.parseToUMLS("MI").isEmpty());
+        assertTrue(parser.parseToUMLS("Orphan").isEmpty());
+        assertTrue(parser.parseToUMLS((String) null).isEmpty());
+    }
+
+    @Test
+    public void testParseCollection() {
+        Map<String, Set<String>> parsed = parser().parseToUMLS(Arrays.asList(
+                "Myocardial infarction", "Diabetes mellitus", null, "Diabetes mellitus", "No findings"));
+        // Each distinct, non-null input is parsed once
+        assertEquals(3, parsed.size());
+        assertEquals(Collections.singleton("C0027051"), parsed.get("Myocardial infarction"));
+        assertEquals(Collections.singleton("C0011849"), parsed.get("Diabetes mellitus"));
+        assertTrue(parsed.get("No findings").isEmpty());
+        assertTrue(parser().parseToUMLS(Collections.<String>emptyList()).isEmpty());
+    }
+}
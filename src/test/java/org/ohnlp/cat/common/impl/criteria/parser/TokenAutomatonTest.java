@@ -0,0 +1,93 @@
+package org.ohnlp.cat.common.impl.criteria.parser;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TokenAutomatonTest {
+    private static TokenAutomaton automaton(String... entries) {
+        TokenAutomaton.Builder builder = new TokenAutomaton.Builder();
+        for (int i = 0; i < entries.length; i++) {
+            builder.add(entries[i], i);
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return Each match as start-end:values
+     */
+    private static List<String> describe(List<TokenAutomaton.Match> matches) {
+        List<String> ret = new ArrayList<>();
+        for (TokenAutomaton.Match match : matches) {
+            ret.add(match.start + "-" + match.end + ":" + Arrays.toString(match.values));
+        }
+        return ret;
+    }
+
+    @Test
+    public void testTokenize() {
+        assertEquals(Arrays.asList("type", "2", "diabetes", "mellitus"),
+                TokenAutomaton.tokenize(" Type-2  DIABETES, mellitus."));
+        assertTrue(TokenAutomaton.tokenize("--").isEmpty());
+    }
+
+    @Test
+    public void testLeftmostThenLongest() {
+        TokenAutomaton automaton = automaton("chronic kidney", "chronic kidney disease", "kidney disease stage", "stage");
+        // The longest entry at the leftmost start wins, and kidney disease stage, which overlaps it, is dropped in
+        // favour of the stage following it
+        assertEquals(Arrays.asList("0-3:[1]", "3-4:[3]"),
+                describe(automaton.findLongestMatches("chronic kidney disease stage")));
+        // Without the longer entry's final token, the shorter one is chosen
+        assertEquals(Arrays.asList("0-2:[0]", "2-3:[3]"),
+                describe(automaton.findLongestMatches("Chronic kidney, stage")));
+    }
+
+    @Test
+    public void testOverlappingEntries() {
+        TokenAutomaton automaton = automaton("heart attack", "attack rate", "rate");
+        // attack rate overlaps heart attack, whereas the rate within it begins where heart attack ends
+        assertEquals(Arrays.asList("0-2:[0]", "2-3:[2]", "3-4:[2]"),
+                describe(automaton.findLongestMatches("heart attack rate rate")));
+        // A repeated first token is matched via the failure link of the partial entry
+        assertEquals(Collections.singletonList("1-3:[0]"), describe(automaton.findLongestMatches("heart heart attack")));
+    }
+
+    @Test
+    public void testSuffixMatchViaOutputLink() {
+        TokenAutomaton automaton = automaton("a b c d", "b c d e", "c");
+        // The state for a b c fails to the non-terminal b c, whose output link leads to c
+        assertEquals(Collections.singletonList("2-3:[2]"), describe(automaton.findLongestMatches("a b c z")));
+        assertEquals(Collections.singletonList("0-4:[0]"), describe(automaton.findLongestMatches("a b c d")));
+        // The partial a b c falls back along its failure chain to the root before b c d e is matched
+        assertEquals(Arrays.asList("2-3:[2]", "3-7:[1]"), describe(automaton.findLongestMatches("a b c b c d e")));
+    }
+
+    @Test
+    public void testUnknownTokenResets() {
+        TokenAutomaton automaton = automaton("heart failure");
+        assertTrue(automaton.findLongestMatches("heart acute failure").isEmpty());
+        assertEquals(Collections.singletonList("1-3:[0]"), describe(automaton.findLongestMatches("acute heart failure")));
+        assertEquals(Collections.singletonList("2-4:[0]"),
+                describe(automaton.findLongestMatches("heart unspecified heart-failure")));
+    }
+
+    @Test
+    public void testEntryValues() {
+        TokenAutomaton.Builder builder = new TokenAutomaton.Builder();
+        builder.add("common cold", 0);
+        builder.add("Common COLD", 1);
+        builder.add("common cold", 1);
+        // Entries without tokens are ignored
+        builder.add("--", 2);
+        TokenAutomaton automaton = builder.build();
+        assertEquals(Collections.singletonList("0-2:[0, 1]"), describe(automaton.findLongestMatches("common cold")));
+        assertTrue(automaton.findLongestMatches("--").isEmpty());
+        assertTrue(automaton.findLongestMatches("").isEmpty());
+    }
+}
@@ -0,0 +1,106 @@
+package org.ohnlp.cat.common.impl.criteria.representations;
+
+import org.junit.Test;
+import org.ohnlp.cat.api.criteria.ClinicalEntityType;
+import org.ohnlp.cat.api.criteria.parser.DataSourceRepresentation;
+import org.ohnlp.cat.api.criteria.parser.UMLSDataSourceRepresentationResolver;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class CompositeUMLSDataSourceRepresentationResolverTest {
+    private static final String CUI = "C0011860";
+
+    @Test
+    public void testPartialResults() {
+        Map<String, UMLSDataSourceRepresentationResolver> resolvers = new LinkedHashMap<>();
+        resolvers.put("fast", new FixedResolver("250.00", 0));
+        resolvers.put("slow", new FixedResolver("E11.9", 5000));
+        resolvers.put("failing", new FixedResolver(null, 0));
+        try (CompositeUMLSDataSourceRepresentationResolver composite =
+                     new CompositeUMLSDataSourceRepresentationResolver(resolvers, 200, 3)) {
+            CompositeUMLSDataSourceRepresentationResolver.Resolution resolution =
+                    composite.resolve(ClinicalEntityType.CONDITION, Collections.emptyList(), Collections.singleton(CUI));
+            assertEquals(Collections.singleton("250.00"), representations(resolution));
+            assertEquals(Collections.singleton("slow"), resolution.getTimedOutResolvers());
+            assertEquals(Collections.singleton("failing"), resolution.getFailedResolvers().keySet());
+            assertFalse(resolution.isComplete());
+        }
+    }
+
+    @Test
+    public void testDeadlineStartsWithQuery() throws Exception {
+        // A single thread shared by concurrent calls, each query taking 60% of the deadline: the second call's query
+        // is queued behind the first, and so completes after the deadline measured from its call
+        Map<String, UMLSDataSourceRepresentationResolver> resolvers =
+                Collections.singletonMap("vocab", new FixedResolver("250.00", 300));
+        ExecutorService callers = Executors.newFixedThreadPool(2);
+        try (CompositeUMLSDataSourceRepresentationResolver composite =
+                     new CompositeUMLSDataSourceRepresentationResolver(resolvers, 500, 1)) {
+            List<Future<CompositeUMLSDataSourceRepresentationResolver.Resolution>> calls = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                calls.add(callers.submit(() -> composite.resolve(ClinicalEntityType.CONDITION,
+                        Collections.emptyList(), Collections.singleton(CUI))));
+            }
+            for (Future<CompositeUMLSDataSourceRepresentationResolver.Resolution> call : calls) {
+                CompositeUMLSDataSourceRepresentationResolver.Resolution resolution = call.get();
+                assertTrue(resolution.getTimedOutResolvers().toString(), resolution.isComplete());
+                assertEquals(Collections.singleton("250.00"), representations(resolution));
+            }
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsInsufficientParallelism() {
+        Map<String, UMLSDataSourceRepresentationResolver> resolvers = new HashMap<>();
+        resolvers.put("a", new FixedResolver("1", 0));
+        resolvers.put("b", new FixedResolver("2", 0));
+        new CompositeUMLSDataSourceRepresentationResolver(resolvers, 100, 1);
+    }
+
+    private static Set<String> representations(CompositeUMLSDataSourceRepresentationResolver.Resolution resolution) {
+        Set<String> ret = new HashSet<>();
+        for (DataSourceRepresentation representation : resolution.getRepresentations().get(CUI)) {
+            ret.add(representation.getRepresentation());
+        }
+        return ret;
+    }
+
+    /**
+     * Resolves every CUI to a single code after a delay, or fails if the code is null
+     */
+    private static class FixedResolver implements UMLSDataSourceRepresentationResolver {
+        private final String code;
+        private final long delayMillis;
+
+        private FixedResolver(String code, long delayMillis) {
+            this.code = code;
+            this.delayMillis = delayMillis;
+        }
+
+        @Override
+        public void init(Map<String, Object> config) {
+        }
+
+        @Override
+        public Set<DataSourceRepresentation> resolveForUMLS(ClinicalEntityType type, Collection<String> requestingDataSourceIDs, String umlsCUI) {
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+            if (code == null) {
+                throw new IllegalStateException("Resolver unavailable");
+            }
+            DataSourceRepresentation ret = new DataSourceRepresentation();
+            ret.setSourceUMLSCUI(umlsCUI);
+            ret.setRepresentation(code);
+            return Collections.singleton(ret);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package org.ohnlp.cat.common.impl.criteria.representations;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.ohnlp.cat.api.criteria.ClinicalEntityType;
+import org.ohnlp.cat.api.criteria.parser.DataSourceRepresentation;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class UMLSSourceVocabIndexResolverTest {
+    private static final Collection<String> DATA_SOURCES = Collections.singletonList("a");
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private Path mrconso;
+    private Path index;
+
+    @Before
+    public void setUp() throws IOException {
+        mrconso = folder.getRoot().toPath().resolve("MRCONSO.RRF");
+        index = folder.getRoot().toPath().resolve("mrconso.idx");
+        Files.write(mrconso, Arrays.asList(
+                row("C0011860", "ICD10CM", "E11", "Type 2 diabetes mellitus"),
+                row("C0011860", "SNOMEDCT_US", "44054006", "Diabetes mellitus type 2"),
+                // A second string for a code already in the pool
+                row("C0011860", "ICD10CM", "E11", "Diabetes, type 2"),
+                // Not a configured vocabulary
+                row("C0011860", "MSH", "D003924", "Diabetes Mellitus, Type 2"),
+                row("C0020538", "ICD10CM", "I10", "Essential (primary) hypertension"),
+                row("C0004096", "RXNORM", "1154343", "Albuterol \u00b5g inhaler"),
+                // Malformed rows are skipped
+                "C0000001|ENG|P",
+                row("X0000002", "ICD10CM", "Z00", "Not a CUI")), StandardCharsets.UTF_8);
+    }
+
+    private static String row(String cui, String sab, String code, String str) {
+        return cui + "|ENG|P|L0000001|PF|S0000001|Y|A0000001||||" + sab + "|PT|" + code + "|" + str + "|0|N||";
+    }
+
+    private UMLSSourceVocabIndexResolver resolver(boolean withSource, String... medicationVocabs) {
+        Map<String, Object> config = new HashMap<>();
+        config.put("indexPath", index.toString());
+        if (withSource) {
+            config.put("mrconsoPath", mrconso.toString());
+        }
+        Map<String, Object> vocabs = new HashMap<>();
+        vocabs.put("CONDITION", Arrays.asList("ICD10CM", "SNOMEDCT_US"));
+        vocabs.put("MEDICATION", Arrays.asList(medicationVocabs));
+        config.put("vocabs", vocabs);
+        UMLSSourceVocabIndexResolver ret = new UMLSSourceVocabIndexResolver();
+        ret.init(config);
+        return ret;
+    }
+
+    @Test
+    public void testRoundTrip() {
+        UMLSSourceVocabIndexResolver resolver = resolver(true, "RXNORM");
+        assertTrue(Files.exists(index));
+        Set<DataSourceRepresentation> diabetes = resolver.resolveForUMLS(ClinicalEntityType.CONDITION, DATA_SOURCES, "C0011860");
+        assertEquals(new HashSet<>(Arrays.asList(
+                        "ICD10CM|E11|Type 2 diabetes mellitus",
+                        "SNOMEDCT_US|44054006|Diabetes mellitus type 2",
+                        "ICD10CM|E11|Diabetes, type 2")),
+                describe(diabetes));
+        for (DataSourceRepresentation representation : diabetes) {
+            assertEquals(DATA_SOURCES, representation.getDataSourceID());
+        }
+        // Non-ASCII strings are decoded from UTF-8
+        assertEquals(Collections.singleton("RXNORM|1154343|Albuterol \u00b5g inhaler"),
+                describe(resolver.resolveForUMLS(ClinicalEntityType.MEDICATION, DATA_SOURCES, "C0004096")));
+        // Vocabularies are restricted per type
+        assertTrue(resolver.resolveForUMLS(ClinicalEntityType.MEDICATION, DATA_SOURCES, "C0011860").isEmpty());
+        assertTrue(resolver.resolveForUMLS(ClinicalEntityType.OBSERVATION, DATA_SOURCES, "C0011860").isEmpty());
+        // Absent, malformed and out of range CUIs
+        assertTrue(resolver.resolveForUMLS(ClinicalEntityType.CONDITION, DATA_SOURCES, "C0000001").isEmpty());
+        assertTrue(resolver.resolveForUMLS(ClinicalEntityType.CONDITION, DATA_SOURCES, "C9999999").isEmpty());
+        assertTrue(resolver.resolveForUMLS(ClinicalEntityType.CONDITION, DATA_SOURCES, "X0011860").isEmpty());
+        assertTrue(resolver.resolveForUMLS(ClinicalEntityType.CONDITION, DATA_SOURCES, (String) null).isEmpty());
+    }
+
+    @Test
+    public void testPrebuiltIndex() throws IOException {
+        resolver(true, "RXNORM");
+        // Current indexes are not rebuilt, and may be loaded without the source file
+        Object built = Files.readAttributes(index, BasicFileAttributes.class).fileKey();
+        resolver(true, "RXNORM");
+        assertEquals(built, Files.readAttributes(index, BasicFileAttributes.class).fileKey());
+        Files.delete(mrconso);
+        assertEquals(Collections.singleton("ICD10CM|I10|Essential (primary) hypertension"),
+                describe(resolver(false, "RXNORM").resolveForUMLS(ClinicalEntityType.CONDITION, DATA_SOURCES, "C0020538")));
+    }
+
+    @Test
+    public void testRebuildOnChange() throws IOException {
+        resolver(true, "RXNORM");
+        Files.write(mrconso, Collections.singletonList(row("C0020538", "SNOMEDCT_US", "59621000", "Essential hypertension")),
+                StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        assertEquals(new HashSet<>(Arrays.asList(
+                        "ICD10CM|I10|Essential (primary) hypertension",
+                        "SNOMEDCT_US|59621000|Essential hypertension")),
+                describe(resolver(true, "RXNORM").resolveForUMLS(ClinicalEntityType.CONDITION, DATA_SOURCES, "C0020538")));
+        // As is an index of different vocabularies
+        assertEquals(Collections.singleton("MSH|D003924|Diabetes Mellitus, Type 2"),
+                describe(resolver(true, "MSH").resolveForUMLS(ClinicalEntityType.MEDICATION, DATA_SOURCES, "C0011860")));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testMissingVocabularyWithoutSource() {
+        resolver(true, "RXNORM");
+        resolver(false, "MSH");
+    }
+
+    @Test
+    public void testIncompatibleIndex() throws IOException {
+        Files.write(index, new byte[64]);
+        try {
+            resolver(false, "RXNORM");
+            fail("Expected an incompatible index to be rejected");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    /**
+     * @return Each representation as resolver ID|code|description
+     */
+    private static Set<String> describe(Set<DataSourceRepresentation> representations) {
+        Set<String> ret = new HashSet<>();
+        for (DataSourceRepresentation representation : representations) {
+            ret.add(representation.getResolverID() + "|" + representation.getRepresentation() + "|"
+                    + representation.getRepresentationDescription());
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,66 @@
+package org.ohnlp.cat.common.impl.ehr;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.ohnlp.cat.common.impl.sql.PooledConnectionSource;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class OMOPConceptAncestorIndexTest {
+    private static final String URL = "jdbc:h2:mem:concept_ancestor_index;DB_CLOSE_DELAY=-1";
+
+    private Connection conn;
+    private PooledConnectionSource connections;
+
+    @Before
+    public void setUp() throws SQLException {
+        conn = DriverManager.getConnection(URL, "sa", "");
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE SCHEMA cdm");
+        }
+        Map<String, Object> config = new HashMap<>();
+        config.put("url", URL);
+        config.put("driver", "org.h2.Driver");
+        config.put("user", "sa");
+        config.put("password", "");
+        connections = PooledConnectionSource.fromConfig(config);
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        connections.close();
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("DROP ALL OBJECTS");
+        } finally {
+            conn.close();
+        }
+    }
+
+    @Test
+    public void testFailedLoadIsRetried() throws SQLException {
+        try {
+            OMOPConceptAncestorIndex.shared(connections, "cdm");
+            fail("Expected the load of a missing table to fail");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof SQLException);
+        }
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE cdm.concept_ancestor (ancestor_concept_id INT, descendant_concept_id INT)");
+            stmt.execute("INSERT INTO cdm.concept_ancestor VALUES (1, 1), (1, 2), (1, 3), (2, 2), (2, 3), (5, 6)");
+        }
+        OMOPConceptAncestorIndex index = OMOPConceptAncestorIndex.shared(connections, "cdm");
+        assertSame(index, OMOPConceptAncestorIndex.shared(connections, "cdm"));
+        assertEquals(6, index.size());
+        assertArrayEquals(new long[]{1, 2, 3}, index.getDescendants(1));
+        assertArrayEquals(new long[]{2, 3, 4, 5, 6}, index.getDescendants(new long[]{4, 2, 5}));
+        assertArrayEquals(new long[]{Integer.MAX_VALUE + 1L}, index.getDescendants(Integer.MAX_VALUE + 1L));
+    }
+}
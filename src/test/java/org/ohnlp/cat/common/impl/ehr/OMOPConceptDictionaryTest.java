@@ -0,0 +1,92 @@
+package org.ohnlp.cat.common.impl.ehr;
+
+import org.junit.After;
+import org.junit.Test;
+import org.ohnlp.cat.common.impl.sql.PooledConnectionSource;
+import org.ohnlp.cat.common.impl.sql.SQLDialect;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class OMOPConceptDictionaryTest {
+    private Connection conn;
+    private PooledConnectionSource connections;
+
+    /**
+     * Creates a CDM with concepts 1, 2, 1500 and 5000, of which 2 and 1500 (in blocks 0 and 1) are referenced by
+     * condition_occurrence, alongside 4000, which has no concept
+     */
+    private OMOPConceptDictionary dictionary(String name, long memoryBudgetBytes) throws SQLException {
+        String url = "jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1";
+        conn = DriverManager.getConnection(url, "sa", "");
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE SCHEMA cdm");
+            stmt.execute("CREATE TABLE cdm.concept (concept_id INT PRIMARY KEY, concept_code VARCHAR(50), "
+                    + "vocabulary_id VARCHAR(20), concept_name VARCHAR(255))");
+            stmt.execute("INSERT INTO cdm.concept VALUES (1, 'A01', 'ICD10CM', 'One'), (2, 'A02', 'ICD10CM', 'Two'), "
+                    + "(1500, 'B01', 'SNOMED', 'Fifteen hundred'), (5000, 'C01', 'SNOMED', 'Five thousand')");
+            stmt.execute("CREATE TABLE cdm.condition_occurrence (condition_occurrence_id INT PRIMARY KEY, "
+                    + "condition_concept_id INT)");
+            stmt.execute("INSERT INTO cdm.condition_occurrence VALUES (1, 2), (2, 1500), (3, 2), (4, 4000)");
+        }
+        Map<String, Object> config = new HashMap<>();
+        config.put("url", url);
+        config.put("driver", "org.h2.Driver");
+        config.put("user", "sa");
+        config.put("password", "");
+        connections = PooledConnectionSource.fromConfig(config);
+        return OMOPConceptDictionary.shared(connections, "cdm", SQLDialect.fromJdbcUrl(url), 100, memoryBudgetBytes);
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        connections.close();
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("DROP ALL OBJECTS");
+        } finally {
+            conn.close();
+        }
+    }
+
+    @Test
+    public void testPreloadReferencedBlocks() throws SQLException {
+        OMOPConceptDictionary dictionary = dictionary("concept_dictionary_preload", 1024 * 1024);
+        dictionary.preload("SELECT condition_concept_id FROM cdm.condition_occurrence");
+        assertTrue(dictionary.getUsedBytes() > 0);
+        // Referenced blocks, including their unreferenced concepts, are resolved without querying CONCEPT
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("ALTER TABLE cdm.concept RENAME TO concept_unavailable");
+        }
+        assertEquals("One", dictionary.getConceptName(1));
+        assertEquals("Two", dictionary.getConceptName(2));
+        assertEquals("Fifteen hundred", dictionary.getConceptName(1500));
+        assertEquals("ICD10CM", dictionary.getConcept(2).getVocabularyID());
+        assertNull(dictionary.getConceptName(4000));
+        assertNull(dictionary.getConceptName(1999));
+        // Blocks that are not referenced are still loaded on demand
+        try {
+            dictionary.getConceptName(5000);
+            fail("Expected an unreferenced block to be queried");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof SQLException);
+        }
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("ALTER TABLE cdm.concept_unavailable RENAME TO concept");
+        }
+        assertEquals("Five thousand", dictionary.getConceptName(5000));
+    }
+
+    @Test
+    public void testPreloadWithinBudget() throws SQLException {
+        OMOPConceptDictionary dictionary = dictionary("concept_dictionary_budget", 0);
+        dictionary.preload("SELECT condition_concept_id FROM cdm.condition_occurrence");
+        assertEquals(0, dictionary.getUsedBytes());
+        assertEquals("Fifteen hundred", dictionary.getConceptName(1500));
+    }
+}
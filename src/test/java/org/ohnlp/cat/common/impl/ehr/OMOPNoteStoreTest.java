@@ -0,0 +1,180 @@
+package org.ohnlp.cat.common.impl.ehr;
+
+import org.junit.After;
+import org.junit.Test;
+import org.ohnlp.cat.common.impl.sql.PooledConnectionSource;
+import org.ohnlp.cat.common.impl.sql.SQLDialect;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class OMOPNoteStoreTest {
+    private static final String SNIPPET_TEXT = "Patient denies chest pain. Reports chest pain on exertion.";
+
+    private Connection conn;
+    private PooledConnectionSource connections;
+
+    /**
+     * Creates a CDM with notes 1, 2 and 3, each of 100 characters, note 4, of which the text is null, and note 5, for
+     * snippets
+     */
+    private OMOPNoteStore store(String name, long memoryBudgetBytes, boolean compress) throws SQLException {
+        String url = "jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1";
+        conn = DriverManager.getConnection(url, "sa", "");
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE SCHEMA cdm");
+            stmt.execute("CREATE TABLE cdm.note (note_id INT PRIMARY KEY, note_text CLOB)");
+        }
+        try (PreparedStatement ps = conn.prepareStatement("INSERT INTO cdm.note VALUES (?, ?)")) {
+            for (int i = 1; i <= 5; i++) {
+                ps.setInt(1, i);
+                ps.setString(2, i == 4 ? null : i == 5 ? SNIPPET_TEXT : text(i));
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+        Map<String, Object> config = new HashMap<>();
+        config.put("url", url);
+        config.put("driver", "org.h2.Driver");
+        config.put("user", "sa");
+        config.put("password", "");
+        connections = PooledConnectionSource.fromConfig(config);
+        // A bulk binding threshold of 2 such that batches of 3 or more notes are bound as a single array
+        return OMOPNoteStore.shared(connections, "cdm", SQLDialect.fromJdbcUrl(url), 2, memoryBudgetBytes, compress);
+    }
+
+    private static String text(int noteID) {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 100) {
+            sb.append("Note ").append(noteID).append(": caf\u00e9 visit. ");
+        }
+        return sb.substring(0, 100);
+    }
+
+    /**
+     * @return The size of an uncompressed note as estimated by the store
+     */
+    private static long estimateBytes(String noteID, String text) {
+        return 40 + 2 * noteID.length() + 16 + text.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        connections.close();
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("DROP ALL OBJECTS");
+        } finally {
+            conn.close();
+        }
+    }
+
+    private void setNotesAvailable(boolean available) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute(available ? "ALTER TABLE cdm.note_unavailable RENAME TO note"
+                    : "ALTER TABLE cdm.note RENAME TO note_unavailable");
+        }
+    }
+
+    @Test
+    public void testBatchFetch() throws SQLException {
+        OMOPNoteStore store = store("note_store_batch", 1024 * 1024, false);
+        Map<String, String> texts = store.getNoteTexts(Arrays.asList("1", "2", "3", "4", "99"));
+        // Absent notes are omitted, and null text is read as empty
+        assertEquals(new HashSet<>(Arrays.asList("1", "2", "3", "4")), texts.keySet());
+        assertEquals(text(2), texts.get("2"));
+        assertEquals("", texts.get("4"));
+        // Later callers share the store, including its cache, regardless of their own settings
+        assertSame(store, OMOPNoteStore.shared(connections, "cdm", SQLDialect.fromJdbcUrl("jdbc:h2:mem:"), 2, 0, true));
+        // All notes of the batch are cached, such that they are read without querying NOTE
+        setNotesAvailable(false);
+        Map<String, String> cached = store.getNoteTexts(Arrays.asList("1", "3", "4"));
+        assertEquals(text(1), cached.get("1"));
+        assertEquals(text(3), cached.get("3"));
+        assertEquals("", cached.get("4"));
+        try {
+            store.getNoteText("99");
+            fail("Expected an absent note to be queried again");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof SQLException);
+        }
+        setNotesAvailable(true);
+        assertNull(store.getNoteText("99"));
+        assertTrue(store.getNoteTexts(Collections.emptyList()).isEmpty());
+    }
+
+    @Test
+    public void testEvictionByByteBudget() throws SQLException {
+        // Two of notes 1, 2 and 3 fit within the budget
+        long noteBytes = estimateBytes("1", text(1));
+        assertEquals(noteBytes, estimateBytes("2", text(2)));
+        OMOPNoteStore store = store("note_store_eviction", 2 * noteBytes + 10, false);
+        assertEquals(text(1), store.getNoteText("1"));
+        assertEquals(text(2), store.getNoteText("2"));
+        assertEquals(2 * noteBytes, store.getUsedBytes());
+        // Reading note 1 again makes note 2 the least recently used, and so the note evicted for note 3
+        assertEquals(text(1), store.getNoteText("1"));
+        assertEquals(text(3), store.getNoteText("3"));
+        assertEquals(2 * noteBytes, store.getUsedBytes());
+        setNotesAvailable(false);
+        assertEquals(text(1), store.getNoteText("1"));
+        assertEquals(text(3), store.getNoteText("3"));
+        try {
+            store.getNoteText("2");
+            fail("Expected an evicted note to be queried");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof SQLException);
+        }
+        setNotesAvailable(true);
+        assertEquals(text(2), store.getNoteText("2"));
+        assertEquals(2 * noteBytes, store.getUsedBytes());
+    }
+
+    @Test
+    public void testEvictionOfOversizedBatch() throws SQLException {
+        // A batch exceeding the budget is returned in full, but only partially cached
+        OMOPNoteStore store = store("note_store_oversized", 200, false);
+        assertEquals(3, store.getNoteTexts(Arrays.asList("1", "2", "3")).size());
+        assertTrue(store.getUsedBytes() <= 200);
+    }
+
+    @Test
+    public void testCompressedRoundTrip() throws SQLException {
+        OMOPNoteStore store = store("note_store_deflate", 1024 * 1024, true);
+        assertEquals(text(1), store.getNoteText("1"));
+        assertEquals("", store.getNoteText("4"));
+        // Repetitive text is cached in fewer bytes than its UTF-8 encoding
+        assertTrue(store.getUsedBytes() < estimateBytes("1", text(1)) + estimateBytes("4", ""));
+        setNotesAvailable(false);
+        // Decoded from the cache, including non-ASCII characters
+        assertEquals(text(1), store.getNoteText("1"));
+        assertEquals("", store.getNoteText("4"));
+        assertTrue(text(1).contains("caf\u00e9"));
+    }
+
+    @Test
+    public void testSnippet() throws SQLException {
+        OMOPNoteStore store = store("note_store_snippet", 1024 * 1024, false);
+        // The offset of the second occurrence is preferred to the first occurrence of the lexical variant
+        assertEquals("Reports chest pain on exer", store.getSnippet("5", "35", "chest pain", 8));
+        assertEquals("Reports chest pain on exer", store.getSnippet("5", " 35-45", "chest pain", 8));
+        // Missing, unparseable and out of range offsets fall back to the first occurrence
+        String first = " denies chest pain. Report";
+        assertEquals(first, store.getSnippet("5", null, "chest pain", 8));
+        assertEquals(first, store.getSnippet("5", "unknown", "chest pain", 8));
+        assertEquals(first, store.getSnippet("5", "9999", "chest pain", 8));
+        assertEquals(first, store.getSnippet("5", "99999999999", "chest pain", 8));
+        // Context is clipped to the text
+        assertEquals(SNIPPET_TEXT, store.getSnippet("5", "15", "chest pain", 1000));
+        // Matches that cannot be located
+        assertNull(store.getSnippet("5", null, "shortness of breath", 8));
+        assertNull(store.getSnippet("5", "9999", null, 8));
+        assertNull(store.getSnippet("99", "35", "chest pain", 8));
+    }
+}
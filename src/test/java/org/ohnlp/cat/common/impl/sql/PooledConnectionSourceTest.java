@@ -0,0 +1,63 @@
+package org.ohnlp.cat.common.impl.sql;
+
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class PooledConnectionSourceTest {
+    private static PooledConnectionSource source(int poolSize) {
+        Map<String, Object> config = new HashMap<>();
+        config.put("url", "jdbc:h2:mem:pooled_connection_source");
+        config.put("driver", "org.h2.Driver");
+        config.put("user", "sa");
+        config.put("password", "");
+        config.put("pool_size", poolSize);
+        return PooledConnectionSource.fromConfig(config);
+    }
+
+    @Test
+    public void testClosedHandleIsNotReacquired() throws SQLException {
+        PooledConnectionSource source = source(2);
+        try (Connection conn = source.getConnection()) {
+            assertTrue(conn.isValid(1));
+        }
+        source.close();
+        try {
+            source.getConnection();
+            fail("Expected a closed handle to be rejected");
+        } catch (IllegalStateException expected) {
+        }
+        // Closing again is a no-op
+        source.close();
+    }
+
+    @Test
+    public void testCopyOutlivesOriginal() throws SQLException {
+        PooledConnectionSource source = source(2);
+        PooledConnectionSource copy = source.copy();
+        try (Connection conn = source.getConnection()) {
+            assertTrue(conn.isValid(1));
+        }
+        source.close();
+        try (Connection conn = copy.getConnection()) {
+            assertTrue(conn.isValid(1));
+        } finally {
+            copy.close();
+        }
+    }
+
+    @Test
+    public void testPoolSizeIsPartOfPoolKey() {
+        PooledConnectionSource small = source(2);
+        PooledConnectionSource large = source(8);
+        assertEquals(small.getKey(), large.getKey());
+        assertNotEquals(small.getPoolKey(), large.getPoolKey());
+        assertEquals(small.getPoolKey(), small.copy().getPoolKey());
+        assertEquals(8, large.getPoolSize());
+    }
+}
@@ -0,0 +1,199 @@
+package org.ohnlp.cat.common.impl.sql;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.ohnlp.cat.api.ehr.ParameterizedQuery;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Binds code lists of {@link #LIST_SIZE} values through each {@link QueryParameters} binding strategy against
+ * embedded H2 and HSQLDB databases, checking both the matched rows and the number of statements executed
+ */
+public class QueryParametersTest {
+    private static final int TABLE_SIZE = 20000;
+    private static final int LIST_SIZE = 10000;
+
+    private final List<Connection> connections = new ArrayList<>();
+
+    @Before
+    public void setUp() throws SQLException {
+        connections.add(load(DriverManager.getConnection("jdbc:h2:mem:query_parameters", "sa", "")));
+        connections.add(load(DriverManager.getConnection("jdbc:hsqldb:mem:query_parameters", "SA", "")));
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        for (Connection conn : connections) {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("DROP TABLE codes");
+            }
+            conn.close();
+        }
+    }
+
+    private static Connection load(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE codes (concept_id BIGINT, concept_code VARCHAR(32))");
+        }
+        try (PreparedStatement ps = conn.prepareStatement("INSERT INTO codes VALUES (?, ?)")) {
+            for (long i = 0; i < TABLE_SIZE; i++) {
+                ps.setLong(1, i);
+                ps.setString(2, "C" + i);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+        return conn;
+    }
+
+    @Test
+    public void testArrayParameters() throws SQLException {
+        // Array parameters are only used for PostgreSQL, whose untyped = ANY(?) form H2 accepts but HSQLDB does not
+        StatementCounter counter = new StatementCounter(connections.get(0));
+        assertLongListMatches(counter, SQLDialect.POSTGRESQL, "concept_id = ANY(?)");
+        assertEquals(1, counter.prepared);
+        assertEquals(1, counter.executed);
+    }
+
+    @Test
+    public void testTemporaryTables() throws SQLException {
+        for (SQLDialect dialect : new SQLDialect[]{SQLDialect.H2, SQLDialect.HSQLDB}) {
+            Connection conn = connections.get(dialect == SQLDialect.H2 ? 0 : 1);
+            StatementCounter counter = new StatementCounter(conn);
+            assertLongListMatches(counter, dialect, "concept_id IN (SELECT val FROM ");
+            // Create (drop + create DDL), one batched insert statement, the query itself, and the final drop
+            assertEquals(4, counter.prepared);
+            assertTrue("Executed " + counter.executed + " statements", counter.executed <= 4 + LIST_SIZE / 1000 + 1);
+            counter = new StatementCounter(conn);
+            assertStringListMatches(counter, dialect);
+            assertEquals(4, counter.prepared);
+        }
+    }
+
+    @Test
+    public void testChunkedInLists() throws SQLException {
+        for (Connection conn : connections) {
+            StatementCounter counter = new StatementCounter(conn);
+            assertLongListMatches(counter, SQLDialect.GENERIC, "(concept_id IN (");
+            assertEquals(1, counter.prepared);
+            assertEquals(1, counter.executed);
+            counter = new StatementCounter(conn);
+            assertStringListMatches(counter, SQLDialect.GENERIC);
+            assertEquals(1, counter.executed);
+        }
+    }
+
+    @Test
+    public void testInListPaddingBoundsDistinctStatements() {
+        Set<String> statements = new HashSet<>();
+        for (int size = 1; size <= LIST_SIZE; size += 7) {
+            QueryParameters params = new QueryParameters(SQLDialect.GENERIC, QueryParameters.DEFAULT_BULK_BINDING_THRESHOLD);
+            statements.add(params.bindLongList("concept_id", evenIDs(size)));
+        }
+        // At most one statement per padded size of the final chunk (a power of two up to 1024), per chunk count
+        assertTrue("Produced " + statements.size() + " statements", statements.size() <= 11 * (LIST_SIZE / 1000 + 1));
+    }
+
+    private static void assertLongListMatches(StatementCounter counter, SQLDialect dialect, String expectedPredicate) throws SQLException {
+        QueryParameters params = new QueryParameters(dialect, QueryParameters.DEFAULT_BULK_BINDING_THRESHOLD);
+        String predicate = params.bindLongList("concept_id", evenIDs(LIST_SIZE));
+        assertTrue(predicate, predicate.startsWith(expectedPredicate));
+        Set<Object> expected = new HashSet<>();
+        for (long id : evenIDs(LIST_SIZE)) {
+            expected.add(id);
+        }
+        assertEquals(expected, execute(counter.proxy, params.toQuery("SELECT concept_id FROM codes WHERE " + predicate)));
+    }
+
+    private static void assertStringListMatches(StatementCounter counter, SQLDialect dialect) throws SQLException {
+        List<String> codes = new ArrayList<>();
+        for (long id : evenIDs(LIST_SIZE)) {
+            codes.add("C" + id);
+        }
+        // Codes absent from the table should not affect the result
+        codes.add("X1");
+        QueryParameters params = new QueryParameters(dialect, QueryParameters.DEFAULT_BULK_BINDING_THRESHOLD);
+        String predicate = params.bindStringList("concept_code", codes);
+        Set<Object> ret = execute(counter.proxy, params.toQuery("SELECT concept_code FROM codes WHERE " + predicate));
+        codes.remove("X1");
+        assertEquals(new HashSet<Object>(codes), ret);
+    }
+
+    private static Set<Object> execute(Connection conn, ParameterizedQuery query) throws SQLException {
+        Set<Object> ret = new HashSet<>();
+        query.prepare(conn);
+        try (PreparedStatement ps = conn.prepareStatement(query.getSql())) {
+            query.bind(ps);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    Object value = rs.getObject(1);
+                    ret.add(value instanceof Number ? ((Number) value).longValue() : value);
+                }
+            }
+        } finally {
+            query.release(conn);
+        }
+        return ret;
+    }
+
+    private static long[] evenIDs(int count) {
+        long[] ret = new long[count];
+        for (int i = 0; i < count; i++) {
+            ret[i] = 2L * i;
+        }
+        return ret;
+    }
+
+    /**
+     * Counts the statements created on, and executed via, a connection
+     */
+    private static class StatementCounter {
+        private final Connection proxy;
+        private int prepared;
+        private int executed;
+
+        private StatementCounter(Connection conn) {
+            this.proxy = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{Connection.class},
+                    (p, method, args) -> {
+                        Object ret = invoke(conn, method, args);
+                        if (method.getName().equals("createStatement") || method.getName().equals("prepareStatement")) {
+                            prepared++;
+                            return wrap((Statement) ret, method.getReturnType());
+                        }
+                        return ret;
+                    });
+        }
+
+        private Object wrap(Statement stmt, Class<?> type) {
+            InvocationHandler handler = (p, method, args) -> {
+                if (method.getName().startsWith("execute")) {
+                    executed++;
+                }
+                return invoke(stmt, method, args);
+            };
+            return Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{type}, handler);
+        }
+
+        private static Object invoke(Object target, java.lang.reflect.Method method, Object[] args) throws Throwable {
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
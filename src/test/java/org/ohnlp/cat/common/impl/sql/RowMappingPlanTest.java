@@ -0,0 +1,156 @@
+package org.ohnlp.cat.common.impl.sql;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.util.FhirTerser;
+import org.apache.beam.sdk.schemas.Schema;
+import org.apache.beam.sdk.values.Row;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.junit.Test;
+import org.ohnlp.cat.api.criteria.ClinicalEntityType;
+import org.ohnlp.cat.api.utils.FHIRUtils;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class RowMappingPlanTest {
+    private static final FhirContext CONTEXT = FhirContext.forR4();
+    private static final FhirTerser TERSER = CONTEXT.newTerser();
+    private static final IParser JSON = CONTEXT.newJsonParser();
+
+    private static final Schema PERSON_SCHEMA = Schema.builder()
+            .addInt64Field("person_id")
+            .addStringField("source")
+            .addNullableField("family_name", Schema.FieldType.STRING)
+            .addNullableField("given_name", Schema.FieldType.STRING)
+            .addNullableField("middle_name", Schema.FieldType.STRING)
+            .addNullableField("gender", Schema.FieldType.STRING)
+            .build();
+
+    private static final Schema OBSERVATION_SCHEMA = Schema.builder()
+            .addInt64Field("measurement_id")
+            .addStringField("vocabulary_id")
+            .addStringField("concept_code")
+            .addNullableField("value_as_number", Schema.FieldType.DOUBLE)
+            .addNullableField("unit", Schema.FieldType.STRING)
+            .addNullableField("measurement_date", Schema.FieldType.STRING)
+            .build();
+
+    private static Map<String, String> personMappings() {
+        Map<String, String> mappings = new LinkedHashMap<>();
+        mappings.put("person_id,source", "ID");
+        mappings.put("family_name", "Person.name.family");
+        mappings.put("given_name", "Person.name.given");
+        mappings.put("middle_name", "Person.name.given");
+        mappings.put("gender", "Person.gender");
+        return mappings;
+    }
+
+    private static Map<String, String> observationMappings() {
+        Map<String, String> mappings = new LinkedHashMap<>();
+        mappings.put("measurement_id", "ID");
+        mappings.put("vocabulary_id,concept_code", "Observation.code.coding.code");
+        mappings.put("value_as_number", "Observation.valueQuantity.value");
+        mappings.put("unit", "Observation.valueQuantity.unit");
+        mappings.put("measurement_date", "Observation.effectiveDateTime");
+        return mappings;
+    }
+
+    /**
+     * Maps input via {@link FhirTerser#addElements}, as rows were mapped prior to the introduction of
+     * {@link RowMappingPlan}, other than that null column values are skipped rather than failing with a
+     * NullPointerException and that values for the same path are kept in mapping order
+     */
+    private static DomainResource viaTerser(ClinicalEntityType type, Map<String, String> mappings, Row input) {
+        Map<String, Collection<String>> pathToValue = new LinkedHashMap<>();
+        String id = null;
+        for (Map.Entry<String, String> e : mappings.entrySet()) {
+            List<String> values = new ArrayList<>();
+            for (String col : e.getKey().split(",")) {
+                Object value = input.getValue(col);
+                if (value == null) {
+                    values = null;
+                    break;
+                }
+                values.add(value.toString());
+            }
+            if (values == null) {
+                continue;
+            }
+            String value = String.join("|~|", values);
+            if (e.getValue().equalsIgnoreCase("ID")) {
+                id = value;
+            } else {
+                pathToValue.computeIfAbsent(e.getValue(), k -> new LinkedHashSet<>()).add(value);
+            }
+        }
+        return FHIRUtils.createAndWriteValuestoResource(TERSER, type, id, pathToValue);
+    }
+
+    private static void assertEquivalent(ClinicalEntityType type, Schema schema, Map<String, String> mappings, Row input) {
+        String expected = JSON.encodeResourceToString(viaTerser(type, mappings, input));
+        String actual = JSON.encodeResourceToString(RowMappingPlan.compile(type, schema, mappings).apply(input));
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testMultiColumnIDAndRepeatingLeaf() {
+        Row input = Row.withSchema(PERSON_SCHEMA).addValues(1L, "ehr", "Doe", "Jane", "Ann", "female").build();
+        assertEquivalent(ClinicalEntityType.PERSON, PERSON_SCHEMA, personMappings(), input);
+        DomainResource person = RowMappingPlan.compile(ClinicalEntityType.PERSON, PERSON_SCHEMA, personMappings()).apply(input);
+        assertEquals("1|~|ehr", person.getIdElement().getIdPart());
+        assertTrue(JSON.encodeResourceToString(person).contains("\"given\":[\"Jane\",\"Ann\"]"));
+        // Identical values for a repeating leaf are added once
+        assertEquivalent(ClinicalEntityType.PERSON, PERSON_SCHEMA, personMappings(),
+                Row.withSchema(PERSON_SCHEMA).addValues(2L, "ehr", "Roe", "Sam", "Sam", "male").build());
+    }
+
+    @Test
+    public void testChoiceTypePath() {
+        Row input = Row.withSchema(OBSERVATION_SCHEMA)
+                .addValues(7L, "LOINC", "2345-7", 5.4, "mmol/L", "2020-01-01").build();
+        assertEquivalent(ClinicalEntityType.OBSERVATION, OBSERVATION_SCHEMA, observationMappings(), input);
+        String json = JSON.encodeResourceToString(
+                RowMappingPlan.compile(ClinicalEntityType.OBSERVATION, OBSERVATION_SCHEMA, observationMappings()).apply(input));
+        assertTrue(json, json.contains("\"valueQuantity\":{\"value\":5.4,\"unit\":\"mmol/L\"}"));
+        assertTrue(json, json.contains("\"effectiveDateTime\":\"2020-01-01\""));
+        assertTrue(json, json.contains("\"code\":\"LOINC|~|2345-7\""));
+    }
+
+    @Test
+    public void testNullColumns() {
+        // Null values, including one of several mapped to the same path, leave their elements unset
+        assertEquivalent(ClinicalEntityType.PERSON, PERSON_SCHEMA, personMappings(),
+                Row.withSchema(PERSON_SCHEMA).addValues(3L, "ehr", null, "Jane", null, null).build());
+        assertEquivalent(ClinicalEntityType.PERSON, PERSON_SCHEMA, personMappings(),
+                Row.withSchema(PERSON_SCHEMA).addValues(4L, "ehr", null, null, null, null).build());
+        assertEquivalent(ClinicalEntityType.OBSERVATION, OBSERVATION_SCHEMA, observationMappings(),
+                Row.withSchema(OBSERVATION_SCHEMA).addValues(8L, "LOINC", "2345-7", null, "mmol/L", null).build());
+    }
+
+    @Test
+    public void testNonRepeatingLeaf() {
+        Map<String, String> mappings = personMappings();
+        mappings.put("family_name,source", "Person.gender");
+        Row input = Row.withSchema(PERSON_SCHEMA).addValues(5L, "ehr", "Doe", "Jane", "Ann", "female").build();
+        try {
+            viaTerser(ClinicalEntityType.PERSON, mappings, input);
+            fail("Expected multiple values for a non-repeating element to be rejected");
+        } catch (DataFormatException expected) {
+        }
+        try {
+            RowMappingPlan.compile(ClinicalEntityType.PERSON, PERSON_SCHEMA, mappings).apply(input);
+            fail("Expected multiple values for a non-repeating element to be rejected");
+        } catch (DataFormatException expected) {
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidPath() {
+        Map<String, String> mappings = personMappings();
+        mappings.put("gender", "Person.name.unknown");
+        RowMappingPlan.compile(ClinicalEntityType.PERSON, PERSON_SCHEMA, mappings);
+    }
+}
@@ -0,0 +1,90 @@
+package org.ohnlp.cat.common.impl.sql;
+
+import org.apache.beam.sdk.schemas.Schema;
+import org.apache.beam.sdk.values.Row;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.ohnlp.cat.api.criteria.ClinicalEntityType;
+import org.ohnlp.cat.api.ehr.ParameterizedQuery;
+import org.ohnlp.cat.api.ehr.StreamingOptions;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StreamingRowReaderTest {
+    private static final Schema SCHEMA = Schema.builder()
+            .addNullableField("id", Schema.FieldType.INT64)
+            .addNullableField("name", Schema.FieldType.STRING)
+            .build();
+
+    private Connection conn;
+
+    @Before
+    public void setUp() throws SQLException {
+        conn = DriverManager.getConnection("jdbc:h2:mem:streaming_row_reader", "sa", "");
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE t (id BIGINT, name VARCHAR(32))");
+            stmt.execute("INSERT INTO t SELECT X, CASE WHEN MOD(X, 10) = 0 THEN NULL ELSE 'n' || X END FROM SYSTEM_RANGE(1, 1000)");
+        }
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        conn.close();
+    }
+
+    @Test
+    public void testDirectRead() throws SQLException {
+        int threads = Thread.activeCount();
+        try (StreamingRowReader reader = StreamingRowReader.open(conn, query(), SCHEMA, null, ClinicalEntityType.CONDITION)) {
+            // Reads without streaming options neither take a cursor transaction nor start a producer thread
+            assertTrue(conn.getAutoCommit());
+            assertEquals(threads, Thread.activeCount());
+            assertRows(reader);
+        }
+        assertTrue(conn.getAutoCommit());
+    }
+
+    @Test
+    public void testStreamingRead() throws SQLException {
+        StreamingOptions options = new StreamingOptions(Collections.singletonMap(ClinicalEntityType.CONDITION, 7), 3);
+        try (StreamingRowReader reader = StreamingRowReader.open(conn, query(), SCHEMA, options, ClinicalEntityType.CONDITION)) {
+            assertFalse(conn.getAutoCommit());
+            assertRows(reader);
+        }
+        assertTrue(conn.getAutoCommit());
+    }
+
+    @Test
+    public void testEarlyClose() throws SQLException {
+        StreamingOptions options = new StreamingOptions(Collections.emptyMap(), 1);
+        try (StreamingRowReader reader = StreamingRowReader.open(conn, query(), SCHEMA, options, ClinicalEntityType.CONDITION)) {
+            assertEquals(1L, (long) reader.next().getInt64("id"));
+        }
+        assertTrue(conn.getAutoCommit());
+    }
+
+    private static ParameterizedQuery query() {
+        return new ParameterizedQuery("SELECT name, id FROM t WHERE id > ? ORDER BY id", Collections.singletonList(0));
+    }
+
+    private static void assertRows(StreamingRowReader reader) {
+        List<Row> rows = new ArrayList<>();
+        reader.forEachRemaining(rows::add);
+        assertEquals(1000, rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            long id = i + 1;
+            assertEquals(id, (long) rows.get(i).getInt64("id"));
+            assertEquals(id % 10 == 0 ? null : "n" + id, rows.get(i).getString("name"));
+        }
+        assertFalse(reader.hasNext());
+    }
+}